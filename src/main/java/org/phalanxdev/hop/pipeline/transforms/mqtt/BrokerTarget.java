@@ -0,0 +1,124 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.phalanxdev.hop.pipeline.transforms.mqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.phalanxdev.mqtt.InflightWindow;
+import org.phalanxdev.mqtt.OfflineBuffer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One of the brokers the publisher sends every message to, with its own connections, in-flight window, offline
+ * buffer and reconnect state, so that a slow or unreachable broker only holds up the others once its window and
+ * buffer are full. Also keeps the counters reported for the broker.
+ */
+public class BrokerTarget {
+
+  protected final String m_uri;
+
+  protected MqttAsyncClient[] m_clients;
+  protected MqttConnectOptions m_connectOptions;
+
+  /** Only used when reconnecting automatically */
+  protected AtomicBoolean[] m_connected;
+  protected OfflineBuffer m_offline;
+  protected final Object m_drainLock = new Object();
+
+  /** Only used when publishing asynchronously */
+  protected InflightWindow m_window;
+  protected IMqttActionListener m_deliveryListener;
+
+  protected final AtomicLong m_submitted = new AtomicLong();
+  protected final AtomicLong m_acknowledged = new AtomicLong();
+  protected final AtomicLong m_failed = new AtomicLong();
+  protected volatile long m_lastAckLatencyMicros;
+
+  public BrokerTarget( String uri ) {
+    m_uri = uri;
+  }
+
+  /**
+   * @return the broker URI
+   */
+  public String getUri() {
+    return m_uri;
+  }
+
+  /**
+   * @return the number of messages given to this broker that it has not yet acknowledged or failed, including any
+   * waiting in the offline buffer
+   */
+  public long getLag() {
+    return m_submitted.get() - m_acknowledged.get() - m_failed.get();
+  }
+
+  /**
+   * @return the number of messages this broker has acknowledged
+   */
+  public long getAcknowledged() {
+    return m_acknowledged.get();
+  }
+
+  /**
+   * @return the number of messages that failed to reach this broker
+   */
+  public long getFailed() {
+    return m_failed.get();
+  }
+
+  /**
+   * @return how long (in microseconds) the broker took to acknowledge the most recent message
+   */
+  public long getLastAckLatencyMicros() {
+    return m_lastAckLatencyMicros;
+  }
+
+  /**
+   * Pick the connection to publish a topic's messages on. A topic always maps to the same connection, so messages
+   * for a topic are still delivered in order when spread over several connections.
+   *
+   * @param topic the topic
+   * @return the index of the connection
+   */
+  protected int connectionFor( String topic ) {
+    if ( m_clients.length == 1 ) {
+      return 0;
+    }
+    int h = topic.hashCode();
+    h ^= h >>> 16;
+    return ( h & 0x7fffffff ) % m_clients.length;
+  }
+
+  /**
+   * @param connection the index of a connection
+   * @return false if the connection has been lost and not yet re-established
+   */
+  protected boolean isConnected( int connection ) {
+    return m_connected == null || m_connected[connection].get();
+  }
+}
@@ -0,0 +1,288 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.phalanxdev.hop.pipeline.transforms.mqtt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holds back messages for a time window per topic and passes on only the latest one when the window closes, so that
+ * a burst of updates to a topic results in a single message carrying the most recent value. A topic's window opens
+ * when a message arrives for it and nothing is pending.
+ * <p>
+ * Pending messages are kept in a fixed-size open-addressing table keyed by topic, so holding a message back allocates
+ * nothing once the table has warmed up. Slots stay assigned to their topic after a flush, so a steady set of topics
+ * keeps reusing the same slots and payload arrays; slots without a pending message are reclaimed when a new topic
+ * needs room. If the table is full of pending messages, a message for a new topic is not held back. Each message that
+ * is passed on is copied out of its slot, as the publisher may keep it while the slot takes the topic's next message.
+ * <p>
+ * Windows are flushed both from the step thread and from a timer, so the table is guarded by this object's monitor.
+ * Messages are taken out of the table under the monitor but handed to the publisher after releasing it, so that a
+ * publisher that blocks (e.g. on a full in-flight window) doesn't hold up adding messages. Publishing is serialized
+ * on a separate lock, which keeps the messages for a topic in order.
+ */
+public class Conflator {
+
+  /**
+   * Receives the latest message for a topic when its window closes
+   */
+  public interface ConflatedPublisher {
+
+    /**
+     * @param topic the topic
+     * @param payload the message payload (a copy, so it may be kept)
+     * @param row the input row the message came from
+     */
+    void publishConflated( String topic, byte[] payload, Object[] row );
+  }
+
+  protected final long m_window;
+
+  /** Slots are only filled to this many, to keep probe sequences short */
+  protected final int m_maxTopics;
+  protected final int m_mask;
+
+  protected String[] m_topics;
+  protected byte[][] m_payloads;
+  protected int[] m_lengths;
+  protected Object[][] m_rows; // null when nothing is pending for the slot
+  protected long[] m_openedAt;
+
+  protected int m_used;
+  protected int m_pending;
+
+  protected volatile long m_conflated;
+
+  /** Held while handing messages to the publisher, and taken before the monitor when flushing */
+  protected final Object m_publishLock = new Object();
+
+  /**
+   * A message taken out of the table, waiting to be published
+   */
+  protected static class Flushed {
+    protected final String m_topic;
+    protected final byte[] m_payload;
+    protected final Object[] m_row;
+
+    protected Flushed( String topic, byte[] payload, Object[] row ) {
+      m_topic = topic;
+      m_payload = payload;
+      m_row = row;
+    }
+  }
+
+  /**
+   * @param window how long (in milliseconds) to hold back messages for a topic
+   * @param maxTopics the maximum number of topics that can have a message pending at once
+   */
+  public Conflator( long window, int maxTopics ) {
+    m_window = window;
+    m_maxTopics = Math.max( 1, maxTopics );
+    int capacity = Integer.highestOneBit( m_maxTopics ) << 1;
+    if ( capacity < m_maxTopics * 4 / 3 ) {
+      capacity <<= 1;
+    }
+    m_mask = capacity - 1;
+    m_topics = new String[capacity];
+    m_payloads = new byte[capacity][];
+    m_lengths = new int[capacity];
+    m_rows = new Object[capacity][];
+    m_openedAt = new long[capacity];
+  }
+
+  /**
+   * Hold back a message until its topic's window closes, replacing any message already pending for the topic
+   *
+   * @param topic the topic
+   * @param payload the array holding the encoded message. It is copied, so may be reused afterwards
+   * @param offset the start of the message in the array
+   * @param length the length of the message
+   * @param row the input row the message came from
+   * @param now the current time in milliseconds
+   * @param publisher receives the message straight away if there is no room to hold it back
+   * @return true if the message replaced one that was pending (which will now never be published)
+   */
+  public boolean add( String topic, byte[] payload, int offset, int length, Object[] row, long now,
+      ConflatedPublisher publisher ) {
+    synchronized ( this ) {
+      int slot = find( topic );
+      // reclaiming rebuilds the whole table, so it is only worth doing if some slot has nothing pending
+      if ( m_topics[slot] == null && m_used >= m_maxTopics && m_pending < m_maxTopics ) {
+        reclaim();
+        slot = find( topic );
+      }
+      if ( m_topics[slot] != null || m_used < m_maxTopics ) {
+        if ( m_topics[slot] == null ) {
+          m_topics[slot] = topic;
+          m_used++;
+        }
+
+        boolean replaced = m_rows[slot] != null;
+        if ( replaced ) {
+          m_conflated++;
+        } else {
+          m_openedAt[slot] = now;
+          m_pending++;
+        }
+        byte[] held = m_payloads[slot];
+        if ( held == null || held.length < length ) {
+          held = new byte[Math.max( length, 16 )];
+          m_payloads[slot] = held;
+        }
+        System.arraycopy( payload, offset, held, 0, length );
+        m_lengths[slot] = length;
+        m_rows[slot] = row;
+        return replaced;
+      }
+    }
+
+    // no room to hold it back. Nothing is pending for the topic, but a flush may still be publishing its last message
+    synchronized ( m_publishLock ) {
+      publisher.publishConflated( topic, Arrays.copyOfRange( payload, offset, offset + length ), row );
+    }
+    return false;
+  }
+
+  /**
+   * Pass on the pending message for every topic whose window has closed
+   *
+   * @param now the current time in milliseconds
+   * @param publisher receives the messages
+   */
+  public void flushExpired( long now, ConflatedPublisher publisher ) {
+    synchronized ( m_publishLock ) {
+      List<Flushed> expired = null;
+      synchronized ( this ) {
+        if ( m_pending == 0 ) {
+          return;
+        }
+        for ( int i = 0; i < m_rows.length; i++ ) {
+          if ( m_rows[i] != null && now - m_openedAt[i] >= m_window ) {
+            if ( expired == null ) {
+              expired = new ArrayList<>();
+            }
+            expired.add( take( i ) );
+          }
+        }
+      }
+      publish( expired, publisher );
+    }
+  }
+
+  /**
+   * Pass on all pending messages, regardless of how long they have been held
+   *
+   * @param publisher receives the messages
+   */
+  public void flushAll( ConflatedPublisher publisher ) {
+    synchronized ( m_publishLock ) {
+      List<Flushed> pending = new ArrayList<>();
+      synchronized ( this ) {
+        for ( int i = 0; m_pending > 0 && i < m_rows.length; i++ ) {
+          if ( m_rows[i] != null ) {
+            pending.add( take( i ) );
+          }
+        }
+      }
+      publish( pending, publisher );
+    }
+  }
+
+  /**
+   * @return the number of messages that were replaced by a later message for the same topic
+   */
+  public long getConflated() {
+    return m_conflated;
+  }
+
+  /**
+   * @return the window (in milliseconds)
+   */
+  public long getWindow() {
+    return m_window;
+  }
+
+  protected int find( String topic ) {
+    int h = topic.hashCode();
+    int slot = ( h ^ ( h >>> 16 ) ) & m_mask;
+    while ( m_topics[slot] != null && !m_topics[slot].equals( topic ) ) {
+      slot = ( slot + 1 ) & m_mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Take the pending message out of a slot. Must be called holding the monitor
+   *
+   * @param slot the slot
+   * @return the message, with a copy of the payload
+   */
+  protected Flushed take( int slot ) {
+    Object[] row = m_rows[slot];
+    m_rows[slot] = null;
+    m_pending--;
+    return new Flushed( m_topics[slot], Arrays.copyOf( m_payloads[slot], m_lengths[slot] ), row );
+  }
+
+  protected static void publish( List<Flushed> messages, ConflatedPublisher publisher ) {
+    if ( messages == null ) {
+      return;
+    }
+    for ( Flushed message : messages ) {
+      publisher.publishConflated( message.m_topic, message.m_payload, message.m_row );
+    }
+  }
+
+  /**
+   * Free the slots of topics that have nothing pending. Linear probing doesn't allow holes to be punched in a probe
+   * sequence, so the pending entries are re-inserted into cleared arrays.
+   */
+  protected void reclaim() {
+    String[] topics = m_topics;
+    byte[][] payloads = m_payloads;
+    int[] lengths = m_lengths;
+    Object[][] rows = m_rows;
+    long[] openedAt = m_openedAt;
+
+    int capacity = topics.length;
+    m_topics = new String[capacity];
+    m_payloads = new byte[capacity][];
+    m_lengths = new int[capacity];
+    m_rows = new Object[capacity][];
+    m_openedAt = new long[capacity];
+    m_used = 0;
+
+    for ( int i = 0; i < capacity; i++ ) {
+      if ( rows[i] != null ) {
+        int slot = find( topics[i] );
+        m_topics[slot] = topics[i];
+        m_payloads[slot] = payloads[i];
+        m_lengths[slot] = lengths[i];
+        m_rows[slot] = rows[i];
+        m_openedAt[slot] = openedAt[i];
+        m_used++;
+      }
+    }
+  }
+}
@@ -22,31 +22,38 @@
 
 package org.phalanxdev.hop.pipeline.transforms.mqtt;
 
+import org.apache.hop.core.IRowSet;
 import org.apache.hop.core.exception.HopException;
 import org.apache.hop.core.exception.HopValueException;
 import org.apache.hop.core.row.IRowMeta;
 import org.apache.hop.core.row.IValueMeta;
+import org.apache.hop.core.row.RowDataUtil;
 import org.apache.hop.i18n.BaseMessages;
 import org.apache.hop.pipeline.Pipeline;
 import org.apache.hop.pipeline.PipelineMeta;
 import org.apache.hop.pipeline.transform.BaseTransform;
 import org.apache.hop.pipeline.transform.ITransform;
 import org.apache.hop.pipeline.transform.TransformMeta;
-import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
-import org.eclipse.paho.client.mqttv3.MqttException;
-import org.eclipse.paho.client.mqttv3.MqttMessage;
 
+import org.phalanxdev.mqtt.BatchFraming;
+import org.phalanxdev.mqtt.ChangeFilter;
+import org.phalanxdev.mqtt.ObjectCodec;
+import org.phalanxdev.mqtt.OfflineBuffer;
 import org.phalanxdev.mqtt.SSLSocketFactoryGenerator;
+import org.phalanxdev.mqtt.TokenBucket;
+import org.phalanxdev.mqtt.TopicTrie;
 
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
-import java.nio.ByteBuffer;
+import java.io.File;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
- * MQTT m_client step publisher
+ * MQTT m_client step publisher. Turns each row into a message and hands it to the {@link MessageDispatcher}, which
+ * gets it to the brokers; acknowledged and failed messages come back from the dispatcher as receipt rows and error
+ * rows.
  *
  * @author Michael Spector
  * @author Mark Hall (mhall{[at]}phalanxdev{[dot]}com)
@@ -64,68 +71,178 @@ public class MQTTPublisher extends BaseTransform<MQTTPublisherMeta, MQTTPublishe
     m_data = data;
   }
 
+  @Override public boolean init() {
+    if ( !super.init() ) {
+      return false;
+    }
+    m_data.m_dispatcher = new MessageDispatcher( getTransformName(), getLogChannel(), new MessageDispatcher.Owner() {
+      @Override public boolean isStopped() {
+        return MQTTPublisher.this.isStopped();
+      }
+
+      @Override public void rowsDelivered( int rows ) {
+        for ( int i = 0; i < rows; i++ ) {
+          incrementLinesOutput();
+        }
+      }
+    } );
+    if ( m_meta.isConnectOnInit() ) {
+      // connecting here happens in parallel with the other transforms' init, and a bad broker, credentials or
+      // certificate stops the pipeline before any upstream work is done
+      try {
+        connect( m_meta, m_data );
+      } catch ( HopException e ) {
+        logError( e.getMessage(), e );
+        shutdown( m_data );
+        return false;
+      }
+    }
+    return true;
+  }
+
   @Override public void dispose() {
+    MessageDispatcher dispatcher = m_data.m_dispatcher;
+    if ( dispatcher != null ) {
+      dispatcher.stopFlusher();
+      if ( !dispatcher.waitForOutstandingDeliveries() ) {
+        setErrors( 1 );
+      }
+    }
     super.dispose();
     shutdown( m_data );
   }
   
+  /**
+   * @param meta the meta to read the client id from
+   * @return the client id for this copy of the step
+   * @throws HopException if no client id is set
+   */
+  protected String resolveClientId( MQTTPublisherMeta meta ) throws HopException {
+    String clientId = resolve( meta.getClientId() );
+    if ( org.apache.hop.core.util.Utils.isEmpty( clientId ) ) {
+      throw new HopException( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.NoClientID" ) );
+    }
+    // the broker disconnects a client when another connects with the same id, so every copy after the first gets
+    // its own
+    if ( getCopy() > 0 ) {
+      clientId = clientId + "-c" + getCopy();
+    }
+    return clientId;
+  }
+
   protected void configureConnection( MQTTPublisherMeta meta, MQTTPublisherData data ) throws HopException {
-    if ( data.m_client == null ) {
-      String broker = resolve( meta.getBroker() );
-      if ( org.apache.hop.core.util.Utils.isEmpty( broker ) ) {
-        throw new HopException(
-            BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.NoBrokerURL" ) );
-      }
-      String clientId = resolve( meta.getClientId() );
-      if ( org.apache.hop.core.util.Utils.isEmpty( clientId ) ) {
-        throw new HopException( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.NoClientID" ) );
+    String brokerList = resolve( meta.getBroker() );
+    List<String> uris = new ArrayList<>();
+    if ( brokerList != null ) {
+      for ( String uri : brokerList.split( "[,\\s]+" ) ) {
+        if ( uri.length() > 0 ) {
+          uris.add( uri );
+        }
       }
+    }
+    if ( uris.isEmpty() ) {
+      throw new HopException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.NoBrokerURL" ) );
+    }
+    String clientId = resolveClientId( meta );
 
+    String connectionsValue = resolve( meta.getConnectionsPerCopy() );
+    int connections = 1;
+    if ( !org.apache.hop.core.util.Utils.isEmpty( connectionsValue ) ) {
       try {
-        data.m_client = new MqttClient( broker, clientId );
-
-        MqttConnectOptions connectOptions = new MqttConnectOptions();
-        if ( meta.isRequiresAuth() ) {
-          connectOptions.setUserName( resolve( meta.getUsername() ) );
-          connectOptions.setPassword( resolve( meta.getPassword() ).toCharArray() );
-        }
-        if ( broker.startsWith( "ssl:" ) || broker.startsWith( "wss:" ) ) {
-          connectOptions.setSocketFactory( SSLSocketFactoryGenerator
-              .getSocketFactory( resolve( meta.getSSLCaFile() ),
-                  resolve( meta.getSSLCertFile() ), resolve( meta.getSSLKeyFile() ),
-                  resolve( meta.getSSLKeyFilePass() ) ) );
-        }
-		connectOptions.setCleanSession( meta.isCleanSession() ); //adding cleanSession Managmeent
-        String lwTopic=meta.getLastWillTopic();
-		String lwMessage=meta.getLastWillMessage();
-		if(lwTopic!=null && lwMessage!=null)
-		{
-		connectOptions.setWill(meta.getLastWillTopic(),meta.getLastWillMessage().getBytes(),0,meta.isLastWillRetained());//adding Lastwill
-		}
-        String timeout = resolve( meta.getTimeout() );
-        try {
-          connectOptions.setConnectionTimeout( Integer.parseInt( timeout ) );
-        } catch ( NumberFormatException e ) {
-          throw new HopException(
-              BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongTimeoutValue.Message", timeout ), e );
-        }
+        connections = Integer.parseInt( connectionsValue.trim() );
+      } catch ( NumberFormatException e ) {
+        connections = 0;
+      }
+      if ( connections < 1 ) {
+        throw new HopException( BaseMessages
+            .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongConnectionsValue.Message", connectionsValue ) );
+      }
+    }
 
-        logBasic( BaseMessages
-            .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.CreateMQTTClient.Message", broker, clientId,Boolean.toString(meta.isCleanSession()) ) );
-        data.m_client.connect( connectOptions );
+    List<MqttConnectOptions> connectOptions = new ArrayList<>();
+    for ( String uri : uris ) {
+      connectOptions.add( connectOptionsFor( meta, uri ) );
+    }
+    data.m_dispatcher.connect( uris, connectOptions, clientId, connections );
+  }
 
-      } catch ( Exception e ) {
+  /**
+   * Build the options to connect to one broker with
+   *
+   * @param meta the meta to read settings from
+   * @param uri the broker URI, which decides whether SSL is used
+   * @return the options
+   * @throws HopException if the settings are invalid or the SSL socket factory can't be created
+   */
+  protected MqttConnectOptions connectOptionsFor( MQTTPublisherMeta meta, String uri ) throws HopException {
+    try {
+      MqttConnectOptions connectOptions = new MqttConnectOptions();
+      if ( meta.isRequiresAuth() ) {
+        connectOptions.setUserName( resolve( meta.getUsername() ) );
+        connectOptions.setPassword( resolve( meta.getPassword() ).toCharArray() );
+      }
+      if ( uri.startsWith( "ssl:" ) || uri.startsWith( "wss:" ) ) {
+        connectOptions.setSocketFactory( SSLSocketFactoryGenerator
+            .getSocketFactory( resolve( meta.getSSLCaFile() ),
+                resolve( meta.getSSLCertFile() ), resolve( meta.getSSLKeyFile() ),
+                resolve( meta.getSSLKeyFilePass() ) ) );
+      }
+      connectOptions.setCleanSession( meta.isCleanSession() ); //adding cleanSession Managmeent
+      String lwTopic = meta.getLastWillTopic();
+      String lwMessage = meta.getLastWillMessage();
+      if ( lwTopic != null && lwMessage != null ) {
+        connectOptions.setWill( meta.getLastWillTopic(), meta.getLastWillMessage().getBytes(), 0,
+            meta.isLastWillRetained() );//adding Lastwill
+      }
+      String timeout = resolve( meta.getTimeout() );
+      try {
+        connectOptions.setConnectionTimeout( Integer.parseInt( timeout ) );
+      } catch ( NumberFormatException e ) {
         throw new HopException(
-            BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorCreateMQTTClient.Message", broker ),
-            e );
+            BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongTimeoutValue.Message", timeout ), e );
       }
+      return connectOptions;
+    } catch ( HopException e ) {
+      throw e;
+    } catch ( Exception e ) {
+      throw new HopException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorCreateMQTTClient.Message", uri ), e );
     }
   }
 
   public boolean processRow( ) throws HopException {
+    if ( !handleFailedDeliveries( m_data ) ) {
+      return false;
+    }
+    emitReceipts( m_data );
+    m_data.m_dispatcher.drainOfflineBuffer();
+    if ( !awaitInput( m_data ) ) {
+      return false;
+    }
+
     Object[] r = getRow();
     if ( r == null ) {
-      setOutputDone();
+      if ( m_meta.isDurableOutbox() ) {
+        // messages recovered from the outbox are published even when there are no rows
+        connect( m_meta, m_data );
+      }
+      if ( !m_data.m_dispatcher.finish() ) {
+        setErrors( 1 );
+      }
+      if ( m_data.m_changeFilter != null ) {
+        logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.ReportByExceptionSummary",
+            Long.toString( m_data.m_changeFilter.getSuppressed() ) ) );
+      }
+      long firstRowLatency = m_data.m_dispatcher.getFirstRowLatencyMicros();
+      if ( firstRowLatency >= 0 ) {
+        logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.FirstRowLatency",
+            Long.toString( firstRowLatency / 1000L ) ) );
+      }
+      emitReceipts( m_data );
+      if ( handleFailedDeliveries( m_data ) ) {
+        setOutputDone();
+      }
       return false;
     }
     
@@ -133,12 +250,17 @@ public class MQTTPublisher extends BaseTransform<MQTTPublisherMeta, MQTTPublishe
 
     if ( first ) {
       first = false;
+      m_data.m_dispatcher.setFirstRowArrived( System.nanoTime() );
 
-      // Initialize MQTT m_client:
-      configureConnection( m_meta, m_data );
+      // already done in init() unless connecting there is turned off
+      connect( m_meta, m_data );
 
       data.m_outputRowMeta = getInputRowMeta().clone();
       m_meta.getFields( m_data.m_outputRowMeta, getTransformName(), null, null, this, getMetadataProvider() );
+      if ( meta.isOutputReceipts() ) {
+        data.m_dispatcher.setOutputReceipts();
+        data.m_receiptIndex = inputRowMeta.size();
+      }
 
       String inputField = resolve( meta.getField() );
 
@@ -160,8 +282,24 @@ public class MQTTPublisher extends BaseTransform<MQTTPublisherMeta, MQTTPublishe
         return false;
       }
       data.m_inputFieldMeta = inputRowMeta.getValueMeta( data.m_inputFieldNr );
+      ObjectCodec objectCodec = null;
+      if ( data.m_inputFieldMeta.isSerializableType()
+          && ObjectCodec.Format.fromName( meta.getObjectFormat() ) == ObjectCodec.Format.COMPACT ) {
+        try {
+          objectCodec = ObjectCodec.forClassNames( resolve( meta.getObjectClasses() ), getClass().getClassLoader() );
+        } catch ( ClassNotFoundException | IllegalArgumentException e ) {
+          throw new HopException(
+              BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.ObjectCodec", e.getMessage() ), e );
+        }
+      }
+      data.m_encoder = PayloadEncoder.forValueMeta( data.m_inputFieldMeta, objectCodec );
       data.m_topic = resolve( meta.getTopic() );
-      if ( meta.getTopicIsFromField() ) {
+      if ( !meta.getTopicIsFromField() && meta.getTopicIsTemplate() && TopicTemplate
+          .hasPlaceholders( data.m_topic ) ) {
+        data.m_topicTemplate = TopicTemplate.compile( data.m_topic, inputRowMeta );
+      } else if ( !meta.getTopicIsFromField() ) {
+        checkTopic( data.m_topic, data );
+      } else {
         data.m_topicFromFieldIndex = inputRowMeta.indexOfValue( data.m_topic );
         if ( data.m_topicFromFieldIndex < 0 ) {
           throw new HopException(
@@ -184,43 +322,70 @@ public class MQTTPublisher extends BaseTransform<MQTTPublisherMeta, MQTTPublishe
         throw new HopException(
             BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongQOSValue.Message", qosValue ), e );
       }
+
+      configureTopicPolicies( m_meta, m_data );
+      configureRateLimits( m_meta, m_data );
+
+      if ( meta.isReportByException() ) {
+        configureReportByException( m_meta, m_data );
+      }
+
+      if ( meta.isBatchMessages() || data.m_anyPolicyBatches ) {
+        configureBatching( m_meta, m_data );
+      }
+
+      if ( meta.isConflate() ) {
+        configureConflation( m_meta, m_data );
+      }
+
+      if ( m_data.m_dispatcher.isAsync() && meta.isAutoTune() ) {
+        configureAutoTuning( m_meta, m_data );
+      }
     }
 
     try {
       if ( !isStopped() ) {
         Object rawMessage = r[data.m_inputFieldNr];
-        byte[] message = messageToBytes( rawMessage, data.m_inputFieldMeta );
-        if ( message == null ) {
+        if ( !data.m_encoder.encode( rawMessage, data.m_payload ) ) {
           logDetailed( "Incoming message value is null/empty - skipping" );
           return true;
         }
 
-        // String topic = resolve( meta.getTopic() );
-
         if ( meta.getTopicIsFromField() ) {
-          if ( r[data.m_topicFromFieldIndex] == null || org.apache.hop.core.util.Utils.isEmpty( r[data.m_topicFromFieldIndex].toString() ) ) {
+          Object topicValue = r[data.m_topicFromFieldIndex];
+          String topic = topicValue != null ? topicValue.toString() : null;
+          if ( topic == null || topic.length() == 0 ) {
             // TODO add a default topic option, and then only skip if the default is null
-            logDetailed( "Incoming topic value is null/empty - skipping message: " + rawMessage );
+            if ( isDetailed() ) {
+              logDetailed( "Incoming topic value is null/empty - skipping message: " + rawMessage );
+            }
+            return true;
+          }
+          checkTopic( topic, data );
+          data.m_topic = topic;
+        } else if ( data.m_topicTemplate != null ) {
+          String topic = data.m_topicTemplate.render( r );
+          if ( topic == null ) {
+            if ( isDetailed() ) {
+              logDetailed( "A field used in the topic template is null/empty - skipping message: " + rawMessage );
+            }
             return true;
           }
-          data.m_topic = r[data.m_topicFromFieldIndex].toString();
+          checkTopic( topic, data );
+          data.m_topic = topic;
+        }
+
+        if ( data.m_changeFilter != null && !valueHasChanged( rawMessage, data ) ) {
+          incrementLinesSkipped();
+          return true;
         }
 
-        MqttMessage mqttMessage = new MqttMessage( message );
-        mqttMessage.setQos( data.m_qos );
-		mqttMessage.setRetained(meta.isRetained()); //Adding retain option
-        
-        logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.SendingData", data.m_topic,
-            Integer.toString( data.m_qos ),Boolean.toString(meta.isRetained()) ));
-		
         if ( isRowLevel() ) {
           logRowlevel( data.m_inputFieldMeta.getString( r[data.m_inputFieldNr] ) );
         }
-        try {
-          data.m_client.publish( data.m_topic, mqttMessage );
-        } catch ( MqttException e ) {
-          throw new HopException(
-              BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorPublishing.Message" ), e );
+        if ( data.m_dispatcher.submit( data.m_topic, data.m_payload, r ) ) {
+          // the row this one replaced will never be published
+          incrementLinesSkipped();
         }
       }
     } catch ( HopException e ) {
@@ -237,79 +402,621 @@ public class MQTTPublisher extends BaseTransform<MQTTPublisherMeta, MQTTPublishe
     return true;
   }
 
-  protected void shutdown( MQTTPublisherData data ) {
-    if ( data.m_client != null ) {
+  /**
+   * Set up everything the connections depend on, connect to the brokers, (optionally) check that messages can be
+   * published and publish any messages recovered from the outbox. Does nothing if already connected.
+   *
+   * @param meta the meta to read settings from
+   * @param data the data to configure
+   * @throws HopException if the settings are invalid, or a broker can't be connected to or published to
+   */
+  protected void connect( MQTTPublisherMeta meta, MQTTPublisherData data ) throws HopException {
+    if ( data.m_dispatcher.isConnected() ) {
+      return;
+    }
+    long start = System.nanoTime();
+
+    if ( meta.isAsyncPublish() ) {
+      configureAsyncPublishing( meta, data );
+    }
+
+    if ( meta.isAutoReconnect() ) {
+      configureReconnect( meta, data );
+    }
+
+    if ( meta.isDurableOutbox() ) {
+      configureOutbox( meta, data );
+    }
+
+    configureConnection( meta, data );
+
+    String warmUpTopic = resolve( meta.getWarmUpTopic() );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( warmUpTopic ) ) {
+      checkTopic( warmUpTopic, data );
+      data.m_dispatcher.warmUp( warmUpTopic );
+    }
+
+    data.m_connectMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+    logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.Connected",
+        Integer.toString( data.m_dispatcher.getBrokerCount() ), Long.toString( data.m_connectMillis ) ) );
+
+    data.m_dispatcher.replayOutbox();
+  }
+
+  /**
+   * Set up the in-flight window used when publishing asynchronously
+   *
+   * @param meta the meta to read settings from
+   * @param data the data to configure
+   * @throws HopException if the settings are invalid
+   */
+  protected void configureAsyncPublishing( MQTTPublisherMeta meta, MQTTPublisherData data ) throws HopException {
+    String maxInflight = resolve( meta.getMaxInflight() );
+    int limit;
+    try {
+      limit = Integer.parseInt( maxInflight );
+    } catch ( NumberFormatException e ) {
+      throw new HopException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongMaxInflightValue.Message", maxInflight ),
+          e );
+    }
+    if ( limit < 1 ) {
+      throw new HopException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongMaxInflightValue.Message", maxInflight ) );
+    }
+
+    configureDrainTimeout( meta, data );
+
+    int maxWindow = limit;
+    if ( meta.isAutoTune() ) {
+      String tuneMaxInflight = resolve( meta.getAutoTuneMaxInflight() );
       try {
-        if ( data.m_client.isConnected() ) {
-          data.m_client.disconnect();
+        maxWindow = Math.max( limit, Integer.parseInt( tuneMaxInflight ) );
+      } catch ( NumberFormatException e ) {
+        throw new HopException( BaseMessages
+            .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongMaxInflightValue.Message", tuneMaxInflight ), e );
+      }
+    }
+
+    data.m_dispatcher.setAsyncPublishing( limit, maxWindow );
+  }
+
+  /**
+   * Set up the controller that adjusts the in-flight window (and batch size, if batching) while running. Must be
+   * called after the window and batcher have been configured.
+   *
+   * @param meta the meta to read settings from
+   * @param data the data to configure
+   * @throws HopException if the settings are invalid
+   */
+  protected void configureAutoTuning( MQTTPublisherMeta meta, MQTTPublisherData data ) throws HopException {
+    String targetLatency = resolve( meta.getAutoTuneTargetLatency() );
+    long target;
+    try {
+      target = Long.parseLong( targetLatency );
+    } catch ( NumberFormatException e ) {
+      throw new HopException( BaseMessages
+          .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongTargetLatencyValue.Message", targetLatency ), e );
+    }
+
+    data.m_dispatcher.setAutoTuning( target );
+  }
+
+  @Override public String getStatusDescription() {
+    String status = super.getStatusDescription();
+    MessageDispatcher dispatcher = m_data.m_dispatcher;
+    if ( dispatcher != null ) {
+      status = dispatcher.getStatusDescription( status );
+    }
+    ChangeFilter changeFilter = m_data.m_changeFilter;
+    if ( changeFilter != null ) {
+      status = BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Status.Unchanged", status,
+          Long.toString( changeFilter.getSuppressed() ) );
+    }
+    if ( m_data.m_connectMillis >= 0 ) {
+      long firstRow = getFirstRowLatencyMicros();
+      status = BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Status.Latency", status,
+          Long.toString( m_data.m_connectMillis ), firstRow >= 0 ? Long.toString( firstRow / 1000L ) : "-" );
+    }
+    return status;
+  }
+
+  /**
+   * @return how long connecting to the brokers (including the warm-up publish, if any) took in milliseconds, or -1 if
+   * not connected yet
+   */
+  public long getConnectMillis() {
+    return m_data.m_connectMillis;
+  }
+
+  /**
+   * @return how long after the first row arrived the first message was published, in microseconds, or -1 if that
+   * hasn't happened yet
+   */
+  public long getFirstRowLatencyMicros() {
+    MessageDispatcher dispatcher = m_data.m_dispatcher;
+    return dispatcher != null ? dispatcher.getFirstRowLatencyMicros() : -1;
+  }
+
+  /**
+   * Read how long to wait at the end of the stream for outstanding messages to be delivered
+   *
+   * @param meta the meta to read settings from
+   * @param data the data to configure
+   * @throws HopException if the timeout is not a number
+   */
+  protected void configureDrainTimeout( MQTTPublisherMeta meta, MQTTPublisherData data ) throws HopException {
+    String drainTimeout = resolve( meta.getDrainTimeout() );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( drainTimeout ) ) {
+      try {
+        data.m_dispatcher.setDrainTimeout( Long.parseLong( drainTimeout ) * 1000L );
+      } catch ( NumberFormatException e ) {
+        throw new HopException( BaseMessages
+            .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongDrainTimeoutValue.Message", drainTimeout ), e );
+      }
+    }
+  }
+
+  /**
+   * Set up reconnection after a lost connection, and the buffer that holds messages until then
+   *
+   * @param meta the meta to read settings from
+   * @param data the data to configure
+   * @throws HopException if the settings are invalid
+   */
+  protected void configureReconnect( MQTTPublisherMeta meta, MQTTPublisherData data ) throws HopException {
+    configureDrainTimeout( meta, data );
+
+    String minDelayValue = resolve( meta.getReconnectMinDelay() );
+    String maxDelayValue = resolve( meta.getReconnectMaxDelay() );
+    long minDelay;
+    long maxDelay;
+    try {
+      minDelay = Math.max( 1L, Long.parseLong( minDelayValue ) );
+    } catch ( NumberFormatException e ) {
+      throw new HopException( BaseMessages
+          .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongReconnectDelayValue.Message", minDelayValue ), e );
+    }
+    try {
+      maxDelay = Math.max( minDelay, Long.parseLong( maxDelayValue ) );
+    } catch ( NumberFormatException e ) {
+      throw new HopException( BaseMessages
+          .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongReconnectDelayValue.Message", maxDelayValue ), e );
+    }
+
+    String bufferSizeValue = resolve( meta.getOfflineBufferSize() );
+    long bufferSize;
+    try {
+      bufferSize = Long.parseLong( bufferSizeValue ) * 1024L * 1024L;
+    } catch ( NumberFormatException e ) {
+      bufferSize = -1;
+    }
+    if ( bufferSize <= 0 || bufferSize > Integer.MAX_VALUE ) {
+      throw new HopException( BaseMessages
+          .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongOfflineBufferSizeValue.Message", bufferSizeValue ) );
+    }
+
+    data.m_dispatcher.setReconnect( minDelay, maxDelay, (int) bufferSize,
+        OfflineBuffer.OverflowPolicy.fromName( meta.getOfflineOverflow() ) );
+  }
+
+  /**
+   * Work out the step-level publish settings and build the trie used to find the settings for topics that have a
+   * policy of their own
+   *
+   * @param meta the meta to read settings from
+   * @param data the data to configure
+   * @throws HopException if a policy is invalid
+   */
+  protected void configureTopicPolicies( MQTTPublisherMeta meta, MQTTPublisherData data ) throws HopException {
+    MessageDispatcher.PublishSettings defaultSettings =
+        new MessageDispatcher.PublishSettings( data.m_qos, meta.isRetained(), meta.isBatchMessages(), false, null );
+
+    List<TopicPolicy> policies = meta.getTopicPolicies();
+    if ( policies == null || policies.isEmpty() ) {
+      data.m_dispatcher.setTopicPolicies( defaultSettings, null );
+      return;
+    }
+
+    TopicTrie<MessageDispatcher.PublishSettings> trie = new TopicTrie<>();
+    for ( TopicPolicy policy : policies ) {
+      String filter = resolve( policy.getFilter() );
+      String qosValue = resolve( policy.getQoS() );
+      int qos = data.m_qos;
+      if ( !org.apache.hop.core.util.Utils.isEmpty( qosValue ) ) {
+        try {
+          qos = Integer.parseInt( qosValue.trim() );
+        } catch ( NumberFormatException e ) {
+          qos = -1;
+        }
+        if ( qos < 0 || qos > 2 ) {
+          throw new HopException(
+              BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongQOSValue.Message", qosValue ) );
         }
-        data.m_client.close();
-        data.m_client = null;
-      } catch ( MqttException e ) {
-        logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorClosingMQTTClient.Message" ), e );
       }
+      String rateValue = resolve( policy.getRateLimit() );
+      TokenBucket bucket = null;
+      if ( !org.apache.hop.core.util.Utils.isEmpty( rateValue ) ) {
+        bucket = newBucket( rateValue, "MQTTClientStep.WrongRateLimitValue.Message" );
+      }
+      try {
+        trie.put( filter, new MessageDispatcher.PublishSettings( qos, policy.isRetained(), policy.isBatch(),
+            policy.isCompress(), bucket ) );
+      } catch ( IllegalArgumentException e ) {
+        throw new HopException(
+            BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientMeta.Check.InvalidTopicPolicy", filter ), e );
+      }
+      data.m_anyPolicyBatches |= policy.isBatch();
     }
+    data.m_dispatcher.setTopicPolicies( defaultSettings, trie );
   }
-  
-  @Override public void stopRunning() throws HopException {
-    shutdown( m_data );
-    super.stopRunning();
+
+  /**
+   * Set up the step-wide message and byte rate limits
+   *
+   * @param meta the meta to read settings from
+   * @param data the data to configure
+   * @throws HopException if the settings are invalid
+   */
+  protected void configureRateLimits( MQTTPublisherMeta meta, MQTTPublisherData data ) throws HopException {
+    TokenBucket messageBucket = null;
+    TokenBucket byteBucket = null;
+    String messagesValue = resolve( meta.getRateLimitMessages() );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( messagesValue ) ) {
+      messageBucket = newBucket( messagesValue, "MQTTClientStep.WrongRateLimitValue.Message" );
+    }
+    String bytesValue = resolve( meta.getRateLimitBytes() );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( bytesValue ) ) {
+      byteBucket = newBucket( bytesValue, "MQTTClientStep.WrongRateLimitBytesValue.Message" );
+    }
+    data.m_dispatcher.setRateLimits( messageBucket, byteBucket );
   }
 
-  protected byte[] messageToBytes( Object message, IValueMeta messageValueMeta ) throws HopValueException {
-    if ( message == null || org.apache.hop.core.util.Utils.isEmpty( message.toString() ) ) {
-      return null;
+  /**
+   * Create a token bucket that allows bursts of up to one second's worth
+   *
+   * @param rateValue the rate per second
+   * @param errorKey message key for an invalid rate
+   * @return the bucket
+   * @throws HopException if the rate is not a positive number
+   */
+  protected TokenBucket newBucket( String rateValue, String errorKey ) throws HopException {
+    double rate;
+    try {
+      rate = Double.parseDouble( rateValue.trim() );
+    } catch ( NumberFormatException e ) {
+      throw new HopException( BaseMessages.getString( MQTTPublisherMeta.PKG, errorKey, rateValue ), e );
     }
+    if ( !( rate > 0 ) ) {
+      throw new HopException( BaseMessages.getString( MQTTPublisherMeta.PKG, errorKey, rateValue ) );
+    }
+    return new TokenBucket( rate, (long) Math.ceil( rate ), System.nanoTime() );
+  }
 
-    byte[] result = null;
+  /**
+   * Set up suppression of values that haven't changed since they were last published to a topic
+   *
+   * @param meta the meta to read settings from
+   * @param data the data to configure
+   * @throws HopException if the settings are invalid
+   */
+  protected void configureReportByException( MQTTPublisherMeta meta, MQTTPublisherData data ) throws HopException {
+    String deadbandValue = resolve( meta.getDeadband() );
+    double deadband = 0;
+    String heartbeatValue = resolve( meta.getHeartbeatInterval() );
+    long heartbeat = 0;
+    String maxTopicsValue = resolve( meta.getMaxTrackedTopics() );
+    int maxTopics = MQTTPublisherData.MAX_CACHED_TOPICS;
     try {
-      ByteBuffer buff = null;
-      switch ( messageValueMeta.getType() ) {
-        case IValueMeta.TYPE_STRING:
-          result = message.toString().getBytes( "UTF-8" );
-          break;
-        case IValueMeta.TYPE_INTEGER:
-        case IValueMeta.TYPE_DATE: // send the date as a long (milliseconds) value
-          buff = ByteBuffer.allocate( 8 );
-          buff.putLong( messageValueMeta.getInteger( message ) );
-          result = buff.array();
-          break;
-        case IValueMeta.TYPE_NUMBER:
-          buff = ByteBuffer.allocate( 8 );
-          buff.putDouble( messageValueMeta.getNumber( message ) );
-          result = buff.array();
-          break;
-        case IValueMeta.TYPE_TIMESTAMP:
-          buff = ByteBuffer.allocate( 12 );
-          Timestamp ts = (Timestamp) message;
-          buff.putLong( ts.getTime() );
-          buff.putInt( ts.getNanos() );
-          result = buff.array();
-          break;
-        case IValueMeta.TYPE_BINARY:
-          result = messageValueMeta.getBinary( message );
-          break;
-        case IValueMeta.TYPE_BOOLEAN:
-          result = new byte[1];
-          if ( messageValueMeta.getBoolean( message ) ) {
-            result[0] = 1;
-          }
-          break;
-        case IValueMeta.TYPE_SERIALIZABLE:
-          if ( !( message instanceof Serializable ) ) {
-            throw new HopValueException( "Message value is not serializable!" );
-          }
-          ByteArrayOutputStream bos = new ByteArrayOutputStream();
-          ObjectOutputStream oos = new ObjectOutputStream( bos );
-          oos.writeObject( message );
-          oos.flush();
-          result = bos.toByteArray();
-          break;
+      if ( !org.apache.hop.core.util.Utils.isEmpty( deadbandValue ) ) {
+        deadband = Double.parseDouble( deadbandValue );
+      }
+    } catch ( NumberFormatException e ) {
+      throw new HopException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongDeadbandValue.Message", deadbandValue ),
+          e );
+    }
+    try {
+      if ( !org.apache.hop.core.util.Utils.isEmpty( heartbeatValue ) ) {
+        heartbeat = Long.parseLong( heartbeatValue ) * 1000L;
+      }
+    } catch ( NumberFormatException e ) {
+      throw new HopException( BaseMessages
+          .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongHeartbeatIntervalValue.Message", heartbeatValue ),
+          e );
+    }
+    try {
+      if ( !org.apache.hop.core.util.Utils.isEmpty( maxTopicsValue ) ) {
+        maxTopics = Integer.parseInt( maxTopicsValue );
       }
-    } catch ( Exception ex ) {
-      throw new HopValueException( ex );
+    } catch ( NumberFormatException e ) {
+      throw new HopException( BaseMessages
+          .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongMaxTrackedTopicsValue.Message", maxTopicsValue ),
+          e );
     }
 
-    return result;
+    int type = data.m_inputFieldMeta.getType();
+    data.m_changeNumeric = type == IValueMeta.TYPE_INTEGER || type == IValueMeta.TYPE_NUMBER;
+    data.m_changeFilter = new ChangeFilter( maxTopics, deadband, meta.isDeadbandPercent(), heartbeat );
+  }
+
+  /**
+   * Check the current row's value against the last value published to its topic. Numbers are compared against the
+   * deadband; anything else is compared on its encoded bytes.
+   *
+   * @param rawMessage the message field value (already encoded into the payload buffer)
+   * @param data the data holding the change filter and the current topic
+   * @return true if the value should be published
+   * @throws HopValueException if the value can't be read as a number
+   */
+  protected boolean valueHasChanged( Object rawMessage, MQTTPublisherData data ) throws HopValueException {
+    long now = System.currentTimeMillis();
+    if ( data.m_changeNumeric ) {
+      double value = rawMessage instanceof Number ? ( (Number) rawMessage ).doubleValue()
+          : data.m_inputFieldMeta.getNumber( rawMessage );
+      return data.m_changeFilter.accept( data.m_topic, value, now );
+    }
+    return data.m_changeFilter
+        .accept( data.m_topic, data.m_payload.array(), 0, data.m_payload.length(), now );
+  }
+
+  /**
+   * Set up batching of rows into messages
+   *
+   * @param meta the meta to read settings from
+   * @param data the data to configure
+   * @throws HopException if the settings are invalid
+   */
+  protected void configureBatching( MQTTPublisherMeta meta, MQTTPublisherData data ) throws HopException {
+    BatchFraming framing = BatchFraming.fromName( meta.getBatchFormat() );
+    if ( framing != BatchFraming.LENGTH_PREFIXED && data.m_inputFieldMeta.getType() != IValueMeta.TYPE_STRING ) {
+      throw new HopException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.BatchFormatNeedsString", framing.name() ) );
+    }
+
+    String maxRowsValue = resolve( meta.getBatchMaxRows() );
+    int maxRows;
+    try {
+      maxRows = Integer.parseInt( maxRowsValue );
+    } catch ( NumberFormatException e ) {
+      throw new HopException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongBatchMaxRowsValue.Message", maxRowsValue ),
+          e );
+    }
+    if ( maxRows < 1 ) {
+      throw new HopException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongBatchMaxRowsValue.Message", maxRowsValue ) );
+    }
+
+    String maxAgeValue = resolve( meta.getBatchMaxAge() );
+    long maxAge = 0;
+    if ( !org.apache.hop.core.util.Utils.isEmpty( maxAgeValue ) ) {
+      try {
+        maxAge = Long.parseLong( maxAgeValue );
+      } catch ( NumberFormatException e ) {
+        throw new HopException( BaseMessages
+            .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongBatchMaxAgeValue.Message", maxAgeValue ), e );
+      }
+    }
+
+    data.m_dispatcher.setBatching( framing, maxRows, maxAge );
+  }
+
+  /**
+   * Set up conflation, which holds back messages for each topic for a time window and publishes only the latest
+   *
+   * @param meta the meta to read settings from
+   * @param data the data to configure
+   * @throws HopException if the settings are invalid
+   */
+  protected void configureConflation( MQTTPublisherMeta meta, MQTTPublisherData data ) throws HopException {
+    String windowValue = resolve( meta.getConflationWindow() );
+    long window;
+    try {
+      window = Long.parseLong( windowValue );
+    } catch ( NumberFormatException e ) {
+      throw new HopException( BaseMessages
+          .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongConflationWindowValue.Message", windowValue ), e );
+    }
+    if ( window < 1 ) {
+      throw new HopException( BaseMessages
+          .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongConflationWindowValue.Message", windowValue ) );
+    }
+
+    String maxTopicsValue = resolve( meta.getConflationMaxTopics() );
+    int maxTopics;
+    try {
+      maxTopics = Integer.parseInt( maxTopicsValue );
+    } catch ( NumberFormatException e ) {
+      throw new HopException( BaseMessages
+          .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongConflationMaxTopicsValue.Message", maxTopicsValue ),
+          e );
+    }
+    if ( maxTopics < 1 ) {
+      throw new HopException( BaseMessages
+          .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongConflationMaxTopicsValue.Message",
+              maxTopicsValue ) );
+    }
+
+    data.m_dispatcher.setConflation( window, maxTopics );
+  }
+
+  /**
+   * Check that a topic is valid to publish to. Paho would otherwise throw an unchecked exception from publish. Topics
+   * that have passed are cached, so repeated topics from a field are only checked once.
+   *
+   * @param topic the topic
+   * @param data the data holding the cache of valid topics
+   * @throws HopException if the topic contains wildcards or is not a valid topic name
+   */
+  protected void checkTopic( String topic, MQTTPublisherData data ) throws HopException {
+    if ( data.m_validTopics.contains( topic ) ) {
+      return;
+    }
+
+    int len = topic.length();
+    boolean valid = len > 0 && len <= 65535;
+    for ( int i = 0; valid && i < len; i++ ) {
+      char c = topic.charAt( i );
+      valid = c != '+' && c != '#' && c != '\u0000';
+    }
+    if ( !valid ) {
+      throw new HopException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.InvalidTopic", topic ) );
+    }
+
+    if ( data.m_validTopics.size() >= MQTTPublisherData.MAX_CACHED_TOPICS ) {
+      data.m_validTopics.clear();
+    }
+    data.m_validTopics.add( topic );
+  }
+
+  /**
+   * Open the durable outbox for this copy of the step. Each copy has its own directory, named after its client id.
+   *
+   * @param meta the meta to read settings from
+   * @param data the data to configure
+   * @throws HopException if the settings are invalid or the outbox can't be opened
+   */
+  protected void configureOutbox( MQTTPublisherMeta meta, MQTTPublisherData data ) throws HopException {
+    String directory = resolve( meta.getOutboxDirectory() );
+    if ( org.apache.hop.core.util.Utils.isEmpty( directory ) ) {
+      throw new HopException( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.NoOutboxDirectory" ) );
+    }
+    String segmentSizeValue = resolve( meta.getOutboxSegmentSize() );
+    long segmentSize;
+    try {
+      segmentSize = Long.parseLong( segmentSizeValue ) * 1024L * 1024L;
+    } catch ( NumberFormatException e ) {
+      segmentSize = -1;
+    }
+    if ( segmentSize <= 0 || segmentSize > Integer.MAX_VALUE ) {
+      throw new HopException( BaseMessages
+          .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongOutboxSegmentSizeValue.Message", segmentSizeValue ) );
+    }
+    String syncIntervalValue = resolve( meta.getOutboxSyncInterval() );
+    long syncInterval;
+    try {
+      syncInterval = Long.parseLong( syncIntervalValue );
+    } catch ( NumberFormatException e ) {
+      throw new HopException( BaseMessages
+          .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongOutboxSyncIntervalValue.Message", syncIntervalValue ),
+          e );
+    }
+
+    File outboxDirectory = new File( directory, resolveClientId( meta ).replaceAll( "[^A-Za-z0-9._-]", "_" ) );
+    data.m_dispatcher.openOutbox( outboxDirectory, (int) segmentSize, syncInterval );
+  }
+
+  /**
+   * When receipts are output, wait until there is input to read while passing on receipts (and error rows) as the
+   * brokers acknowledge (or fail) messages. getRow() blocks until the next row arrives, so with slow input receipts
+   * would otherwise wait for the row after. Returns straight away when receipts are not output or nothing is
+   * outstanding.
+   *
+   * @param data the data holding the dispatcher
+   * @return false if a failed delivery stopped the step
+   * @throws HopException if a receipt or error row can't be passed on
+   */
+  protected boolean awaitInput( MQTTPublisherData data ) throws HopException {
+    MessageDispatcher dispatcher = data.m_dispatcher;
+    if ( !dispatcher.isOutputtingReceipts() ) {
+      return true;
+    }
+    while ( !isStopped() && !isInputWaiting() && dispatcher.hasOutstandingDeliveries() ) {
+      // input arriving doesn't wake us, so the wait is short
+      if ( !dispatcher.awaitSettled( MQTTPublisherData.INPUT_POLL_INTERVAL ) ) {
+        return true;
+      }
+      if ( !handleFailedDeliveries( data ) ) {
+        return false;
+      }
+      emitReceipts( data );
+    }
+    return true;
+  }
+
+  /**
+   * @return true if getRow() won't block: a row is waiting on some input, or all the inputs are done
+   */
+  protected boolean isInputWaiting() {
+    boolean done = true;
+    for ( IRowSet rowSet : getInputRowSets() ) {
+      if ( rowSet.size() > 0 ) {
+        return true;
+      }
+      done &= rowSet.isDone();
+    }
+    return done;
+  }
+
+  /**
+   * Pass on the input rows of all messages acknowledged since the last call, with the delivery details added
+   *
+   * @param data the data holding the dispatcher
+   * @throws HopException if a row could not be passed on
+   */
+  protected void emitReceipts( MQTTPublisherData data ) throws HopException {
+    MessageDispatcher.Delivery delivery;
+    while ( ( delivery = data.m_dispatcher.pollReceipt() ) != null ) {
+      Long messageId = (long) delivery.m_messageId;
+      Long payloadSize = (long) delivery.m_payloadSize;
+      Timestamp sentAt = delivery.getSentAtTimestamp();
+      Timestamp ackedAt = delivery.getAckedAtTimestamp();
+      Long latency = TimeUnit.NANOSECONDS.toMicros( delivery.m_ackedAt - delivery.m_sentAt );
+      for ( Object[] row : delivery.getRows() ) {
+        Object[] outputRow = RowDataUtil.resizeArray( row, data.m_outputRowMeta.size() );
+        int i = data.m_receiptIndex;
+        outputRow[i++] = messageId;
+        outputRow[i++] = delivery.m_topic;
+        outputRow[i++] = payloadSize;
+        outputRow[i++] = sentAt;
+        outputRow[i++] = ackedAt;
+        outputRow[i] = latency;
+        putRow( data.m_outputRowMeta, outputRow );
+      }
+    }
+  }
+
+  /**
+   * Send any rows whose delivery has failed since the last call to the error stream, or stop the step if error
+   * handling is not enabled.
+   *
+   * @param data the data holding the dispatcher
+   * @return false if the step has been stopped due to a failed delivery
+   * @throws HopException if a problem occurs
+   */
+  protected boolean handleFailedDeliveries( MQTTPublisherData data ) throws HopException {
+    MessageDispatcher.Delivery failed;
+    while ( ( failed = data.m_dispatcher.pollFailed() ) != null ) {
+      String reason = failed.m_error != null ? failed.m_error.toString() : "";
+      if ( !getTransformMeta().isDoingErrorHandling() ) {
+        logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorDelivering.Message", reason ) );
+        setErrors( 1 );
+        stopAll();
+        setOutputDone();
+        return false;
+      }
+      data.m_dispatcher.releaseOutbox( failed );
+      if ( failed.getRowCount() == 0 ) {
+        // a message replayed from the outbox has no rows to send to the error stream
+        logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorDelivering.Message", reason ) );
+      }
+      for ( Object[] row : failed.getRows() ) {
+        putError( getInputRowMeta(), row, 1, reason, null, getTransformName() );
+      }
+    }
+    return true;
+  }
+
+  protected void shutdown( MQTTPublisherData data ) {
+    if ( data.m_dispatcher != null ) {
+      data.m_dispatcher.shutdown();
+    }
+  }
+  
+  @Override public void stopRunning() throws HopException {
+    shutdown( m_data );
+    super.stopRunning();
   }
 }
@@ -26,7 +26,11 @@ import org.apache.hop.core.row.IRowMeta;
 import org.apache.hop.core.row.IValueMeta;
 import org.apache.hop.pipeline.transform.BaseTransformData;
 import org.apache.hop.pipeline.transform.ITransformData;
-import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.phalanxdev.mqtt.ChangeFilter;
+import org.phalanxdev.mqtt.PayloadBuffer;
+
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Data class for MQTTPublisher
@@ -35,12 +39,46 @@ import org.eclipse.paho.client.mqttv3.MqttClient;
  */
 public class MQTTPublisherData extends BaseTransformData implements ITransformData {
 
-  protected MqttClient m_client;
+  /** Upper bound on the number of topics remembered as valid, in case topics from a field never repeat */
+  protected static final int MAX_CACHED_TOPICS = 10000;
+
+  /** How often (in milliseconds) the flow control tuner makes a decision */
+  protected static final long TUNING_INTERVAL = 1000L;
+
+  /**
+   * How long (in milliseconds) the step waits for an acknowledgement before checking its input again, while waiting
+   * for input with receipts outstanding
+   */
+  protected static final long INPUT_POLL_INTERVAL = 10L;
+
+  /** Connections to the brokers and everything involved in getting messages to them; created in init() */
+  protected MessageDispatcher m_dispatcher;
+
+  /** How long connecting to the brokers (and the warm-up publish) took, in milliseconds; -1 until connected */
+  protected long m_connectMillis = -1;
+
   protected IRowMeta m_outputRowMeta;
   protected int m_inputFieldNr;
   protected IValueMeta m_inputFieldMeta;
 
   protected String m_topic = "";
   protected int m_topicFromFieldIndex = -1;
+  /** Only used when the topic is a template */
+  protected TopicTemplate m_topicTemplate;
   protected int m_qos = 0;
+
+  /** Chosen from the type of the message field when the first row arrives */
+  protected PayloadEncoder m_encoder;
+  protected PayloadBuffer m_payload = new PayloadBuffer();
+  protected Set<String> m_validTopics = new HashSet<>();
+
+  /** True if any topic policy batches messages */
+  protected boolean m_anyPolicyBatches;
+
+  /** Only used when reporting by exception */
+  protected ChangeFilter m_changeFilter;
+  protected boolean m_changeNumeric;
+
+  /** Where the receipt fields start in the output row, when receipts are output */
+  protected int m_receiptIndex;
 }
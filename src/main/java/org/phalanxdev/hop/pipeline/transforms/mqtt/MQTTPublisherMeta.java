@@ -28,8 +28,12 @@ import org.apache.hop.core.ICheckResult;
 import org.apache.hop.core.annotations.Transform;
 import org.apache.hop.core.encryption.Encr;
 import org.apache.hop.core.exception.HopException;
+import org.apache.hop.core.exception.HopPluginException;
+import org.apache.hop.core.exception.HopTransformException;
 import org.apache.hop.core.exception.HopXmlException;
 import org.apache.hop.core.row.IRowMeta;
+import org.apache.hop.core.row.IValueMeta;
+import org.apache.hop.core.row.value.ValueMetaFactory;
 import org.apache.hop.core.util.Utils;
 import org.apache.hop.core.variables.IVariables;
 import org.apache.hop.core.xml.XmlHandler;
@@ -42,8 +46,13 @@ import org.apache.hop.pipeline.transform.ITransform;
 import org.apache.hop.pipeline.transform.ITransformMeta;
 import org.apache.hop.pipeline.transform.TransformMeta;
 import org.phalanxdev.hop.ui.pipeline.transforms.mqtt.MQTTPublisherDialog;
+import org.phalanxdev.mqtt.BatchFraming;
+import org.phalanxdev.mqtt.ObjectCodec;
+import org.phalanxdev.mqtt.OfflineBuffer;
+import org.phalanxdev.mqtt.TopicTrie;
 import org.w3c.dom.Node;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -81,16 +90,67 @@ import java.util.List;
   private String sslKeyFilePass;
 
   private boolean m_topicIsFromField;
+  private boolean m_topicIsTemplate; // topic contains {field} placeholders filled in from each row
+
+  private Boolean asyncPublish = false; // don't wait for each ack before sending the next message
+  private String maxInflight = "100"; // max unacknowledged messages when publishing asynchronously
+  private String drainTimeout = "30"; // seconds to wait for outstanding acks at end of stream
+  private Boolean autoTune = false; // adjust the in-flight window and batch size to how the broker is coping
+  private String autoTuneMaxInflight = "1000";
+  private String autoTuneTargetLatency = "500"; // milliseconds
+
+  private Boolean batchMessages = false; // pack several rows into one message per topic
+  private String batchFormat = BatchFraming.LENGTH_PREFIXED.name();
+  private String batchMaxRows = "100";
+  private String batchMaxAge = "1000"; // milliseconds
+
+  private Boolean reportByException = false; // only publish values that have changed
+  private String deadband = "0";
+  private Boolean deadbandPercent = false; // deadband is a percentage of the last value rather than absolute
+  private String heartbeatInterval = "0"; // seconds; publish unchanged values this often anyway
+  private String maxTrackedTopics = "10000";
+
+  private String connectionsPerCopy = "1"; // connections to spread topics over
+  private Boolean connectOnInit = true; // connect while the pipeline initialises rather than on the first row
+  private String warmUpTopic = ""; // publish an empty message here after connecting to check the path; empty for none
+  private Boolean autoReconnect = false; // reconnect when the connection drops, buffering messages meanwhile
+  private String reconnectMinDelay = "1000"; // milliseconds
+  private String reconnectMaxDelay = "60000"; // milliseconds
+  private String offlineBufferSize = "16"; // MB
+  private String offlineOverflow = OfflineBuffer.OverflowPolicy.BLOCK.name();
+  private Boolean durableOutbox = false; // log QoS 1/2 messages to disk until they are acknowledged
+  private String outboxDirectory = "";
+  private String outboxSegmentSize = "64"; // MB
+  private String outboxSyncInterval = "200"; // milliseconds
+  private String rateLimitMessages = ""; // messages per second across all topics; empty for no limit
+  private String rateLimitBytes = ""; // payload bytes per second across all topics; empty for no limit
+
+  private Boolean outputReceipts = false; // emit each row once the broker has acknowledged it
+  private String receiptMessageIdField = "message_id";
+  private String receiptTopicField = "topic";
+  private String receiptPayloadSizeField = "payload_size";
+  private String receiptSentAtField = "sent_at";
+  private String receiptAckedAtField = "acked_at";
+  private String receiptAckLatencyField = "ack_latency_us";
+
+  private Boolean conflate = false; // only publish the latest value per topic in each window
+  private String conflationWindow = "1000"; // milliseconds
+  private String conflationMaxTopics = "4096";
+
+  private String objectFormat = ObjectCodec.Format.JAVA.name(); // how serializable message values are written
+  private String objectClasses = ""; // classes the compact object format may write besides the built in ones
+
+  private List<TopicPolicy> topicPolicies = new ArrayList<>(); // per-topic overrides of qos, retained etc.
 
   /**
-   * @return Broker URL
+   * @return Broker URL. The publisher accepts a comma separated list, and publishes every message to each broker
    */
   public String getBroker() {
     return broker;
   }
 
   /**
-   * @param broker Broker URL
+   * @param broker Broker URL, or a comma separated list of broker URLs to publish every message to
    */
   public void setBroker( String broker ) {
     this.broker = broker;
@@ -126,6 +186,21 @@ import java.util.List;
     return m_topicIsFromField;
   }
 
+  /**
+   * @param template true if the topic is a template whose {field} placeholders are filled in from each incoming row,
+   * e.g. site/${site}/dev/{device_id}/{metric}
+   */
+  public void setTopicIsTemplate( boolean template ) {
+    m_topicIsTemplate = template;
+  }
+
+  /**
+   * @return true if the topic is a template whose {field} placeholders are filled in from each incoming row
+   */
+  public boolean getTopicIsTemplate() {
+    return m_topicIsTemplate;
+  }
+
   /**
    * @return Target message field name in Kettle stream
    */
@@ -349,6 +424,599 @@ import java.util.List;
     return retained;
   }	
 
+  /**
+   * @param asyncPublish true to publish without waiting for each message to be acknowledged
+   */
+  public void setAsyncPublish( boolean asyncPublish ) {
+    this.asyncPublish = asyncPublish;
+  }
+
+  /**
+   * @return true to publish without waiting for each message to be acknowledged
+   */
+  public boolean isAsyncPublish() {
+    return asyncPublish;
+  }
+
+  /**
+   * @param maxInflight the maximum number of unacknowledged messages when publishing asynchronously
+   */
+  public void setMaxInflight( String maxInflight ) {
+    this.maxInflight = maxInflight;
+  }
+
+  /**
+   * @return the maximum number of unacknowledged messages when publishing asynchronously
+   */
+  public String getMaxInflight() {
+    return maxInflight;
+  }
+
+  /**
+   * @param drainTimeout time (in seconds) to wait for outstanding acknowledgements when the step finishes
+   */
+  public void setDrainTimeout( String drainTimeout ) {
+    this.drainTimeout = drainTimeout;
+  }
+
+  /**
+   * @return time (in seconds) to wait for outstanding acknowledgements when the step finishes
+   */
+  public String getDrainTimeout() {
+    return drainTimeout;
+  }
+
+  /**
+   * @param autoTune true to adjust the in-flight window and batch size according to ack latency and broker back-off
+   */
+  public void setAutoTune( boolean autoTune ) {
+    this.autoTune = autoTune;
+  }
+
+  /**
+   * @return true to adjust the in-flight window and batch size according to ack latency and broker back-off
+   */
+  public boolean isAutoTune() {
+    return autoTune;
+  }
+
+  /**
+   * @param autoTuneMaxInflight the largest the in-flight window may grow to when auto-tuning
+   */
+  public void setAutoTuneMaxInflight( String autoTuneMaxInflight ) {
+    this.autoTuneMaxInflight = autoTuneMaxInflight;
+  }
+
+  /**
+   * @return the largest the in-flight window may grow to when auto-tuning
+   */
+  public String getAutoTuneMaxInflight() {
+    return autoTuneMaxInflight;
+  }
+
+  /**
+   * @param autoTuneTargetLatency the average ack latency (in milliseconds) above which auto-tuning backs off
+   */
+  public void setAutoTuneTargetLatency( String autoTuneTargetLatency ) {
+    this.autoTuneTargetLatency = autoTuneTargetLatency;
+  }
+
+  /**
+   * @return the average ack latency (in milliseconds) above which auto-tuning backs off
+   */
+  public String getAutoTuneTargetLatency() {
+    return autoTuneTargetLatency;
+  }
+
+  /**
+   * @param batchMessages true to pack several rows into one message per topic
+   */
+  public void setBatchMessages( boolean batchMessages ) {
+    this.batchMessages = batchMessages;
+  }
+
+  /**
+   * @return true to pack several rows into one message per topic
+   */
+  public boolean isBatchMessages() {
+    return batchMessages;
+  }
+
+  /**
+   * @param batchFormat the name of the {@link BatchFraming} used to pack rows into a message
+   */
+  public void setBatchFormat( String batchFormat ) {
+    this.batchFormat = batchFormat;
+  }
+
+  /**
+   * @return the name of the {@link BatchFraming} used to pack rows into a message
+   */
+  public String getBatchFormat() {
+    return batchFormat;
+  }
+
+  /**
+   * @param batchMaxRows the maximum number of rows packed into one message
+   */
+  public void setBatchMaxRows( String batchMaxRows ) {
+    this.batchMaxRows = batchMaxRows;
+  }
+
+  /**
+   * @return the maximum number of rows packed into one message
+   */
+  public String getBatchMaxRows() {
+    return batchMaxRows;
+  }
+
+  /**
+   * @param batchMaxAge the maximum time (in milliseconds) rows can wait in a batch before it is sent
+   */
+  public void setBatchMaxAge( String batchMaxAge ) {
+    this.batchMaxAge = batchMaxAge;
+  }
+
+  /**
+   * @return the maximum time (in milliseconds) rows can wait in a batch before it is sent
+   */
+  public String getBatchMaxAge() {
+    return batchMaxAge;
+  }
+
+  /**
+   * @param reportByException true to only publish a value when it differs from the last value published to its topic
+   */
+  public void setReportByException( boolean reportByException ) {
+    this.reportByException = reportByException;
+  }
+
+  /**
+   * @return true to only publish a value when it differs from the last value published to its topic
+   */
+  public boolean isReportByException() {
+    return reportByException;
+  }
+
+  /**
+   * @param deadband how far a numeric value must move from the last published value to be published again
+   */
+  public void setDeadband( String deadband ) {
+    this.deadband = deadband;
+  }
+
+  /**
+   * @return how far a numeric value must move from the last published value to be published again
+   */
+  public String getDeadband() {
+    return deadband;
+  }
+
+  /**
+   * @param deadbandPercent true if the deadband is a percentage of the last published value
+   */
+  public void setDeadbandPercent( boolean deadbandPercent ) {
+    this.deadbandPercent = deadbandPercent;
+  }
+
+  /**
+   * @return true if the deadband is a percentage of the last published value
+   */
+  public boolean isDeadbandPercent() {
+    return deadbandPercent;
+  }
+
+  /**
+   * @param heartbeatInterval time (in seconds) after which a value is published even if it hasn't changed. 0 to
+   * disable
+   */
+  public void setHeartbeatInterval( String heartbeatInterval ) {
+    this.heartbeatInterval = heartbeatInterval;
+  }
+
+  /**
+   * @return time (in seconds) after which a value is published even if it hasn't changed
+   */
+  public String getHeartbeatInterval() {
+    return heartbeatInterval;
+  }
+
+  /**
+   * @param maxTrackedTopics the maximum number of topics whose last value is remembered
+   */
+  public void setMaxTrackedTopics( String maxTrackedTopics ) {
+    this.maxTrackedTopics = maxTrackedTopics;
+  }
+
+  /**
+   * @return the maximum number of topics whose last value is remembered
+   */
+  public String getMaxTrackedTopics() {
+    return maxTrackedTopics;
+  }
+
+  /**
+   * @param connectionsPerCopy the number of broker connections each copy of the step spreads its topics over
+   */
+  public void setConnectionsPerCopy( String connectionsPerCopy ) {
+    this.connectionsPerCopy = connectionsPerCopy;
+  }
+
+  /**
+   * @return the number of broker connections each copy of the step spreads its topics over
+   */
+  public String getConnectionsPerCopy() {
+    return connectionsPerCopy;
+  }
+
+  /**
+   * @param connectOnInit true to connect to the brokers while the pipeline initialises rather than on the first row
+   */
+  public void setConnectOnInit( boolean connectOnInit ) {
+    this.connectOnInit = connectOnInit;
+  }
+
+  /**
+   * @return true to connect to the brokers while the pipeline initialises rather than on the first row
+   */
+  public boolean isConnectOnInit() {
+    return connectOnInit;
+  }
+
+  /**
+   * @param warmUpTopic the topic to publish an empty message to after connecting, or empty to not do so
+   */
+  public void setWarmUpTopic( String warmUpTopic ) {
+    this.warmUpTopic = warmUpTopic;
+  }
+
+  /**
+   * @return the topic to publish an empty message to after connecting, or empty to not do so
+   */
+  public String getWarmUpTopic() {
+    return warmUpTopic;
+  }
+
+  /**
+   * @param autoReconnect true to reconnect automatically when a connection is lost, buffering messages until then
+   */
+  public void setAutoReconnect( boolean autoReconnect ) {
+    this.autoReconnect = autoReconnect;
+  }
+
+  /**
+   * @return true to reconnect automatically when a connection is lost, buffering messages until then
+   */
+  public boolean isAutoReconnect() {
+    return autoReconnect;
+  }
+
+  /**
+   * @param reconnectMinDelay the delay (in milliseconds) before the first reconnect attempt
+   */
+  public void setReconnectMinDelay( String reconnectMinDelay ) {
+    this.reconnectMinDelay = reconnectMinDelay;
+  }
+
+  /**
+   * @return the delay (in milliseconds) before the first reconnect attempt
+   */
+  public String getReconnectMinDelay() {
+    return reconnectMinDelay;
+  }
+
+  /**
+   * @param reconnectMaxDelay the longest delay (in milliseconds) between reconnect attempts
+   */
+  public void setReconnectMaxDelay( String reconnectMaxDelay ) {
+    this.reconnectMaxDelay = reconnectMaxDelay;
+  }
+
+  /**
+   * @return the longest delay (in milliseconds) between reconnect attempts
+   */
+  public String getReconnectMaxDelay() {
+    return reconnectMaxDelay;
+  }
+
+  /**
+   * @param offlineBufferSize the size (in MB) of the buffer holding messages while disconnected
+   */
+  public void setOfflineBufferSize( String offlineBufferSize ) {
+    this.offlineBufferSize = offlineBufferSize;
+  }
+
+  /**
+   * @return the size (in MB) of the buffer holding messages while disconnected
+   */
+  public String getOfflineBufferSize() {
+    return offlineBufferSize;
+  }
+
+  /**
+   * @param offlineOverflow what to do when the offline buffer is full (the name of an OfflineBuffer.OverflowPolicy)
+   */
+  public void setOfflineOverflow( String offlineOverflow ) {
+    this.offlineOverflow = offlineOverflow;
+  }
+
+  /**
+   * @return what to do when the offline buffer is full (the name of an OfflineBuffer.OverflowPolicy)
+   */
+  public String getOfflineOverflow() {
+    return offlineOverflow;
+  }
+
+  /**
+   * @param durableOutbox true to log QoS 1/2 messages to disk until the broker acknowledges them, and publish any left
+   * over from a previous run before new rows
+   */
+  public void setDurableOutbox( boolean durableOutbox ) {
+    this.durableOutbox = durableOutbox;
+  }
+
+  /**
+   * @return true to log QoS 1/2 messages to disk until the broker acknowledges them, and publish any left over from a
+   * previous run before new rows
+   */
+  public boolean isDurableOutbox() {
+    return durableOutbox;
+  }
+
+  /**
+   * @param outboxDirectory the directory holding the outbox. Each copy of the step uses a sub-directory named after its
+   * client id
+   */
+  public void setOutboxDirectory( String outboxDirectory ) {
+    this.outboxDirectory = outboxDirectory;
+  }
+
+  /**
+   * @return the directory holding the outbox
+   */
+  public String getOutboxDirectory() {
+    return outboxDirectory;
+  }
+
+  /**
+   * @param outboxSegmentSize the size (in MB) of each outbox segment file
+   */
+  public void setOutboxSegmentSize( String outboxSegmentSize ) {
+    this.outboxSegmentSize = outboxSegmentSize;
+  }
+
+  /**
+   * @return the size (in MB) of each outbox segment file
+   */
+  public String getOutboxSegmentSize() {
+    return outboxSegmentSize;
+  }
+
+  /**
+   * @param outboxSyncInterval how often (in milliseconds) the outbox is forced to disk
+   */
+  public void setOutboxSyncInterval( String outboxSyncInterval ) {
+    this.outboxSyncInterval = outboxSyncInterval;
+  }
+
+  /**
+   * @return how often (in milliseconds) the outbox is forced to disk
+   */
+  public String getOutboxSyncInterval() {
+    return outboxSyncInterval;
+  }
+
+  /**
+   * @param rateLimitMessages the maximum messages per second across all topics, or empty for no limit
+   */
+  public void setRateLimitMessages( String rateLimitMessages ) {
+    this.rateLimitMessages = rateLimitMessages;
+  }
+
+  /**
+   * @return the maximum messages per second across all topics, or empty for no limit
+   */
+  public String getRateLimitMessages() {
+    return rateLimitMessages;
+  }
+
+  /**
+   * @param rateLimitBytes the maximum payload bytes per second across all topics, or empty for no limit
+   */
+  public void setRateLimitBytes( String rateLimitBytes ) {
+    this.rateLimitBytes = rateLimitBytes;
+  }
+
+  /**
+   * @return the maximum payload bytes per second across all topics, or empty for no limit
+   */
+  public String getRateLimitBytes() {
+    return rateLimitBytes;
+  }
+
+  /**
+   * @param outputReceipts true to pass each input row on, with delivery details added, once its message has been
+   * acknowledged
+   */
+  public void setOutputReceipts( boolean outputReceipts ) {
+    this.outputReceipts = outputReceipts;
+  }
+
+  /**
+   * @return true to pass each input row on, with delivery details added, once its message has been acknowledged
+   */
+  public boolean isOutputReceipts() {
+    return outputReceipts;
+  }
+
+  /**
+   * @param receiptMessageIdField name of the receipt field holding the message id assigned by the client (0 for QoS 0)
+   */
+  public void setReceiptMessageIdField( String receiptMessageIdField ) {
+    this.receiptMessageIdField = receiptMessageIdField;
+  }
+
+  /**
+   * @return name of the receipt field holding the message id assigned by the client (0 for QoS 0)
+   */
+  public String getReceiptMessageIdField() {
+    return receiptMessageIdField;
+  }
+
+  /**
+   * @param receiptTopicField name of the receipt field holding the topic the message was published to
+   */
+  public void setReceiptTopicField( String receiptTopicField ) {
+    this.receiptTopicField = receiptTopicField;
+  }
+
+  /**
+   * @return name of the receipt field holding the topic the message was published to
+   */
+  public String getReceiptTopicField() {
+    return receiptTopicField;
+  }
+
+  /**
+   * @param receiptPayloadSizeField name of the receipt field holding the size of the published payload in bytes
+   */
+  public void setReceiptPayloadSizeField( String receiptPayloadSizeField ) {
+    this.receiptPayloadSizeField = receiptPayloadSizeField;
+  }
+
+  /**
+   * @return name of the receipt field holding the size of the published payload in bytes
+   */
+  public String getReceiptPayloadSizeField() {
+    return receiptPayloadSizeField;
+  }
+
+  /**
+   * @param receiptSentAtField name of the receipt field holding the time the message was handed to the client
+   */
+  public void setReceiptSentAtField( String receiptSentAtField ) {
+    this.receiptSentAtField = receiptSentAtField;
+  }
+
+  /**
+   * @return name of the receipt field holding the time the message was handed to the client
+   */
+  public String getReceiptSentAtField() {
+    return receiptSentAtField;
+  }
+
+  /**
+   * @param receiptAckedAtField name of the receipt field holding the time the broker acknowledged the message
+   */
+  public void setReceiptAckedAtField( String receiptAckedAtField ) {
+    this.receiptAckedAtField = receiptAckedAtField;
+  }
+
+  /**
+   * @return name of the receipt field holding the time the broker acknowledged the message
+   */
+  public String getReceiptAckedAtField() {
+    return receiptAckedAtField;
+  }
+
+  /**
+   * @param receiptAckLatencyField name of the receipt field holding the time between sending and acknowledgement, in microseconds
+   */
+  public void setReceiptAckLatencyField( String receiptAckLatencyField ) {
+    this.receiptAckLatencyField = receiptAckLatencyField;
+  }
+
+  /**
+   * @return name of the receipt field holding the time between sending and acknowledgement, in microseconds
+   */
+  public String getReceiptAckLatencyField() {
+    return receiptAckLatencyField;
+  }
+
+  /**
+   * @param conflate true to hold back messages for each topic for a time window and only publish the latest
+   */
+  public void setConflate( boolean conflate ) {
+    this.conflate = conflate;
+  }
+
+  /**
+   * @return true to hold back messages for each topic for a time window and only publish the latest
+   */
+  public boolean isConflate() {
+    return conflate;
+  }
+
+  /**
+   * @param conflationWindow how long (in milliseconds) messages for a topic are held back
+   */
+  public void setConflationWindow( String conflationWindow ) {
+    this.conflationWindow = conflationWindow;
+  }
+
+  /**
+   * @return how long (in milliseconds) messages for a topic are held back
+   */
+  public String getConflationWindow() {
+    return conflationWindow;
+  }
+
+  /**
+   * @param conflationMaxTopics the maximum number of topics that can have a message held back at once
+   */
+  public void setConflationMaxTopics( String conflationMaxTopics ) {
+    this.conflationMaxTopics = conflationMaxTopics;
+  }
+
+  /**
+   * @return the maximum number of topics that can have a message held back at once
+   */
+  public String getConflationMaxTopics() {
+    return conflationMaxTopics;
+  }
+
+  /**
+   * @param topicPolicies per-topic overrides of the publish settings, in priority order
+   */
+  public void setTopicPolicies( List<TopicPolicy> topicPolicies ) {
+    this.topicPolicies = topicPolicies;
+  }
+
+  /**
+   * @return per-topic overrides of the publish settings, in priority order
+   */
+  public List<TopicPolicy> getTopicPolicies() {
+    return topicPolicies;
+  }
+
+  /**
+   * @param objectFormat how serializable message values are written (the name of an ObjectCodec.Format)
+   */
+  public void setObjectFormat( String objectFormat ) {
+    this.objectFormat = objectFormat;
+  }
+
+  /**
+   * @return how serializable message values are written (the name of an ObjectCodec.Format)
+   */
+  public String getObjectFormat() {
+    return objectFormat;
+  }
+
+  /**
+   * @param objectClasses comma separated names of the classes the compact object format may write
+   */
+  public void setObjectClasses( String objectClasses ) {
+    this.objectClasses = objectClasses;
+  }
+
+  /**
+   * @return comma separated names of the classes the compact object format may write
+   */
+  public String getObjectClasses() {
+    return objectClasses;
+  }
+
   @Override
   public void check( List<ICheckResult> remarks, PipelineMeta transMeta, TransformMeta stepMeta, IRowMeta prev,
       String[] input, String[] output, IRowMeta info, IVariables space,
@@ -378,6 +1046,46 @@ import java.util.List;
       remarks.add( new CheckResult( ICheckResult.TYPE_RESULT_ERROR,
           BaseMessages.getString( PKG, "MQTTClientMeta.Check.InvalidQOS" ), stepMeta ) );
     }
+    if ( stepMeta != null && stepMeta.getCopies() > 1 && ( m_topicIsFromField || m_topicIsTemplate )
+        && !stepMeta.isPartitioned() ) {
+      // copies get rows round-robin, so two messages for the same topic can overtake each other
+      remarks.add( new CheckResult( ICheckResult.TYPE_RESULT_WARNING,
+          BaseMessages.getString( PKG, "MQTTClientMeta.Check.CopiesNotPartitioned" ), stepMeta ) );
+    }
+    if ( autoReconnect && cleanSession ) {
+      // with a clean session, QoS 1/2 messages that were in flight when the connection dropped are not resent
+      remarks.add( new CheckResult( ICheckResult.TYPE_RESULT_WARNING,
+          BaseMessages.getString( PKG, "MQTTClientMeta.Check.ReconnectCleanSession" ), stepMeta ) );
+    }
+    if ( durableOutbox && Utils.isEmpty( outboxDirectory ) ) {
+      remarks.add( new CheckResult( ICheckResult.TYPE_RESULT_ERROR,
+          BaseMessages.getString( PKG, "MQTTClientMeta.Check.NoOutboxDirectory" ), stepMeta ) );
+    }
+    if ( asyncPublish && Utils.isEmpty( maxInflight ) ) {
+      remarks.add( new CheckResult( ICheckResult.TYPE_RESULT_ERROR,
+          BaseMessages.getString( PKG, "MQTTClientMeta.Check.InvalidMaxInflight" ), stepMeta ) );
+    }
+    if ( autoTune && !asyncPublish ) {
+      remarks.add( new CheckResult( ICheckResult.TYPE_RESULT_WARNING,
+          BaseMessages.getString( PKG, "MQTTClientMeta.Check.AutoTuneNeedsAsync" ), stepMeta ) );
+    }
+    if ( batchMessages && Utils.isEmpty( batchMaxRows ) ) {
+      remarks.add( new CheckResult( ICheckResult.TYPE_RESULT_ERROR,
+          BaseMessages.getString( PKG, "MQTTClientMeta.Check.InvalidBatchMaxRows" ), stepMeta ) );
+    }
+    if ( conflate && Utils.isEmpty( conflationWindow ) ) {
+      remarks.add( new CheckResult( ICheckResult.TYPE_RESULT_ERROR,
+          BaseMessages.getString( PKG, "MQTTClientMeta.Check.InvalidConflationWindow" ), stepMeta ) );
+    }
+    TopicTrie<TopicPolicy> policyFilters = new TopicTrie<>();
+    for ( TopicPolicy policy : topicPolicies ) {
+      try {
+        policyFilters.put( space != null ? space.resolve( policy.getFilter() ) : policy.getFilter(), policy );
+      } catch ( IllegalArgumentException e ) {
+        remarks.add( new CheckResult( ICheckResult.TYPE_RESULT_ERROR,
+            BaseMessages.getString( PKG, "MQTTClientMeta.Check.InvalidTopicPolicy", policy.getFilter() ), stepMeta ) );
+      }
+    }
     if ( requiresAuth ) {
       if ( username == null ) {
         remarks.add( new CheckResult( ICheckResult.TYPE_RESULT_ERROR,
@@ -411,6 +1119,10 @@ import java.util.List;
       if ( !Utils.isEmpty( topicFromField ) ) {
         m_topicIsFromField = topicFromField.equalsIgnoreCase( "Y" );
       }
+      String topicTemplate = XmlHandler.getTagValue( stepnode, "TOPIC_IS_TEMPLATE" );
+      if ( !Utils.isEmpty( topicTemplate ) ) {
+        m_topicIsTemplate = topicTemplate.equalsIgnoreCase( "Y" );
+      }
       field = XmlHandler.getTagValue( stepnode, "FIELD" );
       clientId = XmlHandler.getTagValue( stepnode, "CLIENT_ID" );
       timeout = XmlHandler.getTagValue( stepnode, "TIMEOUT" );
@@ -424,6 +1136,166 @@ import java.util.List;
 	  retained= Boolean.parseBoolean( XmlHandler.getTagValue( stepnode,"RETAINED" ));
 	  cleanSession=Boolean.parseBoolean( XmlHandler.getTagValue( stepnode,"CLEANSESSION"));
 
+      String objectFormatName = XmlHandler.getTagValue( stepnode, "OBJECT_FORMAT" );
+      if ( !Utils.isEmpty( objectFormatName ) ) {
+        objectFormat = objectFormatName;
+      }
+      String classes = XmlHandler.getTagValue( stepnode, "OBJECT_CLASSES" );
+      if ( !Utils.isEmpty( classes ) ) {
+        objectClasses = classes;
+      }
+
+      asyncPublish = Boolean.parseBoolean( XmlHandler.getTagValue( stepnode, "ASYNC_PUBLISH" ) );
+      String inflight = XmlHandler.getTagValue( stepnode, "MAX_INFLIGHT" );
+      if ( !Utils.isEmpty( inflight ) ) {
+        maxInflight = inflight;
+      }
+      String drain = XmlHandler.getTagValue( stepnode, "DRAIN_TIMEOUT" );
+      if ( !Utils.isEmpty( drain ) ) {
+        drainTimeout = drain;
+      }
+      autoTune = Boolean.parseBoolean( XmlHandler.getTagValue( stepnode, "AUTO_TUNE" ) );
+      String tuneInflight = XmlHandler.getTagValue( stepnode, "AUTO_TUNE_MAX_INFLIGHT" );
+      if ( !Utils.isEmpty( tuneInflight ) ) {
+        autoTuneMaxInflight = tuneInflight;
+      }
+      String tuneLatency = XmlHandler.getTagValue( stepnode, "AUTO_TUNE_TARGET_LATENCY" );
+      if ( !Utils.isEmpty( tuneLatency ) ) {
+        autoTuneTargetLatency = tuneLatency;
+      }
+
+      batchMessages = Boolean.parseBoolean( XmlHandler.getTagValue( stepnode, "BATCH_MESSAGES" ) );
+      String format = XmlHandler.getTagValue( stepnode, "BATCH_FORMAT" );
+      if ( !Utils.isEmpty( format ) ) {
+        batchFormat = format;
+      }
+      String batchRows = XmlHandler.getTagValue( stepnode, "BATCH_MAX_ROWS" );
+      if ( !Utils.isEmpty( batchRows ) ) {
+        batchMaxRows = batchRows;
+      }
+      String batchAge = XmlHandler.getTagValue( stepnode, "BATCH_MAX_AGE" );
+      if ( !Utils.isEmpty( batchAge ) ) {
+        batchMaxAge = batchAge;
+      }
+
+      reportByException = Boolean.parseBoolean( XmlHandler.getTagValue( stepnode, "REPORT_BY_EXCEPTION" ) );
+      String deadbandValue = XmlHandler.getTagValue( stepnode, "DEADBAND" );
+      if ( !Utils.isEmpty( deadbandValue ) ) {
+        deadband = deadbandValue;
+      }
+      deadbandPercent = Boolean.parseBoolean( XmlHandler.getTagValue( stepnode, "DEADBAND_PERCENT" ) );
+      String heartbeat = XmlHandler.getTagValue( stepnode, "HEARTBEAT_INTERVAL" );
+      if ( !Utils.isEmpty( heartbeat ) ) {
+        heartbeatInterval = heartbeat;
+      }
+      String trackedTopics = XmlHandler.getTagValue( stepnode, "MAX_TRACKED_TOPICS" );
+      if ( !Utils.isEmpty( trackedTopics ) ) {
+        maxTrackedTopics = trackedTopics;
+      }
+
+      String connections = XmlHandler.getTagValue( stepnode, "CONNECTIONS_PER_COPY" );
+      if ( !Utils.isEmpty( connections ) ) {
+        connectionsPerCopy = connections;
+      }
+      // steps saved before this option existed connect on init too
+      String onInit = XmlHandler.getTagValue( stepnode, "CONNECT_ON_INIT" );
+      if ( !Utils.isEmpty( onInit ) ) {
+        connectOnInit = Boolean.parseBoolean( onInit );
+      }
+      String warmUp = XmlHandler.getTagValue( stepnode, "WARM_UP_TOPIC" );
+      if ( !Utils.isEmpty( warmUp ) ) {
+        warmUpTopic = warmUp;
+      }
+      autoReconnect = Boolean.parseBoolean( XmlHandler.getTagValue( stepnode, "AUTO_RECONNECT" ) );
+      String minDelay = XmlHandler.getTagValue( stepnode, "RECONNECT_MIN_DELAY" );
+      if ( !Utils.isEmpty( minDelay ) ) {
+        reconnectMinDelay = minDelay;
+      }
+      String maxDelay = XmlHandler.getTagValue( stepnode, "RECONNECT_MAX_DELAY" );
+      if ( !Utils.isEmpty( maxDelay ) ) {
+        reconnectMaxDelay = maxDelay;
+      }
+      String bufferSize = XmlHandler.getTagValue( stepnode, "OFFLINE_BUFFER_SIZE" );
+      if ( !Utils.isEmpty( bufferSize ) ) {
+        offlineBufferSize = bufferSize;
+      }
+      String overflow = XmlHandler.getTagValue( stepnode, "OFFLINE_OVERFLOW" );
+      if ( !Utils.isEmpty( overflow ) ) {
+        offlineOverflow = overflow;
+      }
+      durableOutbox = Boolean.parseBoolean( XmlHandler.getTagValue( stepnode, "DURABLE_OUTBOX" ) );
+      String outbox = XmlHandler.getTagValue( stepnode, "OUTBOX_DIRECTORY" );
+      if ( !Utils.isEmpty( outbox ) ) {
+        outboxDirectory = outbox;
+      }
+      String segmentSize = XmlHandler.getTagValue( stepnode, "OUTBOX_SEGMENT_SIZE" );
+      if ( !Utils.isEmpty( segmentSize ) ) {
+        outboxSegmentSize = segmentSize;
+      }
+      String syncInterval = XmlHandler.getTagValue( stepnode, "OUTBOX_SYNC_INTERVAL" );
+      if ( !Utils.isEmpty( syncInterval ) ) {
+        outboxSyncInterval = syncInterval;
+      }
+      String messagesPerSecond = XmlHandler.getTagValue( stepnode, "RATE_LIMIT_MESSAGES" );
+      if ( !Utils.isEmpty( messagesPerSecond ) ) {
+        rateLimitMessages = messagesPerSecond;
+      }
+      String bytesPerSecond = XmlHandler.getTagValue( stepnode, "RATE_LIMIT_BYTES" );
+      if ( !Utils.isEmpty( bytesPerSecond ) ) {
+        rateLimitBytes = bytesPerSecond;
+      }
+
+      outputReceipts = Boolean.parseBoolean( XmlHandler.getTagValue( stepnode, "OUTPUT_RECEIPTS" ) );
+      String receiptMessageId = XmlHandler.getTagValue( stepnode, "RECEIPT_MESSAGE_ID_FIELD" );
+      if ( !Utils.isEmpty( receiptMessageId ) ) {
+        receiptMessageIdField = receiptMessageId;
+      }
+      String receiptTopic = XmlHandler.getTagValue( stepnode, "RECEIPT_TOPIC_FIELD" );
+      if ( !Utils.isEmpty( receiptTopic ) ) {
+        receiptTopicField = receiptTopic;
+      }
+      String receiptPayloadSize = XmlHandler.getTagValue( stepnode, "RECEIPT_PAYLOAD_SIZE_FIELD" );
+      if ( !Utils.isEmpty( receiptPayloadSize ) ) {
+        receiptPayloadSizeField = receiptPayloadSize;
+      }
+      String receiptSentAt = XmlHandler.getTagValue( stepnode, "RECEIPT_SENT_AT_FIELD" );
+      if ( !Utils.isEmpty( receiptSentAt ) ) {
+        receiptSentAtField = receiptSentAt;
+      }
+      String receiptAckedAt = XmlHandler.getTagValue( stepnode, "RECEIPT_ACKED_AT_FIELD" );
+      if ( !Utils.isEmpty( receiptAckedAt ) ) {
+        receiptAckedAtField = receiptAckedAt;
+      }
+      String receiptAckLatency = XmlHandler.getTagValue( stepnode, "RECEIPT_ACK_LATENCY_FIELD" );
+      if ( !Utils.isEmpty( receiptAckLatency ) ) {
+        receiptAckLatencyField = receiptAckLatency;
+      }
+
+      conflate = Boolean.parseBoolean( XmlHandler.getTagValue( stepnode, "CONFLATE" ) );
+      String window = XmlHandler.getTagValue( stepnode, "CONFLATION_WINDOW" );
+      if ( !Utils.isEmpty( window ) ) {
+        conflationWindow = window;
+      }
+      String conflationTopics = XmlHandler.getTagValue( stepnode, "CONFLATION_MAX_TOPICS" );
+      if ( !Utils.isEmpty( conflationTopics ) ) {
+        conflationMaxTopics = conflationTopics;
+      }
+
+      topicPolicies = new ArrayList<>();
+      Node policiesNode = XmlHandler.getSubNode( stepnode, "TOPIC_POLICIES" );
+      if ( policiesNode != null ) {
+        int nrPolicies = XmlHandler.countNodes( policiesNode, "POLICY" );
+        for ( int i = 0; i < nrPolicies; i++ ) {
+          Node policyNode = XmlHandler.getSubNodeByNr( policiesNode, "POLICY", i );
+          topicPolicies.add( new TopicPolicy( XmlHandler.getTagValue( policyNode, "FILTER" ),
+              XmlHandler.getTagValue( policyNode, "QOS" ),
+              "Y".equalsIgnoreCase( XmlHandler.getTagValue( policyNode, "RETAINED" ) ),
+              "Y".equalsIgnoreCase( XmlHandler.getTagValue( policyNode, "BATCH" ) ),
+              "Y".equalsIgnoreCase( XmlHandler.getTagValue( policyNode, "COMPRESS" ) ),
+              XmlHandler.getTagValue( policyNode, "RATE_LIMIT" ) ) );
+        }
+      }
+
       if ( !Utils.isEmpty( password ) ) {
         password = Encr.decryptPasswordOptionallyEncrypted( password );
       }
@@ -452,6 +1324,7 @@ import java.util.List;
 
     retval.append( "    " ).
         append( XmlHandler.addTagValue( "TOPIC_IS_FROM_FIELD", m_topicIsFromField ) );
+    retval.append( "    " ).append( XmlHandler.addTagValue( "TOPIC_IS_TEMPLATE", m_topicIsTemplate ) );
 
     if ( field != null ) {
       retval.append( "    " ).append( XmlHandler.addTagValue( "FIELD", field ) );
@@ -495,6 +1368,111 @@ import java.util.List;
       retval.append( "    " )
           .append( XmlHandler.addTagValue( "LASTWILLRETAINED", Boolean.toString(lastWillRetained ) ) );
     }
+    if ( objectFormat != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "OBJECT_FORMAT", objectFormat ) );
+    }
+    if ( objectClasses != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "OBJECT_CLASSES", objectClasses ) );
+    }
+
+    retval.append( "    " ).append( XmlHandler.addTagValue( "ASYNC_PUBLISH", Boolean.toString( asyncPublish ) ) );
+    if ( maxInflight != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "MAX_INFLIGHT", maxInflight ) );
+    }
+    if ( drainTimeout != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "DRAIN_TIMEOUT", drainTimeout ) );
+    }
+    retval.append( "    " ).append( XmlHandler.addTagValue( "AUTO_TUNE", Boolean.toString( autoTune ) ) );
+    if ( autoTuneMaxInflight != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "AUTO_TUNE_MAX_INFLIGHT", autoTuneMaxInflight ) );
+    }
+    if ( autoTuneTargetLatency != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "AUTO_TUNE_TARGET_LATENCY", autoTuneTargetLatency ) );
+    }
+
+    retval.append( "    " ).append( XmlHandler.addTagValue( "BATCH_MESSAGES", Boolean.toString( batchMessages ) ) );
+    if ( batchFormat != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "BATCH_FORMAT", batchFormat ) );
+    }
+    if ( batchMaxRows != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "BATCH_MAX_ROWS", batchMaxRows ) );
+    }
+    if ( batchMaxAge != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "BATCH_MAX_AGE", batchMaxAge ) );
+    }
+
+    retval.append( "    " )
+        .append( XmlHandler.addTagValue( "REPORT_BY_EXCEPTION", Boolean.toString( reportByException ) ) );
+    if ( deadband != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "DEADBAND", deadband ) );
+    }
+    retval.append( "    " ).append( XmlHandler.addTagValue( "DEADBAND_PERCENT", Boolean.toString( deadbandPercent ) ) );
+    if ( heartbeatInterval != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "HEARTBEAT_INTERVAL", heartbeatInterval ) );
+    }
+    if ( maxTrackedTopics != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "MAX_TRACKED_TOPICS", maxTrackedTopics ) );
+    }
+    if ( connectionsPerCopy != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "CONNECTIONS_PER_COPY", connectionsPerCopy ) );
+    }
+    retval.append( "    " ).append( XmlHandler.addTagValue( "CONNECT_ON_INIT", Boolean.toString( connectOnInit ) ) );
+    if ( warmUpTopic != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "WARM_UP_TOPIC", warmUpTopic ) );
+    }
+    retval.append( "    " ).append( XmlHandler.addTagValue( "AUTO_RECONNECT", Boolean.toString( autoReconnect ) ) );
+    if ( reconnectMinDelay != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "RECONNECT_MIN_DELAY", reconnectMinDelay ) );
+    }
+    if ( reconnectMaxDelay != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "RECONNECT_MAX_DELAY", reconnectMaxDelay ) );
+    }
+    if ( offlineBufferSize != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "OFFLINE_BUFFER_SIZE", offlineBufferSize ) );
+    }
+    if ( offlineOverflow != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "OFFLINE_OVERFLOW", offlineOverflow ) );
+    }
+    retval.append( "    " ).append( XmlHandler.addTagValue( "DURABLE_OUTBOX", Boolean.toString( durableOutbox ) ) );
+    retval.append( "    " ).append( XmlHandler.addTagValue( "OUTBOX_DIRECTORY", outboxDirectory ) );
+    if ( outboxSegmentSize != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "OUTBOX_SEGMENT_SIZE", outboxSegmentSize ) );
+    }
+    if ( outboxSyncInterval != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "OUTBOX_SYNC_INTERVAL", outboxSyncInterval ) );
+    }
+    retval.append( "    " ).append( XmlHandler.addTagValue( "RATE_LIMIT_MESSAGES", rateLimitMessages ) );
+    retval.append( "    " ).append( XmlHandler.addTagValue( "RATE_LIMIT_BYTES", rateLimitBytes ) );
+    retval.append( "    " ).append( XmlHandler.addTagValue( "OUTPUT_RECEIPTS", Boolean.toString( outputReceipts ) ) );
+    retval.append( "    " ).append( XmlHandler.addTagValue( "RECEIPT_MESSAGE_ID_FIELD", receiptMessageIdField ) );
+    retval.append( "    " ).append( XmlHandler.addTagValue( "RECEIPT_TOPIC_FIELD", receiptTopicField ) );
+    retval.append( "    " ).append( XmlHandler.addTagValue( "RECEIPT_PAYLOAD_SIZE_FIELD", receiptPayloadSizeField ) );
+    retval.append( "    " ).append( XmlHandler.addTagValue( "RECEIPT_SENT_AT_FIELD", receiptSentAtField ) );
+    retval.append( "    " ).append( XmlHandler.addTagValue( "RECEIPT_ACKED_AT_FIELD", receiptAckedAtField ) );
+    retval.append( "    " ).append( XmlHandler.addTagValue( "RECEIPT_ACK_LATENCY_FIELD", receiptAckLatencyField ) );
+    retval.append( "    " ).append( XmlHandler.addTagValue( "CONFLATE", Boolean.toString( conflate ) ) );
+    if ( conflationWindow != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "CONFLATION_WINDOW", conflationWindow ) );
+    }
+    if ( conflationMaxTopics != null ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "CONFLATION_MAX_TOPICS", conflationMaxTopics ) );
+    }
+
+    if ( !topicPolicies.isEmpty() ) {
+      retval.append( "    " ).append( XmlHandler.openTag( "TOPIC_POLICIES" ) ).append( Const.CR );
+      for ( TopicPolicy policy : topicPolicies ) {
+        retval.append( "      " ).append( XmlHandler.openTag( "POLICY" ) ).append( Const.CR );
+        retval.append( "        " ).append( XmlHandler.addTagValue( "FILTER", policy.getFilter() ) );
+        retval.append( "        " ).append( XmlHandler.addTagValue( "QOS", policy.getQoS() ) );
+        retval.append( "        " ).append( XmlHandler.addTagValue( "RETAINED", policy.isRetained() ) );
+        retval.append( "        " ).append( XmlHandler.addTagValue( "BATCH", policy.isBatch() ) );
+        retval.append( "        " ).append( XmlHandler.addTagValue( "COMPRESS", policy.isCompress() ) );
+        retval.append( "        " ).append( XmlHandler.addTagValue( "RATE_LIMIT", policy.getRateLimit() ) );
+        retval.append( "      " ).append( XmlHandler.closeTag( "POLICY" ) ).append( Const.CR );
+      }
+      retval.append( "    " ).append( XmlHandler.closeTag( "TOPIC_POLICIES" ) ).append( Const.CR );
+    }
+
     if ( sslCaFile != null || sslCertFile != null || sslKeyFile != null || sslKeyFilePass != null ) {
       retval.append( "    " ).append( XmlHandler.openTag( "SSL" ) ).append( Const.CR );
       if ( sslCaFile != null ) {
@@ -515,6 +1493,30 @@ import java.util.List;
     return retval.toString();
   }
 
+  @Override
+  public void getFields( IRowMeta rowMeta, String transformName, IRowMeta[] info, TransformMeta transformMeta,
+      IVariables space, IHopMetadataProvider metadataProvider ) throws HopTransformException {
+    if ( !outputReceipts ) {
+      return;
+    }
+    try {
+      rowMeta.addValueMeta(
+          ValueMetaFactory.createValueMeta( space.resolve( receiptMessageIdField ), IValueMeta.TYPE_INTEGER ) );
+      rowMeta.addValueMeta(
+          ValueMetaFactory.createValueMeta( space.resolve( receiptTopicField ), IValueMeta.TYPE_STRING ) );
+      rowMeta.addValueMeta(
+          ValueMetaFactory.createValueMeta( space.resolve( receiptPayloadSizeField ), IValueMeta.TYPE_INTEGER ) );
+      rowMeta.addValueMeta(
+          ValueMetaFactory.createValueMeta( space.resolve( receiptSentAtField ), IValueMeta.TYPE_TIMESTAMP ) );
+      rowMeta.addValueMeta(
+          ValueMetaFactory.createValueMeta( space.resolve( receiptAckedAtField ), IValueMeta.TYPE_TIMESTAMP ) );
+      rowMeta.addValueMeta(
+          ValueMetaFactory.createValueMeta( space.resolve( receiptAckLatencyField ), IValueMeta.TYPE_INTEGER ) );
+    } catch ( HopPluginException e ) {
+      throw new HopTransformException( e );
+    }
+  }
+
   @Override public void setDefault() {
   }
 
@@ -22,8 +22,9 @@
 
 package org.phalanxdev.hop.pipeline.transforms.mqtt;
 
+import org.apache.hop.core.Const;
 import org.apache.hop.core.exception.HopException;
-import org.apache.hop.core.exception.HopPluginException;
+import org.apache.hop.core.exception.HopValueException;
 import org.apache.hop.core.row.IValueMeta;
 import org.apache.hop.core.row.RowDataUtil;
 import org.apache.hop.core.row.RowMeta;
@@ -44,16 +45,23 @@ import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.phalanxdev.mqtt.BatchFraming;
+import org.phalanxdev.mqtt.MessageRing;
+import org.phalanxdev.mqtt.NanoClock;
+import org.phalanxdev.mqtt.ObjectCodec;
 import org.phalanxdev.mqtt.SSLSocketFactoryGenerator;
+import org.phalanxdev.mqtt.SharedSubscription;
 //-----
 
-import java.io.ByteArrayInputStream;
-import java.io.ObjectInputStream;
-import java.nio.ByteBuffer;
-import java.sql.Timestamp;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * MQTT subscriber step
@@ -63,8 +71,13 @@ import java.util.List;
  */
 public class MQTTSubscriber extends BaseTransform<MQTTSubscriberMeta, MQTTSubscriberData> implements ITransform<MQTTSubscriberMeta, MQTTSubscriberData> {
 
-  protected boolean m_reconnectFailed;
-  protected boolean m_isInit=false; // Added this for persistence. We need to be sure init is done before processing unconsumed messages at broker reconnection
+  /**
+   * Longest processRow waits for a message before returning, so that conditions that nothing wakes the step up for
+   * (such as a failed reconnect) are still noticed
+   */
+  protected static final long MAX_WAIT_NANOS = TimeUnit.SECONDS.toNanos( 1 );
+
+  protected volatile boolean m_reconnectFailed;
 
   protected MQTTSubscriberMeta m_meta;
   protected MQTTSubscriberData m_data;
@@ -84,14 +97,23 @@ public class MQTTSubscriber extends BaseTransform<MQTTSubscriberMeta, MQTTSubscr
       if ( first ) {
         first = false;
         logBasic("process row first");
+        m_data.m_lastMessage = System.nanoTime();
         if ( m_data.m_executionDuration > 0 ) {
-          m_data.m_startTime = new Date();
+          m_data.m_deadline = m_data.m_lastMessage + TimeUnit.SECONDS.toNanos( m_data.m_executionDuration );
         }
 
         m_data.m_outputRowMeta = new RowMeta();
 
         m_meta.getFields( m_data.m_outputRowMeta, getTransformName(), null, null,
             variables, getMetadataProvider() );
+        m_data.m_qosIndex = metadataIndex( m_meta.getQosField() );
+        m_data.m_retainedIndex = metadataIndex( m_meta.getRetainedField() );
+        m_data.m_duplicateIndex = metadataIndex( m_meta.getDuplicateField() );
+        m_data.m_messageIdIndex = metadataIndex( m_meta.getMessageIdField() );
+        m_data.m_payloadLengthIndex = metadataIndex( m_meta.getPayloadLengthField() );
+        m_data.m_arrivalTimeIndex = metadataIndex( m_meta.getArrivalTimeField() );
+        m_data.m_metadata = m_data.m_qosIndex >= 0 || m_data.m_retainedIndex >= 0 || m_data.m_duplicateIndex >= 0
+            || m_data.m_messageIdIndex >= 0 || m_data.m_payloadLengthIndex >= 0 || m_data.m_arrivalTimeIndex >= 0;
       }
 
       if ( m_reconnectFailed ) {
@@ -100,12 +122,41 @@ public class MQTTSubscriber extends BaseTransform<MQTTSubscriberMeta, MQTTSubscr
         return false;
       }
 
-      if ( ( (MQTTSubscriberData) m_data ).m_executionDuration > 0 ) {
-        if ( System.currentTimeMillis() - ( (MQTTSubscriberData) m_data ).m_startTime.getTime()
-            > ( (MQTTSubscriberData) m_data ).m_executionDuration * 1000 ) {
+      long now = System.nanoTime();
+      long wait = MAX_WAIT_NANOS;
+      if ( m_data.m_executionDuration > 0 ) {
+        long remaining = m_data.m_deadline - now;
+        if ( remaining <= 0 ) {
+          return finishRun( m_data, BaseMessages.getString( MQTTPublisherMeta.PKG,
+              "MQTTClientStep.Log.DurationReached", Long.toString( m_data.m_executionDuration ) ) );
+        }
+        wait = Math.min( wait, remaining );
+      }
+      if ( m_data.m_idleTimeoutNanos > 0 ) {
+        long remaining = m_data.m_lastMessage + m_data.m_idleTimeoutNanos - now;
+        if ( remaining <= 0 ) {
+          return finishRun( m_data, BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.IdleTimeout",
+              Long.toString( TimeUnit.NANOSECONDS.toMillis( m_data.m_idleTimeoutNanos ) ) ) );
+        }
+        wait = Math.min( wait, remaining );
+      }
+
+      // sleep until a message arrives, the deadline passes or the step is stopped (which closes the queue)
+      MessageRing.Slot next = m_data.m_ring.take( wait, TimeUnit.NANOSECONDS );
+      if ( next != null ) {
+        if ( m_data.m_microBatch ) {
+          fillMicroBatch( m_data, next, wait );
+        }
+        m_data.m_lastMessage = System.nanoTime();
+        if ( !drain( m_data ) ) {
+          setErrors( 1 );
+          stopAll();
           setOutputDone();
           return false;
         }
+      } else if ( m_data.m_ring.isClosed() ) {
+        // either the step is being stopped, or the client callback has hit the message or byte limit
+        return finishRun( m_data, m_data.m_exitReason );
       }
 
       return true;
@@ -115,6 +166,353 @@ public class MQTTSubscriber extends BaseTransform<MQTTSubscriberMeta, MQTTSubscr
     }
   }
 
+  /**
+   * End the run: stop accepting messages, pass on the ones already queued (the client has acknowledged them to the
+   * broker, so they would otherwise be lost), then disconnect. Messages that arrive between closing the queue and
+   * disconnecting are dropped by the client callback rather than refused, as throwing from the callback would make the
+   * client treat the connection as lost; how many were dropped is logged.
+   *
+   * @param data the step data
+   * @param reason why the run is ending, to log; null if the step is being stopped
+   * @return false, as there are no more rows to come
+   * @throws HopException if a row can't be passed on
+   */
+  protected boolean finishRun( MQTTSubscriberData data, String reason ) throws HopException {
+    if ( reason != null ) {
+      logBasic( reason );
+    }
+    closeQueue( data );
+    while ( reason != null && data.m_ring.size() > 0 ) {
+      if ( !drain( data ) ) {
+        setErrors( 1 );
+        stopAll();
+        break;
+      }
+    }
+    shutdown( data );
+    if ( data.m_droppedAfterClose > 0 ) {
+      logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.DroppedAfterClose",
+          Long.toString( data.m_droppedAfterClose ) ) );
+    }
+    setOutputDone();
+    return false;
+  }
+
+  /**
+   * Turn the next batch of queued messages into output rows
+   *
+   * @param data the step data
+   * @return false if a message couldn't be handled and there is no error handling to send it to
+   * @throws HopException if a row can't be passed on
+   */
+  protected boolean drain( MQTTSubscriberData data ) throws HopException {
+    return data.m_aggregateFraming != null ? drainAggregate( data ) : drainQueue( data );
+  }
+
+  /**
+   * Hold back the first message of a micro batch until the batch is full, the batch delay has passed since the message
+   * arrived, or the wait for this call runs out. With no delay set nothing is held back, and the batch is just what
+   * is already waiting.
+   *
+   * @param data the step data
+   * @param first the first message of the batch, still in the queue
+   * @param wait the longest this call may wait, in nanoseconds
+   */
+  protected void fillMicroBatch( MQTTSubscriberData data, MessageRing.Slot first, long wait ) {
+    if ( data.m_microBatchDelayNanos <= 0 ) {
+      return;
+    }
+    long hold = Math.min( wait, first.m_arrived + data.m_microBatchDelayNanos - System.nanoTime() );
+    if ( hold > 0 ) {
+      data.m_ring.await( batchLimit( data ), hold, TimeUnit.NANOSECONDS );
+    }
+  }
+
+  /**
+   * @param data the step data
+   * @return the most messages to take off the queue in one go
+   */
+  protected int batchLimit( MQTTSubscriberData data ) {
+    int capacity = data.m_ring.capacity();
+    return data.m_microBatchSize > 0 ? Math.min( data.m_microBatchSize, capacity ) : capacity;
+  }
+
+  /**
+   * Update the micro batch statistics
+   *
+   * @param data the step data
+   * @param messages the number of messages in the batch just emitted
+   * @param firstArrived System.nanoTime() when the first message of the batch arrived
+   */
+  protected void recordMicroBatch( MQTTSubscriberData data, int messages, long firstArrived ) {
+    data.m_batches++;
+    data.m_batchedMessages += messages;
+    data.m_batchHoldNanos += System.nanoTime() - firstArrived;
+  }
+
+  /**
+   * Turn the messages waiting in the queue into output rows. Stops after one queue's worth (or one micro batch), so
+   * that the duration and stop checks still get a look in when messages arrive as fast as they can be processed.
+   *
+   * @param data the step data
+   * @return false if a message couldn't be decoded and there is no error handling to send it to
+   * @throws HopException if a row can't be passed on
+   */
+  protected boolean drainQueue( MQTTSubscriberData data ) throws HopException {
+    MessageRing ring = data.m_ring;
+    int limit = batchLimit( data );
+    long firstArrived = 0;
+    int i = 0;
+    for ( ; i < limit; i++ ) {
+      MessageRing.Slot slot = ring.poll();
+      if ( slot == null ) {
+        break;
+      }
+      if ( i == 0 ) {
+        firstArrived = slot.m_arrived;
+      }
+      MessageRing.Slot message = data.m_message;
+      message.copyFrom( slot );
+      String topic = message.m_topic;
+      byte[] payload = message.m_payload;
+      // hand the slot back before decoding, so that the client can carry on receiving meanwhile
+      ring.release();
+      if ( data.m_unbatchFraming != null ) {
+        List<byte[]> records;
+        try {
+          records = data.m_unbatchFraming.split( payload );
+        } catch ( IOException | RuntimeException e ) {
+          if ( !rejectMessage( data, topic, e.toString() ) ) {
+            return false;
+          }
+          continue;
+        }
+        for ( byte[] record : records ) {
+          if ( !putMessageRow( data, topic, record, 0, record.length ) ) {
+            return false;
+          }
+        }
+      } else if ( !putMessageRow( data, topic, payload, 0, payload.length ) ) {
+        return false;
+      }
+    }
+    if ( data.m_microBatch && i > 0 ) {
+      recordMicroBatch( data, i, firstArrived );
+    }
+    return true;
+  }
+
+  /**
+   * Take a micro batch off the queue and emit it as a single row: the payloads framed as a batch, the topic they
+   * arrived on (null if they arrived on more than one) and how many there are. Metadata fields describe the first
+   * message of the batch, apart from the payload length, which is that of the whole batch.
+   *
+   * @param data the step data
+   * @return false if a batch couldn't be split and there is no error handling to send it to
+   * @throws HopException if the row can't be passed on
+   */
+  protected boolean drainAggregate( MQTTSubscriberData data ) throws HopException {
+    MessageRing ring = data.m_ring;
+    BatchFraming framing = data.m_aggregateFraming;
+    ByteArrayOutputStream out = data.m_aggregateBuffer;
+    out.reset();
+    int limit = batchLimit( data );
+    String batchTopic = null;
+    int count = 0;
+    int i = 0;
+    for ( ; i < limit; i++ ) {
+      MessageRing.Slot slot = ring.poll();
+      if ( slot == null ) {
+        break;
+      }
+      MessageRing.Slot message = data.m_message;
+      message.copyFrom( slot );
+      ring.release();
+      if ( i == 0 ) {
+        data.m_batchFirst.copyFrom( message );
+        batchTopic = message.m_topic;
+      } else if ( batchTopic != null && !batchTopic.equals( message.m_topic ) ) {
+        batchTopic = null;
+      }
+      byte[] payload = message.m_payload;
+      if ( data.m_unbatchFraming != null ) {
+        // incoming batches are flattened, so that the aggregate has one record per original row
+        List<byte[]> records;
+        try {
+          records = data.m_unbatchFraming.split( payload );
+        } catch ( IOException | RuntimeException e ) {
+          if ( !rejectMessage( data, message.m_topic, e.toString() ) ) {
+            return false;
+          }
+          continue;
+        }
+        if ( !framing.allowsEmptyRecords() && containsEmptyRecord( records ) ) {
+          if ( !rejectMessage( data, message.m_topic, BaseMessages
+              .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.EmptyBatchRecord", framing.name() ) ) ) {
+            return false;
+          }
+          continue;
+        }
+        for ( byte[] record : records ) {
+          framing.append( out, record, 0, record.length, count++ );
+        }
+      } else if ( payload.length == 0 && !framing.allowsEmptyRecords() ) {
+        if ( !rejectMessage( data, message.m_topic, BaseMessages
+            .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.EmptyBatchRecord", framing.name() ) ) ) {
+          return false;
+        }
+      } else {
+        framing.append( out, payload, 0, payload.length, count++ );
+      }
+    }
+    if ( i == 0 ) {
+      return true;
+    }
+    recordMicroBatch( data, i, data.m_batchFirst.m_arrived );
+    if ( count == 0 ) {
+      return true;
+    }
+    framing.finish( out, count );
+
+    Object[] outRow = RowDataUtil.allocateRowData( data.m_outputRowMeta.size() );
+    outRow[0] = batchTopic;
+    outRow[1] = out.toByteArray();
+    outRow[2] = (long) count;
+    if ( data.m_metadata ) {
+      putMetadata( data, data.m_batchFirst, outRow, out.size() );
+    }
+    putRow( data.m_outputRowMeta, outRow );
+    return true;
+  }
+
+  /**
+   * Decode a single message payload and pass it on as an output row
+   *
+   * @param data the step data
+   * @param topic the topic the message arrived on
+   * @param raw the buffer holding the payload
+   * @param offset the start of the payload
+   * @param length the length of the payload
+   * @return false if the payload couldn't be decoded and there is no error handling to send it to
+   * @throws HopException if the row can't be passed on
+   */
+  protected boolean putMessageRow( MQTTSubscriberData data, String topic, byte[] raw, int offset, int length )
+      throws HopException {
+    Object value;
+    String reason = null;
+    try {
+      value = data.m_decoder.decode( raw, offset, length );
+    } catch ( HopValueException e ) {
+      value = PayloadDecoder.MALFORMED;
+      reason = e.toString();
+    }
+    if ( value == PayloadDecoder.MALFORMED ) {
+      if ( reason == null ) {
+        reason = BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.MalformedPayload",
+            data.m_messageValueMeta.getTypeDesc(), Integer.toString( length ), topic );
+      }
+      return rejectMessage( data, topic, reason );
+    }
+
+    Object[] outRow = RowDataUtil.allocateRowData( data.m_outputRowMeta.size() );
+    outRow[0] = topic;
+    outRow[1] = value;
+    if ( data.m_metadata ) {
+      putMetadata( data, data.m_message, outRow, length );
+    }
+    putRow( data.m_outputRowMeta, outRow );
+    return true;
+  }
+
+  /**
+   * Fill in the selected metadata fields for the message being processed
+   *
+   * @param data the step data
+   * @param message the message to take the metadata from
+   * @param outRow the output row
+   * @param length the length of the payload (or record, when unbatching)
+   */
+  protected void putMetadata( MQTTSubscriberData data, MessageRing.Slot message, Object[] outRow, int length ) {
+    if ( data.m_qosIndex >= 0 ) {
+      outRow[data.m_qosIndex] = (long) message.m_qos;
+    }
+    if ( data.m_retainedIndex >= 0 ) {
+      outRow[data.m_retainedIndex] = message.m_retained;
+    }
+    if ( data.m_duplicateIndex >= 0 ) {
+      outRow[data.m_duplicateIndex] = message.m_duplicate;
+    }
+    if ( data.m_messageIdIndex >= 0 ) {
+      outRow[data.m_messageIdIndex] = (long) message.m_messageId;
+    }
+    if ( data.m_payloadLengthIndex >= 0 ) {
+      outRow[data.m_payloadLengthIndex] = (long) length;
+    }
+    if ( data.m_arrivalTimeIndex >= 0 ) {
+      outRow[data.m_arrivalTimeIndex] = data.m_clock.toTimestamp( message.m_arrived );
+    }
+  }
+
+  /**
+   * @param fieldName the name of a metadata field, or empty if it isn't wanted
+   * @return the index of the field in the output row, or -1 if it isn't wanted
+   */
+  protected int metadataIndex( String fieldName ) {
+    if ( org.apache.hop.core.util.Utils.isEmpty( fieldName ) ) {
+      return -1;
+    }
+    return m_data.m_outputRowMeta.indexOfValue( fieldName );
+  }
+
+  protected static boolean containsEmptyRecord( List<byte[]> records ) {
+    for ( byte[] record : records ) {
+      if ( record.length == 0 ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Send a message that can't be decoded to the error stream, if there is one
+   *
+   * @param data the step data
+   * @param topic the topic the message arrived on
+   * @param reason why the message can't be decoded
+   * @return false if there is no error handling, so the step should stop
+   * @throws HopException if the error row can't be passed on
+   */
+  protected boolean rejectMessage( MQTTSubscriberData data, String topic, String reason ) throws HopException {
+    if ( !getTransformMeta().isDoingErrorHandling() ) {
+      logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorInStepRunning", reason ) );
+      return false;
+    }
+    Object[] outRow = RowDataUtil.allocateRowData( data.m_outputRowMeta.size() );
+    outRow[0] = topic;
+    if ( data.m_metadata ) {
+      putMetadata( data, data.m_message, outRow, data.m_message.m_payload.length );
+    }
+    putError( data.m_outputRowMeta, outRow, 1, reason, null, getTransformName() );
+    return true;
+  }
+
+  @Override public String getStatusDescription() {
+    String status = super.getStatusDescription();
+    MessageRing ring = m_data.m_ring;
+    if ( ring != null ) {
+      status = BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Status.Queue", status,
+          Integer.toString( ring.size() ), Long.toString( ring.getMaxDepth() ),
+          Long.toString( TimeUnit.NANOSECONDS.toMillis( ring.getProducerWaitNanos() ) ) );
+    }
+    long batches = m_data.m_batches;
+    if ( m_data.m_microBatch && batches > 0 ) {
+      status = BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Status.MicroBatch", status,
+          Long.toString( batches ), Long.toString( m_data.m_batchedMessages / batches ),
+          Long.toString( TimeUnit.NANOSECONDS.toMicros( m_data.m_batchHoldNanos / batches ) ) );
+    }
+    return status;
+  }
+
   protected synchronized void shutdown( MQTTSubscriberData data ) {
     if ( data.m_client != null ) {
       try {
@@ -133,6 +531,20 @@ public class MQTTSubscriber extends BaseTransform<MQTTSubscriberMeta, MQTTSubscr
   public boolean init( ) {
     if ( super.init( ) ) {
       try {
+        // the queue has to exist before connecting, as the broker may send messages held for us straight away
+        configureQueue( m_meta, m_data );
+        configureMicroBatch( m_meta, m_data );
+        configureExitConditions( m_meta, m_data );
+        // micro batching needs arrival times to know how long the first message of a batch has been waiting
+        m_data.m_captureArrival =
+            m_data.m_microBatch || !org.apache.hop.core.util.Utils.isEmpty( m_meta.getArrivalTimeField() );
+        m_data.m_captureMetadata = !org.apache.hop.core.util.Utils.isEmpty( m_meta.getQosField() )
+            || !org.apache.hop.core.util.Utils.isEmpty( m_meta.getRetainedField() )
+            || !org.apache.hop.core.util.Utils.isEmpty( m_meta.getDuplicateField() )
+            || !org.apache.hop.core.util.Utils.isEmpty( m_meta.getMessageIdField() );
+        if ( !org.apache.hop.core.util.Utils.isEmpty( m_meta.getArrivalTimeField() ) ) {
+          m_data.m_clock = new NanoClock();
+        }
         configureConnection( m_meta, m_data );
         String runFor = m_meta.getExecuteForDuration();
         try {
@@ -152,16 +564,38 @@ public class MQTTSubscriber extends BaseTransform<MQTTSubscriberMeta, MQTTSubscr
             messageMeta =
             ValueMetaFactory.createValueMeta( "Message",
                 ValueMetaFactory.getIdForValueMeta( m_meta.getMessageType() ) );
-        if ( messageMeta.isSerializableType() && !m_meta.getAllowReadMessageOfTypeObject() ) {
-          logError( BaseMessages
-              .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.MessageTypeObjectButObjectNotAllowed" ) );
-          return false;
+        m_data.m_messageValueMeta = messageMeta;
+        if ( m_meta.getUnbatch() ) {
+          m_data.m_unbatchFraming = BatchFraming.fromName( m_meta.getBatchFormat() );
+        }
+        if ( messageMeta.isSerializableType() ) {
+          MQTTSubscriberData data = (MQTTSubscriberData) m_data;
+          String classes = resolve( m_meta.getObjectClasses() );
+          if ( ObjectCodec.Format.fromName( m_meta.getObjectFormat() ) == ObjectCodec.Format.COMPACT ) {
+            // the compact format only ever creates allowlisted classes, so doesn't need READ_OBJECTS
+            data.m_objectCodec = ObjectCodec.forClassNames( classes, getClass().getClassLoader() );
+          } else if ( !m_meta.getAllowReadMessageOfTypeObject() ) {
+            logError( BaseMessages
+                .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.MessageTypeObjectButObjectNotAllowed" ) );
+            return false;
+          }
+          data.m_objectClasses = new ArrayList<>();
+          for ( String name : Const.NVL( classes, "" ).trim().split( "[,\\s]+" ) ) {
+            if ( name.length() > 0 ) {
+              data.m_objectClasses.add( name );
+            }
+          }
         }
-      } catch ( HopPluginException e ) {
+        m_data.m_decoder = PayloadDecoder.forValueMeta( messageMeta, resolveCharset( m_meta ),
+            PayloadDecoder.Endianness.fromName( m_meta.getByteOrder() ), m_data.m_objectCodec, m_data.m_objectClasses );
+      } catch ( ClassNotFoundException | IllegalArgumentException e ) {
+        logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.ObjectCodec", e.getMessage() ),
+            e );
+        return false;
+      } catch ( HopException e ) {
         logError( e.getMessage(), e );
         return false;
       }
-      m_isInit=true;
       return true;
     }
 
@@ -170,14 +604,145 @@ public class MQTTSubscriber extends BaseTransform<MQTTSubscriberMeta, MQTTSubscr
 
   public void dispose( ) {
     MQTTSubscriberData data = (MQTTSubscriberData) m_data;
+    closeQueue( data );
     shutdown( data );
     super.dispose( );
   }
 
   public void stopRunning( ) throws HopException {
+    closeQueue( m_data );
     shutdown( m_data );
     super.stopRunning( );
   }
+
+  /**
+   * @param meta the meta to read the character set from
+   * @return the character set of string payloads
+   * @throws HopException if the character set isn't known
+   */
+  protected Charset resolveCharset( MQTTSubscriberMeta meta ) throws HopException {
+    String name = resolve( meta.getCharset() );
+    if ( org.apache.hop.core.util.Utils.isEmpty( name ) ) {
+      return StandardCharsets.UTF_8;
+    }
+    try {
+      return Charset.forName( name.trim() );
+    } catch ( IllegalArgumentException e ) {
+      throw new HopException( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.Charset", name ),
+          e );
+    }
+  }
+
+  protected void configureQueue( MQTTSubscriberMeta meta, MQTTSubscriberData data ) throws HopException {
+    String queueSizeValue = resolve( meta.getQueueSize() );
+    int queueSize;
+    try {
+      queueSize = Integer.parseInt( queueSizeValue );
+    } catch ( NumberFormatException e ) {
+      queueSize = -1;
+    }
+    if ( queueSize <= 0 || queueSize > ( 1 << 30 ) ) {
+      throw new HopException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongQueueSizeValue.Message", queueSizeValue ) );
+    }
+    data.m_ring = new MessageRing( queueSize, MessageRing.WaitStrategy.fromName( meta.getWaitStrategy() ) );
+  }
+
+  /**
+   * Read the micro batch settings
+   *
+   * @param meta the meta to read the settings from
+   * @param data the step data
+   * @throws HopException if the batch size or delay isn't a non-negative number
+   */
+  protected void configureMicroBatch( MQTTSubscriberMeta meta, MQTTSubscriberData data ) throws HopException {
+    String sizeValue = resolve( meta.getMicroBatchSize() );
+    try {
+      data.m_microBatchSize =
+          org.apache.hop.core.util.Utils.isEmpty( sizeValue ) ? 0 : Integer.parseInt( sizeValue.trim() );
+    } catch ( NumberFormatException e ) {
+      data.m_microBatchSize = -1;
+    }
+    if ( data.m_microBatchSize < 0 ) {
+      throw new HopException( BaseMessages
+          .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongMicroBatchSizeValue.Message", sizeValue ) );
+    }
+    String delayValue = resolve( meta.getMicroBatchDelay() );
+    long delay;
+    try {
+      delay = org.apache.hop.core.util.Utils.isEmpty( delayValue ) ? 0 : Long.parseLong( delayValue.trim() );
+    } catch ( NumberFormatException e ) {
+      delay = -1;
+    }
+    if ( delay < 0 ) {
+      throw new HopException( BaseMessages
+          .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.WrongMicroBatchDelayValue.Message", delayValue ) );
+    }
+    data.m_microBatchDelayNanos = TimeUnit.MICROSECONDS.toNanos( delay );
+    if ( meta.getAggregateBatch() ) {
+      data.m_aggregateFraming = BatchFraming.fromName( meta.getBatchFormat() );
+      data.m_aggregateBuffer = new ByteArrayOutputStream();
+    }
+    data.m_microBatch = data.m_microBatchSize > 1 || delay > 0 || data.m_aggregateFraming != null;
+  }
+
+  /**
+   * Read the message, byte and idle time limits
+   *
+   * @param meta the meta to read the settings from
+   * @param data the step data
+   * @throws HopException if a limit isn't a non-negative number
+   */
+  protected void configureExitConditions( MQTTSubscriberMeta meta, MQTTSubscriberData data ) throws HopException {
+    data.m_maxMessages = parseLimit( meta.getMaxMessages(), "MQTTClientStep.WrongMaxMessagesValue.Message" );
+    data.m_maxBytes = parseLimit( meta.getMaxBytes(), "MQTTClientStep.WrongMaxBytesValue.Message" );
+    data.m_idleTimeoutNanos = TimeUnit.MILLISECONDS
+        .toNanos( parseLimit( meta.getIdleTimeout(), "MQTTClientStep.WrongIdleTimeoutValue.Message" ) );
+  }
+
+  /**
+   * @param value the setting, possibly containing variables
+   * @param errorKey the message key to report a bad value with
+   * @return the value as a number; 0 if empty
+   * @throws HopException if the value isn't a non-negative number
+   */
+  protected long parseLimit( String value, String errorKey ) throws HopException {
+    String resolved = resolve( value );
+    long limit;
+    try {
+      limit = org.apache.hop.core.util.Utils.isEmpty( resolved ) ? 0 : Long.parseLong( resolved.trim() );
+    } catch ( NumberFormatException e ) {
+      limit = -1;
+    }
+    if ( limit < 0 ) {
+      throw new HopException( BaseMessages.getString( MQTTPublisherMeta.PKG, errorKey, resolved ) );
+    }
+    return limit;
+  }
+
+  /**
+   * Stop the queue from accepting messages, so that a client callback held up by a full queue lets go and the client
+   * can be disconnected
+   *
+   * @param data the step data
+   */
+  protected void closeQueue( MQTTSubscriberData data ) {
+    MessageRing ring = data.m_ring;
+    if ( ring != null && !data.m_queueClosed ) {
+      // the client callback may have closed the ring already, on reaching a limit
+      data.m_queueClosed = true;
+      ring.close();
+      logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.QueueSummary",
+          Integer.toString( ring.capacity() ), Long.toString( ring.getMaxDepth() ),
+          Long.toString( TimeUnit.NANOSECONDS.toMillis( ring.getProducerWaitNanos() ) ) ) );
+      if ( data.m_microBatch && data.m_batches > 0 ) {
+        logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.MicroBatchSummary",
+            Long.toString( data.m_batchedMessages ), Long.toString( data.m_batches ),
+            Long.toString( data.m_batchedMessages / data.m_batches ),
+            Long.toString( TimeUnit.NANOSECONDS.toMicros( data.m_batchHoldNanos / data.m_batches ) ) ) );
+      }
+    }
+  }
   
   //Adding creation of persistence store 
   public MqttClientPersistence getPersistence(String path) {
@@ -197,10 +762,7 @@ public class MQTTSubscriber extends BaseTransform<MQTTSubscriberMeta, MQTTSubscr
         throw new HopException(
             BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.NoBrokerURL" ) );
       }
-      String clientId = resolve( meta.getClientId() );
-      if ( org.apache.hop.core.util.Utils.isEmpty( clientId ) ) {
-        throw new HopException( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.NoClientID" ) );
-      }
+      String clientId = resolveClientId( meta );
       List<String> topics = meta.getTopics();
       if ( topics == null || topics.size() == 0 ) {
         throw new HopException( "No topic(s) to subscribe to provided" );
@@ -209,6 +771,10 @@ public class MQTTSubscriber extends BaseTransform<MQTTSubscriberMeta, MQTTSubscr
       for ( String topic : topics ) {
         resolvedTopics.add( resolve( topic ) );
       }
+      String shareGroup = null;
+      if ( meta.isSharedSubscription() ) {
+        shareGroup = resolveShareGroup( meta );
+      }
 
       String qosS = resolve( meta.getQoS() );
       int qos = 0;
@@ -219,10 +785,6 @@ public class MQTTSubscriber extends BaseTransform<MQTTSubscriberMeta, MQTTSubscr
           // quietly ignore
         }
       }
-      int[] qoss = new int[resolvedTopics.size()];
-      for ( int i = 0; i < qoss.length; i++ ) {
-        qoss[i] = qos;
-      }
       try {
 		Boolean isCleanSession=meta.isCleanSession();
 		//Handling Persistence Store if cleanSession=false
@@ -276,7 +838,7 @@ public class MQTTSubscriber extends BaseTransform<MQTTSubscriberMeta, MQTTSubscr
         data.m_client.setCallback( new SubscriberCallback( data, meta ) );
         data.m_client.connect( connectOptions );
         if(data.m_client.isConnected()){ //adding this in case cleansession=flse otherwise exception
-			data.m_client.subscribe( resolvedTopics.toArray( new String[resolvedTopics.size()] ), qoss );
+			subscribe( meta, data, connectOptions, resolvedTopics, qos, shareGroup );
 					logBasic(BaseMessages.getString( MQTTPublisherMeta.PKG,"MQTTClientStep.DebugMessage",4));
 		}
 
@@ -288,21 +850,192 @@ public class MQTTSubscriber extends BaseTransform<MQTTSubscriberMeta, MQTTSubscr
     } else {logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG,"MQTTClientStep.DebugMessage","data cleint not null"));}
   }
 
+  /**
+   * @param meta the meta to read the client id from
+   * @return the client id for this copy of the step
+   * @throws HopException if no client id is set
+   */
+  protected String resolveClientId( MQTTSubscriberMeta meta ) throws HopException {
+    String clientId = resolve( meta.getClientId() );
+    if ( org.apache.hop.core.util.Utils.isEmpty( clientId ) ) {
+      throw new HopException( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.NoClientID" ) );
+    }
+    // the broker disconnects a client when another connects with the same id, so every copy after the first gets
+    // its own
+    if ( getCopy() > 0 ) {
+      clientId = clientId + "-c" + getCopy();
+    }
+    return clientId;
+  }
+
+  /**
+   * @param meta the meta to read the share group from
+   * @return the share group, which defaults to the step name
+   * @throws HopException if the share group is not valid
+   */
+  protected String resolveShareGroup( MQTTSubscriberMeta meta ) throws HopException {
+    String group = resolve( meta.getShareGroup() );
+    if ( org.apache.hop.core.util.Utils.isEmpty( group ) ) {
+      // every copy, in every pipeline running this step, shares by default
+      group = getTransformName().replaceAll( "[/+#\\s]", "_" );
+    }
+    try {
+      SharedSubscription.checkGroup( group );
+    } catch ( IllegalArgumentException e ) {
+      throw new HopException( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.ShareGroup",
+          e.getMessage() ) );
+    }
+    return group;
+  }
+
+  /**
+   * Subscribe to the topics, as shared subscriptions if there is a share group. If the broker refuses the shared
+   * subscriptions, fall back to partitioning the topics across the copies of the step if that is turned on, and
+   * otherwise to ordinary subscriptions on the first copy only, so that the other copies don't receive every message a
+   * second time.
+   *
+   * @param meta the step meta
+   * @param data the step data
+   * @param connectOptions the options to reconnect with, if the broker drops the connection on refusing
+   * @param filters the topic filters
+   * @param qos the QoS to subscribe with
+   * @param shareGroup the share group, or null for ordinary subscriptions
+   * @throws MqttException if subscribing fails
+   */
+  protected void subscribe( MQTTSubscriberMeta meta, MQTTSubscriberData data, MqttConnectOptions connectOptions,
+      List<String> filters, int qos, String shareGroup ) throws MqttException {
+    if ( shareGroup != null && !data.m_sharedUnsupported ) {
+      String[] shared = new String[filters.size()];
+      for ( int i = 0; i < shared.length; i++ ) {
+        shared[i] = SharedSubscription.share( shareGroup, filters.get( i ) );
+      }
+      // Paho writes the granted QoS back into this array; 0x80 means the broker refused that filter
+      int[] granted = qosArray( shared.length, qos );
+      boolean refused = false;
+      data.m_subscribing = true;
+      try {
+        data.m_client.subscribe( shared, granted );
+        for ( int g : granted ) {
+          refused |= g == 0x80;
+        }
+      } catch ( MqttException e ) {
+        // some brokers refuse with a failure return code, others just drop the connection
+        if ( e.getReasonCode() != MqttException.REASON_CODE_SUBSCRIBE_FAILED && data.m_client.isConnected() ) {
+          throw e;
+        }
+        refused = true;
+      } finally {
+        data.m_subscribing = false;
+      }
+      if ( !refused ) {
+        logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.SharedSubscription", shareGroup ) );
+        return;
+      }
+
+      logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.SharedSubscriptionsUnsupported" ) );
+      data.m_sharedUnsupported = true;
+      if ( data.m_client.isConnected() ) {
+        // drop any that were accepted, so that they don't deliver alongside the ordinary ones
+        data.m_client.unsubscribe( shared );
+      } else {
+        data.m_client.connect( connectOptions );
+      }
+    }
+    if ( meta.isPartitionTopics() ) {
+      filters = partitionTopics( data, filters, meta.isPartitionWildcards() );
+    } else if ( shareGroup != null && getCopy() > 0 ) {
+      // shared subscriptions were refused, now or on an earlier connect
+      logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.SharedSubscriptionsIdle",
+          Integer.toString( getCopy() ) ) );
+      return;
+    }
+    if ( filters.isEmpty() ) {
+      return;
+    }
+    data.m_client.subscribe( filters.toArray( new String[filters.size()] ), qosArray( filters.size(), qos ) );
+  }
+
+  /**
+   * Work out this copy's share of the topic filters. Filters are dealt out to the copies in turn, in the order they
+   * are listed, so every copy arrives at the same split. If wildcards are partitioned too, filters with wildcards are
+   * subscribed to by every copy instead, and each copy keeps only the messages whose topic hashes to it.
+   *
+   * @param data the step data
+   * @param filters all the topic filters
+   * @param wildcards true to partition the topics matched by wildcard filters by hash
+   * @return the filters this copy should subscribe to
+   */
+  protected List<String> partitionTopics( MQTTSubscriberData data, List<String> filters, boolean wildcards ) {
+    int copies = Math.max( 1, getTransformMeta().getCopies() );
+    List<String> slice = new ArrayList<>();
+    Map<String, Boolean> literals = new HashMap<>();
+    boolean hashed = false;
+    int next = 0;
+    for ( String filter : filters ) {
+      boolean wildcard = filter.indexOf( '+' ) >= 0 || filter.indexOf( '#' ) >= 0;
+      if ( wildcards && wildcard ) {
+        slice.add( filter );
+        hashed = true;
+        continue;
+      }
+      boolean mine = next++ % copies == getCopy();
+      if ( mine ) {
+        slice.add( filter );
+      }
+      if ( !wildcard ) {
+        literals.put( filter, mine );
+      }
+    }
+    if ( hashed ) {
+      // a message on a topic listed explicitly belongs to the copy that subscribed to it, even if it also matches a
+      // wildcard
+      data.m_partitionOwners = literals;
+      data.m_partitions = copies;
+    }
+    logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.Partition",
+        Integer.toString( getCopy() ), Integer.toString( copies ), slice.isEmpty() ? "-" : slice.toString() ) );
+    return slice;
+  }
+
+  /**
+   * @param topic the topic a message arrived on
+   * @param data the step data
+   * @return true if this copy should process the message, when wildcard topics are partitioned by hash
+   */
+  protected boolean ownsTopic( String topic, MQTTSubscriberData data ) {
+    Boolean owner = data.m_partitionOwners.get( topic );
+    if ( owner != null ) {
+      return owner;
+    }
+    // String.hashCode() is fixed by the language spec, so all copies (on any server) agree
+    return ( topic.hashCode() & Integer.MAX_VALUE ) % data.m_partitions == getCopy();
+  }
+
+  protected static int[] qosArray( int size, int qos ) {
+    int[] qoss = new int[size];
+    for ( int i = 0; i < size; i++ ) {
+      qoss[i] = qos;
+    }
+    return qoss;
+  }
+
   protected class SubscriberCallback implements MqttCallback {
 
     protected MQTTSubscriberData m_data;
     protected MQTTSubscriberMeta m_meta;
-    protected IValueMeta m_messageValueMeta;
 
-    public SubscriberCallback( MQTTSubscriberData data, MQTTSubscriberMeta meta ) throws HopPluginException {
+    public SubscriberCallback( MQTTSubscriberData data, MQTTSubscriberMeta meta ) {
       m_data = data;
       m_meta = meta;
       logBasic(BaseMessages.getString( MQTTPublisherMeta.PKG,"MQTTClientStep.DebugMessage","message callback"));
-      m_messageValueMeta =
-          ValueMetaFactory.createValueMeta( "Message", ValueMetaFactory.getIdForValueMeta( m_meta.getMessageType() ) );
     }
 
     @Override public void connectionLost( Throwable throwable ) {
+      if ( m_data.m_ring.isClosed() || m_data.m_subscribing ) {
+        // the step is stopping, or the broker dropped us for asking for a shared subscription, which subscribe()
+        // deals with
+        return;
+      }
       // connection retry logic here
       shutdown( m_data );
       logBasic( BaseMessages
@@ -319,64 +1052,49 @@ public class MQTTSubscriber extends BaseTransform<MQTTSubscriberMeta, MQTTSubscr
     }
 
     @Override public void messageArrived( String topic, MqttMessage mqttMessage ) throws Exception {
-      
-	  
-	  if(m_data.m_outputRowMeta==null) // if clean session=false, we might reicieve messages before processrows has been called if the broker sends back all unconsumed mesages
-			{
-				while(!m_isInit)
-				{
-				//Wait until assync init done
-				}			
-			}
-		
-		  
-
-	  Object[] outRow = RowDataUtil.allocateRowData( m_data.m_outputRowMeta.size() );
-      outRow[0] = topic;
-      Object converted = null;
-
-      byte[] raw = mqttMessage.getPayload();
-      ByteBuffer buff = null;
-      switch ( m_messageValueMeta.getType() ) {
-        case IValueMeta.TYPE_INTEGER:
-          buff = ByteBuffer.wrap( raw );
-          outRow[1] = raw.length == 4 ? (long) buff.getInt() : buff.getLong();
-          break;
-        case IValueMeta.TYPE_STRING:
-        case IValueMeta.TYPE_NONE:
-          outRow[1] = new String( raw );
-          break;
-        case IValueMeta.TYPE_NUMBER:
-          buff = ByteBuffer.wrap( raw );
-          outRow[1] = raw.length == 4 ? (double) buff.getFloat() : buff.getDouble();
-          break;
-        case IValueMeta.TYPE_DATE:
-          buff = ByteBuffer.wrap( raw );
-          outRow[1] = new Date( buff.getLong() );
-          break;
-        case IValueMeta.TYPE_BINARY:
-          outRow[1] = raw;
-          break;
-        case IValueMeta.TYPE_BOOLEAN:
-          outRow[1] = raw[0] > 0;
-          break;
-        case IValueMeta.TYPE_TIMESTAMP:
-          buff = ByteBuffer.wrap( raw );
-          long time = buff.getLong();
-          int nanos = buff.getInt();
-          Timestamp t = new Timestamp( time );
-          t.setNanos( nanos );
-          outRow[1] = t;
-          break;
-        case IValueMeta.TYPE_SERIALIZABLE:
-          ObjectInputStream ois = new ObjectInputStream( new ByteArrayInputStream( raw ) );
-          outRow[1] = ois.readObject();
-          break;
-        default:
-          throw new HopException( "Unhandled type" );
-      }
-      putRow( m_data.m_outputRowMeta, outRow );
-	  
+      if ( m_data.m_partitions > 0 && !ownsTopic( topic, m_data ) ) {
+        // another copy takes this one
+        return;
+      }
+      // only hand the message over here; decoding and row handling happen on the step's own thread
+      MessageRing ring = m_data.m_ring;
+      MessageRing.Slot slot = ring.claim();
+      if ( slot == null ) {
+        // the queue has been closed and the step is about to disconnect. Throwing here would make the client drop the
+        // connection and report it as lost, so the message is dropped instead
+        m_data.m_droppedAfterClose++;
+        return;
+      }
+      byte[] payload = mqttMessage.getPayload();
+      slot.m_topic = topic;
+      slot.m_payload = payload;
+      if ( m_data.m_captureArrival ) {
+        slot.m_arrived = System.nanoTime();
+      }
+      if ( m_data.m_captureMetadata ) {
+        slot.m_qos = mqttMessage.getQos();
+        slot.m_retained = mqttMessage.isRetained();
+        slot.m_duplicate = mqttMessage.isDuplicate();
+        slot.m_messageId = mqttMessage.getId();
+      }
+      ring.publish();
+
+      long messages = ++m_data.m_receivedMessages;
+      // not read from the slot, which the step may already have taken and released
+      long bytes = m_data.m_receivedBytes += payload.length;
+      String reason = null;
+      if ( m_data.m_maxMessages > 0 && messages >= m_data.m_maxMessages ) {
+        reason = BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.MaxMessagesReached",
+            Long.toString( messages ) );
+      } else if ( m_data.m_maxBytes > 0 && bytes >= m_data.m_maxBytes ) {
+        reason = BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.MaxBytesReached",
+            Long.toString( bytes ), Long.toString( messages ) );
+      }
+      if ( reason != null ) {
+        // drop anything further; the step passes on what has been queued and then disconnects
+        m_data.m_exitReason = reason;
+        ring.close();
+      }
     }
 
     @Override public void deliveryComplete( IMqttDeliveryToken iMqttDeliveryToken ) {
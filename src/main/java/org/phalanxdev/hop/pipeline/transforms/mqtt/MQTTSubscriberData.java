@@ -27,8 +27,14 @@ import org.apache.hop.core.row.IValueMeta;
 import org.apache.hop.pipeline.transform.BaseTransformData;
 import org.apache.hop.pipeline.transform.ITransformData;
 import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.phalanxdev.mqtt.BatchFraming;
+import org.phalanxdev.mqtt.MessageRing;
+import org.phalanxdev.mqtt.NanoClock;
+import org.phalanxdev.mqtt.ObjectCodec;
 
-import java.util.Date;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Data class for the MQTTSubscriber step
@@ -41,7 +47,101 @@ public class MQTTSubscriberData extends BaseTransformData implements ITransformD
   protected MqttClient m_client;
   protected IRowMeta m_outputRowMeta;
   protected IValueMeta m_inputFieldMeta;
+  protected IValueMeta m_messageValueMeta;
+
+  /** Decodes payloads into values of the message field's type */
+  protected PayloadDecoder m_decoder;
+
+  /** The message being turned into rows, copied out of its queue slot */
+  protected MessageRing.Slot m_message = new MessageRing.Slot();
+
+  /** Whether the client callback records the QoS, flags and message id, and the arrival time */
+  protected boolean m_captureMetadata;
+  protected boolean m_captureArrival;
+
+  /** True if any metadata fields are selected */
+  protected boolean m_metadata;
+
+  /** Output indexes of the metadata fields; -1 for those not selected */
+  protected int m_qosIndex = -1;
+  protected int m_retainedIndex = -1;
+  protected int m_duplicateIndex = -1;
+  protected int m_messageIdIndex = -1;
+  protected int m_payloadLengthIndex = -1;
+  protected int m_arrivalTimeIndex = -1;
+
+  /** Converts arrival times to timestamps */
+  protected NanoClock m_clock;
+
+  /** Hands messages over from the client's callback thread to the step's thread */
+  protected MessageRing m_ring;
+
+  /** Non-null if incoming messages are batches to be split into one row per record */
+  protected BatchFraming m_unbatchFraming;
+
+  /** True if messages are collected into micro batches before being emitted */
+  protected boolean m_microBatch;
+
+  /** Most messages in a micro batch (0 for as many as the queue holds), and how long the first may be held back */
+  protected int m_microBatchSize;
+  protected long m_microBatchDelayNanos;
+
+  /** Non-null if each micro batch is emitted as a single row, framed like this */
+  protected BatchFraming m_aggregateFraming;
+  protected ByteArrayOutputStream m_aggregateBuffer;
+
+  /** The first message of the micro batch being aggregated, for the metadata fields */
+  protected MessageRing.Slot m_batchFirst = new MessageRing.Slot();
+
+  /** Micro batches emitted, the messages in them, and the total time their first messages were held back */
+  protected volatile long m_batches;
+  protected volatile long m_batchedMessages;
+  protected volatile long m_batchHoldNanos;
+
+  /** True while subscribing, so that a connection dropped by a broker refusing shared subscriptions is expected */
+  protected volatile boolean m_subscribing;
+
+  /** True once the broker has refused shared subscriptions, so that reconnects go straight to ordinary ones */
+  protected boolean m_sharedUnsupported;
+
+  /** Number of copies wildcard topics are partitioned across by hash; 0 if they aren't */
+  protected int m_partitions;
+
+  /** For topics listed explicitly when partitioning wildcards, whether this copy subscribed to them */
+  protected Map<String, Boolean> m_partitionOwners;
 
   protected long m_executionDuration;
-  protected Date m_startTime;
+
+  /** System.nanoTime() at which to stop, if running for a fixed duration */
+  protected long m_deadline;
+
+  /** Message and payload byte counts to stop after (0 for no limit), and how long to wait without messages */
+  protected long m_maxMessages;
+  protected long m_maxBytes;
+  protected long m_idleTimeoutNanos;
+
+  /**
+   * Messages and payload bytes accepted by the client callback. Only written by the callback; read by the step once
+   * the queue has been closed, which makes them visible
+   */
+  protected long m_receivedMessages;
+  protected long m_receivedBytes;
+
+  /** System.nanoTime() when the step last took a message off the queue (or started) */
+  protected long m_lastMessage;
+
+  /** Why the run is ending, if the client callback hit a limit */
+  protected volatile String m_exitReason;
+
+  /** Messages the client callback dropped because the queue had been closed. Only written by the callback */
+  protected volatile long m_droppedAfterClose;
+
+  /** Set once the queue has been closed and its summary logged */
+  protected volatile boolean m_queueClosed;
+
+  /** Decoder for object messages in the compact format; null for Java serialized ones */
+  protected ObjectCodec m_objectCodec;
+
+  /** Classes Java serialized object messages may contain besides the built in ones; empty for any class */
+  protected List<String> m_objectClasses;
 }
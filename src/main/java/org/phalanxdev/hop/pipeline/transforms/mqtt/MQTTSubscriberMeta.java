@@ -42,6 +42,9 @@ import org.apache.hop.pipeline.transform.ITransform;
 import org.apache.hop.pipeline.transform.ITransformMeta;
 import org.apache.hop.pipeline.transform.TransformMeta;
 import org.phalanxdev.hop.ui.pipeline.transforms.mqtt.MQTTSubscriberDialog;
+import org.phalanxdev.mqtt.BatchFraming;
+import org.phalanxdev.mqtt.MessageRing;
+import org.phalanxdev.mqtt.ObjectCodec;
 import org.w3c.dom.Node;
 
 import java.util.ArrayList;
@@ -83,11 +86,132 @@ import java.util.List;
    */
   private boolean m_allowReadObjectMessageType;
 
+  /**
+   * Name of the {@link ObjectCodec.Format} used by the publisher for object messages
+   */
+  private String m_objectFormat = ObjectCodec.Format.JAVA.name();
+
+  /**
+   * Classes that object messages may contain besides the built in ones. For Java serialized messages, an empty list
+   * means any class
+   */
+  private String m_objectClasses = "";
+
   /**
    * Execute for x seconds (0 means indefinitely)
    */
   private String m_executeForDuration = "0";
 
+  /**
+   * Stop after this many messages have been received (0 for no limit)
+   */
+  private String m_maxMessages = "0";
+
+  /**
+   * Stop after this many payload bytes have been received (0 for no limit)
+   */
+  private String m_maxBytes = "0";
+
+  /**
+   * Stop after no messages have arrived for this many milliseconds (0 to wait indefinitely)
+   */
+  private String m_idleTimeout = "0";
+
+  /**
+   * Whether to split batched messages (as produced by the publisher's batching mode) back into one row per record
+   */
+  private boolean m_unbatch;
+
+  /**
+   * Name of the {@link BatchFraming} used by the publisher
+   */
+  private String m_batchFormat = BatchFraming.LENGTH_PREFIXED.name();
+
+  /**
+   * Character set of string messages
+   */
+  private String m_charset = "UTF-8";
+
+  /**
+   * Name of the {@link PayloadDecoder.Endianness} of integer, number, date and timestamp messages
+   */
+  private String m_byteOrder = PayloadDecoder.Endianness.BIG_ENDIAN.name();
+
+  /**
+   * Number of messages that can be waiting between the MQTT client and the step before the client is held up
+   */
+  private String m_queueSize = "10000";
+
+  /**
+   * Name of the {@link MessageRing.WaitStrategy} used when the queue is full or empty
+   */
+  private String m_waitStrategy = MessageRing.WaitStrategy.BLOCKING.name();
+
+  /**
+   * Number of messages to collect before emitting them in one burst. 0 or 1 to emit messages as they arrive
+   */
+  private String m_microBatchSize = "0";
+
+  /**
+   * Longest time, in microseconds, the first message of a micro batch may be held back waiting for the batch to fill
+   */
+  private String m_microBatchDelay = "0";
+
+  /**
+   * Whether to emit each micro batch as a single row holding all the payloads, framed with the batch format
+   */
+  private boolean m_aggregateBatch;
+
+  /**
+   * Name of the output field holding the QoS of the message; empty to leave it out
+   */
+  private String m_qosField = "";
+
+  /**
+   * Name of the output field holding whether the message is a retained one; empty to leave it out
+   */
+  private String m_retainedField = "";
+
+  /**
+   * Name of the output field holding whether the message may be a redelivery; empty to leave it out
+   */
+  private String m_duplicateField = "";
+
+  /**
+   * Name of the output field holding the MQTT message id; empty to leave it out
+   */
+  private String m_messageIdField = "";
+
+  /**
+   * Name of the output field holding the length of the payload in bytes; empty to leave it out
+   */
+  private String m_payloadLengthField = "";
+
+  /**
+   * Name of the output field holding the time the message arrived; empty to leave it out
+   */
+  private String m_arrivalTimeField = "";
+
+  /**
+   * Whether to subscribe with shared subscriptions, so that the broker spreads messages over the copies of the step
+   */
+  private boolean m_sharedSubscription;
+
+  /**
+   * Share group for shared subscriptions. Empty to use the step name
+   */
+  private String m_shareGroup = "";
+
+  /**
+   * Whether to split the topics between the copies of the step, for brokers without shared subscriptions
+   */
+  private boolean m_partitionTopics;
+
+  /**
+   * Whether, when partitioning, messages matching wildcard topics are split between the copies by hashing the topic
+   */
+  private boolean m_partitionWildcards;
+
   /**
    * @return Broker URL
    */
@@ -292,6 +416,286 @@ import java.util.List;
     return m_executeForDuration;
   }
 
+  /**
+   * @param maxMessages the number of messages to stop after. 0 indicates no limit
+   */
+  public void setMaxMessages( String maxMessages ) {
+    m_maxMessages = maxMessages;
+  }
+
+  /**
+   * @return the number of messages to stop after (0 means no limit)
+   */
+  public String getMaxMessages() {
+    return m_maxMessages;
+  }
+
+  /**
+   * @param maxBytes the number of payload bytes to stop after. 0 indicates no limit
+   */
+  public void setMaxBytes( String maxBytes ) {
+    m_maxBytes = maxBytes;
+  }
+
+  /**
+   * @return the number of payload bytes to stop after (0 means no limit)
+   */
+  public String getMaxBytes() {
+    return m_maxBytes;
+  }
+
+  /**
+   * @param idleTimeout the number of milliseconds without messages to stop after. 0 indicates wait indefinitely
+   */
+  public void setIdleTimeout( String idleTimeout ) {
+    m_idleTimeout = idleTimeout;
+  }
+
+  /**
+   * @return the number of milliseconds without messages to stop after (0 means wait indefinitely)
+   */
+  public String getIdleTimeout() {
+    return m_idleTimeout;
+  }
+
+  /**
+   * @param charset the character set of string messages
+   */
+  public void setCharset( String charset ) {
+    m_charset = charset;
+  }
+
+  /**
+   * @return the character set of string messages
+   */
+  public String getCharset() {
+    return m_charset;
+  }
+
+  /**
+   * @param byteOrder the name of the byte order of integer, number, date and timestamp messages
+   */
+  public void setByteOrder( String byteOrder ) {
+    m_byteOrder = byteOrder;
+  }
+
+  /**
+   * @return the name of the byte order of integer, number, date and timestamp messages
+   */
+  public String getByteOrder() {
+    return m_byteOrder;
+  }
+
+  /**
+   * @param queueSize the number of messages that can be waiting between the MQTT client and the step
+   */
+  public void setQueueSize( String queueSize ) {
+    m_queueSize = queueSize;
+  }
+
+  /**
+   * @return the number of messages that can be waiting between the MQTT client and the step
+   */
+  public String getQueueSize() {
+    return m_queueSize;
+  }
+
+  /**
+   * @param waitStrategy the name of the wait strategy used when the queue is full or empty
+   */
+  public void setWaitStrategy( String waitStrategy ) {
+    m_waitStrategy = waitStrategy;
+  }
+
+  /**
+   * @return the name of the wait strategy used when the queue is full or empty
+   */
+  public String getWaitStrategy() {
+    return m_waitStrategy;
+  }
+
+  /**
+   * @param microBatchSize the number of messages to collect before emitting them in one burst
+   */
+  public void setMicroBatchSize( String microBatchSize ) {
+    m_microBatchSize = microBatchSize;
+  }
+
+  /**
+   * @return the number of messages to collect before emitting them in one burst
+   */
+  public String getMicroBatchSize() {
+    return m_microBatchSize;
+  }
+
+  /**
+   * @param microBatchDelay the longest time, in microseconds, a message may be held back waiting for its batch to fill
+   */
+  public void setMicroBatchDelay( String microBatchDelay ) {
+    m_microBatchDelay = microBatchDelay;
+  }
+
+  /**
+   * @return the longest time, in microseconds, a message may be held back waiting for its batch to fill
+   */
+  public String getMicroBatchDelay() {
+    return m_microBatchDelay;
+  }
+
+  /**
+   * @param aggregateBatch true to emit each micro batch as a single row of framed payloads
+   */
+  public void setAggregateBatch( boolean aggregateBatch ) {
+    m_aggregateBatch = aggregateBatch;
+  }
+
+  /**
+   * @return true to emit each micro batch as a single row of framed payloads
+   */
+  public boolean getAggregateBatch() {
+    return m_aggregateBatch;
+  }
+
+  /**
+   * @param shared true to subscribe with shared subscriptions
+   */
+  public void setSharedSubscription( boolean shared ) {
+    m_sharedSubscription = shared;
+  }
+
+  /**
+   * @return true to subscribe with shared subscriptions
+   */
+  public boolean isSharedSubscription() {
+    return m_sharedSubscription;
+  }
+
+  /**
+   * @param shareGroup the share group for shared subscriptions, or empty to use the step name
+   */
+  public void setShareGroup( String shareGroup ) {
+    m_shareGroup = shareGroup;
+  }
+
+  /**
+   * @return the share group for shared subscriptions, or empty to use the step name
+   */
+  public String getShareGroup() {
+    return m_shareGroup;
+  }
+
+  /**
+   * @param partition true to split the topics between the copies of the step
+   */
+  public void setPartitionTopics( boolean partition ) {
+    m_partitionTopics = partition;
+  }
+
+  /**
+   * @return true to split the topics between the copies of the step
+   */
+  public boolean isPartitionTopics() {
+    return m_partitionTopics;
+  }
+
+  /**
+   * @param partition true to split messages matching wildcard topics between the copies by hashing the topic
+   */
+  public void setPartitionWildcards( boolean partition ) {
+    m_partitionWildcards = partition;
+  }
+
+  /**
+   * @return true to split messages matching wildcard topics between the copies by hashing the topic
+   */
+  public boolean isPartitionWildcards() {
+    return m_partitionWildcards;
+  }
+
+  /**
+   * @param fieldName the name of the output field holding the QoS of the message, or empty to leave it out
+   */
+  public void setQosField( String fieldName ) {
+    m_qosField = fieldName;
+  }
+
+  /**
+   * @return the name of the output field holding the QoS of the message, or empty to leave it out
+   */
+  public String getQosField() {
+    return m_qosField;
+  }
+
+  /**
+   * @param fieldName the name of the output field holding whether the message is a retained one, or empty to leave it out
+   */
+  public void setRetainedField( String fieldName ) {
+    m_retainedField = fieldName;
+  }
+
+  /**
+   * @return the name of the output field holding whether the message is a retained one, or empty to leave it out
+   */
+  public String getRetainedField() {
+    return m_retainedField;
+  }
+
+  /**
+   * @param fieldName the name of the output field holding whether the message may be a redelivery, or empty to leave it out
+   */
+  public void setDuplicateField( String fieldName ) {
+    m_duplicateField = fieldName;
+  }
+
+  /**
+   * @return the name of the output field holding whether the message may be a redelivery, or empty to leave it out
+   */
+  public String getDuplicateField() {
+    return m_duplicateField;
+  }
+
+  /**
+   * @param fieldName the name of the output field holding the MQTT message id, or empty to leave it out
+   */
+  public void setMessageIdField( String fieldName ) {
+    m_messageIdField = fieldName;
+  }
+
+  /**
+   * @return the name of the output field holding the MQTT message id, or empty to leave it out
+   */
+  public String getMessageIdField() {
+    return m_messageIdField;
+  }
+
+  /**
+   * @param fieldName the name of the output field holding the length of the payload in bytes, or empty to leave it out
+   */
+  public void setPayloadLengthField( String fieldName ) {
+    m_payloadLengthField = fieldName;
+  }
+
+  /**
+   * @return the name of the output field holding the length of the payload in bytes, or empty to leave it out
+   */
+  public String getPayloadLengthField() {
+    return m_payloadLengthField;
+  }
+
+  /**
+   * @param fieldName the name of the output field holding the time the message arrived, or empty to leave it out
+   */
+  public void setArrivalTimeField( String fieldName ) {
+    m_arrivalTimeField = fieldName;
+  }
+
+  /**
+   * @return the name of the output field holding the time the message arrived, or empty to leave it out
+   */
+  public String getArrivalTimeField() {
+    return m_arrivalTimeField;
+  }
+
   /**
    * @param allow true to allow object messages to be deserialized off of the wire
    */
@@ -306,6 +710,34 @@ import java.util.List;
     return m_allowReadObjectMessageType;
   }
 
+  /**
+   * @param objectFormat the name of the {@link ObjectCodec.Format} that object messages use
+   */
+  public void setObjectFormat( String objectFormat ) {
+    m_objectFormat = objectFormat;
+  }
+
+  /**
+   * @return the name of the {@link ObjectCodec.Format} that object messages use
+   */
+  public String getObjectFormat() {
+    return m_objectFormat;
+  }
+
+  /**
+   * @param objectClasses comma separated names of the classes object messages may contain
+   */
+  public void setObjectClasses( String objectClasses ) {
+    m_objectClasses = objectClasses;
+  }
+
+  /**
+   * @return comma separated names of the classes object messages may contain
+   */
+  public String getObjectClasses() {
+    return m_objectClasses;
+  }
+
   /**
    * @param cleanSession True/False
    */
@@ -334,6 +766,34 @@ import java.util.List;
     m_path = path;
   }
 
+  /**
+   * @param unbatch true to split each incoming batched message into one row per record
+   */
+  public void setUnbatch( boolean unbatch ) {
+    m_unbatch = unbatch;
+  }
+
+  /**
+   * @return true to split each incoming batched message into one row per record
+   */
+  public boolean getUnbatch() {
+    return m_unbatch;
+  }
+
+  /**
+   * @param batchFormat the name of the {@link BatchFraming} that incoming batched messages use
+   */
+  public void setBatchFormat( String batchFormat ) {
+    m_batchFormat = batchFormat;
+  }
+
+  /**
+   * @return the name of the {@link BatchFraming} that incoming batched messages use
+   */
+  public String getBatchFormat() {
+    return m_batchFormat;
+  }
+
   @Override public void setDefault() {
 
   }
@@ -368,6 +828,18 @@ import java.util.List;
     m_timeout = XmlHandler.getTagValue( stepnode, "TIMEOUT" );
     m_keepAliveInterval = XmlHandler.getTagValue( stepnode, "KEEP_ALIVE" );
     m_executeForDuration = XmlHandler.getTagValue( stepnode, "EXECUTE_FOR_DURATION" );
+    String maxMessages = XmlHandler.getTagValue( stepnode, "MAX_MESSAGES" );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( maxMessages ) ) {
+      m_maxMessages = maxMessages;
+    }
+    String maxBytes = XmlHandler.getTagValue( stepnode, "MAX_BYTES" );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( maxBytes ) ) {
+      m_maxBytes = maxBytes;
+    }
+    String idleTimeout = XmlHandler.getTagValue( stepnode, "IDLE_TIMEOUT" );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( idleTimeout ) ) {
+      m_idleTimeout = idleTimeout;
+    }
     m_qos = XmlHandler.getTagValue( stepnode, "QOS" );
     m_requiresAuth = Boolean.parseBoolean( XmlHandler.getTagValue( stepnode, "REQUIRES_AUTH" ) );
     m_cleanSession = Boolean.parseBoolean( XmlHandler.getTagValue( stepnode, "CLEANSESSION" ) );
@@ -382,6 +854,58 @@ import java.util.List;
     if ( !org.apache.hop.core.util.Utils.isEmpty( allowObjects ) ) {
       m_allowReadObjectMessageType = Boolean.parseBoolean( allowObjects );
     }
+    String objectFormat = XmlHandler.getTagValue( stepnode, "OBJECT_FORMAT" );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( objectFormat ) ) {
+      m_objectFormat = objectFormat;
+    }
+    String objectClasses = XmlHandler.getTagValue( stepnode, "OBJECT_CLASSES" );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( objectClasses ) ) {
+      m_objectClasses = objectClasses;
+    }
+
+    m_unbatch = Boolean.parseBoolean( XmlHandler.getTagValue( stepnode, "UNBATCH" ) );
+    String batchFormat = XmlHandler.getTagValue( stepnode, "BATCH_FORMAT" );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( batchFormat ) ) {
+      m_batchFormat = batchFormat;
+    }
+    String charset = XmlHandler.getTagValue( stepnode, "CHARSET" );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( charset ) ) {
+      m_charset = charset;
+    }
+    String byteOrder = XmlHandler.getTagValue( stepnode, "BYTE_ORDER" );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( byteOrder ) ) {
+      m_byteOrder = byteOrder;
+    }
+    String queueSize = XmlHandler.getTagValue( stepnode, "QUEUE_SIZE" );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( queueSize ) ) {
+      m_queueSize = queueSize;
+    }
+    String waitStrategy = XmlHandler.getTagValue( stepnode, "WAIT_STRATEGY" );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( waitStrategy ) ) {
+      m_waitStrategy = waitStrategy;
+    }
+    String microBatchSize = XmlHandler.getTagValue( stepnode, "MICRO_BATCH_SIZE" );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( microBatchSize ) ) {
+      m_microBatchSize = microBatchSize;
+    }
+    String microBatchDelay = XmlHandler.getTagValue( stepnode, "MICRO_BATCH_DELAY" );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( microBatchDelay ) ) {
+      m_microBatchDelay = microBatchDelay;
+    }
+    m_aggregateBatch = Boolean.parseBoolean( XmlHandler.getTagValue( stepnode, "AGGREGATE_BATCH" ) );
+    m_sharedSubscription = Boolean.parseBoolean( XmlHandler.getTagValue( stepnode, "SHARED_SUBSCRIPTION" ) );
+    String shareGroup = XmlHandler.getTagValue( stepnode, "SHARE_GROUP" );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( shareGroup ) ) {
+      m_shareGroup = shareGroup;
+    }
+    m_partitionTopics = Boolean.parseBoolean( XmlHandler.getTagValue( stepnode, "PARTITION_TOPICS" ) );
+    m_qosField = Const.NVL( XmlHandler.getTagValue( stepnode, "QOS_FIELD" ), "" );
+    m_retainedField = Const.NVL( XmlHandler.getTagValue( stepnode, "RETAINED_FIELD" ), "" );
+    m_duplicateField = Const.NVL( XmlHandler.getTagValue( stepnode, "DUPLICATE_FIELD" ), "" );
+    m_messageIdField = Const.NVL( XmlHandler.getTagValue( stepnode, "MESSAGE_ID_FIELD" ), "" );
+    m_payloadLengthField = Const.NVL( XmlHandler.getTagValue( stepnode, "PAYLOAD_LENGTH_FIELD" ), "" );
+    m_arrivalTimeField = Const.NVL( XmlHandler.getTagValue( stepnode, "ARRIVAL_TIME_FIELD" ), "" );
+    m_partitionWildcards = Boolean.parseBoolean( XmlHandler.getTagValue( stepnode, "PARTITION_WILDCARDS" ) );
 
     Node sslNode = XmlHandler.getSubNode( stepnode, "SSL" );
     if ( sslNode != null ) {
@@ -425,6 +949,15 @@ import java.util.List;
     if ( !org.apache.hop.core.util.Utils.isEmpty( m_executeForDuration ) ) {
       retval.append( "    " ).append( XmlHandler.addTagValue( "EXECUTE_FOR_DURATION", m_executeForDuration ) );
     }
+    if ( !org.apache.hop.core.util.Utils.isEmpty( m_maxMessages ) ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "MAX_MESSAGES", m_maxMessages ) );
+    }
+    if ( !org.apache.hop.core.util.Utils.isEmpty( m_maxBytes ) ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "MAX_BYTES", m_maxBytes ) );
+    }
+    if ( !org.apache.hop.core.util.Utils.isEmpty( m_idleTimeout ) ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "IDLE_TIMEOUT", m_idleTimeout ) );
+    }
     retval.append( "    " ).append( XmlHandler.addTagValue( "REQUIRES_AUTH", Boolean.toString( m_requiresAuth ) ) );
     if ( !org.apache.hop.core.util.Utils.isEmpty( m_username ) ) {
       retval.append( "    " ).append( XmlHandler.addTagValue( "USERNAME", m_username ) );
@@ -440,6 +973,62 @@ import java.util.List;
     }
     retval.append( "    " )
         .append( XmlHandler.addTagValue( "READ_OBJECTS", Boolean.toString( m_allowReadObjectMessageType ) ) );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( m_objectFormat ) ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "OBJECT_FORMAT", m_objectFormat ) );
+    }
+    if ( !org.apache.hop.core.util.Utils.isEmpty( m_objectClasses ) ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "OBJECT_CLASSES", m_objectClasses ) );
+    }
+
+    retval.append( "    " ).append( XmlHandler.addTagValue( "UNBATCH", Boolean.toString( m_unbatch ) ) );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( m_batchFormat ) ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "BATCH_FORMAT", m_batchFormat ) );
+    }
+    if ( !org.apache.hop.core.util.Utils.isEmpty( m_charset ) ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "CHARSET", m_charset ) );
+    }
+    if ( !org.apache.hop.core.util.Utils.isEmpty( m_byteOrder ) ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "BYTE_ORDER", m_byteOrder ) );
+    }
+    if ( !org.apache.hop.core.util.Utils.isEmpty( m_queueSize ) ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "QUEUE_SIZE", m_queueSize ) );
+    }
+    if ( !org.apache.hop.core.util.Utils.isEmpty( m_waitStrategy ) ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "WAIT_STRATEGY", m_waitStrategy ) );
+    }
+    if ( !org.apache.hop.core.util.Utils.isEmpty( m_microBatchSize ) ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "MICRO_BATCH_SIZE", m_microBatchSize ) );
+    }
+    if ( !org.apache.hop.core.util.Utils.isEmpty( m_microBatchDelay ) ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "MICRO_BATCH_DELAY", m_microBatchDelay ) );
+    }
+    retval.append( "    " ).append( XmlHandler.addTagValue( "AGGREGATE_BATCH", Boolean.toString( m_aggregateBatch ) ) );
+    retval.append( "    " )
+        .append( XmlHandler.addTagValue( "SHARED_SUBSCRIPTION", Boolean.toString( m_sharedSubscription ) ) );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( m_shareGroup ) ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "SHARE_GROUP", m_shareGroup ) );
+    }
+    retval.append( "    " ).append( XmlHandler.addTagValue( "PARTITION_TOPICS", Boolean.toString( m_partitionTopics ) ) );
+    retval.append( "    " )
+        .append( XmlHandler.addTagValue( "PARTITION_WILDCARDS", Boolean.toString( m_partitionWildcards ) ) );
+    if ( !org.apache.hop.core.util.Utils.isEmpty( m_qosField ) ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "QOS_FIELD", m_qosField ) );
+    }
+    if ( !org.apache.hop.core.util.Utils.isEmpty( m_retainedField ) ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "RETAINED_FIELD", m_retainedField ) );
+    }
+    if ( !org.apache.hop.core.util.Utils.isEmpty( m_duplicateField ) ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "DUPLICATE_FIELD", m_duplicateField ) );
+    }
+    if ( !org.apache.hop.core.util.Utils.isEmpty( m_messageIdField ) ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "MESSAGE_ID_FIELD", m_messageIdField ) );
+    }
+    if ( !org.apache.hop.core.util.Utils.isEmpty( m_payloadLengthField ) ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "PAYLOAD_LENGTH_FIELD", m_payloadLengthField ) );
+    }
+    if ( !org.apache.hop.core.util.Utils.isEmpty( m_arrivalTimeField ) ) {
+      retval.append( "    " ).append( XmlHandler.addTagValue( "ARRIVAL_TIME_FIELD", m_arrivalTimeField ) );
+    }
 
     if ( !org.apache.hop.core.util.Utils.isEmpty( m_sslCaFile ) || !org.apache.hop.core.util.Utils.isEmpty( m_sslCertFile )
         || !org.apache.hop.core.util.Utils.isEmpty( m_sslKeyFile ) || !org.apache.hop.core.util.Utils.isEmpty( m_sslKeyFilePass ) ) {
@@ -469,13 +1058,31 @@ import java.util.List;
     rowMeta.clear();
     try {
       rowMeta.addValueMeta( ValueMetaFactory.createValueMeta( "Topic", IValueMeta.TYPE_STRING ) );
-      rowMeta.addValueMeta(
-          ValueMetaFactory.createValueMeta( "Message", ValueMetaFactory.getIdForValueMeta( getMessageType() ) ) );
+      if ( m_aggregateBatch ) {
+        // one row per micro batch: the payloads as they arrived, framed as a batch, and how many there are
+        rowMeta.addValueMeta( ValueMetaFactory.createValueMeta( "Message", IValueMeta.TYPE_BINARY ) );
+        rowMeta.addValueMeta( ValueMetaFactory.createValueMeta( "Count", IValueMeta.TYPE_INTEGER ) );
+      } else {
+        rowMeta.addValueMeta(
+            ValueMetaFactory.createValueMeta( "Message", ValueMetaFactory.getIdForValueMeta( getMessageType() ) ) );
+      }
+      addMetadataField( rowMeta, m_qosField, IValueMeta.TYPE_INTEGER );
+      addMetadataField( rowMeta, m_retainedField, IValueMeta.TYPE_BOOLEAN );
+      addMetadataField( rowMeta, m_duplicateField, IValueMeta.TYPE_BOOLEAN );
+      addMetadataField( rowMeta, m_messageIdField, IValueMeta.TYPE_INTEGER );
+      addMetadataField( rowMeta, m_payloadLengthField, IValueMeta.TYPE_INTEGER );
+      addMetadataField( rowMeta, m_arrivalTimeField, IValueMeta.TYPE_TIMESTAMP );
     } catch ( HopPluginException e ) {
       throw new HopTransformException( e );
     }
   }
 
+  protected static void addMetadataField( IRowMeta rowMeta, String fieldName, int type ) throws HopPluginException {
+    if ( !org.apache.hop.core.util.Utils.isEmpty( fieldName ) ) {
+      rowMeta.addValueMeta( ValueMetaFactory.createValueMeta( fieldName, type ) );
+    }
+  }
+
   @Override public String getDialogClassName() {
     return MQTTSubscriberDialog.class.getCanonicalName();
   }
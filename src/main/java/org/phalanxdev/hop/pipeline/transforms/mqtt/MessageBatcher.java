@@ -0,0 +1,220 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.phalanxdev.hop.pipeline.transforms.mqtt;
+
+import org.phalanxdev.mqtt.BatchFraming;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accumulates message payloads per topic and hands them on as a single framed payload once a batch holds enough rows
+ * or has been open for long enough.
+ * <p>
+ * Batches are flushed both from the step thread and from a timer, so the open batches are guarded by this object's
+ * monitor. A completed batch is taken out under the monitor, and handed to the publisher after releasing it, so that
+ * a publisher that blocks doesn't hold up adding messages. Publishing is serialized on a separate lock, which keeps
+ * the batches for a topic in order. Only open batches are kept, so topics that stop receiving messages don't use
+ * any memory once their last batch has been flushed.
+ */
+public class MessageBatcher {
+
+  /**
+   * Receives completed batches
+   */
+  public interface BatchPublisher {
+
+    /**
+     * @param topic the topic the batch is for
+     * @param payload the framed batch payload
+     * @param rows the input rows that make up the batch
+     */
+    void publishBatch( String topic, byte[] payload, List<Object[]> rows );
+  }
+
+  protected static class Batch {
+    protected final ByteArrayOutputStream m_buffer = new ByteArrayOutputStream();
+    protected final List<Object[]> m_rows = new ArrayList<>();
+    protected long m_openedAt;
+  }
+
+  /**
+   * A batch taken out of the map, waiting to be published
+   */
+  protected static class Completed {
+    protected final String m_topic;
+    protected final byte[] m_payload;
+    protected final List<Object[]> m_rows;
+
+    protected Completed( String topic, byte[] payload, List<Object[]> rows ) {
+      m_topic = topic;
+      m_payload = payload;
+      m_rows = rows;
+    }
+  }
+
+  protected final BatchFraming m_framing;
+  protected int m_maxRows;
+  protected long m_maxAge;
+
+  /** Open batches only; a batch is removed when it is flushed */
+  protected final Map<String, Batch> m_batches = new HashMap<>();
+
+  /** Held while handing batches to the publisher, and taken before the monitor when flushing */
+  protected final Object m_publishLock = new Object();
+
+  /**
+   * @param framing how to frame the records in a batch
+   * @param maxRows the maximum number of rows in a batch
+   * @param maxAge the maximum time (in milliseconds) a batch can stay open. 0 means no limit
+   */
+  public MessageBatcher( BatchFraming framing, int maxRows, long maxAge ) {
+    m_framing = framing;
+    m_maxRows = Math.max( 1, maxRows );
+    m_maxAge = maxAge;
+  }
+
+  /**
+   * Add a payload to the batch for its topic, flushing the batch if it is now full
+   *
+   * @param topic the topic
+   * @param payload the array holding the encoded message. It is copied into the batch, so may be reused afterwards
+   * @param offset the start of the message in the array
+   * @param length the length of the message
+   * @param row the input row the message came from
+   * @param now the current time in milliseconds
+   * @param publisher receives the batch if it is flushed
+   */
+  public void add( String topic, byte[] payload, int offset, int length, Object[] row, long now,
+      BatchPublisher publisher ) {
+    Completed full;
+    synchronized ( this ) {
+      Batch batch = m_batches.get( topic );
+      if ( batch == null ) {
+        batch = new Batch();
+        batch.m_openedAt = now;
+        m_batches.put( topic, batch );
+      }
+      m_framing.append( batch.m_buffer, payload, offset, length, batch.m_rows.size() );
+      batch.m_rows.add( row );
+
+      if ( batch.m_rows.size() < m_maxRows ) {
+        return;
+      }
+      m_batches.remove( topic );
+      full = complete( topic, batch );
+    }
+
+    // a flush may still be publishing the topic's previous batch
+    synchronized ( m_publishLock ) {
+      publisher.publishBatch( full.m_topic, full.m_payload, full.m_rows );
+    }
+  }
+
+  /**
+   * Flush all batches that have been open for at least the maximum batch age
+   *
+   * @param now the current time in milliseconds
+   * @param publisher receives the flushed batches
+   */
+  public void flushExpired( long now, BatchPublisher publisher ) {
+    if ( m_maxAge <= 0 ) {
+      return;
+    }
+    synchronized ( m_publishLock ) {
+      List<Completed> expired = new ArrayList<>();
+      synchronized ( this ) {
+        Iterator<Map.Entry<String, Batch>> batches = m_batches.entrySet().iterator();
+        while ( batches.hasNext() ) {
+          Map.Entry<String, Batch> e = batches.next();
+          if ( now - e.getValue().m_openedAt >= m_maxAge ) {
+            batches.remove();
+            expired.add( complete( e.getKey(), e.getValue() ) );
+          }
+        }
+      }
+      publish( expired, publisher );
+    }
+  }
+
+  /**
+   * Flush all open batches, regardless of size or age
+   *
+   * @param publisher receives the flushed batches
+   */
+  public void flushAll( BatchPublisher publisher ) {
+    synchronized ( m_publishLock ) {
+      List<Completed> open = new ArrayList<>();
+      synchronized ( this ) {
+        for ( Map.Entry<String, Batch> e : m_batches.entrySet() ) {
+          open.add( complete( e.getKey(), e.getValue() ) );
+        }
+        m_batches.clear();
+      }
+      publish( open, publisher );
+    }
+  }
+
+  /**
+   * @return the maximum number of rows in a batch
+   */
+  public synchronized int getMaxRows() {
+    return m_maxRows;
+  }
+
+  /**
+   * @param maxRows the maximum number of rows in a batch
+   */
+  public synchronized void setMaxRows( int maxRows ) {
+    m_maxRows = Math.max( 1, maxRows );
+  }
+
+  /**
+   * @return the maximum time (in milliseconds) a batch can stay open
+   */
+  public long getMaxAge() {
+    return m_maxAge;
+  }
+
+  /**
+   * Finish a batch that has been taken out of the map. Must be called holding the monitor
+   *
+   * @param topic the topic
+   * @param batch the batch
+   * @return the framed payload and rows
+   */
+  protected Completed complete( String topic, Batch batch ) {
+    m_framing.finish( batch.m_buffer, batch.m_rows.size() );
+    return new Completed( topic, batch.m_buffer.toByteArray(), batch.m_rows );
+  }
+
+  protected static void publish( List<Completed> batches, BatchPublisher publisher ) {
+    for ( Completed batch : batches ) {
+      publisher.publishBatch( batch.m_topic, batch.m_payload, batch.m_rows );
+    }
+  }
+}
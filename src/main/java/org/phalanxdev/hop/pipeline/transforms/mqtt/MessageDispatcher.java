@@ -0,0 +1,1653 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.phalanxdev.hop.pipeline.transforms.mqtt;
+
+import org.apache.hop.core.exception.HopException;
+import org.apache.hop.core.logging.ILogChannel;
+import org.apache.hop.i18n.BaseMessages;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.phalanxdev.mqtt.BatchFraming;
+import org.phalanxdev.mqtt.FlowControlTuner;
+import org.phalanxdev.mqtt.InflightWindow;
+import org.phalanxdev.mqtt.OfflineBuffer;
+import org.phalanxdev.mqtt.PayloadBuffer;
+import org.phalanxdev.mqtt.TokenBucket;
+import org.phalanxdev.mqtt.TopicTrie;
+import org.phalanxdev.mqtt.WriteAheadOutbox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gets the publisher's messages to its brokers. Owns the connections to every broker and everything between a
+ * message being built from a row and the broker acknowledging it: rate limits, conflation, batching, the durable
+ * outbox, the in-flight windows and their tuning, the offline buffers and reconnecting. Acknowledged and failed
+ * deliveries are queued for the step to pass on as receipt rows and error rows.
+ */
+public class MessageDispatcher {
+
+  /**
+   * What the dispatcher needs from the step that owns it
+   */
+  public interface Owner {
+
+    /**
+     * @return true once the step has been stopped, so that waits give up
+     */
+    boolean isStopped();
+
+    /**
+     * Called once the rows of a delivery have been acknowledged by the brokers. May be called from a client thread.
+     *
+     * @param rows the number of rows
+     */
+    void rowsDelivered( int rows );
+  }
+
+  protected final String m_name;
+  protected final ILogChannel m_log;
+  protected final Owner m_owner;
+
+  /** Every message is published to each of these; null until connected */
+  protected volatile BrokerTarget[] m_brokers;
+
+  /** Only used when reconnecting automatically */
+  protected ScheduledExecutorService m_reconnector;
+  protected long m_reconnectMinDelay;
+  protected long m_reconnectMaxDelay;
+  protected int m_offlineBufferSize;
+  protected OfflineBuffer.OverflowPolicy m_overflowPolicy;
+
+  /** When the first row arrived (System.nanoTime()), and how long after that the first message was published */
+  protected long m_firstRowArrived;
+  protected volatile long m_firstRowLatencyMicros = -1;
+
+  /** Durable log of QoS 1/2 messages not yet acknowledged; null if not enabled */
+  protected WriteAheadOutbox m_outbox;
+
+  /** Settings used for topics that don't match a topic policy */
+  protected PublishSettings m_defaultSettings;
+  /** Only used when there are topic policies */
+  protected TopicTrie<PublishSettings> m_policies;
+  protected Map<String, PublishSettings> m_settingsCache = new ConcurrentHashMap<>();
+
+  /** Only used when publishing asynchronously. The first broker's window; the tuner sets all the brokers' limits */
+  protected InflightWindow m_window;
+  protected long m_drainTimeout = 30000L;
+  /** The largest the window can get - the configured maximum, or the auto-tuning ceiling */
+  protected int m_maxWindow;
+
+  /** Only used when auto-tuning flow control */
+  protected FlowControlTuner m_tuner;
+
+  /** Only used when batching rows into messages */
+  protected MessageBatcher m_batcher;
+
+  /** Only used when conflating messages */
+  protected Conflator m_conflator;
+
+  /** Step-wide rate limits; null when not limited */
+  protected TokenBucket m_messageBucket;
+  protected TokenBucket m_byteBucket;
+  protected final AtomicLong m_throttledNanos = new AtomicLong();
+
+  /** Flushes expired batches and conflation windows, and syncs the outbox */
+  protected ScheduledExecutorService m_flusher;
+
+  /** Acknowledged deliveries waiting to be passed on as receipt rows; null when receipts are not output */
+  protected Queue<Delivery> m_receipts;
+
+  /** Deliveries that the broker (or client) failed, waiting to be sent to the error stream */
+  protected final Queue<Delivery> m_failedDeliveries = new ConcurrentLinkedQueue<>();
+
+  /** Notified when a delivery is settled while receipts are output, to wake a step that is waiting for input */
+  protected final Object m_settled = new Object();
+
+  /** Publishes completed batches when batching is turned on */
+  protected MessageBatcher.BatchPublisher m_batchPublisher = new MessageBatcher.BatchPublisher() {
+    @Override public void publishBatch( String topic, byte[] payload, List<Object[]> rows ) {
+      try {
+        publish( topic, payload, settingsFor( topic ), new Delivery( rows ) );
+      } catch ( HopException e ) {
+        // batches can be flushed from the timer thread, so failures are always handled via the failed delivery queue
+        Delivery failed = new Delivery( rows );
+        failed.m_error = e;
+        m_failedDeliveries.add( failed );
+      }
+    }
+  };
+
+  protected Conflator.ConflatedPublisher m_conflatedPublisher = new Conflator.ConflatedPublisher() {
+    @Override public void publishConflated( String topic, byte[] payload, Object[] row ) {
+      try {
+        PublishSettings settings = settingsFor( topic );
+        if ( settings.m_batch ) {
+          m_batcher.add( topic, payload, 0, payload.length, row, System.currentTimeMillis(), m_batchPublisher );
+        } else {
+          publish( topic, payload, settings, new Delivery( row ) );
+        }
+      } catch ( HopException e ) {
+        // windows are flushed from the timer thread, so failures are always handled via the failed delivery queue
+        Delivery failed = new Delivery( row );
+        failed.m_error = e;
+        m_failedDeliveries.add( failed );
+      }
+    }
+  };
+
+  /**
+   * @param name the name of the step, used to name the dispatcher's threads
+   * @param log the step's log channel
+   * @param owner the step
+   */
+  public MessageDispatcher( String name, ILogChannel log, Owner owner ) {
+    m_name = name;
+    m_log = log;
+    m_owner = owner;
+  }
+
+  /**
+   * Publish asynchronously, with at most the given number of messages in flight to each broker
+   *
+   * @param limit the starting in-flight limit
+   * @param maxWindow the largest the limit can get
+   */
+  public void setAsyncPublishing( int limit, int maxWindow ) {
+    m_maxWindow = maxWindow;
+    m_window = new InflightWindow( limit );
+  }
+
+  /**
+   * @param drainTimeout how long to wait at the end of the stream for outstanding messages to be delivered, in
+   * milliseconds
+   */
+  public void setDrainTimeout( long drainTimeout ) {
+    m_drainTimeout = drainTimeout;
+  }
+
+  /**
+   * Reconnect lost connections, holding messages in an offline buffer for each broker until then
+   *
+   * @param minDelay the delay before the first attempt, in milliseconds
+   * @param maxDelay the longest delay between attempts, in milliseconds
+   * @param offlineBufferSize the size of each broker's offline buffer, in bytes
+   * @param overflowPolicy what to do when an offline buffer is full
+   */
+  public void setReconnect( long minDelay, long maxDelay, int offlineBufferSize,
+      OfflineBuffer.OverflowPolicy overflowPolicy ) {
+    m_reconnectMinDelay = minDelay;
+    m_reconnectMaxDelay = maxDelay;
+    m_offlineBufferSize = offlineBufferSize;
+    m_overflowPolicy = overflowPolicy;
+
+    final String threadName = m_name + " - reconnect";
+    m_reconnector = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+      @Override public Thread newThread( Runnable runnable ) {
+        Thread t = new Thread( runnable, threadName );
+        t.setDaemon( true );
+        return t;
+      }
+    } );
+  }
+
+  /**
+   * Open the durable outbox. Messages recovered from it are published by {@link #replayOutbox()}.
+   *
+   * @param directory the directory for this copy of the step
+   * @param segmentSize the size of each segment file, in bytes
+   * @param syncInterval how often to sync, in milliseconds
+   * @throws HopException if the outbox can't be opened
+   */
+  public void openOutbox( File directory, int segmentSize, long syncInterval ) throws HopException {
+    long start = System.currentTimeMillis();
+    try {
+      m_outbox = new WriteAheadOutbox( directory, segmentSize, syncInterval );
+    } catch ( IOException e ) {
+      throw new HopException( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.Outbox" ), e );
+    }
+    m_log.logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.OutboxOpened",
+        directory.getPath(), Long.toString( m_outbox.getPending() ),
+        Long.toString( System.currentTimeMillis() - start ) ) );
+
+    // acknowledgements arrive on the clients' threads and only mark the outbox as due for a sync. The checkpoint is
+    // written from the timer, so that it moves on even when nothing more is appended
+    final WriteAheadOutbox outbox = m_outbox;
+    long period = Math.max( 10L, syncInterval );
+    flusher().scheduleWithFixedDelay( new Runnable() {
+      @Override public void run() {
+        try {
+          outbox.syncIfDue();
+        } catch ( Exception e ) {
+          m_log.logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.Outbox" ), e );
+        }
+      }
+    }, period, period, TimeUnit.MILLISECONDS );
+  }
+
+  /**
+   * @param defaultSettings the settings for topics that don't match a policy
+   * @param policies the settings for topics that do, or null if there are no policies
+   */
+  public void setTopicPolicies( PublishSettings defaultSettings, TopicTrie<PublishSettings> policies ) {
+    m_defaultSettings = defaultSettings;
+    m_policies = policies;
+  }
+
+  /**
+   * @param messageBucket the step-wide message rate limit, or null
+   * @param byteBucket the step-wide byte rate limit, or null
+   */
+  public void setRateLimits( TokenBucket messageBucket, TokenBucket byteBucket ) {
+    m_messageBucket = messageBucket;
+    m_byteBucket = byteBucket;
+  }
+
+  /**
+   * Batch rows into messages for topics whose settings ask for it
+   *
+   * @param framing how rows are framed within a message
+   * @param maxRows the most rows in a message
+   * @param maxAge the longest a batch stays open, in milliseconds; 0 for no limit
+   */
+  public void setBatching( BatchFraming framing, int maxRows, long maxAge ) {
+    m_batcher = new MessageBatcher( framing, maxRows, maxAge );
+    if ( maxAge > 0 ) {
+      // input may stall, so batches that have been open too long are flushed from a timer rather than on the next row
+      long period = Math.max( 1L, maxAge / 2 );
+      flusher().scheduleWithFixedDelay( new Runnable() {
+        @Override public void run() {
+          try {
+            m_batcher.flushExpired( System.currentTimeMillis(), m_batchPublisher );
+          } catch ( Exception e ) {
+            m_log.logError( e.getMessage(), e );
+          }
+        }
+      }, period, period, TimeUnit.MILLISECONDS );
+    }
+  }
+
+  /**
+   * Hold back messages for each topic for a time window and publish only the latest
+   *
+   * @param window the window, in milliseconds
+   * @param maxTopics the most topics to hold messages for at once
+   */
+  public void setConflation( long window, int maxTopics ) {
+    m_conflator = new Conflator( window, maxTopics );
+    // windows close whether or not more rows arrive, so they are flushed from a timer
+    long period = Math.max( 1L, window / 4 );
+    flusher().scheduleWithFixedDelay( new Runnable() {
+      @Override public void run() {
+        try {
+          m_conflator.flushExpired( System.currentTimeMillis(), m_conflatedPublisher );
+        } catch ( Exception e ) {
+          m_log.logError( e.getMessage(), e );
+        }
+      }
+    }, period, period, TimeUnit.MILLISECONDS );
+  }
+
+  /**
+   * Adjust the in-flight window (and batch size, if batching) while running. Must be called after asynchronous
+   * publishing and batching have been set up.
+   *
+   * @param targetLatency the acknowledgement latency to aim for, in milliseconds
+   */
+  public void setAutoTuning( long targetLatency ) {
+    int maxBatchSize = m_batcher != null ? m_batcher.getMaxRows() : 0;
+    m_tuner = new FlowControlTuner( m_window.getLimit(), m_maxWindow, maxBatchSize, targetLatency,
+        MQTTPublisherData.TUNING_INTERVAL );
+  }
+
+  /**
+   * Queue acknowledged deliveries for {@link #pollReceipt()}
+   */
+  public void setOutputReceipts() {
+    m_receipts = new ConcurrentLinkedQueue<>();
+  }
+
+  /**
+   * @return true if acknowledged deliveries are queued as receipts
+   */
+  public boolean isOutputtingReceipts() {
+    return m_receipts != null;
+  }
+
+  /**
+   * @return true if asynchronous publishing is set up
+   */
+  public boolean isAsync() {
+    return m_window != null;
+  }
+
+  /**
+   * @return true once connected, until shut down
+   */
+  public boolean isConnected() {
+    return m_brokers != null;
+  }
+
+  /**
+   * @return the number of brokers connected to, or 0 if not connected
+   */
+  public int getBrokerCount() {
+    BrokerTarget[] brokers = m_brokers;
+    return brokers != null ? brokers.length : 0;
+  }
+
+  /**
+   * Connect to every broker at once, rather than one after the other, and wait for all the connections
+   *
+   * @param uris the broker URIs
+   * @param connectOptions the options to connect to each broker with
+   * @param clientId the client id for this copy of the step
+   * @param connections the number of connections to open to each broker
+   * @throws HopException if a broker can't be connected to
+   */
+  public void connect( List<String> uris, List<MqttConnectOptions> connectOptions, String clientId,
+      int connections ) throws HopException {
+    BrokerTarget[] brokers = new BrokerTarget[uris.size()];
+    // visible straight away, so that shutting down closes whatever has been created
+    m_brokers = brokers;
+    IMqttToken[][] connecting = new IMqttToken[uris.size()][];
+    for ( int b = 0; b < uris.size(); b++ ) {
+      BrokerTarget broker = new BrokerTarget( uris.get( b ) );
+      brokers[b] = broker;
+      connecting[b] = connectBroker( broker, connectOptions.get( b ), clientId, connections );
+      if ( m_window != null ) {
+        // the first broker uses the window that the tuner was set up with
+        broker.m_window = b == 0 ? m_window : new InflightWindow( m_window.getLimit() );
+        broker.m_deliveryListener = new DeliveryListener( broker );
+      }
+      if ( m_reconnector != null ) {
+        broker.m_offline = new OfflineBuffer( m_offlineBufferSize );
+      }
+    }
+
+    for ( int b = 0; b < uris.size(); b++ ) {
+      BrokerTarget broker = brokers[b];
+      try {
+        for ( IMqttToken token : connecting[b] ) {
+          token.waitForCompletion();
+        }
+      } catch ( MqttException e ) {
+        throw new HopException( BaseMessages
+            .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorCreateMQTTClient.Message", broker.getUri() ),
+            e );
+      }
+      if ( m_reconnector != null ) {
+        broker.m_connected = new AtomicBoolean[connections];
+        for ( int i = 0; i < connections; i++ ) {
+          broker.m_connected[i] = new AtomicBoolean( true );
+        }
+      }
+    }
+  }
+
+  /**
+   * Create the clients for one broker and start connecting them
+   *
+   * @param broker the broker
+   * @param connectOptions the options to connect with
+   * @param clientId the client id for this copy of the step
+   * @param connections the number of connections to open
+   * @return the tokens to wait on for the connections to complete
+   * @throws HopException if the clients can't be created
+   */
+  protected IMqttToken[] connectBroker( BrokerTarget broker, MqttConnectOptions connectOptions, String clientId,
+      int connections ) throws HopException {
+    String uri = broker.getUri();
+    try {
+      if ( m_window != null ) {
+        // Paho refuses to accept more QoS 1/2 messages than this, so it needs to be at least as big as our window
+        // can ever get
+        connectOptions.setMaxInflight( Math.max( connectOptions.getMaxInflight(), m_maxWindow ) );
+      }
+      broker.m_connectOptions = connectOptions;
+
+      // each connection has its own socket and send thread. A broker only allows one connection per client id, so
+      // ids are numbered when there is more than one
+      broker.m_clients = new MqttAsyncClient[connections];
+      IMqttToken[] connecting = new IMqttToken[connections];
+      for ( int i = 0; i < connections; i++ ) {
+        String id = connections > 1 ? clientId + "-" + ( i + 1 ) : clientId;
+        m_log.logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.CreateMQTTClient.Message", uri,
+            id, Boolean.toString( connectOptions.isCleanSession() ) ) );
+        // the outbox makes messages durable, so Paho's own file per message persistence isn't needed as well
+        broker.m_clients[i] = m_outbox != null ? new MqttAsyncClient( uri, id, new MemoryPersistence() )
+            : new MqttAsyncClient( uri, id );
+        if ( m_reconnector != null ) {
+          broker.m_clients[i].setCallback( new ConnectionWatcher( broker, i ) );
+        }
+        connecting[i] = broker.m_clients[i].connect( connectOptions );
+      }
+      return connecting;
+    } catch ( Exception e ) {
+      throw new HopException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorCreateMQTTClient.Message", uri ), e );
+    }
+  }
+
+  /**
+   * Publish an empty QoS 1 message on every connection and wait for the broker to acknowledge it. This proves that the
+   * whole path works - including the broker allowing this client to publish - before any rows arrive.
+   *
+   * @param topic the topic to publish to, already checked
+   * @throws HopException if a message is not acknowledged
+   */
+  public void warmUp( String topic ) throws HopException {
+    List<IMqttToken> tokens = new ArrayList<>();
+    List<String> uris = new ArrayList<>();
+    for ( BrokerTarget broker : m_brokers ) {
+      for ( MqttAsyncClient client : broker.m_clients ) {
+        try {
+          tokens.add( client.publish( topic, new byte[0], 1, false ) );
+          uris.add( broker.getUri() );
+        } catch ( MqttException e ) {
+          throw new HopException( BaseMessages
+              .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.WarmUp", topic, broker.getUri() ), e );
+        }
+      }
+    }
+    // same limit as connecting; Paho's connection timeout of 0 means wait indefinitely, as does -1 here
+    int connectionTimeout = m_brokers[0].m_connectOptions.getConnectionTimeout();
+    long timeout = connectionTimeout > 0 ? connectionTimeout * 1000L : -1L;
+    for ( int i = 0; i < tokens.size(); i++ ) {
+      try {
+        tokens.get( i ).waitForCompletion( timeout );
+      } catch ( MqttException e ) {
+        throw new HopException( BaseMessages
+            .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.WarmUp", topic, uris.get( i ) ), e );
+      }
+    }
+  }
+
+  /**
+   * @param arrived when the first row arrived (System.nanoTime())
+   */
+  public void setFirstRowArrived( long arrived ) {
+    m_firstRowArrived = arrived;
+  }
+
+  /**
+   * @return how long after the first row arrived the first message was published, in microseconds, or -1 if that
+   * hasn't happened yet
+   */
+  public long getFirstRowLatencyMicros() {
+    return m_firstRowLatencyMicros;
+  }
+
+  /**
+   * Publish the message built from a row - held back for conflation, added to a batch or published straight away,
+   * depending on the settings for its topic
+   *
+   * @param topic the topic, already checked
+   * @param payload the step's payload buffer, holding the message. Copied or finished with by the time this returns,
+   * so the buffer can be refilled for the next row.
+   * @param row the input row
+   * @return true if the message replaced one held back for conflation, whose row will never be published
+   * @throws HopException if the message could not be published
+   */
+  public boolean submit( String topic, PayloadBuffer payload, Object[] row ) throws HopException {
+    if ( m_conflator != null ) {
+      // the conflator copies the payload, so the buffer can be reused straight away
+      return m_conflator.add( topic, payload.array(), 0, payload.length(), row, System.currentTimeMillis(),
+          m_conflatedPublisher );
+    }
+
+    PublishSettings settings = settingsFor( topic );
+    // this runs for every row, so only build the message if it is actually going to be logged
+    if ( m_log.isDetailed() ) {
+      m_log.logDetailed( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.SendingData", topic,
+          Integer.toString( settings.m_qos ), Boolean.toString( settings.m_retained ) ) );
+    }
+    if ( settings.m_batch ) {
+      // the batcher copies the payload, so the buffer can be reused straight away
+      m_batcher.add( topic, payload.array(), 0, payload.length(), row, System.currentTimeMillis(),
+          m_batchPublisher );
+    } else {
+      // a synchronous publish has finished with the payload by the time the next row arrives, so its array can be
+      // reused; asynchronous publishes need a fresh one as Paho holds on to it until the message is acknowledged
+      Delivery delivery = new Delivery( row );
+      boolean reuse = m_window == null;
+      delivery.m_reusedFrom = reuse ? payload : null;
+      publish( topic, payload.toByteArray( reuse ), settings, delivery );
+    }
+    return false;
+  }
+
+  /**
+   * Get the settings to publish to a topic with. The trie is only consulted the first time a topic is seen.
+   * Thread safe, as batches are flushed from the timer thread.
+   *
+   * @param topic the topic
+   * @return the settings for the topic
+   */
+  protected PublishSettings settingsFor( String topic ) {
+    if ( m_policies == null ) {
+      return m_defaultSettings;
+    }
+    PublishSettings settings = m_settingsCache.get( topic );
+    if ( settings == null ) {
+      settings = m_policies.match( topic );
+      if ( settings == null ) {
+        settings = m_defaultSettings;
+      }
+      if ( m_settingsCache.size() >= MQTTPublisherData.MAX_CACHED_TOPICS ) {
+        m_settingsCache.clear();
+      }
+      m_settingsCache.put( topic, settings );
+    }
+    return settings;
+  }
+
+  /**
+   * Take a message from the rate limits that apply to it, waiting until all of them allow it to be sent. Waiting
+   * here holds up processRow(), so rows are left in the input buffer rather than dropped.
+   *
+   * @param bytes the size of the payload
+   * @param settings the settings for the message's topic
+   */
+  protected void throttle( int bytes, PublishSettings settings ) {
+    if ( m_messageBucket == null && m_byteBucket == null && settings.m_bucket == null ) {
+      return;
+    }
+    long now = System.nanoTime();
+    long wait = 0;
+    if ( m_messageBucket != null ) {
+      wait = m_messageBucket.reserve( 1, now );
+    }
+    if ( m_byteBucket != null ) {
+      wait = Math.max( wait, m_byteBucket.reserve( bytes, now ) );
+    }
+    if ( settings.m_bucket != null ) {
+      wait = Math.max( wait, settings.m_bucket.reserve( 1, now ) );
+    }
+    if ( wait <= 0 ) {
+      return;
+    }
+
+    m_throttledNanos.addAndGet( wait );
+    long until = now + wait;
+    try {
+      // wake up regularly so that stopping the pipeline isn't held up by a long wait
+      while ( !m_owner.isStopped() && ( wait = until - System.nanoTime() ) > 0 ) {
+        TimeUnit.NANOSECONDS.sleep( Math.min( wait, TimeUnit.MILLISECONDS.toNanos( 100 ) ) );
+      }
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Get the timer used to flush expired batches and conflation windows and to sync the outbox, creating it if
+   * necessary
+   *
+   * @return the timer
+   */
+  protected ScheduledExecutorService flusher() {
+    if ( m_flusher == null ) {
+      final String threadName = m_name + " - flusher";
+      m_flusher = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+        @Override public Thread newThread( Runnable runnable ) {
+          Thread t = new Thread( runnable, threadName );
+          t.setDaemon( true );
+          return t;
+        }
+      } );
+    }
+    return m_flusher;
+  }
+
+  /**
+   * Stop the timer that flushes expired batches and conflation windows and syncs the outbox
+   */
+  public void stopFlusher() {
+    if ( m_flusher != null ) {
+      m_flusher.shutdown();
+      try {
+        m_flusher.awaitTermination( 5, TimeUnit.SECONDS );
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      }
+      m_flusher = null;
+    }
+  }
+
+  /**
+   * Publish a message, either waiting for it to be acknowledged or handing it to the client asynchronously
+   *
+   * @param topic the topic to publish to
+   * @param payload the message payload
+   * @param settings the settings for the topic
+   * @param delivery the input row(s) that the payload was built from
+   * @throws HopException if the message could not be published
+   */
+  protected void publish( String topic, byte[] payload, PublishSettings settings, Delivery delivery )
+      throws HopException {
+    if ( settings.m_compress ) {
+      payload = gzip( payload );
+    }
+    throttle( payload.length, settings );
+    if ( m_outbox != null && settings.m_qos > 0 ) {
+      try {
+        delivery.m_outboxSequence = m_outbox.append( topic, payload, settings.m_qos, settings.m_retained );
+        m_outbox.syncIfDue();
+      } catch ( IOException e ) {
+        throw new HopException( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.Outbox" ), e );
+      }
+    }
+    send( topic, payload, settings.m_qos, settings.m_retained, delivery );
+
+    if ( m_firstRowLatencyMicros < 0 && m_firstRowArrived != 0 ) {
+      m_firstRowLatencyMicros = TimeUnit.NANOSECONDS.toMicros( System.nanoTime() - m_firstRowArrived );
+    }
+  }
+
+  /**
+   * Publish the messages recovered from the outbox, before any new rows. They are not associated with any rows, so
+   * they don't produce receipts rows or error rows
+   *
+   * @throws HopException if a recovered message can't be published
+   */
+  public void replayOutbox() throws HopException {
+    if ( m_outbox == null ) {
+      return;
+    }
+    List<WriteAheadOutbox.Record> recovered = m_outbox.takeRecovered();
+    for ( WriteAheadOutbox.Record record : recovered ) {
+      if ( m_owner.isStopped() ) {
+        return;
+      }
+      Delivery delivery = new Delivery( Collections.<Object[]>emptyList() );
+      delivery.m_outboxSequence = record.m_sequence;
+      send( record.m_topic, record.m_payload, record.m_qos, record.m_retained, delivery );
+    }
+    if ( !recovered.isEmpty() ) {
+      m_log.logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.OutboxReplayed",
+          Integer.toString( recovered.size() ) ) );
+    }
+  }
+
+  /**
+   * Mark a message's outbox entry as dealt with, once it has been acknowledged or its rows sent to the error stream
+   *
+   * @param delivery the delivery
+   */
+  public void releaseOutbox( Delivery delivery ) {
+    WriteAheadOutbox outbox = m_outbox;
+    if ( outbox != null && delivery.m_outboxSequence >= 0 ) {
+      outbox.acknowledge( delivery.m_outboxSequence );
+    }
+  }
+
+  /**
+   * Sync and close the outbox. Messages that have not been acknowledged stay in it, to be published the next time the
+   * step runs
+   */
+  protected void closeOutbox() {
+    WriteAheadOutbox outbox = m_outbox;
+    if ( outbox == null ) {
+      return;
+    }
+    m_outbox = null;
+    try {
+      long pending = outbox.getPending();
+      outbox.close();
+      if ( pending > 0 ) {
+        m_log.logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.OutboxPending",
+            Long.toString( pending ) ) );
+      }
+    } catch ( IOException e ) {
+      m_log.logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.Outbox" ), e );
+    }
+  }
+
+  /**
+   * Hand a message to every broker, each on the connection for its topic, or put it in that broker's offline buffer
+   * if the connection is down. The same payload bytes are used for every broker. When publishing synchronously this
+   * waits for all the brokers together.
+   *
+   * @param topic the topic to publish to
+   * @param payload the message payload, ready to go
+   * @param qos the QoS
+   * @param retained the retained flag
+   * @param delivery the input row(s) that the payload was built from
+   * @throws HopException if the step was interrupted
+   */
+  protected void send( String topic, byte[] payload, int qos, boolean retained, Delivery delivery )
+      throws HopException {
+    BrokerTarget[] brokers = m_brokers;
+    delivery.m_topic = topic;
+    delivery.m_payloadSize = payload.length;
+    // set before anything is sent, as the first broker may answer before the last has been given the message
+    delivery.m_outstanding.set( brokers.length );
+    delivery.sending();
+
+    IMqttToken[] tokens = m_window == null ? new IMqttToken[brokers.length] : null;
+    for ( int b = 0; b < brokers.length; b++ ) {
+      BrokerTarget broker = brokers[b];
+      broker.m_submitted.incrementAndGet();
+      try {
+        IMqttToken token = sendTo( broker, topic, payload, qos, retained, delivery, false );
+        if ( tokens != null ) {
+          tokens[b] = token;
+        }
+      } catch ( HopException e ) {
+        brokerFinished( broker, delivery, 0, e );
+      }
+    }
+    if ( tokens != null ) {
+      for ( int b = 0; b < brokers.length; b++ ) {
+        if ( tokens[b] != null ) {
+          awaitDelivery( brokers[b], tokens[b], topic, payload, qos, retained, delivery, false );
+        }
+      }
+    }
+  }
+
+  /**
+   * Hand a message to one broker
+   *
+   * @param broker the broker
+   * @param topic the topic to publish to
+   * @param payload the message payload, ready to go
+   * @param qos the QoS
+   * @param retained the retained flag
+   * @param delivery the input row(s) that the payload was built from
+   * @param draining true when draining the offline buffer, in which case the message is never buffered again
+   * @return the token to wait on when publishing synchronously, otherwise null
+   * @throws HopException if the message could not be handed to the client
+   */
+  protected IMqttToken sendTo( BrokerTarget broker, String topic, byte[] payload, int qos, boolean retained,
+      Delivery delivery, boolean draining ) throws HopException {
+    int connection = broker.connectionFor( topic );
+    // once anything is buffered, later messages queue up behind it so that they are still published in order
+    if ( broker.m_offline != null && !draining
+        && ( !broker.isConnected( connection ) || broker.m_offline.size() > 0 ) ) {
+      bufferOffline( broker, topic, payload, qos, retained, delivery );
+      return null;
+    }
+
+    // Paho keeps state in the message object, so each broker gets its own around the shared payload
+    MqttMessage mqttMessage = new MqttMessage( payload );
+    mqttMessage.setQos( qos );
+    mqttMessage.setRetained( retained ); //Adding retain option
+
+    if ( m_window != null ) {
+      if ( !publishAsync( broker, connection, topic, mqttMessage, delivery ) ) {
+        broker.m_connected[connection].set( false );
+        if ( draining ) {
+          throw new HopException(
+              BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorPublishing.Message" ) );
+        }
+        bufferOffline( broker, topic, payload, qos, retained, delivery );
+      }
+      return null;
+    }
+    try {
+      return broker.m_clients[connection].publish( topic, mqttMessage );
+    } catch ( MqttException e ) {
+      // the client may still hold a reference to the payload, so it mustn't be handed out again
+      discardReusablePayload( delivery, draining );
+      if ( broker.m_offline != null && !draining && isConnectionError( e ) ) {
+        broker.m_connected[connection].set( false );
+        bufferOffline( broker, topic, payload, qos, retained, delivery );
+        return null;
+      }
+      throw new HopException(
+          BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorPublishing.Message" ), e );
+    }
+  }
+
+  /**
+   * Wait for a broker to acknowledge a synchronously published message
+   *
+   * @param broker the broker
+   * @param token the token returned when publishing
+   * @param topic the topic, in case the message has to be buffered
+   * @param payload the payload, in case the message has to be buffered
+   * @param qos the QoS
+   * @param retained the retained flag
+   * @param delivery the input row(s) that the payload was built from
+   * @param draining true when draining the offline buffer, in which case the message is never buffered again
+   * @throws HopException if the step was interrupted while buffering the message
+   */
+  protected void awaitDelivery( BrokerTarget broker, IMqttToken token, String topic, byte[] payload, int qos,
+      boolean retained, Delivery delivery, boolean draining ) throws HopException {
+    try {
+      token.waitForCompletion();
+    } catch ( MqttException e ) {
+      discardReusablePayload( delivery, draining );
+      if ( broker.m_offline != null && !draining && isConnectionError( e ) ) {
+        broker.m_connected[broker.connectionFor( topic )].set( false );
+        bufferOffline( broker, topic, payload, qos, retained, delivery );
+        return;
+      }
+      brokerFinished( broker, delivery, 0,
+          new HopException( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorPublishing.Message" ),
+              e ) );
+      return;
+    }
+    brokerFinished( broker, delivery, token.getMessageId(), null );
+  }
+
+  /**
+   * Stop reusing the step's payload array after a failed publish, if the message was sent in it. Only the step thread
+   * sends messages in that array; batches and conflated messages published from the timer, and messages drained from
+   * the offline buffer (which copies them), leave it alone.
+   *
+   * @param delivery the delivery that failed
+   * @param draining true when draining the offline buffer
+   */
+  protected static void discardReusablePayload( Delivery delivery, boolean draining ) {
+    if ( delivery.m_reusedFrom != null && !draining ) {
+      delivery.m_reusedFrom.discardReusable();
+    }
+  }
+
+  /**
+   * Record one broker's outcome for a message. Once every broker has acknowledged or failed it, the delivery is
+   * settled: its rows are counted as output (and passed on as receipts), or sent to the error stream if any broker
+   * failed it.
+   *
+   * @param broker the broker
+   * @param delivery the delivery
+   * @param messageId the message id the broker acknowledged
+   * @param error the reason the broker failed the message, or null if it acknowledged it
+   */
+  protected void brokerFinished( BrokerTarget broker, Delivery delivery, int messageId, Throwable error ) {
+    if ( error == null ) {
+      broker.m_acknowledged.incrementAndGet();
+      long latency = System.nanoTime() - delivery.m_sentAt;
+      broker.m_lastAckLatencyMicros = TimeUnit.NANOSECONDS.toMicros( latency );
+      if ( m_tuner != null ) {
+        m_tuner.recordAck( latency );
+      }
+      delivery.m_delivered = true;
+    } else {
+      broker.m_failed.incrementAndGet();
+      delivery.m_error = error;
+    }
+    if ( delivery.m_outstanding.decrementAndGet() == 0 ) {
+      settle( delivery, messageId );
+    }
+  }
+
+  /**
+   * Settle a delivery once no broker has it outstanding any more
+   *
+   * @param delivery the delivery
+   * @param messageId the message id of the last acknowledgement
+   */
+  protected void settle( Delivery delivery, int messageId ) {
+    if ( delivery.m_error != null ) {
+      m_failedDeliveries.add( delivery );
+      signalSettled();
+      return;
+    }
+    releaseOutbox( delivery );
+    if ( !delivery.m_delivered ) {
+      // dropped from the offline buffer everywhere
+      return;
+    }
+    delivery.acknowledged( messageId );
+    if ( m_receipts != null ) {
+      m_receipts.add( delivery );
+      signalSettled();
+    }
+    m_owner.rowsDelivered( delivery.getRowCount() );
+  }
+
+  /**
+   * Wake the step if it is waiting for input, so that it passes on a receipt or error row straight away
+   */
+  protected void signalSettled() {
+    if ( m_receipts == null ) {
+      // nothing waits unless receipts are output
+      return;
+    }
+    synchronized ( m_settled ) {
+      m_settled.notifyAll();
+    }
+  }
+
+  /**
+   * Wait for a delivery to be settled, unless a receipt or failed delivery is already waiting to be passed on
+   *
+   * @param timeout the longest to wait, in milliseconds
+   * @return false if interrupted
+   */
+  public boolean awaitSettled( long timeout ) {
+    synchronized ( m_settled ) {
+      // checked while holding the signal's monitor, so that a settlement can't slip in before waiting
+      if ( m_receipts.isEmpty() && m_failedDeliveries.isEmpty() ) {
+        try {
+          m_settled.wait( timeout );
+        } catch ( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the next acknowledged delivery to pass on as receipt rows, or null if there is none
+   */
+  public Delivery pollReceipt() {
+    return m_receipts != null ? m_receipts.poll() : null;
+  }
+
+  /**
+   * @return the next failed delivery to send to the error stream, or null if there is none
+   */
+  public Delivery pollFailed() {
+    return m_failedDeliveries.poll();
+  }
+
+  /**
+   * @return true if any message is still waiting to be acknowledged, in flight or in an offline buffer
+   */
+  public boolean hasOutstandingDeliveries() {
+    BrokerTarget[] brokers = m_brokers;
+    if ( brokers == null ) {
+      return false;
+    }
+    for ( BrokerTarget broker : brokers ) {
+      if ( broker.m_window != null && broker.m_window.getInflight() > 0 ) {
+        return true;
+      }
+    }
+    return offlineSize() > 0;
+  }
+
+  /**
+   * @param e an exception from the client
+   * @return true if the exception means the connection is down, rather than that the message is at fault
+   */
+  protected static boolean isConnectionError( MqttException e ) {
+    int reason = e.getReasonCode();
+    return reason == MqttException.REASON_CODE_CLIENT_NOT_CONNECTED
+        || reason == MqttException.REASON_CODE_CONNECTION_LOST
+        || reason == MqttException.REASON_CODE_CLIENT_DISCONNECTING
+        || reason == MqttException.REASON_CODE_CONNECT_IN_PROGRESS;
+  }
+
+  /**
+   * Put a message in a broker's offline buffer, applying the overflow policy if it is full
+   *
+   * @param broker the broker
+   * @param topic the topic
+   * @param payload the payload
+   * @param qos the QoS
+   * @param retained the retained flag
+   * @param delivery the input row(s) that the payload was built from
+   * @throws HopException if the step was interrupted while waiting for room
+   */
+  protected void bufferOffline( BrokerTarget broker, String topic, byte[] payload, int qos, boolean retained,
+      Delivery delivery ) throws HopException {
+    OfflineBuffer offline = broker.m_offline;
+    if ( !offline.fits( topic, payload.length ) ) {
+      brokerFinished( broker, delivery, 0, new HopException( BaseMessages
+          .getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.TooBigToBuffer",
+              Integer.toString( payload.length ) ) ) );
+      return;
+    }
+    while ( !offline.offer( topic, payload, qos, retained, delivery ) ) {
+      switch ( m_overflowPolicy ) {
+        case DROP_NEWEST:
+          offline.droppedNewest();
+          brokerDropped( broker, delivery );
+          return;
+        case DROP_OLDEST:
+          Delivery dropped = (Delivery) offline.dropOldest();
+          if ( dropped != null ) {
+            brokerDropped( broker, dropped );
+          }
+          break;
+        default:
+          if ( m_owner.isStopped() ) {
+            // never buffered, so the broker fails the message rather than leaving it outstanding
+            brokerFinished( broker, delivery, 0,
+                new HopException( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.Stopped" ) ) );
+            return;
+          }
+          // wait for the reconnect thread to make room. Each message it takes out wakes us straight away; the timeout
+          // is only so that stopping the step is noticed
+          try {
+            if ( offline.offer( topic, payload, qos, retained, delivery, 500 ) ) {
+              return;
+            }
+          } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new HopException( e );
+          }
+      }
+    }
+  }
+
+  /**
+   * A message dropped from a full offline buffer is given up on for that broker, without failing its rows - the
+   * overflow policy says that is acceptable
+   *
+   * @param broker the broker
+   * @param delivery the dropped delivery
+   */
+  protected void brokerDropped( BrokerTarget broker, Delivery delivery ) {
+    broker.m_submitted.decrementAndGet();
+    if ( delivery.m_outstanding.decrementAndGet() == 0 ) {
+      settle( delivery, delivery.m_messageId );
+    }
+  }
+
+  /**
+   * Publish buffered messages, oldest first, for as long as their connections are up
+   */
+  public void drainOfflineBuffer() {
+    BrokerTarget[] brokers = m_brokers;
+    if ( brokers == null ) {
+      return;
+    }
+    for ( BrokerTarget broker : brokers ) {
+      drainOfflineBuffer( broker );
+    }
+  }
+
+  /**
+   * Publish a broker's buffered messages, oldest first, for as long as their connections are up
+   *
+   * @param broker the broker
+   */
+  protected void drainOfflineBuffer( BrokerTarget broker ) {
+    OfflineBuffer offline = broker.m_offline;
+    if ( offline == null || offline.size() == 0 ) {
+      return;
+    }
+    synchronized ( broker.m_drainLock ) {
+      while ( !m_owner.isStopped() ) {
+        OfflineBuffer.Message message;
+        synchronized ( offline ) {
+          String topic = offline.peekTopic();
+          if ( topic == null || !broker.isConnected( broker.connectionFor( topic ) ) ) {
+            return;
+          }
+          message = offline.poll();
+        }
+        Delivery delivery = (Delivery) message.m_context;
+        try {
+          IMqttToken token =
+              sendTo( broker, message.m_topic, message.m_payload, message.m_qos, message.m_retained, delivery, true );
+          if ( token != null ) {
+            awaitDelivery( broker, token, message.m_topic, message.m_payload, message.m_qos, message.m_retained,
+                delivery, true );
+          }
+        } catch ( HopException e ) {
+          brokerFinished( broker, delivery, 0, e );
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of messages waiting in all the offline buffers
+   */
+  public int offlineSize() {
+    int size = 0;
+    BrokerTarget[] brokers = m_brokers;
+    if ( brokers != null ) {
+      for ( BrokerTarget broker : brokers ) {
+        size += broker.m_offline != null ? broker.m_offline.size() : 0;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * @return the number of messages dropped from all the offline buffers
+   */
+  public long offlineDropped() {
+    long dropped = 0;
+    BrokerTarget[] brokers = m_brokers;
+    if ( brokers != null ) {
+      for ( BrokerTarget broker : brokers ) {
+        dropped += broker.m_offline != null ? broker.m_offline.getDropped() : 0;
+      }
+    }
+    return dropped;
+  }
+
+  /**
+   * At the end of the stream, wait (up to the drain timeout) for connections to come back so that buffered messages
+   * can be published
+   *
+   * @return false if buffered messages were lost
+   */
+  protected boolean finishOfflineBuffer() {
+    if ( m_reconnector == null ) {
+      return true;
+    }
+    boolean ok = true;
+    long deadline = System.currentTimeMillis() + m_drainTimeout;
+    drainOfflineBuffer();
+    while ( offlineSize() > 0 && !m_owner.isStopped() && System.currentTimeMillis() < deadline ) {
+      try {
+        Thread.sleep( 100 );
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      drainOfflineBuffer();
+    }
+    if ( offlineSize() > 0 ) {
+      m_log.logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.OfflineMessagesLost",
+          Integer.toString( offlineSize() ) ) );
+      ok = false;
+    }
+    if ( offlineDropped() > 0 ) {
+      m_log.logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.OfflineDropped",
+          Long.toString( offlineDropped() ), m_overflowPolicy.name() ) );
+    }
+    return ok;
+  }
+
+  /**
+   * Try to reconnect a lost connection after a delay that grows exponentially with each failed attempt. The delay is
+   * randomised between half and all of its nominal value, so that many clients dropped by the same broker restart
+   * don't all come back at once.
+   *
+   * @param broker the broker the connection is to
+   * @param connection the index of the lost connection
+   * @param attempt the number of attempts made so far
+   */
+  protected void scheduleReconnect( final BrokerTarget broker, final int connection, final int attempt ) {
+    ScheduledExecutorService reconnector = m_reconnector;
+    if ( reconnector == null || reconnector.isShutdown() || m_owner.isStopped() ) {
+      return;
+    }
+    long delay = m_reconnectMinDelay << Math.min( attempt, 30 );
+    if ( delay <= 0 || delay > m_reconnectMaxDelay ) {
+      delay = m_reconnectMaxDelay;
+    }
+    delay = delay / 2 + ThreadLocalRandom.current().nextLong( delay / 2 + 1 );
+
+    reconnector.schedule( new Runnable() {
+      @Override public void run() {
+        if ( m_brokers == null || m_owner.isStopped() ) {
+          return;
+        }
+        MqttAsyncClient client = broker.m_clients[connection];
+        try {
+          if ( !client.isConnected() ) {
+            client.connect( broker.m_connectOptions ).waitForCompletion();
+          }
+        } catch ( MqttException e ) {
+          if ( m_log.isDetailed() ) {
+            m_log.logDetailed( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.ReconnectFailed",
+                client.getClientId(), Integer.toString( attempt + 1 ), e.getMessage() ) );
+          }
+          scheduleReconnect( broker, connection, attempt + 1 );
+          return;
+        }
+        broker.m_connected[connection].set( true );
+        m_log.logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.Reconnected",
+            client.getClientId(), Integer.toString( attempt + 1 ), Integer.toString( broker.m_offline.size() ) ) );
+        drainOfflineBuffer( broker );
+      }
+    }, delay, TimeUnit.MILLISECONDS );
+  }
+
+  protected static byte[] gzip( byte[] payload ) throws HopException {
+    try {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream( payload.length / 2 + 32 );
+      GZIPOutputStream gzip = new GZIPOutputStream( bos );
+      gzip.write( payload );
+      gzip.close();
+      return bos.toByteArray();
+    } catch ( IOException e ) {
+      throw new HopException( e );
+    }
+  }
+
+  /**
+   * Hand a message to the client without waiting for it to be acknowledged. Blocks only while the broker's in-flight
+   * window is full.
+   *
+   * @param broker the broker
+   * @param connection the index of the connection to publish on
+   * @param topic the topic to publish to
+   * @param mqttMessage the message to publish
+   * @param delivery the row(s) the message came from
+   * @return false if the message wasn't sent because the connection is down and it should be buffered
+   * @throws HopException if the message could not be handed to the client, or the step was stopped while waiting for
+   * room in the window
+   */
+  protected boolean publishAsync( BrokerTarget broker, int connection, String topic, MqttMessage mqttMessage,
+      Delivery delivery ) throws HopException {
+    FlowControlTuner tuner = m_tuner;
+    InflightWindow window = broker.m_window;
+    while ( true ) {
+      try {
+        if ( tuner != null ) {
+          applyTuning();
+          if ( window.isFull() ) {
+            tuner.recordSaturated();
+          }
+        }
+        while ( !window.acquire( 500 ) ) {
+          if ( m_owner.isStopped() ) {
+            // nothing was handed to the client, so the broker fails the message rather than leaving it outstanding
+            throw new HopException( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.Stopped" ) );
+          }
+          if ( tuner != null ) {
+            applyTuning();
+          }
+        }
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        throw new HopException( e );
+      }
+
+      try {
+        broker.m_clients[connection].publish( topic, mqttMessage, delivery, broker.m_deliveryListener );
+        return true;
+      } catch ( MqttException e ) {
+        window.release();
+        if ( broker.m_offline != null && isConnectionError( e ) ) {
+          return false;
+        }
+        if ( tuner == null || e.getReasonCode() != MqttException.REASON_CODE_MAX_INFLIGHT ) {
+          throw new HopException(
+              BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorPublishing.Message" ), e );
+        }
+        // the client is full - count it as back-off so that the window shrinks, and try again shortly
+        tuner.recordBackoff();
+        try {
+          Thread.sleep( 10 );
+        } catch ( InterruptedException ie ) {
+          Thread.currentThread().interrupt();
+          throw new HopException( ie );
+        }
+      }
+    }
+  }
+
+  /**
+   * Let the tuner make its next decision (if one is due) and apply it
+   */
+  protected void applyTuning() {
+    FlowControlTuner tuner = m_tuner;
+    if ( !tuner.adjust( System.currentTimeMillis() ) ) {
+      return;
+    }
+    for ( BrokerTarget broker : m_brokers ) {
+      broker.m_window.setLimit( tuner.getWindow() );
+    }
+    if ( m_batcher != null ) {
+      m_batcher.setMaxRows( tuner.getBatchSize() );
+    }
+    if ( m_log.isDetailed() ) {
+      m_log.logDetailed( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.FlowControl",
+          Integer.toString( tuner.getWindow() ), Integer.toString( tuner.getBatchSize() ),
+          Long.toString( tuner.getAverageLatencyMicros() / 1000L ) ) );
+    }
+  }
+
+  /**
+   * Wait (up to the drain timeout) for the broker to acknowledge all messages that are still in flight
+   *
+   * @return false if messages were still in flight when the timeout ran out
+   */
+  public boolean waitForOutstandingDeliveries() {
+    BrokerTarget[] brokers = m_brokers;
+    if ( m_window == null || brokers == null ) {
+      return true;
+    }
+    boolean ok = true;
+    // all the brokers share the one timeout
+    long deadline = System.currentTimeMillis() + m_drainTimeout;
+    for ( BrokerTarget broker : brokers ) {
+      InflightWindow window = broker.m_window;
+      if ( window.getInflight() == 0 ) {
+        continue;
+      }
+      m_log.logDetailed( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.WaitingForDeliveries",
+          Integer.toString( window.getInflight() ) ) );
+      try {
+        if ( !window.awaitEmpty( Math.max( 0L, deadline - System.currentTimeMillis() ) ) ) {
+          m_log.logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Error.DrainTimeout",
+              Integer.toString( window.getInflight() ) ) );
+          ok = false;
+        }
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        return ok;
+      }
+    }
+    return ok;
+  }
+
+  /**
+   * At the end of the stream, publish everything still held back, wait (up to the drain timeout) for it all to be
+   * delivered, close the outbox and log a summary
+   *
+   * @return false if messages were lost or still in flight when the drain timeout ran out
+   */
+  public boolean finish() {
+    stopFlusher();
+    // conflated messages may end up in batches, so they go first
+    if ( m_conflator != null ) {
+      m_conflator.flushAll( m_conflatedPublisher );
+    }
+    if ( m_batcher != null ) {
+      m_batcher.flushAll( m_batchPublisher );
+    }
+    boolean ok = finishOfflineBuffer();
+    ok &= waitForOutstandingDeliveries();
+    closeOutbox();
+
+    if ( m_conflator != null ) {
+      m_log.logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.ConflationSummary",
+          Long.toString( m_conflator.getConflated() ) ) );
+    }
+    if ( m_throttledNanos.get() > 0 ) {
+      m_log.logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.RateLimitSummary",
+          Long.toString( TimeUnit.NANOSECONDS.toMillis( m_throttledNanos.get() ) ) ) );
+    }
+    if ( m_tuner != null ) {
+      m_log.logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.FlowControlSummary",
+          Integer.toString( m_tuner.getWindow() ), Integer.toString( m_tuner.getBatchSize() ),
+          Integer.toString( m_tuner.getIncreases() ), Integer.toString( m_tuner.getDecreases() ) ) );
+    }
+    BrokerTarget[] brokers = m_brokers;
+    if ( brokers != null && brokers.length > 1 ) {
+      for ( BrokerTarget broker : brokers ) {
+        m_log.logBasic( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.BrokerSummary",
+            broker.getUri(), Long.toString( broker.getAcknowledged() ), Long.toString( broker.getFailed() ),
+            Long.toString( broker.getLag() ) ) );
+      }
+    }
+    return ok;
+  }
+
+  /**
+   * Add the dispatcher's state - flow control, rate limiting, conflation, offline buffers and brokers - to the
+   * step's status
+   *
+   * @param status the status so far
+   * @return the status with the dispatcher's state added
+   */
+  public String getStatusDescription( String status ) {
+    FlowControlTuner tuner = m_tuner;
+    if ( tuner != null ) {
+      status = BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Status.FlowControl", status,
+          Integer.toString( tuner.getWindow() ), Integer.toString( tuner.getBatchSize() ),
+          Long.toString( tuner.getAverageLatencyMicros() / 1000L ) );
+    }
+    long throttled = m_throttledNanos.get();
+    if ( throttled > 0 ) {
+      status = BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Status.Throttled", status,
+          Long.toString( TimeUnit.NANOSECONDS.toMillis( throttled ) ) );
+    }
+    Conflator conflator = m_conflator;
+    if ( conflator != null ) {
+      status = BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Status.Conflated", status,
+          Long.toString( conflator.getConflated() ) );
+    }
+    int offline = offlineSize();
+    long dropped = offlineDropped();
+    if ( offline > 0 || dropped > 0 ) {
+      status = BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Status.Offline", status,
+          Integer.toString( offline ), Long.toString( dropped ) );
+    }
+    BrokerTarget[] brokers = m_brokers;
+    if ( brokers != null && brokers.length > 1 ) {
+      for ( BrokerTarget broker : brokers ) {
+        status = BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Status.Broker", status,
+            broker.getUri(), Long.toString( broker.getLag() ), Long.toString( broker.getFailed() ) );
+      }
+    }
+    return status;
+  }
+
+  /**
+   * Stop the timers, close the outbox and disconnect from every broker. Messages that have not been delivered are
+   * left in the outbox, if there is one.
+   */
+  public void shutdown() {
+    stopFlusher();
+    if ( m_reconnector != null ) {
+      m_reconnector.shutdownNow();
+    }
+    closeOutbox();
+    BrokerTarget[] brokers = m_brokers;
+    if ( brokers == null ) {
+      return;
+    }
+    for ( BrokerTarget broker : brokers ) {
+      if ( broker == null || broker.m_clients == null ) {
+        continue;
+      }
+      for ( MqttAsyncClient client : broker.m_clients ) {
+        if ( client == null ) {
+          continue;
+        }
+        try {
+          if ( client.isConnected() ) {
+            client.disconnect().waitForCompletion();
+          }
+          client.close();
+        } catch ( MqttException e ) {
+          m_log.logError(
+              BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.ErrorClosingMQTTClient.Message" ), e );
+        }
+      }
+    }
+    m_brokers = null;
+  }
+
+  /**
+   * The settings a message is published with - either the step-level ones or those of a topic policy
+   */
+  protected static class PublishSettings {
+    protected final int m_qos;
+    protected final boolean m_retained;
+    protected final boolean m_batch;
+    protected final boolean m_compress;
+
+    /** Rate limit shared by all topics matching the policy; null when not limited */
+    protected final TokenBucket m_bucket;
+
+    protected PublishSettings( int qos, boolean retained, boolean batch, boolean compress, TokenBucket bucket ) {
+      m_qos = qos;
+      m_retained = retained;
+      m_batch = batch;
+      m_compress = compress;
+      m_bucket = bucket;
+    }
+  }
+
+  /**
+   * User context attached to each asynchronous publish, so that the delivery callback knows which row(s) a token
+   * belongs to
+   */
+  protected static class Delivery {
+    protected final Object[] m_row;
+    protected final List<Object[]> m_rows;
+    protected Throwable m_error;
+
+    protected String m_topic;
+    protected int m_payloadSize;
+    protected int m_messageId;
+
+    /** System.nanoTime() when the message was handed to the client, and when it was acknowledged */
+    protected long m_sentAt;
+    protected long m_ackedAt;
+
+    /** Wall clock time when the message was handed to the client */
+    protected long m_sentAtMillis;
+
+    /** Sequence number in the outbox, or -1 if the message isn't in it */
+    protected long m_outboxSequence = -1;
+
+    /** The step's buffer, if the payload is its reusable array, which only the step thread may manage; else null */
+    protected PayloadBuffer m_reusedFrom;
+
+    /** Brokers that have yet to acknowledge or fail the message */
+    protected final AtomicInteger m_outstanding = new AtomicInteger();
+    /** Set once any broker has acknowledged the message */
+    protected volatile boolean m_delivered;
+
+    protected Delivery( Object[] row ) {
+      m_row = row;
+      m_rows = null;
+    }
+
+    protected Delivery( List<Object[]> rows ) {
+      m_row = null;
+      m_rows = rows;
+    }
+
+    protected int getRowCount() {
+      return m_rows != null ? m_rows.size() : 1;
+    }
+
+    protected List<Object[]> getRows() {
+      return m_rows != null ? m_rows : Collections.singletonList( m_row );
+    }
+
+    protected void sending() {
+      m_sentAt = System.nanoTime();
+      m_sentAtMillis = System.currentTimeMillis();
+    }
+
+    protected void acknowledged( int messageId ) {
+      m_ackedAt = System.nanoTime();
+      m_messageId = messageId;
+    }
+
+    /**
+     * @return the time the message was acknowledged. Derived from the send time and the (monotonic) latency, so
+     * that the two timestamps are always consistent with the latency
+     */
+    protected Timestamp getAckedAtTimestamp() {
+      return toTimestamp( m_sentAtMillis, m_ackedAt - m_sentAt );
+    }
+
+    protected Timestamp getSentAtTimestamp() {
+      return toTimestamp( m_sentAtMillis, 0 );
+    }
+
+    protected static Timestamp toTimestamp( long millis, long plusNanos ) {
+      long nanos = ( millis % 1000L ) * 1000000L + plusNanos;
+      Timestamp timestamp = new Timestamp( ( millis / 1000L + nanos / 1000000000L ) * 1000L );
+      timestamp.setNanos( (int) ( nanos % 1000000000L ) );
+      return timestamp;
+    }
+  }
+
+  /**
+   * Notices when a connection is lost, and starts trying to get it back. Runs on the Paho callback thread.
+   */
+  protected class ConnectionWatcher implements MqttCallback {
+
+    protected final BrokerTarget m_broker;
+    protected final int m_connection;
+
+    public ConnectionWatcher( BrokerTarget broker, int connection ) {
+      m_broker = broker;
+      m_connection = connection;
+    }
+
+    @Override public void connectionLost( Throwable cause ) {
+      if ( m_broker.m_connected != null ) {
+        m_broker.m_connected[m_connection].set( false );
+      }
+      m_log.logError( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientStep.Log.ConnectionLost",
+          m_broker.m_clients[m_connection].getClientId() + "@" + m_broker.getUri(),
+          cause != null ? cause.getMessage() : "" ) );
+      scheduleReconnect( m_broker, m_connection, 0 );
+    }
+
+    @Override public void messageArrived( String topic, MqttMessage message ) {
+      // publish only
+    }
+
+    @Override public void deliveryComplete( IMqttDeliveryToken token ) {
+      // acks are handled by the DeliveryListener
+    }
+  }
+
+  /**
+   * Receives completion notifications for asynchronous publishes to one broker. Runs on the Paho callback thread.
+   */
+  protected class DeliveryListener implements IMqttActionListener {
+
+    protected final BrokerTarget m_broker;
+
+    public DeliveryListener( BrokerTarget broker ) {
+      m_broker = broker;
+    }
+
+    @Override public void onSuccess( IMqttToken token ) {
+      m_broker.m_window.release();
+      brokerFinished( m_broker, (Delivery) token.getUserContext(), token.getMessageId(), null );
+    }
+
+    @Override public void onFailure( IMqttToken token, Throwable throwable ) {
+      if ( m_tuner != null ) {
+        m_tuner.recordBackoff();
+      }
+      brokerFinished( m_broker, (Delivery) token.getUserContext(), 0, throwable );
+      m_broker.m_window.release();
+    }
+  }
+}
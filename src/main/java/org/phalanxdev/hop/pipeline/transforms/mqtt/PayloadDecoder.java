@@ -0,0 +1,292 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.phalanxdev.hop.pipeline.transforms.mqtt;
+
+import org.apache.hop.core.exception.HopException;
+import org.apache.hop.core.exception.HopValueException;
+import org.apache.hop.core.row.IValueMeta;
+import org.phalanxdev.mqtt.AllowlistObjectInputStream;
+import org.phalanxdev.mqtt.ObjectCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Date;
+
+/**
+ * Decodes message payloads into values of the message field's type; the counterpart of {@link PayloadEncoder}. A
+ * decoder is chosen once, from the type of the field, so the type does not have to be switched on for every message.
+ * Numbers are read straight out of the payload in the configured byte order. A payload of the wrong length for its
+ * type is reported by returning {@link #MALFORMED}, which costs nothing like as much as an exception.
+ */
+public abstract class PayloadDecoder {
+
+  /** Returned in place of a value when the payload isn't valid for the type */
+  public static final Object MALFORMED = new Object();
+
+  /**
+   * Order of the bytes in integer, number, date and timestamp payloads
+   */
+  public enum Endianness {
+    BIG_ENDIAN, LITTLE_ENDIAN;
+
+    public static Endianness fromName( String name ) {
+      for ( Endianness endianness : values() ) {
+        if ( endianness.name().equalsIgnoreCase( name ) ) {
+          return endianness;
+        }
+      }
+      return BIG_ENDIAN;
+    }
+  }
+
+  protected final boolean m_bigEndian;
+
+  protected PayloadDecoder( Endianness endianness ) {
+    m_bigEndian = endianness != Endianness.LITTLE_ENDIAN;
+  }
+
+  /**
+   * Decode a payload
+   *
+   * @param raw the buffer holding the payload
+   * @param offset the start of the payload
+   * @param length the length of the payload
+   * @return the value, or {@link #MALFORMED} if the payload isn't valid for the type
+   * @throws HopValueException if an object payload can't be read
+   */
+  public abstract Object decode( byte[] raw, int offset, int length ) throws HopValueException;
+
+  /**
+   * Get the decoder for a field
+   *
+   * @param valueMeta the value meta of the message field
+   * @param charset the character set of string payloads
+   * @param endianness the byte order of numeric payloads
+   * @param objectCodec the codec for serializable values, or null to use Java serialization
+   * @param objectClasses the classes Java serialized values may contain besides the built in ones; empty for any
+   * @return the decoder to use
+   * @throws HopException if values of the field's type can't be received
+   */
+  public static PayloadDecoder forValueMeta( IValueMeta valueMeta, Charset charset, Endianness endianness,
+      ObjectCodec objectCodec, Collection<String> objectClasses ) throws HopException {
+    switch ( valueMeta.getType() ) {
+      case IValueMeta.TYPE_STRING:
+      case IValueMeta.TYPE_NONE:
+        return new StringDecoder( charset );
+      case IValueMeta.TYPE_INTEGER:
+        return new IntegerDecoder( endianness );
+      case IValueMeta.TYPE_NUMBER:
+        return new NumberDecoder( endianness );
+      case IValueMeta.TYPE_DATE:
+        return new DateDecoder( endianness );
+      case IValueMeta.TYPE_TIMESTAMP:
+        return new TimestampDecoder( endianness );
+      case IValueMeta.TYPE_BINARY:
+        return new BinaryDecoder();
+      case IValueMeta.TYPE_BOOLEAN:
+        return new BooleanDecoder();
+      case IValueMeta.TYPE_SERIALIZABLE:
+        return objectCodec != null ? new CompactObjectDecoder( objectCodec )
+            : new SerializableDecoder( objectClasses );
+      default:
+        throw new HopException( "Unhandled type " + valueMeta.getTypeDesc() );
+    }
+  }
+
+  protected long readLong( byte[] b, int off ) {
+    if ( m_bigEndian ) {
+      return ( (long) readInt( b, off ) << 32 ) | ( readInt( b, off + 4 ) & 0xFFFFFFFFL );
+    }
+    return ( readInt( b, off ) & 0xFFFFFFFFL ) | ( (long) readInt( b, off + 4 ) << 32 );
+  }
+
+  protected int readInt( byte[] b, int off ) {
+    if ( m_bigEndian ) {
+      return ( b[off] << 24 ) | ( ( b[off + 1] & 0xFF ) << 16 ) | ( ( b[off + 2] & 0xFF ) << 8 ) | ( b[off + 3] & 0xFF );
+    }
+    return ( b[off] & 0xFF ) | ( ( b[off + 1] & 0xFF ) << 8 ) | ( ( b[off + 2] & 0xFF ) << 16 ) | ( b[off + 3] << 24 );
+  }
+
+  protected static class StringDecoder extends PayloadDecoder {
+    protected final Charset m_charset;
+
+    protected StringDecoder( Charset charset ) {
+      super( Endianness.BIG_ENDIAN );
+      m_charset = charset;
+    }
+
+    @Override public Object decode( byte[] raw, int offset, int length ) {
+      // passing the Charset itself (rather than a name, or relying on the default) skips the charset lookup, and the
+      // JDK's UTF-8, ASCII and Latin-1 decoders copy runs of ASCII straight through without decoding them
+      return new String( raw, offset, length, m_charset );
+    }
+  }
+
+  /**
+   * 8 byte longs, or 4 byte ints
+   */
+  protected static class IntegerDecoder extends PayloadDecoder {
+    protected IntegerDecoder( Endianness endianness ) {
+      super( endianness );
+    }
+
+    @Override public Object decode( byte[] raw, int offset, int length ) {
+      if ( length == 8 ) {
+        return readLong( raw, offset );
+      }
+      if ( length == 4 ) {
+        return (long) readInt( raw, offset );
+      }
+      return MALFORMED;
+    }
+  }
+
+  /**
+   * 8 byte doubles, or 4 byte floats
+   */
+  protected static class NumberDecoder extends PayloadDecoder {
+    protected NumberDecoder( Endianness endianness ) {
+      super( endianness );
+    }
+
+    @Override public Object decode( byte[] raw, int offset, int length ) {
+      if ( length == 8 ) {
+        return Double.longBitsToDouble( readLong( raw, offset ) );
+      }
+      if ( length == 4 ) {
+        return (double) Float.intBitsToFloat( readInt( raw, offset ) );
+      }
+      return MALFORMED;
+    }
+  }
+
+  /**
+   * 8 bytes of epoch millis
+   */
+  protected static class DateDecoder extends PayloadDecoder {
+    protected DateDecoder( Endianness endianness ) {
+      super( endianness );
+    }
+
+    @Override public Object decode( byte[] raw, int offset, int length ) {
+      if ( length != 8 ) {
+        return MALFORMED;
+      }
+      return new Date( readLong( raw, offset ) );
+    }
+  }
+
+  /**
+   * 8 bytes of epoch millis followed by 4 bytes of nanos
+   */
+  protected static class TimestampDecoder extends PayloadDecoder {
+    protected TimestampDecoder( Endianness endianness ) {
+      super( endianness );
+    }
+
+    @Override public Object decode( byte[] raw, int offset, int length ) {
+      if ( length != 12 ) {
+        return MALFORMED;
+      }
+      int nanos = readInt( raw, offset + 8 );
+      if ( nanos < 0 || nanos > 999999999 ) {
+        return MALFORMED;
+      }
+      Timestamp t = new Timestamp( readLong( raw, offset ) );
+      t.setNanos( nanos );
+      return t;
+    }
+  }
+
+  protected static class BinaryDecoder extends PayloadDecoder {
+    protected BinaryDecoder() {
+      super( Endianness.BIG_ENDIAN );
+    }
+
+    @Override public Object decode( byte[] raw, int offset, int length ) {
+      if ( offset == 0 && length == raw.length ) {
+        return raw;
+      }
+      byte[] copy = new byte[length];
+      System.arraycopy( raw, offset, copy, 0, length );
+      return copy;
+    }
+  }
+
+  /**
+   * A single byte; anything above zero is true
+   */
+  protected static class BooleanDecoder extends PayloadDecoder {
+    protected BooleanDecoder() {
+      super( Endianness.BIG_ENDIAN );
+    }
+
+    @Override public Object decode( byte[] raw, int offset, int length ) {
+      if ( length < 1 ) {
+        return MALFORMED;
+      }
+      return raw[offset] > 0;
+    }
+  }
+
+  protected static class SerializableDecoder extends PayloadDecoder {
+    protected final Collection<String> m_allowed;
+
+    protected SerializableDecoder( Collection<String> allowed ) {
+      super( Endianness.BIG_ENDIAN );
+      m_allowed = allowed;
+    }
+
+    @Override public Object decode( byte[] raw, int offset, int length ) throws HopValueException {
+      try {
+        ByteArrayInputStream in = new ByteArrayInputStream( raw, offset, length );
+        ObjectInputStream ois = m_allowed == null || m_allowed.isEmpty() ? new ObjectInputStream( in )
+            : new AllowlistObjectInputStream( in, m_allowed );
+        return ois.readObject();
+      } catch ( Exception ex ) {
+        throw new HopValueException( ex );
+      }
+    }
+  }
+
+  protected static class CompactObjectDecoder extends PayloadDecoder {
+    protected final ObjectCodec m_codec;
+
+    protected CompactObjectDecoder( ObjectCodec codec ) {
+      super( Endianness.BIG_ENDIAN );
+      m_codec = codec;
+    }
+
+    @Override public Object decode( byte[] raw, int offset, int length ) throws HopValueException {
+      try {
+        return m_codec.decode( raw, offset, length );
+      } catch ( Exception ex ) {
+        throw new HopValueException( ex );
+      }
+    }
+  }
+}
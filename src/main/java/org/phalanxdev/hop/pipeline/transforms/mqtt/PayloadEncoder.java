@@ -0,0 +1,269 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.phalanxdev.hop.pipeline.transforms.mqtt;
+
+import org.apache.hop.core.exception.HopValueException;
+import org.apache.hop.core.row.IValueMeta;
+import org.phalanxdev.mqtt.ObjectCodec;
+import org.phalanxdev.mqtt.PayloadBuffer;
+
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.sql.Timestamp;
+import java.util.Date;
+
+/**
+ * Encodes the value of the message field into a {@link PayloadBuffer}. An encoder is chosen once, from the type of the
+ * field, so the type does not have to be switched on for every row. The wire format is unchanged from earlier
+ * versions: strings as UTF-8; integers, dates (epoch millis) and numbers as 8 byte big-endian values; timestamps as 8
+ * bytes of millis followed by 4 bytes of nanos; booleans as a single byte; binary as-is; and serializable values using
+ * Java serialization, or the {@link ObjectCodec} if one is given.
+ */
+public abstract class PayloadEncoder {
+
+  protected final IValueMeta m_valueMeta;
+
+  protected PayloadEncoder( IValueMeta valueMeta ) {
+    m_valueMeta = valueMeta;
+  }
+
+  /**
+   * Encode a value. The buffer is reset first.
+   *
+   * @param value the value to encode
+   * @param out the buffer to encode into
+   * @return false if the value is null or empty (or of a type that can't be sent), in which case there is nothing to
+   * publish
+   * @throws HopValueException if the value can't be encoded
+   */
+  public boolean encode( Object value, PayloadBuffer out ) throws HopValueException {
+    out.reset();
+    if ( value == null ) {
+      return false;
+    }
+    return encodeValue( value, out );
+  }
+
+  protected abstract boolean encodeValue( Object value, PayloadBuffer out ) throws HopValueException;
+
+  /**
+   * Get the encoder for a field
+   *
+   * @param valueMeta the value meta of the message field
+   * @return the encoder to use
+   */
+  public static PayloadEncoder forValueMeta( IValueMeta valueMeta ) {
+    return forValueMeta( valueMeta, null );
+  }
+
+  /**
+   * Get the encoder for a field
+   *
+   * @param valueMeta the value meta of the message field
+   * @param objectCodec the codec for serializable values, or null to use Java serialization
+   * @return the encoder to use
+   */
+  public static PayloadEncoder forValueMeta( IValueMeta valueMeta, ObjectCodec objectCodec ) {
+    switch ( valueMeta.getType() ) {
+      case IValueMeta.TYPE_STRING:
+        return new StringEncoder( valueMeta );
+      case IValueMeta.TYPE_INTEGER:
+        return new IntegerEncoder( valueMeta );
+      case IValueMeta.TYPE_DATE:
+        return new DateEncoder( valueMeta );
+      case IValueMeta.TYPE_NUMBER:
+        return new NumberEncoder( valueMeta );
+      case IValueMeta.TYPE_TIMESTAMP:
+        return new TimestampEncoder( valueMeta );
+      case IValueMeta.TYPE_BINARY:
+        return new BinaryEncoder( valueMeta );
+      case IValueMeta.TYPE_BOOLEAN:
+        return new BooleanEncoder( valueMeta );
+      case IValueMeta.TYPE_SERIALIZABLE:
+        return objectCodec != null ? new CompactObjectEncoder( valueMeta, objectCodec )
+            : new SerializableEncoder( valueMeta );
+      default:
+        return new UnsupportedEncoder( valueMeta );
+    }
+  }
+
+  protected static class StringEncoder extends PayloadEncoder {
+    protected StringEncoder( IValueMeta valueMeta ) {
+      super( valueMeta );
+    }
+
+    @Override protected boolean encodeValue( Object value, PayloadBuffer out ) throws HopValueException {
+      // values are normally already Strings; anything else (e.g. lazy conversion) goes through the value meta
+      String s = value instanceof String ? (String) value : m_valueMeta.getString( value );
+      if ( s == null || s.length() == 0 ) {
+        return false;
+      }
+      out.writeUtf8( s );
+      return true;
+    }
+  }
+
+  protected static class IntegerEncoder extends PayloadEncoder {
+    protected IntegerEncoder( IValueMeta valueMeta ) {
+      super( valueMeta );
+    }
+
+    @Override protected boolean encodeValue( Object value, PayloadBuffer out ) throws HopValueException {
+      Long l = value instanceof Long ? (Long) value : m_valueMeta.getInteger( value );
+      if ( l == null ) {
+        return false;
+      }
+      out.writeLong( l );
+      return true;
+    }
+  }
+
+  protected static class DateEncoder extends PayloadEncoder {
+    protected DateEncoder( IValueMeta valueMeta ) {
+      super( valueMeta );
+    }
+
+    @Override protected boolean encodeValue( Object value, PayloadBuffer out ) throws HopValueException {
+      Date d = value instanceof Date ? (Date) value : m_valueMeta.getDate( value );
+      if ( d == null ) {
+        return false;
+      }
+      out.writeLong( d.getTime() );
+      return true;
+    }
+  }
+
+  protected static class NumberEncoder extends PayloadEncoder {
+    protected NumberEncoder( IValueMeta valueMeta ) {
+      super( valueMeta );
+    }
+
+    @Override protected boolean encodeValue( Object value, PayloadBuffer out ) throws HopValueException {
+      Double d = value instanceof Double ? (Double) value : m_valueMeta.getNumber( value );
+      if ( d == null ) {
+        return false;
+      }
+      out.writeDouble( d );
+      return true;
+    }
+  }
+
+  protected static class TimestampEncoder extends PayloadEncoder {
+    protected TimestampEncoder( IValueMeta valueMeta ) {
+      super( valueMeta );
+    }
+
+    @Override protected boolean encodeValue( Object value, PayloadBuffer out ) throws HopValueException {
+      Date d = value instanceof Date ? (Date) value : m_valueMeta.getDate( value );
+      if ( d == null ) {
+        return false;
+      }
+      out.writeLong( d.getTime() );
+      out.writeInt( d instanceof Timestamp ? ( (Timestamp) d ).getNanos()
+          : (int) ( Math.floorMod( d.getTime(), 1000L ) * 1000000L ) );
+      return true;
+    }
+  }
+
+  protected static class BinaryEncoder extends PayloadEncoder {
+    protected BinaryEncoder( IValueMeta valueMeta ) {
+      super( valueMeta );
+    }
+
+    @Override protected boolean encodeValue( Object value, PayloadBuffer out ) throws HopValueException {
+      byte[] bytes = m_valueMeta.getBinary( value );
+      if ( bytes == null ) {
+        return false;
+      }
+      // no need to copy - the payload is only ever read
+      out.setDirect( bytes );
+      return true;
+    }
+  }
+
+  protected static class BooleanEncoder extends PayloadEncoder {
+    protected BooleanEncoder( IValueMeta valueMeta ) {
+      super( valueMeta );
+    }
+
+    @Override protected boolean encodeValue( Object value, PayloadBuffer out ) throws HopValueException {
+      Boolean b = value instanceof Boolean ? (Boolean) value : m_valueMeta.getBoolean( value );
+      if ( b == null ) {
+        return false;
+      }
+      out.write( b ? 1 : 0 );
+      return true;
+    }
+  }
+
+  protected static class SerializableEncoder extends PayloadEncoder {
+    protected SerializableEncoder( IValueMeta valueMeta ) {
+      super( valueMeta );
+    }
+
+    @Override protected boolean encodeValue( Object value, PayloadBuffer out ) throws HopValueException {
+      if ( !( value instanceof Serializable ) ) {
+        throw new HopValueException( "Message value is not serializable!" );
+      }
+      try {
+        ObjectOutputStream oos = new ObjectOutputStream( out );
+        oos.writeObject( value );
+        oos.flush();
+      } catch ( Exception ex ) {
+        throw new HopValueException( ex );
+      }
+      return true;
+    }
+  }
+
+  protected static class CompactObjectEncoder extends PayloadEncoder {
+    protected final ObjectCodec m_codec;
+
+    protected CompactObjectEncoder( IValueMeta valueMeta, ObjectCodec codec ) {
+      super( valueMeta );
+      m_codec = codec;
+    }
+
+    @Override protected boolean encodeValue( Object value, PayloadBuffer out ) throws HopValueException {
+      try {
+        m_codec.encode( value, out );
+      } catch ( Exception ex ) {
+        throw new HopValueException( ex );
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Big numbers, internet addresses etc. have never been supported as message values; such rows are skipped
+   */
+  protected static class UnsupportedEncoder extends PayloadEncoder {
+    protected UnsupportedEncoder( IValueMeta valueMeta ) {
+      super( valueMeta );
+    }
+
+    @Override protected boolean encodeValue( Object value, PayloadBuffer out ) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.phalanxdev.hop.pipeline.transforms.mqtt;
+
+/**
+ * One row of the publisher's topic policy table: messages for topics matching the filter are published with these
+ * settings instead of the step-level ones. Rows are matched in order, and the first matching row wins.
+ */
+public class TopicPolicy {
+
+  protected String m_filter;
+  protected String m_qos; // empty to use the step's QoS
+  protected boolean m_retained;
+  protected boolean m_batch;
+  protected boolean m_compress;
+  protected String m_rateLimit; // messages per second shared by all matching topics; empty for no limit
+
+  public TopicPolicy() {
+  }
+
+  public TopicPolicy( String filter, String qos, boolean retained, boolean batch, boolean compress,
+      String rateLimit ) {
+    m_filter = filter;
+    m_qos = qos;
+    m_retained = retained;
+    m_batch = batch;
+    m_compress = compress;
+    m_rateLimit = rateLimit;
+  }
+
+  /**
+   * @return the topic filter (may contain + and # wildcards)
+   */
+  public String getFilter() {
+    return m_filter;
+  }
+
+  /**
+   * @param filter the topic filter (may contain + and # wildcards)
+   */
+  public void setFilter( String filter ) {
+    m_filter = filter;
+  }
+
+  /**
+   * @return the QoS for matching topics, or empty to use the step's QoS
+   */
+  public String getQoS() {
+    return m_qos;
+  }
+
+  /**
+   * @param qos the QoS for matching topics, or empty to use the step's QoS
+   */
+  public void setQoS( String qos ) {
+    m_qos = qos;
+  }
+
+  /**
+   * @return true if messages for matching topics are retained
+   */
+  public boolean isRetained() {
+    return m_retained;
+  }
+
+  /**
+   * @param retained true if messages for matching topics are retained
+   */
+  public void setRetained( boolean retained ) {
+    m_retained = retained;
+  }
+
+  /**
+   * @return true if rows for matching topics are batched
+   */
+  public boolean isBatch() {
+    return m_batch;
+  }
+
+  /**
+   * @param batch true if rows for matching topics are batched
+   */
+  public void setBatch( boolean batch ) {
+    m_batch = batch;
+  }
+
+  /**
+   * @return true if payloads for matching topics are gzip compressed
+   */
+  public boolean isCompress() {
+    return m_compress;
+  }
+
+  /**
+   * @param compress true if payloads for matching topics are gzip compressed
+   */
+  public void setCompress( boolean compress ) {
+    m_compress = compress;
+  }
+
+  /**
+   * @return the maximum messages per second across all matching topics, or empty for no limit
+   */
+  public String getRateLimit() {
+    return m_rateLimit;
+  }
+
+  /**
+   * @param rateLimit the maximum messages per second across all matching topics, or empty for no limit
+   */
+  public void setRateLimit( String rateLimit ) {
+    m_rateLimit = rateLimit;
+  }
+}
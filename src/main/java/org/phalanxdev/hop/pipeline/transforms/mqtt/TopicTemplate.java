@@ -0,0 +1,174 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.phalanxdev.hop.pipeline.transforms.mqtt;
+
+import org.apache.hop.core.exception.HopException;
+import org.apache.hop.core.exception.HopValueException;
+import org.apache.hop.core.row.IRowMeta;
+import org.apache.hop.core.row.IValueMeta;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A topic built from literal text and {field} placeholders, e.g. site/${site}/dev/{device_id}/{metric}. Variables are
+ * expected to have been resolved before compiling; placeholders are looked up in the row meta once, when compiling.
+ * Rendering builds the topic in a reusable buffer and then returns a previously rendered String with the same
+ * content if there is one in the cache, so repeated topics don't allocate. Not thread safe.
+ */
+public class TopicTemplate {
+
+  /** Size of the cache of rendered topics. Must be a power of two */
+  protected static final int CACHE_SIZE = 4096;
+
+  protected final String m_template;
+
+  /** Literal text before each field, plus the trailing literal text */
+  protected final String[] m_literals;
+  protected final int[] m_fieldIndexes;
+  protected final IValueMeta[] m_fieldMetas;
+
+  protected final StringBuilder m_buffer = new StringBuilder( 128 );
+  protected final String[] m_cache = new String[CACHE_SIZE];
+
+  protected TopicTemplate( String template, String[] literals, int[] fieldIndexes, IValueMeta[] fieldMetas ) {
+    m_template = template;
+    m_literals = literals;
+    m_fieldIndexes = fieldIndexes;
+    m_fieldMetas = fieldMetas;
+  }
+
+  /**
+   * Compile a template against the incoming row structure
+   *
+   * @param template the template, with variables already resolved
+   * @param rowMeta the incoming row meta
+   * @return the compiled template
+   * @throws HopException if the template refers to a field that doesn't exist, or has an unterminated placeholder
+   */
+  public static TopicTemplate compile( String template, IRowMeta rowMeta ) throws HopException {
+    List<String> literals = new ArrayList<>();
+    List<Integer> indexes = new ArrayList<>();
+    StringBuilder literal = new StringBuilder();
+
+    int pos = 0;
+    while ( pos < template.length() ) {
+      char c = template.charAt( pos );
+      if ( c != '{' ) {
+        literal.append( c );
+        pos++;
+        continue;
+      }
+      int end = template.indexOf( '}', pos + 1 );
+      if ( end < 0 ) {
+        throw new HopException( "Unterminated field placeholder in topic template '" + template + "'" );
+      }
+      String fieldName = template.substring( pos + 1, end ).trim();
+      int index = rowMeta.indexOfValue( fieldName );
+      if ( index < 0 ) {
+        throw new HopException(
+            "Incoming stream does not contain the field '" + fieldName + "' used in topic template '" + template
+                + "'" );
+      }
+      literals.add( literal.toString() );
+      literal.setLength( 0 );
+      indexes.add( index );
+      pos = end + 1;
+    }
+    literals.add( literal.toString() );
+
+    int[] fieldIndexes = new int[indexes.size()];
+    IValueMeta[] fieldMetas = new IValueMeta[indexes.size()];
+    for ( int i = 0; i < fieldIndexes.length; i++ ) {
+      fieldIndexes[i] = indexes.get( i );
+      fieldMetas[i] = rowMeta.getValueMeta( fieldIndexes[i] );
+    }
+    return new TopicTemplate( template, literals.toArray( new String[0] ), fieldIndexes, fieldMetas );
+  }
+
+  /**
+   * @param template a topic (with variables resolved)
+   * @return true if the topic contains {field} placeholders
+   */
+  public static boolean hasPlaceholders( String template ) {
+    int open = template.indexOf( '{' );
+    return open >= 0 && template.indexOf( '}', open ) > open;
+  }
+
+  /**
+   * Render the topic for a row
+   *
+   * @param row the row
+   * @return the topic, or null if any of the fields used is null or empty
+   * @throws HopValueException if a field value can't be converted to a string
+   */
+  public String render( Object[] row ) throws HopValueException {
+    StringBuilder buf = m_buffer;
+    buf.setLength( 0 );
+    for ( int i = 0; i < m_fieldIndexes.length; i++ ) {
+      buf.append( m_literals[i] );
+      Object value = row[m_fieldIndexes[i]];
+      if ( value == null ) {
+        return null;
+      }
+      int before = buf.length();
+      if ( value instanceof String ) {
+        buf.append( (String) value );
+      } else if ( value instanceof Long && m_fieldMetas[i].getType() == IValueMeta.TYPE_INTEGER ) {
+        // append(long) doesn't allocate, unlike formatting through the value meta
+        buf.append( ( (Long) value ).longValue() );
+      } else {
+        buf.append( m_fieldMetas[i].getString( value ) );
+      }
+      if ( buf.length() == before ) {
+        return null;
+      }
+    }
+    buf.append( m_literals[m_literals.length - 1] );
+    return intern( buf );
+  }
+
+  /**
+   * @return the template this was compiled from
+   */
+  public String getTemplate() {
+    return m_template;
+  }
+
+  protected String intern( StringBuilder buf ) {
+    // same hash as String.hashCode(), so that a cached entry can be found without creating a String first
+    int hash = 0;
+    int len = buf.length();
+    for ( int i = 0; i < len; i++ ) {
+      hash = 31 * hash + buf.charAt( i );
+    }
+    int slot = ( hash ^ ( hash >>> 16 ) ) & ( CACHE_SIZE - 1 );
+    String cached = m_cache[slot];
+    if ( cached != null && cached.hashCode() == hash && cached.contentEquals( buf ) ) {
+      return cached;
+    }
+    String topic = buf.toString();
+    m_cache[slot] = topic;
+    return topic;
+  }
+}
@@ -34,6 +34,8 @@ import org.apache.hop.pipeline.PipelineMeta;
 import org.apache.hop.pipeline.transform.BaseTransformMeta;
 import org.apache.hop.pipeline.transform.ITransformDialog;
 import org.apache.hop.ui.core.dialog.ErrorDialog;
+import org.apache.hop.ui.core.widget.ColumnInfo;
+import org.apache.hop.ui.core.widget.TableView;
 import org.apache.hop.ui.core.widget.TextVar;
 import org.apache.hop.ui.pipeline.transform.BaseTransformDialog;
 import org.eclipse.swt.SWT;
@@ -57,8 +59,17 @@ import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.Label;
 import org.eclipse.swt.widgets.Listener;
 import org.eclipse.swt.widgets.Shell;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableItem;
 import org.eclipse.swt.widgets.Text;
 import org.phalanxdev.hop.pipeline.transforms.mqtt.MQTTPublisherMeta;
+import org.phalanxdev.hop.pipeline.transforms.mqtt.TopicPolicy;
+import org.phalanxdev.mqtt.BatchFraming;
+import org.phalanxdev.mqtt.ObjectCodec;
+import org.phalanxdev.mqtt.OfflineBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * UI for the MQTT Client step
@@ -88,8 +99,12 @@ public class MQTTPublisherDialog extends BaseTransformDialog implements ITransfo
   private TextVar m_wLastWillMessage;
 
   private Button m_wTopicFromIncomingField;
+  private Button m_wTopicIsTemplate;
   private Button m_wIsCleanSession;  
   private Button m_wLastWillRetain;
+  private CCombo m_wObjectFormat;
+  private Label m_wlObjectClasses;
+  private TextVar m_wObjectClasses;
   
   private Button m_wRetain;
 
@@ -106,6 +121,85 @@ public class MQTTPublisherDialog extends BaseTransformDialog implements ITransfo
   private TextVar m_wKeyFile;
   private TextVar m_wKeyPassword;
 
+  private CTabItem m_wDeliveryTab;
+  private Button m_wAsyncPublish;
+  private Label m_wlMaxInflight;
+  private TextVar m_wMaxInflight;
+  private Label m_wlDrainTimeout;
+  private TextVar m_wDrainTimeout;
+  private Label m_wlAutoTune;
+  private Button m_wAutoTune;
+  private Label m_wlAutoTuneMaxInflight;
+  private TextVar m_wAutoTuneMaxInflight;
+  private Label m_wlAutoTuneTargetLatency;
+  private TextVar m_wAutoTuneTargetLatency;
+  private TextVar m_wRateLimitMessages;
+  private TextVar m_wRateLimitBytes;
+  private TextVar m_wConnectionsPerCopy;
+  private Button m_wConnectOnInit;
+  private TextVar m_wWarmUpTopic;
+
+  private CTabItem m_wBatchingTab;
+  private Button m_wBatchMessages;
+  private Label m_wlBatchFormat;
+  private CCombo m_wBatchFormat;
+  private Label m_wlBatchMaxRows;
+  private TextVar m_wBatchMaxRows;
+  private Label m_wlBatchMaxAge;
+  private TextVar m_wBatchMaxAge;
+
+  private CTabItem m_wPoliciesTab;
+  private TableView m_wPoliciesTable;
+
+  private CTabItem m_wFilteringTab;
+  private Button m_wReportByException;
+  private Label m_wlDeadband;
+  private TextVar m_wDeadband;
+  private Label m_wlDeadbandPercent;
+  private Button m_wDeadbandPercent;
+  private Label m_wlHeartbeatInterval;
+  private TextVar m_wHeartbeatInterval;
+  private Label m_wlMaxTrackedTopics;
+  private TextVar m_wMaxTrackedTopics;
+  private Button m_wConflate;
+  private Label m_wlConflationWindow;
+  private TextVar m_wConflationWindow;
+  private Label m_wlConflationMaxTopics;
+  private TextVar m_wConflationMaxTopics;
+
+  private CTabItem m_wReceiptsTab;
+  private Button m_wOutputReceipts;
+  private Label m_wlReceiptMessageIdField;
+  private TextVar m_wReceiptMessageIdField;
+  private Label m_wlReceiptTopicField;
+  private TextVar m_wReceiptTopicField;
+  private Label m_wlReceiptPayloadSizeField;
+  private TextVar m_wReceiptPayloadSizeField;
+  private Label m_wlReceiptSentAtField;
+  private TextVar m_wReceiptSentAtField;
+  private Label m_wlReceiptAckedAtField;
+  private TextVar m_wReceiptAckedAtField;
+  private Label m_wlReceiptAckLatencyField;
+  private TextVar m_wReceiptAckLatencyField;
+
+  private CTabItem m_wReconnectTab;
+  private Button m_wAutoReconnect;
+  private Label m_wlReconnectMinDelay;
+  private TextVar m_wReconnectMinDelay;
+  private Label m_wlReconnectMaxDelay;
+  private TextVar m_wReconnectMaxDelay;
+  private Label m_wlOfflineBufferSize;
+  private TextVar m_wOfflineBufferSize;
+  private Label m_wlOfflineOverflow;
+  private CCombo m_wOfflineOverflow;
+  private Button m_wDurableOutbox;
+  private Label m_wlOutboxDirectory;
+  private TextVar m_wOutboxDirectory;
+  private Label m_wlOutboxSegmentSize;
+  private TextVar m_wOutboxSegmentSize;
+  private Label m_wlOutboxSyncInterval;
+  private TextVar m_wOutboxSyncInterval;
+
   public MQTTPublisherDialog( Shell parent, IVariables variables, Object in, PipelineMeta tr, String sname ) {
     super( parent, variables, (BaseTransformMeta) in, tr, sname );
     producerMeta = (MQTTPublisherMeta) in;
@@ -200,6 +294,8 @@ public class MQTTPublisherDialog extends BaseTransformDialog implements ITransfo
     Label wlBroker = new Label( wGeneralTabComp, SWT.RIGHT );
     wlBroker.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
         "MQTTClientDialog.Broker.Label" ) );
+    wlBroker.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.PublishBrokers.ToolTip" ) );
     props.setLook( wlBroker );
     FormData fdlBroker = new FormData();
     fdlBroker.top = new FormAttachment( 0, margin * 2 );
@@ -254,6 +350,9 @@ public class MQTTPublisherDialog extends BaseTransformDialog implements ITransfo
       @Override public void widgetSelected( SelectionEvent selectionEvent ) {
         super.widgetSelected( selectionEvent );
         producerMeta.setChanged();
+        if ( m_wTopicFromIncomingField.getSelection() ) {
+          m_wTopicIsTemplate.setSelection( false );
+        }
         updateTopicCombo( getPreviousFields() );
       }
     } );
@@ -264,6 +363,38 @@ public class MQTTPublisherDialog extends BaseTransformDialog implements ITransfo
     m_wTopicFromIncomingField.setLayoutData( fd );
     lastControl = m_wTopicFromIncomingField;
 
+    // Topic is a template
+    Label wlTopicIsTemplate = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlTopicIsTemplate.setText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.TopicIsTemplate.Label" ) );
+    wlTopicIsTemplate.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.TopicIsTemplate.ToolTip" ) );
+    props.setLook( wlTopicIsTemplate );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlTopicIsTemplate.setLayoutData( fd );
+
+    m_wTopicIsTemplate = new Button( wGeneralTabComp, SWT.CHECK );
+    props.setLook( m_wTopicIsTemplate );
+    m_wTopicIsTemplate.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent selectionEvent ) {
+        super.widgetSelected( selectionEvent );
+        producerMeta.setChanged();
+        if ( m_wTopicIsTemplate.getSelection() && m_wTopicFromIncomingField.getSelection() ) {
+          m_wTopicFromIncomingField.setSelection( false );
+          updateTopicCombo( getPreviousFields() );
+        }
+      }
+    } );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wTopicIsTemplate.setLayoutData( fd );
+    lastControl = m_wTopicIsTemplate;
+
     // Input field
     IRowMeta previousFields = getPreviousFields();
 
@@ -453,6 +584,58 @@ public class MQTTPublisherDialog extends BaseTransformDialog implements ITransfo
     fdLastWillRetain.right = new FormAttachment( 100, 0 );
 	m_wLastWillRetain.setLayoutData( fdLastWillRetain );
     lastControl = m_wLastWillRetain;
+
+    // Object format
+    Label wlObjectFormat = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlObjectFormat.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ObjectFormat.Label" ) );
+    wlObjectFormat.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ObjectFormat.ToolTip" ) );
+    props.setLook( wlObjectFormat );
+    FormData fdlObjectFormat = new FormData();
+    fdlObjectFormat.top = new FormAttachment( lastControl, margin );
+    fdlObjectFormat.left = new FormAttachment( 0, 0 );
+    fdlObjectFormat.right = new FormAttachment( middle, -margin );
+    wlObjectFormat.setLayoutData( fdlObjectFormat );
+    m_wObjectFormat = new CCombo( wGeneralTabComp, SWT.SINGLE | SWT.READ_ONLY | SWT.BORDER );
+    props.setLook( m_wObjectFormat );
+    for ( ObjectCodec.Format format : ObjectCodec.Format.values() ) {
+      m_wObjectFormat.add( BaseMessages.getString( MQTTPublisherMeta.PKG,
+          "MQTTClientDialog.ObjectFormat." + format.name() ) );
+    }
+    m_wObjectFormat.addModifyListener( lsMod );
+    m_wObjectFormat.addSelectionListener( new SelectionAdapter() {
+      public void widgetSelected( SelectionEvent arg0 ) {
+        setObjectClassesEnabled();
+      }
+    } );
+    FormData fdObjectFormat = new FormData();
+    fdObjectFormat.top = new FormAttachment( lastControl, margin );
+    fdObjectFormat.left = new FormAttachment( middle, 0 );
+    fdObjectFormat.right = new FormAttachment( 100, 0 );
+    m_wObjectFormat.setLayoutData( fdObjectFormat );
+    lastControl = m_wObjectFormat;
+
+    // Object classes
+    m_wlObjectClasses = new Label( wGeneralTabComp, SWT.RIGHT );
+    m_wlObjectClasses.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.ObjectClasses.Label" ) );
+    m_wlObjectClasses.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ObjectClasses.ToolTip" ) );
+    props.setLook( m_wlObjectClasses );
+    FormData fdlObjectClasses = new FormData();
+    fdlObjectClasses.top = new FormAttachment( lastControl, margin );
+    fdlObjectClasses.left = new FormAttachment( 0, 0 );
+    fdlObjectClasses.right = new FormAttachment( middle, -margin );
+    m_wlObjectClasses.setLayoutData( fdlObjectClasses );
+    m_wObjectClasses = new TextVar( variables, wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wObjectClasses );
+    m_wObjectClasses.addModifyListener( lsMod );
+    FormData fdObjectClasses = new FormData();
+    fdObjectClasses.top = new FormAttachment( lastControl, margin );
+    fdObjectClasses.left = new FormAttachment( middle, 0 );
+    fdObjectClasses.right = new FormAttachment( 100, 0 );
+    m_wObjectClasses.setLayoutData( fdObjectClasses );
+    lastControl = m_wObjectClasses;
     
 	FormData fdGeneralTabComp = new FormData();
     fdGeneralTabComp.left = new FormAttachment( 0, 0 );
@@ -692,6 +875,1116 @@ public class MQTTPublisherDialog extends BaseTransformDialog implements ITransfo
     wSSLComp.layout();
     m_wSSLTab.setControl( wSSLComp );
 
+    // ====================
+    // DELIVERY TAB
+    // ====================
+    m_wDeliveryTab = new CTabItem( m_wTabFolder, SWT.NONE );
+    m_wDeliveryTab.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.DeliveryTab.Label" ) ); //$NON-NLS-1$
+
+    Composite wDeliveryComp = new Composite( m_wTabFolder, SWT.NONE );
+    props.setLook( wDeliveryComp );
+
+    FormLayout deliveryCompLayout = new FormLayout();
+    deliveryCompLayout.marginWidth = Const.FORM_MARGIN;
+    deliveryCompLayout.marginHeight = Const.FORM_MARGIN;
+    wDeliveryComp.setLayout( deliveryCompLayout );
+
+    // Asynchronous publishing
+    Label wlAsyncPublish = new Label( wDeliveryComp, SWT.RIGHT );
+    wlAsyncPublish.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.AsyncPublish.Label" ) );
+    wlAsyncPublish.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.AsyncPublish.ToolTip" ) );
+    props.setLook( wlAsyncPublish );
+    FormData fdlAsyncPublish = new FormData();
+    fdlAsyncPublish.left = new FormAttachment( 0, 0 );
+    fdlAsyncPublish.top = new FormAttachment( 0, margin * 2 );
+    fdlAsyncPublish.right = new FormAttachment( middle, -margin );
+    wlAsyncPublish.setLayoutData( fdlAsyncPublish );
+    m_wAsyncPublish = new Button( wDeliveryComp, SWT.CHECK );
+    props.setLook( m_wAsyncPublish );
+    FormData fdAsyncPublish = new FormData();
+    fdAsyncPublish.left = new FormAttachment( middle, 0 );
+    fdAsyncPublish.top = new FormAttachment( 0, margin * 2 );
+    fdAsyncPublish.right = new FormAttachment( 100, 0 );
+    m_wAsyncPublish.setLayoutData( fdAsyncPublish );
+    m_wAsyncPublish.addSelectionListener( new SelectionAdapter() {
+      public void widgetSelected( SelectionEvent arg0 ) {
+        producerMeta.setChanged();
+        boolean enabled = m_wAsyncPublish.getSelection();
+        m_wlMaxInflight.setEnabled( enabled );
+        m_wMaxInflight.setEnabled( enabled );
+        m_wlDrainTimeout.setEnabled( enabled );
+        m_wDrainTimeout.setEnabled( enabled );
+        m_wlAutoTune.setEnabled( enabled );
+        m_wAutoTune.setEnabled( enabled );
+        setAutoTuneEnabled();
+      }
+    } );
+    lastControl = m_wAsyncPublish;
+
+    // Max in-flight messages
+    m_wlMaxInflight = new Label( wDeliveryComp, SWT.RIGHT );
+    m_wlMaxInflight.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.MaxInflight.Label" ) );
+    m_wlMaxInflight.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MaxInflight.ToolTip" ) );
+    props.setLook( m_wlMaxInflight );
+    FormData fdlMaxInflight = new FormData();
+    fdlMaxInflight.left = new FormAttachment( 0, 0 );
+    fdlMaxInflight.top = new FormAttachment( lastControl, margin );
+    fdlMaxInflight.right = new FormAttachment( middle, -margin );
+    m_wlMaxInflight.setLayoutData( fdlMaxInflight );
+    m_wMaxInflight = new TextVar( variables, wDeliveryComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wMaxInflight );
+    m_wMaxInflight.addModifyListener( lsMod );
+    FormData fdMaxInflight = new FormData();
+    fdMaxInflight.left = new FormAttachment( middle, 0 );
+    fdMaxInflight.top = new FormAttachment( lastControl, margin );
+    fdMaxInflight.right = new FormAttachment( 100, 0 );
+    m_wMaxInflight.setLayoutData( fdMaxInflight );
+    lastControl = m_wMaxInflight;
+
+    // Drain timeout
+    m_wlDrainTimeout = new Label( wDeliveryComp, SWT.RIGHT );
+    m_wlDrainTimeout.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.DrainTimeout.Label" ) );
+    m_wlDrainTimeout.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.DrainTimeout.ToolTip" ) );
+    props.setLook( m_wlDrainTimeout );
+    FormData fdlDrainTimeout = new FormData();
+    fdlDrainTimeout.left = new FormAttachment( 0, 0 );
+    fdlDrainTimeout.top = new FormAttachment( lastControl, margin );
+    fdlDrainTimeout.right = new FormAttachment( middle, -margin );
+    m_wlDrainTimeout.setLayoutData( fdlDrainTimeout );
+    m_wDrainTimeout = new TextVar( variables, wDeliveryComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wDrainTimeout );
+    m_wDrainTimeout.addModifyListener( lsMod );
+    FormData fdDrainTimeout = new FormData();
+    fdDrainTimeout.left = new FormAttachment( middle, 0 );
+    fdDrainTimeout.top = new FormAttachment( lastControl, margin );
+    fdDrainTimeout.right = new FormAttachment( 100, 0 );
+    m_wDrainTimeout.setLayoutData( fdDrainTimeout );
+    lastControl = m_wDrainTimeout;
+
+    // Auto-tune flow control
+    m_wlAutoTune = new Label( wDeliveryComp, SWT.RIGHT );
+    m_wlAutoTune.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.AutoTune.Label" ) );
+    m_wlAutoTune.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.AutoTune.ToolTip" ) );
+    props.setLook( m_wlAutoTune );
+    FormData fdlAutoTune = new FormData();
+    fdlAutoTune.left = new FormAttachment( 0, 0 );
+    fdlAutoTune.top = new FormAttachment( lastControl, margin );
+    fdlAutoTune.right = new FormAttachment( middle, -margin );
+    m_wlAutoTune.setLayoutData( fdlAutoTune );
+    m_wAutoTune = new Button( wDeliveryComp, SWT.CHECK );
+    props.setLook( m_wAutoTune );
+    FormData fdAutoTune = new FormData();
+    fdAutoTune.left = new FormAttachment( middle, 0 );
+    fdAutoTune.top = new FormAttachment( lastControl, margin );
+    fdAutoTune.right = new FormAttachment( 100, 0 );
+    m_wAutoTune.setLayoutData( fdAutoTune );
+    m_wAutoTune.addSelectionListener( new SelectionAdapter() {
+      public void widgetSelected( SelectionEvent arg0 ) {
+        producerMeta.setChanged();
+        setAutoTuneEnabled();
+      }
+    } );
+    lastControl = m_wAutoTune;
+
+    // Auto-tune max in-flight messages
+    m_wlAutoTuneMaxInflight = new Label( wDeliveryComp, SWT.RIGHT );
+    m_wlAutoTuneMaxInflight.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.AutoTuneMaxInflight.Label" ) );
+    m_wlAutoTuneMaxInflight.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.AutoTuneMaxInflight.ToolTip" ) );
+    props.setLook( m_wlAutoTuneMaxInflight );
+    FormData fdlAutoTuneMaxInflight = new FormData();
+    fdlAutoTuneMaxInflight.left = new FormAttachment( 0, 0 );
+    fdlAutoTuneMaxInflight.top = new FormAttachment( lastControl, margin );
+    fdlAutoTuneMaxInflight.right = new FormAttachment( middle, -margin );
+    m_wlAutoTuneMaxInflight.setLayoutData( fdlAutoTuneMaxInflight );
+    m_wAutoTuneMaxInflight = new TextVar( variables, wDeliveryComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wAutoTuneMaxInflight );
+    m_wAutoTuneMaxInflight.addModifyListener( lsMod );
+    FormData fdAutoTuneMaxInflight = new FormData();
+    fdAutoTuneMaxInflight.left = new FormAttachment( middle, 0 );
+    fdAutoTuneMaxInflight.top = new FormAttachment( lastControl, margin );
+    fdAutoTuneMaxInflight.right = new FormAttachment( 100, 0 );
+    m_wAutoTuneMaxInflight.setLayoutData( fdAutoTuneMaxInflight );
+    lastControl = m_wAutoTuneMaxInflight;
+
+    // Auto-tune target ack latency
+    m_wlAutoTuneTargetLatency = new Label( wDeliveryComp, SWT.RIGHT );
+    m_wlAutoTuneTargetLatency.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.AutoTuneTargetLatency.Label" ) );
+    m_wlAutoTuneTargetLatency.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.AutoTuneTargetLatency.ToolTip" ) );
+    props.setLook( m_wlAutoTuneTargetLatency );
+    FormData fdlAutoTuneTargetLatency = new FormData();
+    fdlAutoTuneTargetLatency.left = new FormAttachment( 0, 0 );
+    fdlAutoTuneTargetLatency.top = new FormAttachment( lastControl, margin );
+    fdlAutoTuneTargetLatency.right = new FormAttachment( middle, -margin );
+    m_wlAutoTuneTargetLatency.setLayoutData( fdlAutoTuneTargetLatency );
+    m_wAutoTuneTargetLatency = new TextVar( variables, wDeliveryComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wAutoTuneTargetLatency );
+    m_wAutoTuneTargetLatency.addModifyListener( lsMod );
+    FormData fdAutoTuneTargetLatency = new FormData();
+    fdAutoTuneTargetLatency.left = new FormAttachment( middle, 0 );
+    fdAutoTuneTargetLatency.top = new FormAttachment( lastControl, margin );
+    fdAutoTuneTargetLatency.right = new FormAttachment( 100, 0 );
+    m_wAutoTuneTargetLatency.setLayoutData( fdAutoTuneTargetLatency );
+    lastControl = m_wAutoTuneTargetLatency;
+
+    // Rate limit (messages)
+    Label wlRateLimitMessages = new Label( wDeliveryComp, SWT.RIGHT );
+    wlRateLimitMessages.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.RateLimitMessages.Label" ) );
+    wlRateLimitMessages.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.RateLimitMessages.ToolTip" ) );
+    props.setLook( wlRateLimitMessages );
+    FormData fdlRateLimitMessages = new FormData();
+    fdlRateLimitMessages.left = new FormAttachment( 0, 0 );
+    fdlRateLimitMessages.top = new FormAttachment( lastControl, margin );
+    fdlRateLimitMessages.right = new FormAttachment( middle, -margin );
+    wlRateLimitMessages.setLayoutData( fdlRateLimitMessages );
+    m_wRateLimitMessages = new TextVar( variables, wDeliveryComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wRateLimitMessages );
+    m_wRateLimitMessages.addModifyListener( lsMod );
+    FormData fdRateLimitMessages = new FormData();
+    fdRateLimitMessages.left = new FormAttachment( middle, 0 );
+    fdRateLimitMessages.top = new FormAttachment( lastControl, margin );
+    fdRateLimitMessages.right = new FormAttachment( 100, 0 );
+    m_wRateLimitMessages.setLayoutData( fdRateLimitMessages );
+    lastControl = m_wRateLimitMessages;
+
+    // Rate limit (bytes)
+    Label wlRateLimitBytes = new Label( wDeliveryComp, SWT.RIGHT );
+    wlRateLimitBytes.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.RateLimitBytes.Label" ) );
+    wlRateLimitBytes.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.RateLimitBytes.ToolTip" ) );
+    props.setLook( wlRateLimitBytes );
+    FormData fdlRateLimitBytes = new FormData();
+    fdlRateLimitBytes.left = new FormAttachment( 0, 0 );
+    fdlRateLimitBytes.top = new FormAttachment( lastControl, margin );
+    fdlRateLimitBytes.right = new FormAttachment( middle, -margin );
+    wlRateLimitBytes.setLayoutData( fdlRateLimitBytes );
+    m_wRateLimitBytes = new TextVar( variables, wDeliveryComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wRateLimitBytes );
+    m_wRateLimitBytes.addModifyListener( lsMod );
+    FormData fdRateLimitBytes = new FormData();
+    fdRateLimitBytes.left = new FormAttachment( middle, 0 );
+    fdRateLimitBytes.top = new FormAttachment( lastControl, margin );
+    fdRateLimitBytes.right = new FormAttachment( 100, 0 );
+    m_wRateLimitBytes.setLayoutData( fdRateLimitBytes );
+    lastControl = m_wRateLimitBytes;
+
+    // Connections per copy
+    Label wlConnectionsPerCopy = new Label( wDeliveryComp, SWT.RIGHT );
+    wlConnectionsPerCopy.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.ConnectionsPerCopy.Label" ) );
+    wlConnectionsPerCopy.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ConnectionsPerCopy.ToolTip" ) );
+    props.setLook( wlConnectionsPerCopy );
+    FormData fdlConnectionsPerCopy = new FormData();
+    fdlConnectionsPerCopy.left = new FormAttachment( 0, 0 );
+    fdlConnectionsPerCopy.top = new FormAttachment( lastControl, margin );
+    fdlConnectionsPerCopy.right = new FormAttachment( middle, -margin );
+    wlConnectionsPerCopy.setLayoutData( fdlConnectionsPerCopy );
+    m_wConnectionsPerCopy = new TextVar( variables, wDeliveryComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wConnectionsPerCopy );
+    m_wConnectionsPerCopy.addModifyListener( lsMod );
+    FormData fdConnectionsPerCopy = new FormData();
+    fdConnectionsPerCopy.left = new FormAttachment( middle, 0 );
+    fdConnectionsPerCopy.top = new FormAttachment( lastControl, margin );
+    fdConnectionsPerCopy.right = new FormAttachment( 100, 0 );
+    m_wConnectionsPerCopy.setLayoutData( fdConnectionsPerCopy );
+    lastControl = m_wConnectionsPerCopy;
+
+    // Connect on init
+    Label wlConnectOnInit = new Label( wDeliveryComp, SWT.RIGHT );
+    wlConnectOnInit.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.ConnectOnInit.Label" ) );
+    wlConnectOnInit.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ConnectOnInit.ToolTip" ) );
+    props.setLook( wlConnectOnInit );
+    FormData fdlConnectOnInit = new FormData();
+    fdlConnectOnInit.left = new FormAttachment( 0, 0 );
+    fdlConnectOnInit.top = new FormAttachment( lastControl, margin );
+    fdlConnectOnInit.right = new FormAttachment( middle, -margin );
+    wlConnectOnInit.setLayoutData( fdlConnectOnInit );
+    m_wConnectOnInit = new Button( wDeliveryComp, SWT.CHECK );
+    props.setLook( m_wConnectOnInit );
+    FormData fdConnectOnInit = new FormData();
+    fdConnectOnInit.left = new FormAttachment( middle, 0 );
+    fdConnectOnInit.top = new FormAttachment( lastControl, margin );
+    fdConnectOnInit.right = new FormAttachment( 100, 0 );
+    m_wConnectOnInit.setLayoutData( fdConnectOnInit );
+    m_wConnectOnInit.addSelectionListener( new SelectionAdapter() {
+      public void widgetSelected( SelectionEvent arg0 ) {
+        producerMeta.setChanged();
+      }
+    } );
+    lastControl = m_wConnectOnInit;
+
+    // Warm-up topic
+    Label wlWarmUpTopic = new Label( wDeliveryComp, SWT.RIGHT );
+    wlWarmUpTopic.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.WarmUpTopic.Label" ) );
+    wlWarmUpTopic.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.WarmUpTopic.ToolTip" ) );
+    props.setLook( wlWarmUpTopic );
+    FormData fdlWarmUpTopic = new FormData();
+    fdlWarmUpTopic.left = new FormAttachment( 0, 0 );
+    fdlWarmUpTopic.top = new FormAttachment( lastControl, margin );
+    fdlWarmUpTopic.right = new FormAttachment( middle, -margin );
+    wlWarmUpTopic.setLayoutData( fdlWarmUpTopic );
+    m_wWarmUpTopic = new TextVar( variables, wDeliveryComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wWarmUpTopic );
+    m_wWarmUpTopic.addModifyListener( lsMod );
+    FormData fdWarmUpTopic = new FormData();
+    fdWarmUpTopic.left = new FormAttachment( middle, 0 );
+    fdWarmUpTopic.top = new FormAttachment( lastControl, margin );
+    fdWarmUpTopic.right = new FormAttachment( 100, 0 );
+    m_wWarmUpTopic.setLayoutData( fdWarmUpTopic );
+    lastControl = m_wWarmUpTopic;
+
+    FormData fdDeliveryComp = new FormData();
+    fdDeliveryComp.left = new FormAttachment( 0, 0 );
+    fdDeliveryComp.top = new FormAttachment( 0, 0 );
+    fdDeliveryComp.right = new FormAttachment( 100, 0 );
+    fdDeliveryComp.bottom = new FormAttachment( 100, 0 );
+    wDeliveryComp.setLayoutData( fdDeliveryComp );
+
+    wDeliveryComp.layout();
+    m_wDeliveryTab.setControl( wDeliveryComp );
+
+    // ====================
+    // BATCHING TAB
+    // ====================
+    m_wBatchingTab = new CTabItem( m_wTabFolder, SWT.NONE );
+    m_wBatchingTab.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.BatchingTab.Label" ) ); //$NON-NLS-1$
+
+    Composite wBatchingComp = new Composite( m_wTabFolder, SWT.NONE );
+    props.setLook( wBatchingComp );
+
+    FormLayout batchingCompLayout = new FormLayout();
+    batchingCompLayout.marginWidth = Const.FORM_MARGIN;
+    batchingCompLayout.marginHeight = Const.FORM_MARGIN;
+    wBatchingComp.setLayout( batchingCompLayout );
+
+    // Batch messages
+    Label wlBatchMessages = new Label( wBatchingComp, SWT.RIGHT );
+    wlBatchMessages.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.BatchMessages.Label" ) );
+    wlBatchMessages.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.BatchMessages.ToolTip" ) );
+    props.setLook( wlBatchMessages );
+    FormData fdlBatchMessages = new FormData();
+    fdlBatchMessages.left = new FormAttachment( 0, 0 );
+    fdlBatchMessages.top = new FormAttachment( 0, margin * 2 );
+    fdlBatchMessages.right = new FormAttachment( middle, -margin );
+    wlBatchMessages.setLayoutData( fdlBatchMessages );
+    m_wBatchMessages = new Button( wBatchingComp, SWT.CHECK );
+    props.setLook( m_wBatchMessages );
+    FormData fdBatchMessages = new FormData();
+    fdBatchMessages.left = new FormAttachment( middle, 0 );
+    fdBatchMessages.top = new FormAttachment( 0, margin * 2 );
+    fdBatchMessages.right = new FormAttachment( 100, 0 );
+    m_wBatchMessages.setLayoutData( fdBatchMessages );
+    m_wBatchMessages.addSelectionListener( new SelectionAdapter() {
+      public void widgetSelected( SelectionEvent arg0 ) {
+        producerMeta.setChanged();
+        boolean enabled = m_wBatchMessages.getSelection();
+        m_wlBatchFormat.setEnabled( enabled );
+        m_wBatchFormat.setEnabled( enabled );
+        m_wlBatchMaxRows.setEnabled( enabled );
+        m_wBatchMaxRows.setEnabled( enabled );
+        m_wlBatchMaxAge.setEnabled( enabled );
+        m_wBatchMaxAge.setEnabled( enabled );
+      }
+    } );
+    lastControl = m_wBatchMessages;
+
+    // Batch format
+    m_wlBatchFormat = new Label( wBatchingComp, SWT.RIGHT );
+    m_wlBatchFormat.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.BatchFormat.Label" ) );
+    m_wlBatchFormat.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.BatchFormat.ToolTip" ) );
+    props.setLook( m_wlBatchFormat );
+    FormData fdlBatchFormat = new FormData();
+    fdlBatchFormat.left = new FormAttachment( 0, 0 );
+    fdlBatchFormat.top = new FormAttachment( lastControl, margin );
+    fdlBatchFormat.right = new FormAttachment( middle, -margin );
+    m_wlBatchFormat.setLayoutData( fdlBatchFormat );
+    m_wBatchFormat = new CCombo( wBatchingComp, SWT.SINGLE | SWT.READ_ONLY | SWT.BORDER );
+    props.setLook( m_wBatchFormat );
+    for ( BatchFraming framing : BatchFraming.values() ) {
+      m_wBatchFormat.add( BaseMessages.getString( MQTTPublisherMeta.PKG,
+          "MQTTClientDialog.BatchFormat." + framing.name() ) );
+    }
+    m_wBatchFormat.addModifyListener( lsMod );
+    FormData fdBatchFormat = new FormData();
+    fdBatchFormat.left = new FormAttachment( middle, 0 );
+    fdBatchFormat.top = new FormAttachment( lastControl, margin );
+    fdBatchFormat.right = new FormAttachment( 100, 0 );
+    m_wBatchFormat.setLayoutData( fdBatchFormat );
+    lastControl = m_wBatchFormat;
+
+    // Max rows per batch
+    m_wlBatchMaxRows = new Label( wBatchingComp, SWT.RIGHT );
+    m_wlBatchMaxRows.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.BatchMaxRows.Label" ) );
+    props.setLook( m_wlBatchMaxRows );
+    FormData fdlBatchMaxRows = new FormData();
+    fdlBatchMaxRows.left = new FormAttachment( 0, 0 );
+    fdlBatchMaxRows.top = new FormAttachment( lastControl, margin );
+    fdlBatchMaxRows.right = new FormAttachment( middle, -margin );
+    m_wlBatchMaxRows.setLayoutData( fdlBatchMaxRows );
+    m_wBatchMaxRows = new TextVar( variables, wBatchingComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wBatchMaxRows );
+    m_wBatchMaxRows.addModifyListener( lsMod );
+    FormData fdBatchMaxRows = new FormData();
+    fdBatchMaxRows.left = new FormAttachment( middle, 0 );
+    fdBatchMaxRows.top = new FormAttachment( lastControl, margin );
+    fdBatchMaxRows.right = new FormAttachment( 100, 0 );
+    m_wBatchMaxRows.setLayoutData( fdBatchMaxRows );
+    lastControl = m_wBatchMaxRows;
+
+    // Max batch age
+    m_wlBatchMaxAge = new Label( wBatchingComp, SWT.RIGHT );
+    m_wlBatchMaxAge.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.BatchMaxAge.Label" ) );
+    m_wlBatchMaxAge.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.BatchMaxAge.ToolTip" ) );
+    props.setLook( m_wlBatchMaxAge );
+    FormData fdlBatchMaxAge = new FormData();
+    fdlBatchMaxAge.left = new FormAttachment( 0, 0 );
+    fdlBatchMaxAge.top = new FormAttachment( lastControl, margin );
+    fdlBatchMaxAge.right = new FormAttachment( middle, -margin );
+    m_wlBatchMaxAge.setLayoutData( fdlBatchMaxAge );
+    m_wBatchMaxAge = new TextVar( variables, wBatchingComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wBatchMaxAge );
+    m_wBatchMaxAge.addModifyListener( lsMod );
+    FormData fdBatchMaxAge = new FormData();
+    fdBatchMaxAge.left = new FormAttachment( middle, 0 );
+    fdBatchMaxAge.top = new FormAttachment( lastControl, margin );
+    fdBatchMaxAge.right = new FormAttachment( 100, 0 );
+    m_wBatchMaxAge.setLayoutData( fdBatchMaxAge );
+    lastControl = m_wBatchMaxAge;
+
+    FormData fdBatchingComp = new FormData();
+    fdBatchingComp.left = new FormAttachment( 0, 0 );
+    fdBatchingComp.top = new FormAttachment( 0, 0 );
+    fdBatchingComp.right = new FormAttachment( 100, 0 );
+    fdBatchingComp.bottom = new FormAttachment( 100, 0 );
+    wBatchingComp.setLayoutData( fdBatchingComp );
+
+    wBatchingComp.layout();
+    m_wBatchingTab.setControl( wBatchingComp );
+
+    // ====================
+    // TOPIC POLICIES TAB
+    // ====================
+    m_wPoliciesTab = new CTabItem( m_wTabFolder, SWT.NONE );
+    m_wPoliciesTab.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.PoliciesTab.Label" ) ); //$NON-NLS-1$
+
+    Composite wPoliciesComp = new Composite( m_wTabFolder, SWT.NONE );
+    props.setLook( wPoliciesComp );
+
+    FormLayout policiesCompLayout = new FormLayout();
+    policiesCompLayout.marginWidth = Const.FORM_MARGIN;
+    policiesCompLayout.marginHeight = Const.FORM_MARGIN;
+    wPoliciesComp.setLayout( policiesCompLayout );
+
+    Label wlPolicies = new Label( wPoliciesComp, SWT.LEFT );
+    wlPolicies.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Policies.Label" ) );
+    props.setLook( wlPolicies );
+    FormData fdlPolicies = new FormData();
+    fdlPolicies.left = new FormAttachment( 0, 0 );
+    fdlPolicies.top = new FormAttachment( 0, margin );
+    fdlPolicies.right = new FormAttachment( 100, 0 );
+    wlPolicies.setLayoutData( fdlPolicies );
+
+    String[] yesNo = new String[] { "Y", "N" };
+    ColumnInfo[] policyColumns =
+        new ColumnInfo[] {
+          new ColumnInfo( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Policies.Filter" ),
+              ColumnInfo.COLUMN_TYPE_TEXT, false ),
+          new ColumnInfo( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Policies.QoS" ),
+              ColumnInfo.COLUMN_TYPE_CCOMBO, new String[] { "", "0", "1", "2" }, false ),
+          new ColumnInfo( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Policies.Retained" ),
+              ColumnInfo.COLUMN_TYPE_CCOMBO, yesNo, true ),
+          new ColumnInfo( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Policies.Batch" ),
+              ColumnInfo.COLUMN_TYPE_CCOMBO, yesNo, true ),
+          new ColumnInfo( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Policies.Compress" ),
+              ColumnInfo.COLUMN_TYPE_CCOMBO, yesNo, true ),
+          new ColumnInfo( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Policies.RateLimit" ),
+              ColumnInfo.COLUMN_TYPE_TEXT, false ),
+        };
+    policyColumns[0].setUsingVariables( true );
+    policyColumns[0].setToolTip(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Policies.Filter.ToolTip" ) );
+    policyColumns[1].setUsingVariables( true );
+    policyColumns[1].setToolTip(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Policies.QoS.ToolTip" ) );
+    policyColumns[3].setToolTip(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Policies.Batch.ToolTip" ) );
+    policyColumns[4].setToolTip(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Policies.Compress.ToolTip" ) );
+    policyColumns[5].setUsingVariables( true );
+    policyColumns[5].setToolTip(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Policies.RateLimit.ToolTip" ) );
+
+    m_wPoliciesTable =
+        new TableView( variables, wPoliciesComp, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI, policyColumns, 3, lsMod,
+            props );
+    FormData fdPolicies = new FormData();
+    fdPolicies.left = new FormAttachment( 0, 0 );
+    fdPolicies.top = new FormAttachment( wlPolicies, margin );
+    fdPolicies.right = new FormAttachment( 100, 0 );
+    fdPolicies.bottom = new FormAttachment( 100, -margin );
+    m_wPoliciesTable.setLayoutData( fdPolicies );
+
+    FormData fdPoliciesComp = new FormData();
+    fdPoliciesComp.left = new FormAttachment( 0, 0 );
+    fdPoliciesComp.top = new FormAttachment( 0, 0 );
+    fdPoliciesComp.right = new FormAttachment( 100, 0 );
+    fdPoliciesComp.bottom = new FormAttachment( 100, 0 );
+    wPoliciesComp.setLayoutData( fdPoliciesComp );
+
+    wPoliciesComp.layout();
+    m_wPoliciesTab.setControl( wPoliciesComp );
+
+    // ====================
+    // FILTERING TAB
+    // ====================
+    m_wFilteringTab = new CTabItem( m_wTabFolder, SWT.NONE );
+    m_wFilteringTab.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.FilteringTab.Label" ) ); //$NON-NLS-1$
+
+    Composite wFilteringComp = new Composite( m_wTabFolder, SWT.NONE );
+    props.setLook( wFilteringComp );
+
+    FormLayout filteringCompLayout = new FormLayout();
+    filteringCompLayout.marginWidth = Const.FORM_MARGIN;
+    filteringCompLayout.marginHeight = Const.FORM_MARGIN;
+    wFilteringComp.setLayout( filteringCompLayout );
+
+    // Report by exception
+    Label wlReportByException = new Label( wFilteringComp, SWT.RIGHT );
+    wlReportByException.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.ReportByException.Label" ) );
+    wlReportByException.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ReportByException.ToolTip" ) );
+    props.setLook( wlReportByException );
+    FormData fdlReportByException = new FormData();
+    fdlReportByException.left = new FormAttachment( 0, 0 );
+    fdlReportByException.top = new FormAttachment( 0, margin * 2 );
+    fdlReportByException.right = new FormAttachment( middle, -margin );
+    wlReportByException.setLayoutData( fdlReportByException );
+    m_wReportByException = new Button( wFilteringComp, SWT.CHECK );
+    props.setLook( m_wReportByException );
+    FormData fdReportByException = new FormData();
+    fdReportByException.left = new FormAttachment( middle, 0 );
+    fdReportByException.top = new FormAttachment( 0, margin * 2 );
+    fdReportByException.right = new FormAttachment( 100, 0 );
+    m_wReportByException.setLayoutData( fdReportByException );
+    m_wReportByException.addSelectionListener( new SelectionAdapter() {
+      public void widgetSelected( SelectionEvent arg0 ) {
+        producerMeta.setChanged();
+        setReportByExceptionEnabled();
+      }
+    } );
+    lastControl = m_wReportByException;
+
+    // Deadband
+    m_wlDeadband = new Label( wFilteringComp, SWT.RIGHT );
+    m_wlDeadband.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.Deadband.Label" ) );
+    m_wlDeadband.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Deadband.ToolTip" ) );
+    props.setLook( m_wlDeadband );
+    FormData fdlDeadband = new FormData();
+    fdlDeadband.left = new FormAttachment( 0, 0 );
+    fdlDeadband.top = new FormAttachment( lastControl, margin );
+    fdlDeadband.right = new FormAttachment( middle, -margin );
+    m_wlDeadband.setLayoutData( fdlDeadband );
+    m_wDeadband = new TextVar( variables, wFilteringComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wDeadband );
+    m_wDeadband.addModifyListener( lsMod );
+    FormData fdDeadband = new FormData();
+    fdDeadband.left = new FormAttachment( middle, 0 );
+    fdDeadband.top = new FormAttachment( lastControl, margin );
+    fdDeadband.right = new FormAttachment( 100, 0 );
+    m_wDeadband.setLayoutData( fdDeadband );
+    lastControl = m_wDeadband;
+
+    // Deadband is a percentage
+    m_wlDeadbandPercent = new Label( wFilteringComp, SWT.RIGHT );
+    m_wlDeadbandPercent.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.DeadbandPercent.Label" ) );
+    m_wlDeadbandPercent.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.DeadbandPercent.ToolTip" ) );
+    props.setLook( m_wlDeadbandPercent );
+    FormData fdlDeadbandPercent = new FormData();
+    fdlDeadbandPercent.left = new FormAttachment( 0, 0 );
+    fdlDeadbandPercent.top = new FormAttachment( lastControl, margin );
+    fdlDeadbandPercent.right = new FormAttachment( middle, -margin );
+    m_wlDeadbandPercent.setLayoutData( fdlDeadbandPercent );
+    m_wDeadbandPercent = new Button( wFilteringComp, SWT.CHECK );
+    props.setLook( m_wDeadbandPercent );
+    FormData fdDeadbandPercent = new FormData();
+    fdDeadbandPercent.left = new FormAttachment( middle, 0 );
+    fdDeadbandPercent.top = new FormAttachment( lastControl, margin );
+    fdDeadbandPercent.right = new FormAttachment( 100, 0 );
+    m_wDeadbandPercent.setLayoutData( fdDeadbandPercent );
+    m_wDeadbandPercent.addSelectionListener( new SelectionAdapter() {
+      public void widgetSelected( SelectionEvent arg0 ) {
+        producerMeta.setChanged();
+      }
+    } );
+    lastControl = m_wDeadbandPercent;
+
+    // Heartbeat interval
+    m_wlHeartbeatInterval = new Label( wFilteringComp, SWT.RIGHT );
+    m_wlHeartbeatInterval.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.HeartbeatInterval.Label" ) );
+    m_wlHeartbeatInterval.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.HeartbeatInterval.ToolTip" ) );
+    props.setLook( m_wlHeartbeatInterval );
+    FormData fdlHeartbeatInterval = new FormData();
+    fdlHeartbeatInterval.left = new FormAttachment( 0, 0 );
+    fdlHeartbeatInterval.top = new FormAttachment( lastControl, margin );
+    fdlHeartbeatInterval.right = new FormAttachment( middle, -margin );
+    m_wlHeartbeatInterval.setLayoutData( fdlHeartbeatInterval );
+    m_wHeartbeatInterval = new TextVar( variables, wFilteringComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wHeartbeatInterval );
+    m_wHeartbeatInterval.addModifyListener( lsMod );
+    FormData fdHeartbeatInterval = new FormData();
+    fdHeartbeatInterval.left = new FormAttachment( middle, 0 );
+    fdHeartbeatInterval.top = new FormAttachment( lastControl, margin );
+    fdHeartbeatInterval.right = new FormAttachment( 100, 0 );
+    m_wHeartbeatInterval.setLayoutData( fdHeartbeatInterval );
+    lastControl = m_wHeartbeatInterval;
+
+    // Max tracked topics
+    m_wlMaxTrackedTopics = new Label( wFilteringComp, SWT.RIGHT );
+    m_wlMaxTrackedTopics.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.MaxTrackedTopics.Label" ) );
+    m_wlMaxTrackedTopics.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MaxTrackedTopics.ToolTip" ) );
+    props.setLook( m_wlMaxTrackedTopics );
+    FormData fdlMaxTrackedTopics = new FormData();
+    fdlMaxTrackedTopics.left = new FormAttachment( 0, 0 );
+    fdlMaxTrackedTopics.top = new FormAttachment( lastControl, margin );
+    fdlMaxTrackedTopics.right = new FormAttachment( middle, -margin );
+    m_wlMaxTrackedTopics.setLayoutData( fdlMaxTrackedTopics );
+    m_wMaxTrackedTopics = new TextVar( variables, wFilteringComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wMaxTrackedTopics );
+    m_wMaxTrackedTopics.addModifyListener( lsMod );
+    FormData fdMaxTrackedTopics = new FormData();
+    fdMaxTrackedTopics.left = new FormAttachment( middle, 0 );
+    fdMaxTrackedTopics.top = new FormAttachment( lastControl, margin );
+    fdMaxTrackedTopics.right = new FormAttachment( 100, 0 );
+    m_wMaxTrackedTopics.setLayoutData( fdMaxTrackedTopics );
+    lastControl = m_wMaxTrackedTopics;
+
+    // Conflate
+    Label wlConflate = new Label( wFilteringComp, SWT.RIGHT );
+    wlConflate.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.Conflate.Label" ) );
+    wlConflate.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Conflate.ToolTip" ) );
+    props.setLook( wlConflate );
+    FormData fdlConflate = new FormData();
+    fdlConflate.left = new FormAttachment( 0, 0 );
+    fdlConflate.top = new FormAttachment( lastControl, margin );
+    fdlConflate.right = new FormAttachment( middle, -margin );
+    wlConflate.setLayoutData( fdlConflate );
+    m_wConflate = new Button( wFilteringComp, SWT.CHECK );
+    props.setLook( m_wConflate );
+    FormData fdConflate = new FormData();
+    fdConflate.left = new FormAttachment( middle, 0 );
+    fdConflate.top = new FormAttachment( lastControl, margin );
+    fdConflate.right = new FormAttachment( 100, 0 );
+    m_wConflate.setLayoutData( fdConflate );
+    m_wConflate.addSelectionListener( new SelectionAdapter() {
+      public void widgetSelected( SelectionEvent arg0 ) {
+        producerMeta.setChanged();
+        setConflationEnabled();
+      }
+    } );
+    lastControl = m_wConflate;
+
+    // Conflation window
+    m_wlConflationWindow = new Label( wFilteringComp, SWT.RIGHT );
+    m_wlConflationWindow.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.ConflationWindow.Label" ) );
+    props.setLook( m_wlConflationWindow );
+    FormData fdlConflationWindow = new FormData();
+    fdlConflationWindow.left = new FormAttachment( 0, 0 );
+    fdlConflationWindow.top = new FormAttachment( lastControl, margin );
+    fdlConflationWindow.right = new FormAttachment( middle, -margin );
+    m_wlConflationWindow.setLayoutData( fdlConflationWindow );
+    m_wConflationWindow = new TextVar( variables, wFilteringComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wConflationWindow );
+    m_wConflationWindow.addModifyListener( lsMod );
+    FormData fdConflationWindow = new FormData();
+    fdConflationWindow.left = new FormAttachment( middle, 0 );
+    fdConflationWindow.top = new FormAttachment( lastControl, margin );
+    fdConflationWindow.right = new FormAttachment( 100, 0 );
+    m_wConflationWindow.setLayoutData( fdConflationWindow );
+    lastControl = m_wConflationWindow;
+
+    // Conflation max topics
+    m_wlConflationMaxTopics = new Label( wFilteringComp, SWT.RIGHT );
+    m_wlConflationMaxTopics.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.ConflationMaxTopics.Label" ) );
+    m_wlConflationMaxTopics.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ConflationMaxTopics.ToolTip" ) );
+    props.setLook( m_wlConflationMaxTopics );
+    FormData fdlConflationMaxTopics = new FormData();
+    fdlConflationMaxTopics.left = new FormAttachment( 0, 0 );
+    fdlConflationMaxTopics.top = new FormAttachment( lastControl, margin );
+    fdlConflationMaxTopics.right = new FormAttachment( middle, -margin );
+    m_wlConflationMaxTopics.setLayoutData( fdlConflationMaxTopics );
+    m_wConflationMaxTopics = new TextVar( variables, wFilteringComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wConflationMaxTopics );
+    m_wConflationMaxTopics.addModifyListener( lsMod );
+    FormData fdConflationMaxTopics = new FormData();
+    fdConflationMaxTopics.left = new FormAttachment( middle, 0 );
+    fdConflationMaxTopics.top = new FormAttachment( lastControl, margin );
+    fdConflationMaxTopics.right = new FormAttachment( 100, 0 );
+    m_wConflationMaxTopics.setLayoutData( fdConflationMaxTopics );
+    lastControl = m_wConflationMaxTopics;
+
+    FormData fdFilteringComp = new FormData();
+    fdFilteringComp.left = new FormAttachment( 0, 0 );
+    fdFilteringComp.top = new FormAttachment( 0, 0 );
+    fdFilteringComp.right = new FormAttachment( 100, 0 );
+    fdFilteringComp.bottom = new FormAttachment( 100, 0 );
+    wFilteringComp.setLayoutData( fdFilteringComp );
+
+    wFilteringComp.layout();
+    m_wFilteringTab.setControl( wFilteringComp );
+
+    // ====================
+    // RECEIPTS TAB
+    // ====================
+    m_wReceiptsTab = new CTabItem( m_wTabFolder, SWT.NONE );
+    m_wReceiptsTab.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.ReceiptsTab.Label" ) ); //$NON-NLS-1$
+
+    Composite wReceiptsComp = new Composite( m_wTabFolder, SWT.NONE );
+    props.setLook( wReceiptsComp );
+
+    FormLayout receiptsCompLayout = new FormLayout();
+    receiptsCompLayout.marginWidth = Const.FORM_MARGIN;
+    receiptsCompLayout.marginHeight = Const.FORM_MARGIN;
+    wReceiptsComp.setLayout( receiptsCompLayout );
+
+    // Output receipts
+    Label wlOutputReceipts = new Label( wReceiptsComp, SWT.RIGHT );
+    wlOutputReceipts.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.OutputReceipts.Label" ) );
+    wlOutputReceipts.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.OutputReceipts.ToolTip" ) );
+    props.setLook( wlOutputReceipts );
+    FormData fdlOutputReceipts = new FormData();
+    fdlOutputReceipts.left = new FormAttachment( 0, 0 );
+    fdlOutputReceipts.top = new FormAttachment( 0, margin * 2 );
+    fdlOutputReceipts.right = new FormAttachment( middle, -margin );
+    wlOutputReceipts.setLayoutData( fdlOutputReceipts );
+    m_wOutputReceipts = new Button( wReceiptsComp, SWT.CHECK );
+    props.setLook( m_wOutputReceipts );
+    FormData fdOutputReceipts = new FormData();
+    fdOutputReceipts.left = new FormAttachment( middle, 0 );
+    fdOutputReceipts.top = new FormAttachment( 0, margin * 2 );
+    fdOutputReceipts.right = new FormAttachment( 100, 0 );
+    m_wOutputReceipts.setLayoutData( fdOutputReceipts );
+    m_wOutputReceipts.addSelectionListener( new SelectionAdapter() {
+      public void widgetSelected( SelectionEvent arg0 ) {
+        producerMeta.setChanged();
+        setReceiptsEnabled();
+      }
+    } );
+    lastControl = m_wOutputReceipts;
+
+    // Message id field
+    m_wlReceiptMessageIdField = new Label( wReceiptsComp, SWT.RIGHT );
+    m_wlReceiptMessageIdField.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.ReceiptMessageIdField.Label" ) );
+    props.setLook( m_wlReceiptMessageIdField );
+    FormData fdlReceiptMessageIdField = new FormData();
+    fdlReceiptMessageIdField.left = new FormAttachment( 0, 0 );
+    fdlReceiptMessageIdField.top = new FormAttachment( lastControl, margin );
+    fdlReceiptMessageIdField.right = new FormAttachment( middle, -margin );
+    m_wlReceiptMessageIdField.setLayoutData( fdlReceiptMessageIdField );
+    m_wReceiptMessageIdField = new TextVar( variables, wReceiptsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wReceiptMessageIdField );
+    m_wReceiptMessageIdField.addModifyListener( lsMod );
+    FormData fdReceiptMessageIdField = new FormData();
+    fdReceiptMessageIdField.left = new FormAttachment( middle, 0 );
+    fdReceiptMessageIdField.top = new FormAttachment( lastControl, margin );
+    fdReceiptMessageIdField.right = new FormAttachment( 100, 0 );
+    m_wReceiptMessageIdField.setLayoutData( fdReceiptMessageIdField );
+    lastControl = m_wReceiptMessageIdField;
+
+    // Topic field
+    m_wlReceiptTopicField = new Label( wReceiptsComp, SWT.RIGHT );
+    m_wlReceiptTopicField.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.ReceiptTopicField.Label" ) );
+    props.setLook( m_wlReceiptTopicField );
+    FormData fdlReceiptTopicField = new FormData();
+    fdlReceiptTopicField.left = new FormAttachment( 0, 0 );
+    fdlReceiptTopicField.top = new FormAttachment( lastControl, margin );
+    fdlReceiptTopicField.right = new FormAttachment( middle, -margin );
+    m_wlReceiptTopicField.setLayoutData( fdlReceiptTopicField );
+    m_wReceiptTopicField = new TextVar( variables, wReceiptsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wReceiptTopicField );
+    m_wReceiptTopicField.addModifyListener( lsMod );
+    FormData fdReceiptTopicField = new FormData();
+    fdReceiptTopicField.left = new FormAttachment( middle, 0 );
+    fdReceiptTopicField.top = new FormAttachment( lastControl, margin );
+    fdReceiptTopicField.right = new FormAttachment( 100, 0 );
+    m_wReceiptTopicField.setLayoutData( fdReceiptTopicField );
+    lastControl = m_wReceiptTopicField;
+
+    // Payload size field
+    m_wlReceiptPayloadSizeField = new Label( wReceiptsComp, SWT.RIGHT );
+    m_wlReceiptPayloadSizeField.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.ReceiptPayloadSizeField.Label" ) );
+    props.setLook( m_wlReceiptPayloadSizeField );
+    FormData fdlReceiptPayloadSizeField = new FormData();
+    fdlReceiptPayloadSizeField.left = new FormAttachment( 0, 0 );
+    fdlReceiptPayloadSizeField.top = new FormAttachment( lastControl, margin );
+    fdlReceiptPayloadSizeField.right = new FormAttachment( middle, -margin );
+    m_wlReceiptPayloadSizeField.setLayoutData( fdlReceiptPayloadSizeField );
+    m_wReceiptPayloadSizeField = new TextVar( variables, wReceiptsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wReceiptPayloadSizeField );
+    m_wReceiptPayloadSizeField.addModifyListener( lsMod );
+    FormData fdReceiptPayloadSizeField = new FormData();
+    fdReceiptPayloadSizeField.left = new FormAttachment( middle, 0 );
+    fdReceiptPayloadSizeField.top = new FormAttachment( lastControl, margin );
+    fdReceiptPayloadSizeField.right = new FormAttachment( 100, 0 );
+    m_wReceiptPayloadSizeField.setLayoutData( fdReceiptPayloadSizeField );
+    lastControl = m_wReceiptPayloadSizeField;
+
+    // Sent at field
+    m_wlReceiptSentAtField = new Label( wReceiptsComp, SWT.RIGHT );
+    m_wlReceiptSentAtField.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.ReceiptSentAtField.Label" ) );
+    props.setLook( m_wlReceiptSentAtField );
+    FormData fdlReceiptSentAtField = new FormData();
+    fdlReceiptSentAtField.left = new FormAttachment( 0, 0 );
+    fdlReceiptSentAtField.top = new FormAttachment( lastControl, margin );
+    fdlReceiptSentAtField.right = new FormAttachment( middle, -margin );
+    m_wlReceiptSentAtField.setLayoutData( fdlReceiptSentAtField );
+    m_wReceiptSentAtField = new TextVar( variables, wReceiptsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wReceiptSentAtField );
+    m_wReceiptSentAtField.addModifyListener( lsMod );
+    FormData fdReceiptSentAtField = new FormData();
+    fdReceiptSentAtField.left = new FormAttachment( middle, 0 );
+    fdReceiptSentAtField.top = new FormAttachment( lastControl, margin );
+    fdReceiptSentAtField.right = new FormAttachment( 100, 0 );
+    m_wReceiptSentAtField.setLayoutData( fdReceiptSentAtField );
+    lastControl = m_wReceiptSentAtField;
+
+    // Acknowledged at field
+    m_wlReceiptAckedAtField = new Label( wReceiptsComp, SWT.RIGHT );
+    m_wlReceiptAckedAtField.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.ReceiptAckedAtField.Label" ) );
+    props.setLook( m_wlReceiptAckedAtField );
+    FormData fdlReceiptAckedAtField = new FormData();
+    fdlReceiptAckedAtField.left = new FormAttachment( 0, 0 );
+    fdlReceiptAckedAtField.top = new FormAttachment( lastControl, margin );
+    fdlReceiptAckedAtField.right = new FormAttachment( middle, -margin );
+    m_wlReceiptAckedAtField.setLayoutData( fdlReceiptAckedAtField );
+    m_wReceiptAckedAtField = new TextVar( variables, wReceiptsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wReceiptAckedAtField );
+    m_wReceiptAckedAtField.addModifyListener( lsMod );
+    FormData fdReceiptAckedAtField = new FormData();
+    fdReceiptAckedAtField.left = new FormAttachment( middle, 0 );
+    fdReceiptAckedAtField.top = new FormAttachment( lastControl, margin );
+    fdReceiptAckedAtField.right = new FormAttachment( 100, 0 );
+    m_wReceiptAckedAtField.setLayoutData( fdReceiptAckedAtField );
+    lastControl = m_wReceiptAckedAtField;
+
+    // Ack latency field
+    m_wlReceiptAckLatencyField = new Label( wReceiptsComp, SWT.RIGHT );
+    m_wlReceiptAckLatencyField.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.ReceiptAckLatencyField.Label" ) );
+    props.setLook( m_wlReceiptAckLatencyField );
+    FormData fdlReceiptAckLatencyField = new FormData();
+    fdlReceiptAckLatencyField.left = new FormAttachment( 0, 0 );
+    fdlReceiptAckLatencyField.top = new FormAttachment( lastControl, margin );
+    fdlReceiptAckLatencyField.right = new FormAttachment( middle, -margin );
+    m_wlReceiptAckLatencyField.setLayoutData( fdlReceiptAckLatencyField );
+    m_wReceiptAckLatencyField = new TextVar( variables, wReceiptsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wReceiptAckLatencyField );
+    m_wReceiptAckLatencyField.addModifyListener( lsMod );
+    FormData fdReceiptAckLatencyField = new FormData();
+    fdReceiptAckLatencyField.left = new FormAttachment( middle, 0 );
+    fdReceiptAckLatencyField.top = new FormAttachment( lastControl, margin );
+    fdReceiptAckLatencyField.right = new FormAttachment( 100, 0 );
+    m_wReceiptAckLatencyField.setLayoutData( fdReceiptAckLatencyField );
+    lastControl = m_wReceiptAckLatencyField;
+
+    FormData fdReceiptsComp = new FormData();
+    fdReceiptsComp.left = new FormAttachment( 0, 0 );
+    fdReceiptsComp.top = new FormAttachment( 0, 0 );
+    fdReceiptsComp.right = new FormAttachment( 100, 0 );
+    fdReceiptsComp.bottom = new FormAttachment( 100, 0 );
+    wReceiptsComp.setLayoutData( fdReceiptsComp );
+
+    wReceiptsComp.layout();
+    m_wReceiptsTab.setControl( wReceiptsComp );
+
+    // ====================
+    // RECONNECT TAB
+    // ====================
+    m_wReconnectTab = new CTabItem( m_wTabFolder, SWT.NONE );
+    m_wReconnectTab.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.ReconnectTab.Label" ) ); //$NON-NLS-1$
+
+    Composite wReconnectComp = new Composite( m_wTabFolder, SWT.NONE );
+    props.setLook( wReconnectComp );
+
+    FormLayout reconnectCompLayout = new FormLayout();
+    reconnectCompLayout.marginWidth = Const.FORM_MARGIN;
+    reconnectCompLayout.marginHeight = Const.FORM_MARGIN;
+    wReconnectComp.setLayout( reconnectCompLayout );
+
+    // Auto reconnect
+    Label wlAutoReconnect = new Label( wReconnectComp, SWT.RIGHT );
+    wlAutoReconnect.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.AutoReconnect.Label" ) );
+    wlAutoReconnect.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.AutoReconnect.ToolTip" ) );
+    props.setLook( wlAutoReconnect );
+    FormData fdlAutoReconnect = new FormData();
+    fdlAutoReconnect.left = new FormAttachment( 0, 0 );
+    fdlAutoReconnect.top = new FormAttachment( 0, margin * 2 );
+    fdlAutoReconnect.right = new FormAttachment( middle, -margin );
+    wlAutoReconnect.setLayoutData( fdlAutoReconnect );
+    m_wAutoReconnect = new Button( wReconnectComp, SWT.CHECK );
+    props.setLook( m_wAutoReconnect );
+    FormData fdAutoReconnect = new FormData();
+    fdAutoReconnect.left = new FormAttachment( middle, 0 );
+    fdAutoReconnect.top = new FormAttachment( 0, margin * 2 );
+    fdAutoReconnect.right = new FormAttachment( 100, 0 );
+    m_wAutoReconnect.setLayoutData( fdAutoReconnect );
+    m_wAutoReconnect.addSelectionListener( new SelectionAdapter() {
+      public void widgetSelected( SelectionEvent arg0 ) {
+        producerMeta.setChanged();
+        setReconnectEnabled();
+      }
+    } );
+    lastControl = m_wAutoReconnect;
+
+    // Initial reconnect delay
+    m_wlReconnectMinDelay = new Label( wReconnectComp, SWT.RIGHT );
+    m_wlReconnectMinDelay.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.ReconnectMinDelay.Label" ) );
+    m_wlReconnectMinDelay.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ReconnectMinDelay.ToolTip" ) );
+    props.setLook( m_wlReconnectMinDelay );
+    FormData fdlReconnectMinDelay = new FormData();
+    fdlReconnectMinDelay.left = new FormAttachment( 0, 0 );
+    fdlReconnectMinDelay.top = new FormAttachment( lastControl, margin );
+    fdlReconnectMinDelay.right = new FormAttachment( middle, -margin );
+    m_wlReconnectMinDelay.setLayoutData( fdlReconnectMinDelay );
+    m_wReconnectMinDelay = new TextVar( variables, wReconnectComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wReconnectMinDelay );
+    m_wReconnectMinDelay.addModifyListener( lsMod );
+    FormData fdReconnectMinDelay = new FormData();
+    fdReconnectMinDelay.left = new FormAttachment( middle, 0 );
+    fdReconnectMinDelay.top = new FormAttachment( lastControl, margin );
+    fdReconnectMinDelay.right = new FormAttachment( 100, 0 );
+    m_wReconnectMinDelay.setLayoutData( fdReconnectMinDelay );
+    lastControl = m_wReconnectMinDelay;
+
+    // Maximum reconnect delay
+    m_wlReconnectMaxDelay = new Label( wReconnectComp, SWT.RIGHT );
+    m_wlReconnectMaxDelay.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.ReconnectMaxDelay.Label" ) );
+    m_wlReconnectMaxDelay.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ReconnectMaxDelay.ToolTip" ) );
+    props.setLook( m_wlReconnectMaxDelay );
+    FormData fdlReconnectMaxDelay = new FormData();
+    fdlReconnectMaxDelay.left = new FormAttachment( 0, 0 );
+    fdlReconnectMaxDelay.top = new FormAttachment( lastControl, margin );
+    fdlReconnectMaxDelay.right = new FormAttachment( middle, -margin );
+    m_wlReconnectMaxDelay.setLayoutData( fdlReconnectMaxDelay );
+    m_wReconnectMaxDelay = new TextVar( variables, wReconnectComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wReconnectMaxDelay );
+    m_wReconnectMaxDelay.addModifyListener( lsMod );
+    FormData fdReconnectMaxDelay = new FormData();
+    fdReconnectMaxDelay.left = new FormAttachment( middle, 0 );
+    fdReconnectMaxDelay.top = new FormAttachment( lastControl, margin );
+    fdReconnectMaxDelay.right = new FormAttachment( 100, 0 );
+    m_wReconnectMaxDelay.setLayoutData( fdReconnectMaxDelay );
+    lastControl = m_wReconnectMaxDelay;
+
+    // Offline buffer size
+    m_wlOfflineBufferSize = new Label( wReconnectComp, SWT.RIGHT );
+    m_wlOfflineBufferSize.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.OfflineBufferSize.Label" ) );
+    m_wlOfflineBufferSize.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.OfflineBufferSize.ToolTip" ) );
+    props.setLook( m_wlOfflineBufferSize );
+    FormData fdlOfflineBufferSize = new FormData();
+    fdlOfflineBufferSize.left = new FormAttachment( 0, 0 );
+    fdlOfflineBufferSize.top = new FormAttachment( lastControl, margin );
+    fdlOfflineBufferSize.right = new FormAttachment( middle, -margin );
+    m_wlOfflineBufferSize.setLayoutData( fdlOfflineBufferSize );
+    m_wOfflineBufferSize = new TextVar( variables, wReconnectComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wOfflineBufferSize );
+    m_wOfflineBufferSize.addModifyListener( lsMod );
+    FormData fdOfflineBufferSize = new FormData();
+    fdOfflineBufferSize.left = new FormAttachment( middle, 0 );
+    fdOfflineBufferSize.top = new FormAttachment( lastControl, margin );
+    fdOfflineBufferSize.right = new FormAttachment( 100, 0 );
+    m_wOfflineBufferSize.setLayoutData( fdOfflineBufferSize );
+    lastControl = m_wOfflineBufferSize;
+
+    // Offline buffer overflow policy
+    m_wlOfflineOverflow = new Label( wReconnectComp, SWT.RIGHT );
+    m_wlOfflineOverflow.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.OfflineOverflow.Label" ) );
+    m_wlOfflineOverflow.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.OfflineOverflow.ToolTip" ) );
+    props.setLook( m_wlOfflineOverflow );
+    FormData fdlOfflineOverflow = new FormData();
+    fdlOfflineOverflow.left = new FormAttachment( 0, 0 );
+    fdlOfflineOverflow.top = new FormAttachment( lastControl, margin );
+    fdlOfflineOverflow.right = new FormAttachment( middle, -margin );
+    m_wlOfflineOverflow.setLayoutData( fdlOfflineOverflow );
+    m_wOfflineOverflow = new CCombo( wReconnectComp, SWT.SINGLE | SWT.READ_ONLY | SWT.BORDER );
+    props.setLook( m_wOfflineOverflow );
+    for ( OfflineBuffer.OverflowPolicy policy : OfflineBuffer.OverflowPolicy.values() ) {
+      m_wOfflineOverflow.add( BaseMessages.getString( MQTTPublisherMeta.PKG,
+          "MQTTClientDialog.OfflineOverflow." + policy.name() ) );
+    }
+    m_wOfflineOverflow.addModifyListener( lsMod );
+    FormData fdOfflineOverflow = new FormData();
+    fdOfflineOverflow.left = new FormAttachment( middle, 0 );
+    fdOfflineOverflow.top = new FormAttachment( lastControl, margin );
+    fdOfflineOverflow.right = new FormAttachment( 100, 0 );
+    m_wOfflineOverflow.setLayoutData( fdOfflineOverflow );
+    lastControl = m_wOfflineOverflow;
+
+    // Durable outbox
+    Label wlDurableOutbox = new Label( wReconnectComp, SWT.RIGHT );
+    wlDurableOutbox.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.DurableOutbox.Label" ) );
+    wlDurableOutbox.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.DurableOutbox.ToolTip" ) );
+    props.setLook( wlDurableOutbox );
+    FormData fdlDurableOutbox = new FormData();
+    fdlDurableOutbox.left = new FormAttachment( 0, 0 );
+    fdlDurableOutbox.top = new FormAttachment( lastControl, margin );
+    fdlDurableOutbox.right = new FormAttachment( middle, -margin );
+    wlDurableOutbox.setLayoutData( fdlDurableOutbox );
+    m_wDurableOutbox = new Button( wReconnectComp, SWT.CHECK );
+    props.setLook( m_wDurableOutbox );
+    FormData fdDurableOutbox = new FormData();
+    fdDurableOutbox.left = new FormAttachment( middle, 0 );
+    fdDurableOutbox.top = new FormAttachment( lastControl, margin );
+    fdDurableOutbox.right = new FormAttachment( 100, 0 );
+    m_wDurableOutbox.setLayoutData( fdDurableOutbox );
+    m_wDurableOutbox.addSelectionListener( new SelectionAdapter() {
+      public void widgetSelected( SelectionEvent arg0 ) {
+        producerMeta.setChanged();
+        setOutboxEnabled();
+      }
+    } );
+    lastControl = m_wDurableOutbox;
+
+    // Outbox directory
+    m_wlOutboxDirectory = new Label( wReconnectComp, SWT.RIGHT );
+    m_wlOutboxDirectory.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.OutboxDirectory.Label" ) );
+    m_wlOutboxDirectory.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.OutboxDirectory.ToolTip" ) );
+    props.setLook( m_wlOutboxDirectory );
+    FormData fdlOutboxDirectory = new FormData();
+    fdlOutboxDirectory.left = new FormAttachment( 0, 0 );
+    fdlOutboxDirectory.top = new FormAttachment( lastControl, margin );
+    fdlOutboxDirectory.right = new FormAttachment( middle, -margin );
+    m_wlOutboxDirectory.setLayoutData( fdlOutboxDirectory );
+    m_wOutboxDirectory = new TextVar( variables, wReconnectComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wOutboxDirectory );
+    m_wOutboxDirectory.addModifyListener( lsMod );
+    FormData fdOutboxDirectory = new FormData();
+    fdOutboxDirectory.left = new FormAttachment( middle, 0 );
+    fdOutboxDirectory.top = new FormAttachment( lastControl, margin );
+    fdOutboxDirectory.right = new FormAttachment( 100, 0 );
+    m_wOutboxDirectory.setLayoutData( fdOutboxDirectory );
+    lastControl = m_wOutboxDirectory;
+
+    // Outbox segment size
+    m_wlOutboxSegmentSize = new Label( wReconnectComp, SWT.RIGHT );
+    m_wlOutboxSegmentSize.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.OutboxSegmentSize.Label" ) );
+    m_wlOutboxSegmentSize.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.OutboxSegmentSize.ToolTip" ) );
+    props.setLook( m_wlOutboxSegmentSize );
+    FormData fdlOutboxSegmentSize = new FormData();
+    fdlOutboxSegmentSize.left = new FormAttachment( 0, 0 );
+    fdlOutboxSegmentSize.top = new FormAttachment( lastControl, margin );
+    fdlOutboxSegmentSize.right = new FormAttachment( middle, -margin );
+    m_wlOutboxSegmentSize.setLayoutData( fdlOutboxSegmentSize );
+    m_wOutboxSegmentSize = new TextVar( variables, wReconnectComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wOutboxSegmentSize );
+    m_wOutboxSegmentSize.addModifyListener( lsMod );
+    FormData fdOutboxSegmentSize = new FormData();
+    fdOutboxSegmentSize.left = new FormAttachment( middle, 0 );
+    fdOutboxSegmentSize.top = new FormAttachment( lastControl, margin );
+    fdOutboxSegmentSize.right = new FormAttachment( 100, 0 );
+    m_wOutboxSegmentSize.setLayoutData( fdOutboxSegmentSize );
+    lastControl = m_wOutboxSegmentSize;
+
+    // Outbox sync interval
+    m_wlOutboxSyncInterval = new Label( wReconnectComp, SWT.RIGHT );
+    m_wlOutboxSyncInterval.setText( BaseMessages.getString( MQTTPublisherMeta.PKG,
+        "MQTTClientDialog.OutboxSyncInterval.Label" ) );
+    m_wlOutboxSyncInterval.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.OutboxSyncInterval.ToolTip" ) );
+    props.setLook( m_wlOutboxSyncInterval );
+    FormData fdlOutboxSyncInterval = new FormData();
+    fdlOutboxSyncInterval.left = new FormAttachment( 0, 0 );
+    fdlOutboxSyncInterval.top = new FormAttachment( lastControl, margin );
+    fdlOutboxSyncInterval.right = new FormAttachment( middle, -margin );
+    m_wlOutboxSyncInterval.setLayoutData( fdlOutboxSyncInterval );
+    m_wOutboxSyncInterval = new TextVar( variables, wReconnectComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wOutboxSyncInterval );
+    m_wOutboxSyncInterval.addModifyListener( lsMod );
+    FormData fdOutboxSyncInterval = new FormData();
+    fdOutboxSyncInterval.left = new FormAttachment( middle, 0 );
+    fdOutboxSyncInterval.top = new FormAttachment( lastControl, margin );
+    fdOutboxSyncInterval.right = new FormAttachment( 100, 0 );
+    m_wOutboxSyncInterval.setLayoutData( fdOutboxSyncInterval );
+    lastControl = m_wOutboxSyncInterval;
+
+    FormData fdReconnectComp = new FormData();
+    fdReconnectComp.left = new FormAttachment( 0, 0 );
+    fdReconnectComp.top = new FormAttachment( 0, 0 );
+    fdReconnectComp.right = new FormAttachment( 100, 0 );
+    fdReconnectComp.bottom = new FormAttachment( 100, 0 );
+    wReconnectComp.setLayoutData( fdReconnectComp );
+
+    wReconnectComp.layout();
+    m_wReconnectTab.setControl( wReconnectComp );
+
     // ====================
     // BUTTONS
     // ====================
@@ -797,9 +2090,81 @@ public class MQTTPublisherDialog extends BaseTransformDialog implements ITransfo
     }
   }
 
+  private void setAutoTuneEnabled() {
+    boolean enabled = m_wAsyncPublish.getSelection() && m_wAutoTune.getSelection();
+    m_wlAutoTuneMaxInflight.setEnabled( enabled );
+    m_wAutoTuneMaxInflight.setEnabled( enabled );
+    m_wlAutoTuneTargetLatency.setEnabled( enabled );
+    m_wAutoTuneTargetLatency.setEnabled( enabled );
+  }
+
   /**
    * Copy information from the meta-data input to the dialog fields.
    */
+  private void setReportByExceptionEnabled() {
+    boolean enabled = m_wReportByException.getSelection();
+    m_wlDeadband.setEnabled( enabled );
+    m_wDeadband.setEnabled( enabled );
+    m_wlDeadbandPercent.setEnabled( enabled );
+    m_wDeadbandPercent.setEnabled( enabled );
+    m_wlHeartbeatInterval.setEnabled( enabled );
+    m_wHeartbeatInterval.setEnabled( enabled );
+    m_wlMaxTrackedTopics.setEnabled( enabled );
+    m_wMaxTrackedTopics.setEnabled( enabled );
+  }
+
+  private void setConflationEnabled() {
+    boolean enabled = m_wConflate.getSelection();
+    m_wlConflationWindow.setEnabled( enabled );
+    m_wConflationWindow.setEnabled( enabled );
+    m_wlConflationMaxTopics.setEnabled( enabled );
+    m_wConflationMaxTopics.setEnabled( enabled );
+  }
+
+  private void setReceiptsEnabled() {
+    boolean enabled = m_wOutputReceipts.getSelection();
+    m_wlReceiptMessageIdField.setEnabled( enabled );
+    m_wReceiptMessageIdField.setEnabled( enabled );
+    m_wlReceiptTopicField.setEnabled( enabled );
+    m_wReceiptTopicField.setEnabled( enabled );
+    m_wlReceiptPayloadSizeField.setEnabled( enabled );
+    m_wReceiptPayloadSizeField.setEnabled( enabled );
+    m_wlReceiptSentAtField.setEnabled( enabled );
+    m_wReceiptSentAtField.setEnabled( enabled );
+    m_wlReceiptAckedAtField.setEnabled( enabled );
+    m_wReceiptAckedAtField.setEnabled( enabled );
+    m_wlReceiptAckLatencyField.setEnabled( enabled );
+    m_wReceiptAckLatencyField.setEnabled( enabled );
+  }
+
+  private void setReconnectEnabled() {
+    boolean enabled = m_wAutoReconnect.getSelection();
+    m_wlReconnectMinDelay.setEnabled( enabled );
+    m_wReconnectMinDelay.setEnabled( enabled );
+    m_wlReconnectMaxDelay.setEnabled( enabled );
+    m_wReconnectMaxDelay.setEnabled( enabled );
+    m_wlOfflineBufferSize.setEnabled( enabled );
+    m_wOfflineBufferSize.setEnabled( enabled );
+    m_wlOfflineOverflow.setEnabled( enabled );
+    m_wOfflineOverflow.setEnabled( enabled );
+  }
+
+  private void setOutboxEnabled() {
+    boolean enabled = m_wDurableOutbox.getSelection();
+    m_wlOutboxDirectory.setEnabled( enabled );
+    m_wOutboxDirectory.setEnabled( enabled );
+    m_wlOutboxSegmentSize.setEnabled( enabled );
+    m_wOutboxSegmentSize.setEnabled( enabled );
+    m_wlOutboxSyncInterval.setEnabled( enabled );
+    m_wOutboxSyncInterval.setEnabled( enabled );
+  }
+
+  private void setObjectClassesEnabled() {
+    boolean enabled = m_wObjectFormat.getSelectionIndex() == ObjectCodec.Format.COMPACT.ordinal();
+    m_wlObjectClasses.setEnabled( enabled );
+    m_wObjectClasses.setEnabled( enabled );
+  }
+
   private void getData( MQTTPublisherMeta producerMeta, boolean copyStepname ) {
     if ( copyStepname ) {
       wTransformName.setText( transformName );
@@ -807,6 +2172,7 @@ public class MQTTPublisherDialog extends BaseTransformDialog implements ITransfo
     m_wBroker.setText( Const.NVL( producerMeta.getBroker(), "" ) );
     m_wTopicName.setText( Const.NVL( producerMeta.getTopic(), "" ) );
     m_wTopicFromIncomingField.setSelection( producerMeta.getTopicIsFromField() );
+    m_wTopicIsTemplate.setSelection( producerMeta.getTopicIsTemplate() );
     m_wInputField.setText( Const.NVL( producerMeta.getField(), "" ) );
     m_wClientID.setText( Const.NVL( producerMeta.getClientId(), "" ) );
     m_wTimeout.setText( Const.NVL( producerMeta.getTimeout(), "10000" ) );
@@ -816,6 +2182,9 @@ public class MQTTPublisherDialog extends BaseTransformDialog implements ITransfo
 	m_wLastWillTopicName.setText(Const.NVL(producerMeta.getLastWillTopic(),""));
     m_wLastWillMessage.setText(Const.NVL(producerMeta.getLastWillMessage(),""));
 	m_wLastWillRetain.setSelection( producerMeta.isLastWillRetained() );
+    m_wObjectFormat.select( ObjectCodec.Format.fromName( producerMeta.getObjectFormat() ).ordinal() );
+    m_wObjectClasses.setText( Const.NVL( producerMeta.getObjectClasses(), "" ) );
+    setObjectClassesEnabled();
 	m_wRetain.setSelection( producerMeta.isRetained() );
 	
 	m_wRequiresAuth.setSelection( producerMeta.isRequiresAuth() );
@@ -829,6 +2198,74 @@ public class MQTTPublisherDialog extends BaseTransformDialog implements ITransfo
     m_wKeyFile.setText( Const.NVL( producerMeta.getSSLKeyFile(), "" ) );
     m_wKeyPassword.setText( Const.NVL( producerMeta.getSSLKeyFilePass(), "" ) );
 
+    m_wAutoTune.setSelection( producerMeta.isAutoTune() );
+    m_wAsyncPublish.setSelection( producerMeta.isAsyncPublish() );
+    m_wAsyncPublish.notifyListeners( SWT.Selection, new Event() );
+    m_wMaxInflight.setText( Const.NVL( producerMeta.getMaxInflight(), "100" ) );
+    m_wDrainTimeout.setText( Const.NVL( producerMeta.getDrainTimeout(), "30" ) );
+    m_wAutoTuneMaxInflight.setText( Const.NVL( producerMeta.getAutoTuneMaxInflight(), "1000" ) );
+    m_wAutoTuneTargetLatency.setText( Const.NVL( producerMeta.getAutoTuneTargetLatency(), "500" ) );
+    m_wRateLimitMessages.setText( Const.NVL( producerMeta.getRateLimitMessages(), "" ) );
+    m_wRateLimitBytes.setText( Const.NVL( producerMeta.getRateLimitBytes(), "" ) );
+    m_wConnectionsPerCopy.setText( Const.NVL( producerMeta.getConnectionsPerCopy(), "1" ) );
+    m_wConnectOnInit.setSelection( producerMeta.isConnectOnInit() );
+    m_wWarmUpTopic.setText( Const.NVL( producerMeta.getWarmUpTopic(), "" ) );
+
+    m_wBatchMessages.setSelection( producerMeta.isBatchMessages() );
+    m_wBatchMessages.notifyListeners( SWT.Selection, new Event() );
+    m_wBatchFormat.select( BatchFraming.fromName( producerMeta.getBatchFormat() ).ordinal() );
+    m_wBatchMaxRows.setText( Const.NVL( producerMeta.getBatchMaxRows(), "100" ) );
+    m_wBatchMaxAge.setText( Const.NVL( producerMeta.getBatchMaxAge(), "1000" ) );
+
+    List<TopicPolicy> policies = producerMeta.getTopicPolicies();
+    if ( policies.size() > 0 ) {
+      m_wPoliciesTable.clearAll( false );
+      Table table = m_wPoliciesTable.getTable();
+      for ( TopicPolicy policy : policies ) {
+        TableItem item = new TableItem( table, SWT.NONE );
+        item.setText( 1, Const.NVL( policy.getFilter(), "" ) );
+        item.setText( 2, Const.NVL( policy.getQoS(), "" ) );
+        item.setText( 3, policy.isRetained() ? "Y" : "N" );
+        item.setText( 4, policy.isBatch() ? "Y" : "N" );
+        item.setText( 5, policy.isCompress() ? "Y" : "N" );
+        item.setText( 6, Const.NVL( policy.getRateLimit(), "" ) );
+      }
+
+      m_wPoliciesTable.removeEmptyRows();
+      m_wPoliciesTable.setRowNums();
+      m_wPoliciesTable.optWidth( true );
+    }
+
+    m_wReportByException.setSelection( producerMeta.isReportByException() );
+    m_wDeadband.setText( Const.NVL( producerMeta.getDeadband(), "0" ) );
+    m_wDeadbandPercent.setSelection( producerMeta.isDeadbandPercent() );
+    m_wHeartbeatInterval.setText( Const.NVL( producerMeta.getHeartbeatInterval(), "0" ) );
+    m_wMaxTrackedTopics.setText( Const.NVL( producerMeta.getMaxTrackedTopics(), "10000" ) );
+    setReportByExceptionEnabled();
+    m_wConflate.setSelection( producerMeta.isConflate() );
+    m_wConflationWindow.setText( Const.NVL( producerMeta.getConflationWindow(), "1000" ) );
+    m_wConflationMaxTopics.setText( Const.NVL( producerMeta.getConflationMaxTopics(), "4096" ) );
+    setConflationEnabled();
+    m_wOutputReceipts.setSelection( producerMeta.isOutputReceipts() );
+    m_wReceiptMessageIdField.setText( Const.NVL( producerMeta.getReceiptMessageIdField(), "message_id" ) );
+    m_wReceiptTopicField.setText( Const.NVL( producerMeta.getReceiptTopicField(), "topic" ) );
+    m_wReceiptPayloadSizeField.setText( Const.NVL( producerMeta.getReceiptPayloadSizeField(), "payload_size" ) );
+    m_wReceiptSentAtField.setText( Const.NVL( producerMeta.getReceiptSentAtField(), "sent_at" ) );
+    m_wReceiptAckedAtField.setText( Const.NVL( producerMeta.getReceiptAckedAtField(), "acked_at" ) );
+    m_wReceiptAckLatencyField.setText( Const.NVL( producerMeta.getReceiptAckLatencyField(), "ack_latency_us" ) );
+    setReceiptsEnabled();
+    m_wAutoReconnect.setSelection( producerMeta.isAutoReconnect() );
+    m_wReconnectMinDelay.setText( Const.NVL( producerMeta.getReconnectMinDelay(), "1000" ) );
+    m_wReconnectMaxDelay.setText( Const.NVL( producerMeta.getReconnectMaxDelay(), "60000" ) );
+    m_wOfflineBufferSize.setText( Const.NVL( producerMeta.getOfflineBufferSize(), "16" ) );
+    m_wOfflineOverflow.select( OfflineBuffer.OverflowPolicy.fromName( producerMeta.getOfflineOverflow() ).ordinal() );
+    setReconnectEnabled();
+    m_wDurableOutbox.setSelection( producerMeta.isDurableOutbox() );
+    m_wOutboxDirectory.setText( Const.NVL( producerMeta.getOutboxDirectory(), "" ) );
+    m_wOutboxSegmentSize.setText( Const.NVL( producerMeta.getOutboxSegmentSize(), "64" ) );
+    m_wOutboxSyncInterval.setText( Const.NVL( producerMeta.getOutboxSyncInterval(), "200" ) );
+    setOutboxEnabled();
+
     updateTopicCombo( getPreviousFields() );
 
     wTransformName.selectAll();
@@ -847,6 +2284,7 @@ public class MQTTPublisherDialog extends BaseTransformDialog implements ITransfo
     producerMeta.setBroker( m_wBroker.getText() );
     producerMeta.setTopic( m_wTopicName.getText() );
     producerMeta.setTopicIsFromField( m_wTopicFromIncomingField.getSelection() );
+    producerMeta.setTopicIsTemplate( m_wTopicIsTemplate.getSelection() );
     producerMeta.setField( m_wInputField.getText() );
     producerMeta.setClientId( m_wClientID.getText() );
     producerMeta.setTimeout( m_wTimeout.getText() );
@@ -859,6 +2297,10 @@ public class MQTTPublisherDialog extends BaseTransformDialog implements ITransfo
 	producerMeta.setLastWillRetained(isLastWillRetained);
 	producerMeta.setLastWillTopic( m_wLastWillTopicName.getText() );
     producerMeta.setLastWillMessage( m_wLastWillMessage.getText() );
+    int objectFormatIndex = m_wObjectFormat.getSelectionIndex();
+    producerMeta.setObjectFormat(
+        ( objectFormatIndex < 0 ? ObjectCodec.Format.JAVA : ObjectCodec.Format.values()[objectFormatIndex] ).name() );
+    producerMeta.setObjectClasses( m_wObjectClasses.getText() );
 
 	boolean requiresAuth = m_wRequiresAuth.getSelection();
     producerMeta.setRequiresAuth( requiresAuth );
@@ -872,6 +2314,62 @@ public class MQTTPublisherDialog extends BaseTransformDialog implements ITransfo
     producerMeta.setSSLKeyFile( m_wKeyFile.getText() );
     producerMeta.setSSLKeyFilePass( m_wKeyPassword.getText() );
 
+    producerMeta.setAsyncPublish( m_wAsyncPublish.getSelection() );
+    producerMeta.setMaxInflight( m_wMaxInflight.getText() );
+    producerMeta.setDrainTimeout( m_wDrainTimeout.getText() );
+    producerMeta.setAutoTune( m_wAutoTune.getSelection() );
+    producerMeta.setAutoTuneMaxInflight( m_wAutoTuneMaxInflight.getText() );
+    producerMeta.setAutoTuneTargetLatency( m_wAutoTuneTargetLatency.getText() );
+    producerMeta.setRateLimitMessages( m_wRateLimitMessages.getText() );
+    producerMeta.setRateLimitBytes( m_wRateLimitBytes.getText() );
+    producerMeta.setConnectionsPerCopy( m_wConnectionsPerCopy.getText() );
+    producerMeta.setConnectOnInit( m_wConnectOnInit.getSelection() );
+    producerMeta.setWarmUpTopic( m_wWarmUpTopic.getText() );
+
+    producerMeta.setBatchMessages( m_wBatchMessages.getSelection() );
+    int formatIndex = m_wBatchFormat.getSelectionIndex();
+    producerMeta.setBatchFormat(
+        ( formatIndex < 0 ? BatchFraming.LENGTH_PREFIXED : BatchFraming.values()[formatIndex] ).name() );
+    producerMeta.setBatchMaxRows( m_wBatchMaxRows.getText() );
+    producerMeta.setBatchMaxAge( m_wBatchMaxAge.getText() );
+
+    int nrPolicies = m_wPoliciesTable.nrNonEmpty();
+    List<TopicPolicy> policies = new ArrayList<>();
+    for ( int i = 0; i < nrPolicies; i++ ) {
+      TableItem item = m_wPoliciesTable.getNonEmpty( i );
+      policies.add( new TopicPolicy( item.getText( 1 ).trim(), item.getText( 2 ).trim(),
+          "Y".equalsIgnoreCase( item.getText( 3 ) ), "Y".equalsIgnoreCase( item.getText( 4 ) ),
+          "Y".equalsIgnoreCase( item.getText( 5 ) ), item.getText( 6 ).trim() ) );
+    }
+    producerMeta.setTopicPolicies( policies );
+
+    producerMeta.setReportByException( m_wReportByException.getSelection() );
+    producerMeta.setDeadband( m_wDeadband.getText() );
+    producerMeta.setDeadbandPercent( m_wDeadbandPercent.getSelection() );
+    producerMeta.setHeartbeatInterval( m_wHeartbeatInterval.getText() );
+    producerMeta.setMaxTrackedTopics( m_wMaxTrackedTopics.getText() );
+    producerMeta.setConflate( m_wConflate.getSelection() );
+    producerMeta.setConflationWindow( m_wConflationWindow.getText() );
+    producerMeta.setConflationMaxTopics( m_wConflationMaxTopics.getText() );
+    producerMeta.setOutputReceipts( m_wOutputReceipts.getSelection() );
+    producerMeta.setReceiptMessageIdField( m_wReceiptMessageIdField.getText() );
+    producerMeta.setReceiptTopicField( m_wReceiptTopicField.getText() );
+    producerMeta.setReceiptPayloadSizeField( m_wReceiptPayloadSizeField.getText() );
+    producerMeta.setReceiptSentAtField( m_wReceiptSentAtField.getText() );
+    producerMeta.setReceiptAckedAtField( m_wReceiptAckedAtField.getText() );
+    producerMeta.setReceiptAckLatencyField( m_wReceiptAckLatencyField.getText() );
+    producerMeta.setAutoReconnect( m_wAutoReconnect.getSelection() );
+    producerMeta.setReconnectMinDelay( m_wReconnectMinDelay.getText() );
+    producerMeta.setReconnectMaxDelay( m_wReconnectMaxDelay.getText() );
+    producerMeta.setOfflineBufferSize( m_wOfflineBufferSize.getText() );
+    int overflowIndex = m_wOfflineOverflow.getSelectionIndex();
+    producerMeta.setOfflineOverflow( ( overflowIndex < 0 ? OfflineBuffer.OverflowPolicy.BLOCK
+        : OfflineBuffer.OverflowPolicy.values()[overflowIndex] ).name() );
+    producerMeta.setDurableOutbox( m_wDurableOutbox.getSelection() );
+    producerMeta.setOutboxDirectory( m_wOutboxDirectory.getText() );
+    producerMeta.setOutboxSegmentSize( m_wOutboxSegmentSize.getText() );
+    producerMeta.setOutboxSyncInterval( m_wOutboxSyncInterval.getText() );
+
     producerMeta.setChanged();
   }
 
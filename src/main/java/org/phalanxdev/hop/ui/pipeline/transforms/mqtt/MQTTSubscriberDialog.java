@@ -33,6 +33,7 @@ import org.apache.hop.pipeline.PipelineMeta;
 import org.apache.hop.pipeline.transform.BaseTransformMeta;
 import org.apache.hop.pipeline.transform.ITransformDialog;
 import org.apache.hop.ui.core.widget.ColumnInfo;
+import org.apache.hop.ui.core.widget.ComboVar;
 import org.apache.hop.ui.core.widget.TableView;
 import org.apache.hop.ui.core.widget.TextVar;
 import org.apache.hop.ui.pipeline.transform.BaseTransformDialog;
@@ -62,7 +63,12 @@ import org.eclipse.swt.widgets.TableItem;
 import org.eclipse.swt.widgets.Text;
 import org.phalanxdev.hop.pipeline.transforms.mqtt.MQTTPublisherMeta;
 import org.phalanxdev.hop.pipeline.transforms.mqtt.MQTTSubscriberMeta;
+import org.phalanxdev.hop.pipeline.transforms.mqtt.PayloadDecoder;
+import org.phalanxdev.mqtt.BatchFraming;
+import org.phalanxdev.mqtt.MessageRing;
+import org.phalanxdev.mqtt.ObjectCodec;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -85,6 +91,14 @@ public class MQTTSubscriberDialog extends BaseTransformDialog implements ITransf
   private TextVar m_wkeepAlive;
   private TextVar m_wQOS;
   private TextVar m_wExecuteForDuration;
+  private TextVar m_wMaxMessages;
+  private TextVar m_wMaxBytes;
+  private TextVar m_wIdleTimeout;
+  private TextVar m_wQueueSize;
+  private CCombo m_wWaitStrategy;
+  private TextVar m_wMicroBatchSize;
+  private TextVar m_wMicroBatchDelay;
+  private Button m_wAggregateBatch;
 
   private CTabItem m_wCredentialsTab;
   private Button m_wRequiresAuth;
@@ -104,9 +118,29 @@ public class MQTTSubscriberDialog extends BaseTransformDialog implements ITransf
   private TextVar m_wKeyPassword;
 
   private CTabItem m_wTopicsTab;
+  private CTabItem m_wFieldsTab;
+  private Text m_wQosField;
+  private Text m_wRetainedField;
+  private Text m_wDuplicateField;
+  private Text m_wMessageIdField;
+  private Text m_wPayloadLengthField;
+  private Text m_wArrivalTimeField;
   private TableView m_wTopicsTable;
   private CCombo m_wTopicMessageTypeCombo;
+  private ComboVar m_wCharset;
+  private CCombo m_wByteOrder;
   private Button m_wAllowObjectMessages;
+  private CCombo m_wObjectFormat;
+  private TextVar m_wObjectClasses;
+  private Button m_wUnbatch;
+  private Label m_wlBatchFormat;
+  private CCombo m_wBatchFormat;
+  private Button m_wSharedSubscription;
+  private Label m_wlShareGroup;
+  private TextVar m_wShareGroup;
+  private Button m_wPartitionTopics;
+  private Label m_wlPartitionWildcards;
+  private Button m_wPartitionWildcards;
 
   public MQTTSubscriberDialog( Shell parent, IVariables variables, BaseTransformMeta baseTransformMeta,
                                PipelineMeta pipelineMeta, String transformname ) {
@@ -374,6 +408,183 @@ public class MQTTSubscriberDialog extends BaseTransformDialog implements ITransf
     m_wExecuteForDuration.setLayoutData( fd );
     lastControl = m_wExecuteForDuration;
 
+    Label wlMaxMessages = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlMaxMessages.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MaxMessages.Label" ) );
+    wlMaxMessages
+      .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MaxMessages.ToolTip" ) );
+    props.setLook( wlMaxMessages );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlMaxMessages.setLayoutData( fd );
+
+    m_wMaxMessages = new TextVar( variables, wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wMaxMessages );
+    m_wMaxMessages.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wMaxMessages.setLayoutData( fd );
+    lastControl = m_wMaxMessages;
+
+    Label wlMaxBytes = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlMaxBytes.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MaxBytes.Label" ) );
+    wlMaxBytes
+      .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MaxBytes.ToolTip" ) );
+    props.setLook( wlMaxBytes );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlMaxBytes.setLayoutData( fd );
+
+    m_wMaxBytes = new TextVar( variables, wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wMaxBytes );
+    m_wMaxBytes.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wMaxBytes.setLayoutData( fd );
+    lastControl = m_wMaxBytes;
+
+    Label wlIdleTimeout = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlIdleTimeout.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.IdleTimeout.Label" ) );
+    wlIdleTimeout
+      .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.IdleTimeout.ToolTip" ) );
+    props.setLook( wlIdleTimeout );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlIdleTimeout.setLayoutData( fd );
+
+    m_wIdleTimeout = new TextVar( variables, wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wIdleTimeout );
+    m_wIdleTimeout.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wIdleTimeout.setLayoutData( fd );
+    lastControl = m_wIdleTimeout;
+
+    Label wlQueueSize = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlQueueSize.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.QueueSize.Label" ) );
+    wlQueueSize.setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.QueueSize.ToolTip" ) );
+    props.setLook( wlQueueSize );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlQueueSize.setLayoutData( fd );
+
+    m_wQueueSize = new TextVar( variables, wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wQueueSize );
+    m_wQueueSize.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wQueueSize.setLayoutData( fd );
+    lastControl = m_wQueueSize;
+
+    Label wlWaitStrategy = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlWaitStrategy.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.WaitStrategy.Label" ) );
+    wlWaitStrategy
+      .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.WaitStrategy.ToolTip" ) );
+    props.setLook( wlWaitStrategy );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlWaitStrategy.setLayoutData( fd );
+
+    m_wWaitStrategy = new CCombo( wGeneralTabComp, SWT.SINGLE | SWT.READ_ONLY | SWT.BORDER );
+    props.setLook( m_wWaitStrategy );
+    for ( MessageRing.WaitStrategy strategy : MessageRing.WaitStrategy.values() ) {
+      m_wWaitStrategy.add( BaseMessages.getString( MQTTPublisherMeta.PKG,
+          "MQTTClientDialog.WaitStrategy." + strategy.name() ) );
+    }
+    m_wWaitStrategy.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wWaitStrategy.setLayoutData( fd );
+    lastControl = m_wWaitStrategy;
+
+    Label wlMicroBatchSize = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlMicroBatchSize.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MicroBatchSize.Label" ) );
+    wlMicroBatchSize
+      .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MicroBatchSize.ToolTip" ) );
+    props.setLook( wlMicroBatchSize );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlMicroBatchSize.setLayoutData( fd );
+
+    m_wMicroBatchSize = new TextVar( variables, wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wMicroBatchSize );
+    m_wMicroBatchSize.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wMicroBatchSize.setLayoutData( fd );
+    lastControl = m_wMicroBatchSize;
+
+    Label wlMicroBatchDelay = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlMicroBatchDelay
+      .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MicroBatchDelay.Label" ) );
+    wlMicroBatchDelay
+      .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MicroBatchDelay.ToolTip" ) );
+    props.setLook( wlMicroBatchDelay );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlMicroBatchDelay.setLayoutData( fd );
+
+    m_wMicroBatchDelay = new TextVar( variables, wGeneralTabComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wMicroBatchDelay );
+    m_wMicroBatchDelay.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wMicroBatchDelay.setLayoutData( fd );
+    lastControl = m_wMicroBatchDelay;
+
+    Label wlAggregateBatch = new Label( wGeneralTabComp, SWT.RIGHT );
+    wlAggregateBatch
+      .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.AggregateBatch.Label" ) );
+    wlAggregateBatch
+      .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.AggregateBatch.ToolTip" ) );
+    props.setLook( wlAggregateBatch );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlAggregateBatch.setLayoutData( fd );
+
+    m_wAggregateBatch = new Button( wGeneralTabComp, SWT.CHECK );
+    props.setLook( m_wAggregateBatch );
+    fd = new FormData();
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.left = new FormAttachment( middle, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wAggregateBatch.setLayoutData( fd );
+    m_wAggregateBatch.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent e ) {
+        m_subscriberMeta.setChanged();
+      }
+    } );
+    lastControl = m_wAggregateBatch;
+
     FormData fdGeneralTabComp = new FormData();
     fdGeneralTabComp.left = new FormAttachment( 0, 0 );
     fdGeneralTabComp.top = new FormAttachment( 0, 0 );
@@ -653,6 +864,51 @@ public class MQTTSubscriberDialog extends BaseTransformDialog implements ITransf
     m_wTopicMessageTypeCombo.setLayoutData( fd );
     lastControl = m_wTopicMessageTypeCombo;
 
+    Label wlCharset = new Label( wTopicsComp, SWT.RIGHT );
+    wlCharset.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Charset.Label" ) );
+    wlCharset.setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Charset.ToolTip" ) );
+    props.setLook( wlCharset );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    wlCharset.setLayoutData( fd );
+
+    m_wCharset = new ComboVar( variables, wTopicsComp, SWT.BORDER );
+    props.setLook( m_wCharset );
+    m_wCharset.setItems( Charset.availableCharsets().keySet().toArray( new String[0] ) );
+    m_wCharset.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wCharset.setLayoutData( fd );
+    lastControl = m_wCharset;
+
+    Label wlByteOrder = new Label( wTopicsComp, SWT.RIGHT );
+    wlByteOrder.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ByteOrder.Label" ) );
+    wlByteOrder.setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ByteOrder.ToolTip" ) );
+    props.setLook( wlByteOrder );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    wlByteOrder.setLayoutData( fd );
+
+    m_wByteOrder = new CCombo( wTopicsComp, SWT.SINGLE | SWT.READ_ONLY | SWT.BORDER );
+    props.setLook( m_wByteOrder );
+    for ( PayloadDecoder.Endianness endianness : PayloadDecoder.Endianness.values() ) {
+      m_wByteOrder.add( BaseMessages.getString( MQTTPublisherMeta.PKG,
+          "MQTTClientDialog.ByteOrder." + endianness.name() ) );
+    }
+    m_wByteOrder.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wByteOrder.setLayoutData( fd );
+    lastControl = m_wByteOrder;
+
 
     Label wlAllowObjectMessages = new Label( wTopicsComp, SWT.RIGHT );
     wlAllowObjectMessages.setText( BaseMessages
@@ -661,7 +917,7 @@ public class MQTTSubscriberDialog extends BaseTransformDialog implements ITransf
     props.setLook( wlAllowObjectMessages );
     fd = new FormData();
     fd.left = new FormAttachment( 0, 0 );
-    fd.top = new FormAttachment( m_wTopicMessageTypeCombo, margin * 2 );
+    fd.top = new FormAttachment( lastControl, margin * 2 );
     fd.right = new FormAttachment( middle, -margin );
     wlAllowObjectMessages.setLayoutData( fd );
 
@@ -669,11 +925,209 @@ public class MQTTSubscriberDialog extends BaseTransformDialog implements ITransf
     props.setLook( m_wAllowObjectMessages );
     fd = new FormData();
     fd.left = new FormAttachment( middle, 0 );
-    fd.top = new FormAttachment( m_wTopicMessageTypeCombo, margin * 2 );
+    fd.top = new FormAttachment( lastControl, margin * 2 );
     fd.right = new FormAttachment( 100, 0 );
     m_wAllowObjectMessages.setLayoutData( fd );
     lastControl = m_wAllowObjectMessages;
 
+    Label wlObjectFormat = new Label( wTopicsComp, SWT.RIGHT );
+    wlObjectFormat.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ObjectFormat.Label" ) );
+    wlObjectFormat.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SubscriberObjectFormat.ToolTip" ) );
+    props.setLook( wlObjectFormat );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    wlObjectFormat.setLayoutData( fd );
+
+    m_wObjectFormat = new CCombo( wTopicsComp, SWT.SINGLE | SWT.READ_ONLY | SWT.BORDER );
+    props.setLook( m_wObjectFormat );
+    for ( ObjectCodec.Format format : ObjectCodec.Format.values() ) {
+      m_wObjectFormat.add( BaseMessages.getString( MQTTPublisherMeta.PKG,
+          "MQTTClientDialog.ObjectFormat." + format.name() ) );
+    }
+    m_wObjectFormat.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wObjectFormat.setLayoutData( fd );
+    lastControl = m_wObjectFormat;
+
+    Label wlObjectClasses = new Label( wTopicsComp, SWT.RIGHT );
+    wlObjectClasses.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ObjectClasses.Label" ) );
+    wlObjectClasses.setToolTipText(
+        BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SubscriberObjectClasses.ToolTip" ) );
+    props.setLook( wlObjectClasses );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    wlObjectClasses.setLayoutData( fd );
+
+    m_wObjectClasses = new TextVar( variables, wTopicsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wObjectClasses );
+    m_wObjectClasses.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wObjectClasses.setLayoutData( fd );
+    lastControl = m_wObjectClasses;
+
+    Label wlUnbatch = new Label( wTopicsComp, SWT.RIGHT );
+    wlUnbatch.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Unbatch.Label" ) );
+    wlUnbatch.setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.Unbatch.ToolTip" ) );
+    props.setLook( wlUnbatch );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    wlUnbatch.setLayoutData( fd );
+
+    m_wUnbatch = new Button( wTopicsComp, SWT.CHECK );
+    props.setLook( m_wUnbatch );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wUnbatch.setLayoutData( fd );
+    m_wUnbatch.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent e ) {
+        m_subscriberMeta.setChanged();
+        m_wlBatchFormat.setEnabled( m_wUnbatch.getSelection() );
+        m_wBatchFormat.setEnabled( m_wUnbatch.getSelection() );
+      }
+    } );
+    lastControl = m_wUnbatch;
+
+    m_wlBatchFormat = new Label( wTopicsComp, SWT.RIGHT );
+    m_wlBatchFormat.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.BatchFormat.Label" ) );
+    props.setLook( m_wlBatchFormat );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlBatchFormat.setLayoutData( fd );
+
+    m_wBatchFormat = new CCombo( wTopicsComp, SWT.SINGLE | SWT.READ_ONLY | SWT.BORDER );
+    props.setLook( m_wBatchFormat );
+    for ( BatchFraming framing : BatchFraming.values() ) {
+      m_wBatchFormat.add( BaseMessages.getString( MQTTPublisherMeta.PKG,
+          "MQTTClientDialog.BatchFormat." + framing.name() ) );
+    }
+    m_wBatchFormat.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wBatchFormat.setLayoutData( fd );
+    lastControl = m_wBatchFormat;
+
+    Label wlSharedSubscription = new Label( wTopicsComp, SWT.RIGHT );
+    wlSharedSubscription
+      .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SharedSubscription.Label" ) );
+    wlSharedSubscription
+      .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.SharedSubscription.ToolTip" ) );
+    props.setLook( wlSharedSubscription );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    wlSharedSubscription.setLayoutData( fd );
+
+    m_wSharedSubscription = new Button( wTopicsComp, SWT.CHECK );
+    props.setLook( m_wSharedSubscription );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wSharedSubscription.setLayoutData( fd );
+    m_wSharedSubscription.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent e ) {
+        m_subscriberMeta.setChanged();
+        m_wlShareGroup.setEnabled( m_wSharedSubscription.getSelection() );
+        m_wShareGroup.setEnabled( m_wSharedSubscription.getSelection() );
+      }
+    } );
+    lastControl = m_wSharedSubscription;
+
+    m_wlShareGroup = new Label( wTopicsComp, SWT.RIGHT );
+    m_wlShareGroup.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ShareGroup.Label" ) );
+    m_wlShareGroup
+      .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ShareGroup.ToolTip" ) );
+    props.setLook( m_wlShareGroup );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlShareGroup.setLayoutData( fd );
+
+    m_wShareGroup = new TextVar( variables, wTopicsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wShareGroup );
+    m_wShareGroup.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wShareGroup.setLayoutData( fd );
+    lastControl = m_wShareGroup;
+
+    Label wlPartitionTopics = new Label( wTopicsComp, SWT.RIGHT );
+    wlPartitionTopics
+      .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.PartitionTopics.Label" ) );
+    wlPartitionTopics
+      .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.PartitionTopics.ToolTip" ) );
+    props.setLook( wlPartitionTopics );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    wlPartitionTopics.setLayoutData( fd );
+
+    m_wPartitionTopics = new Button( wTopicsComp, SWT.CHECK );
+    props.setLook( m_wPartitionTopics );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wPartitionTopics.setLayoutData( fd );
+    m_wPartitionTopics.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent e ) {
+        m_subscriberMeta.setChanged();
+        m_wlPartitionWildcards.setEnabled( m_wPartitionTopics.getSelection() );
+        m_wPartitionWildcards.setEnabled( m_wPartitionTopics.getSelection() );
+      }
+    } );
+    lastControl = m_wPartitionTopics;
+
+    m_wlPartitionWildcards = new Label( wTopicsComp, SWT.RIGHT );
+    m_wlPartitionWildcards
+      .setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.PartitionWildcards.Label" ) );
+    m_wlPartitionWildcards
+      .setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.PartitionWildcards.ToolTip" ) );
+    props.setLook( m_wlPartitionWildcards );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    m_wlPartitionWildcards.setLayoutData( fd );
+
+    m_wPartitionWildcards = new Button( wTopicsComp, SWT.CHECK );
+    props.setLook( m_wPartitionWildcards );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wPartitionWildcards.setLayoutData( fd );
+    m_wPartitionWildcards.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent e ) {
+        m_subscriberMeta.setChanged();
+      }
+    } );
+    lastControl = m_wPartitionWildcards;
+
     ColumnInfo[] colinf =
       new ColumnInfo[] {
         new ColumnInfo( "Topic", ColumnInfo.COLUMN_TYPE_TEXT ),
@@ -698,6 +1152,147 @@ public class MQTTSubscriberDialog extends BaseTransformDialog implements ITransf
     wTopicsComp.layout();
     m_wTopicsTab.setControl( wTopicsComp );
 
+    // ====================
+    // Fields TAB
+    // ====================
+    m_wFieldsTab = new CTabItem( m_wTabFolder, SWT.NONE );
+    m_wFieldsTab.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.FieldsTab.Label" ) );
+    Composite wFieldsComp = new Composite( m_wTabFolder, SWT.NONE );
+    props.setLook( wFieldsComp );
+    FormLayout fieldsLayout = new FormLayout();
+    fieldsLayout.marginWidth = Const.FORM_MARGIN;
+    fieldsLayout.marginHeight = Const.FORM_MARGIN;
+    wFieldsComp.setLayout( fieldsLayout );
+
+    Label wlQosField = new Label( wFieldsComp, SWT.RIGHT );
+    wlQosField.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.QosField.Label" ) );
+    wlQosField.setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.QosField.ToolTip" ) );
+    props.setLook( wlQosField );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( 0, margin * 2 );
+    fd.right = new FormAttachment( middle, -margin );
+    wlQosField.setLayoutData( fd );
+
+    m_wQosField = new Text( wFieldsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wQosField );
+    m_wQosField.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( 0, margin * 2 );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wQosField.setLayoutData( fd );
+    lastControl = m_wQosField;
+
+    Label wlRetainedField = new Label( wFieldsComp, SWT.RIGHT );
+    wlRetainedField.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.RetainedField.Label" ) );
+    wlRetainedField.setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.RetainedField.ToolTip" ) );
+    props.setLook( wlRetainedField );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    wlRetainedField.setLayoutData( fd );
+
+    m_wRetainedField = new Text( wFieldsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wRetainedField );
+    m_wRetainedField.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wRetainedField.setLayoutData( fd );
+    lastControl = m_wRetainedField;
+
+    Label wlDuplicateField = new Label( wFieldsComp, SWT.RIGHT );
+    wlDuplicateField.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.DuplicateField.Label" ) );
+    wlDuplicateField.setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.DuplicateField.ToolTip" ) );
+    props.setLook( wlDuplicateField );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    wlDuplicateField.setLayoutData( fd );
+
+    m_wDuplicateField = new Text( wFieldsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wDuplicateField );
+    m_wDuplicateField.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wDuplicateField.setLayoutData( fd );
+    lastControl = m_wDuplicateField;
+
+    Label wlMessageIdField = new Label( wFieldsComp, SWT.RIGHT );
+    wlMessageIdField.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MessageIdField.Label" ) );
+    wlMessageIdField.setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.MessageIdField.ToolTip" ) );
+    props.setLook( wlMessageIdField );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    wlMessageIdField.setLayoutData( fd );
+
+    m_wMessageIdField = new Text( wFieldsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wMessageIdField );
+    m_wMessageIdField.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wMessageIdField.setLayoutData( fd );
+    lastControl = m_wMessageIdField;
+
+    Label wlPayloadLengthField = new Label( wFieldsComp, SWT.RIGHT );
+    wlPayloadLengthField.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.PayloadLengthField.Label" ) );
+    wlPayloadLengthField.setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.PayloadLengthField.ToolTip" ) );
+    props.setLook( wlPayloadLengthField );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    wlPayloadLengthField.setLayoutData( fd );
+
+    m_wPayloadLengthField = new Text( wFieldsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wPayloadLengthField );
+    m_wPayloadLengthField.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wPayloadLengthField.setLayoutData( fd );
+    lastControl = m_wPayloadLengthField;
+
+    Label wlArrivalTimeField = new Label( wFieldsComp, SWT.RIGHT );
+    wlArrivalTimeField.setText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ArrivalTimeField.Label" ) );
+    wlArrivalTimeField.setToolTipText( BaseMessages.getString( MQTTPublisherMeta.PKG, "MQTTClientDialog.ArrivalTimeField.ToolTip" ) );
+    props.setLook( wlArrivalTimeField );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    wlArrivalTimeField.setLayoutData( fd );
+
+    m_wArrivalTimeField = new Text( wFieldsComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_wArrivalTimeField );
+    m_wArrivalTimeField.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( lastControl, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wArrivalTimeField.setLayoutData( fd );
+    lastControl = m_wArrivalTimeField;
+
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    fd.bottom = new FormAttachment( 100, 0 );
+    wFieldsComp.setLayoutData( fd );
+    wFieldsComp.layout();
+    m_wFieldsTab.setControl( wFieldsComp );
+
     // ====================
     // BUTTONS
     // ====================
@@ -787,6 +1382,16 @@ public class MQTTSubscriberDialog extends BaseTransformDialog implements ITransf
     subscriberMeta.setTimeout( m_wTimeout.getText() );
     subscriberMeta.setKeepAliveInterval( m_wkeepAlive.getText() );
     subscriberMeta.setExecuteForDuration( m_wExecuteForDuration.getText() );
+    subscriberMeta.setMaxMessages( m_wMaxMessages.getText() );
+    subscriberMeta.setMaxBytes( m_wMaxBytes.getText() );
+    subscriberMeta.setIdleTimeout( m_wIdleTimeout.getText() );
+    subscriberMeta.setQueueSize( m_wQueueSize.getText() );
+    int waitStrategyIndex = m_wWaitStrategy.getSelectionIndex();
+    subscriberMeta.setWaitStrategy( ( waitStrategyIndex < 0 ? MessageRing.WaitStrategy.BLOCKING
+        : MessageRing.WaitStrategy.values()[waitStrategyIndex] ).name() );
+    subscriberMeta.setMicroBatchSize( m_wMicroBatchSize.getText() );
+    subscriberMeta.setMicroBatchDelay( m_wMicroBatchDelay.getText() );
+    subscriberMeta.setAggregateBatch( m_wAggregateBatch.getSelection() );
     subscriberMeta.setQoS( m_wQOS.getText() );
     subscriberMeta.setPath( m_wPath.getText() ); //adding path to persistence store
     boolean requiresAuth = m_wRequiresAuth.getSelection();
@@ -800,6 +1405,28 @@ public class MQTTSubscriberDialog extends BaseTransformDialog implements ITransf
 	subscriberMeta.setCleanSession(isCleanSession);
 
     subscriberMeta.setAllowReadMessageOfTypeObject( m_wAllowObjectMessages.getSelection() );
+    int objectFormatIndex = m_wObjectFormat.getSelectionIndex();
+    subscriberMeta.setObjectFormat(
+        ( objectFormatIndex < 0 ? ObjectCodec.Format.JAVA : ObjectCodec.Format.values()[objectFormatIndex] ).name() );
+    subscriberMeta.setObjectClasses( m_wObjectClasses.getText() );
+    subscriberMeta.setCharset( m_wCharset.getText() );
+    int byteOrderIndex = m_wByteOrder.getSelectionIndex();
+    subscriberMeta.setByteOrder( ( byteOrderIndex < 0 ? PayloadDecoder.Endianness.BIG_ENDIAN
+        : PayloadDecoder.Endianness.values()[byteOrderIndex] ).name() );
+    subscriberMeta.setUnbatch( m_wUnbatch.getSelection() );
+    subscriberMeta.setQosField( m_wQosField.getText().trim() );
+    subscriberMeta.setRetainedField( m_wRetainedField.getText().trim() );
+    subscriberMeta.setDuplicateField( m_wDuplicateField.getText().trim() );
+    subscriberMeta.setMessageIdField( m_wMessageIdField.getText().trim() );
+    subscriberMeta.setPayloadLengthField( m_wPayloadLengthField.getText().trim() );
+    subscriberMeta.setArrivalTimeField( m_wArrivalTimeField.getText().trim() );
+    subscriberMeta.setSharedSubscription( m_wSharedSubscription.getSelection() );
+    subscriberMeta.setShareGroup( m_wShareGroup.getText() );
+    subscriberMeta.setPartitionTopics( m_wPartitionTopics.getSelection() );
+    subscriberMeta.setPartitionWildcards( m_wPartitionWildcards.getSelection() );
+    int formatIndex = m_wBatchFormat.getSelectionIndex();
+    subscriberMeta.setBatchFormat(
+        ( formatIndex < 0 ? BatchFraming.LENGTH_PREFIXED : BatchFraming.values()[formatIndex] ).name() );
 
     subscriberMeta.setSSLCaFile( m_wCAFile.getText() );
     subscriberMeta.setSSLCertFile( m_wCertFile.getText() );
@@ -831,6 +1458,14 @@ public class MQTTSubscriberDialog extends BaseTransformDialog implements ITransf
     m_wkeepAlive.setText( Const.NVL( subscriberMeta.getKeepAliveInterval(), "60" ) );
     m_wQOS.setText( Const.NVL( subscriberMeta.getQoS(), "0" ) );
     m_wExecuteForDuration.setText( Const.NVL( subscriberMeta.getExecuteForDuration(), "0" ) );
+    m_wMaxMessages.setText( Const.NVL( subscriberMeta.getMaxMessages(), "0" ) );
+    m_wMaxBytes.setText( Const.NVL( subscriberMeta.getMaxBytes(), "0" ) );
+    m_wIdleTimeout.setText( Const.NVL( subscriberMeta.getIdleTimeout(), "0" ) );
+    m_wQueueSize.setText( Const.NVL( subscriberMeta.getQueueSize(), "10000" ) );
+    m_wWaitStrategy.select( MessageRing.WaitStrategy.fromName( subscriberMeta.getWaitStrategy() ).ordinal() );
+    m_wMicroBatchSize.setText( Const.NVL( subscriberMeta.getMicroBatchSize(), "0" ) );
+    m_wMicroBatchDelay.setText( Const.NVL( subscriberMeta.getMicroBatchDelay(), "0" ) );
+    m_wAggregateBatch.setSelection( subscriberMeta.getAggregateBatch() );
     
 	m_wIsCleanSession.setSelection( subscriberMeta.isCleanSession() );//Adding cleanSession
     m_wPath.setText( Const.NVL( subscriberMeta.getPath(), "" ) ); //adding path to persistence store
@@ -842,6 +1477,25 @@ public class MQTTSubscriberDialog extends BaseTransformDialog implements ITransf
     m_wPassword.setText( Const.NVL( subscriberMeta.getPassword(), "" ) );
 
     m_wAllowObjectMessages.setSelection( subscriberMeta.getAllowReadMessageOfTypeObject() );
+    m_wObjectFormat.select( ObjectCodec.Format.fromName( subscriberMeta.getObjectFormat() ).ordinal() );
+    m_wObjectClasses.setText( Const.NVL( subscriberMeta.getObjectClasses(), "" ) );
+    m_wCharset.setText( Const.NVL( subscriberMeta.getCharset(), "UTF-8" ) );
+    m_wByteOrder.select( PayloadDecoder.Endianness.fromName( subscriberMeta.getByteOrder() ).ordinal() );
+    m_wUnbatch.setSelection( subscriberMeta.getUnbatch() );
+    m_wQosField.setText( Const.NVL( subscriberMeta.getQosField(), "" ) );
+    m_wRetainedField.setText( Const.NVL( subscriberMeta.getRetainedField(), "" ) );
+    m_wDuplicateField.setText( Const.NVL( subscriberMeta.getDuplicateField(), "" ) );
+    m_wMessageIdField.setText( Const.NVL( subscriberMeta.getMessageIdField(), "" ) );
+    m_wPayloadLengthField.setText( Const.NVL( subscriberMeta.getPayloadLengthField(), "" ) );
+    m_wArrivalTimeField.setText( Const.NVL( subscriberMeta.getArrivalTimeField(), "" ) );
+    m_wUnbatch.notifyListeners( SWT.Selection, new Event() );
+    m_wShareGroup.setText( Const.NVL( subscriberMeta.getShareGroup(), "" ) );
+    m_wSharedSubscription.setSelection( subscriberMeta.isSharedSubscription() );
+    m_wSharedSubscription.notifyListeners( SWT.Selection, new Event() );
+    m_wPartitionWildcards.setSelection( subscriberMeta.isPartitionWildcards() );
+    m_wPartitionTopics.setSelection( subscriberMeta.isPartitionTopics() );
+    m_wPartitionTopics.notifyListeners( SWT.Selection, new Event() );
+    m_wBatchFormat.select( BatchFraming.fromName( subscriberMeta.getBatchFormat() ).ordinal() );
 
     m_wCAFile.setText( Const.NVL( subscriberMeta.getSSLCaFile(), "" ) );
     m_wCertFile.setText( Const.NVL( subscriberMeta.getSSLCertFile(), "" ) );
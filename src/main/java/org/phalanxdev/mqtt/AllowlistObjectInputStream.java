@@ -0,0 +1,82 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.phalanxdev.mqtt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An ObjectInputStream that refuses to load any class other than the basic value and collection types and those on an
+ * allowlist, so that Java serialized messages can't be used to instantiate arbitrary classes on the subscriber.
+ */
+public class AllowlistObjectInputStream extends ObjectInputStream {
+
+  protected static final Set<String> BUILT_IN = new HashSet<>( Arrays
+      .asList( "java.lang.String", "java.lang.Boolean", "java.lang.Byte", "java.lang.Short", "java.lang.Character",
+          "java.lang.Integer", "java.lang.Long", "java.lang.Float", "java.lang.Double", "java.lang.Number",
+          "java.lang.Enum", "java.math.BigDecimal", "java.math.BigInteger", "java.util.Date", "java.sql.Timestamp",
+          "java.util.ArrayList", "java.util.LinkedList", "java.util.HashMap", "java.util.LinkedHashMap",
+          "java.util.TreeMap", "java.util.HashSet", "java.util.LinkedHashSet", "java.util.TreeSet" ) );
+
+  protected final Set<String> m_allowed;
+
+  /**
+   * @param in the stream to read
+   * @param allowed the names of the classes allowed besides the built in ones
+   * @throws IOException if the stream header can't be read
+   */
+  public AllowlistObjectInputStream( InputStream in, Collection<String> allowed ) throws IOException {
+    super( in );
+    m_allowed = new HashSet<>( allowed );
+  }
+
+  @Override protected Class<?> resolveClass( ObjectStreamClass desc ) throws IOException, ClassNotFoundException {
+    String name = desc.getName();
+    // arrays are allowed if their element type is
+    String element = name;
+    while ( element.startsWith( "[" ) ) {
+      element = element.substring( 1 );
+    }
+    boolean allowed;
+    if ( element.length() == 1 && name.startsWith( "[" ) ) {
+      allowed = true; // an array of primitives
+    } else {
+      if ( element.startsWith( "L" ) && element.endsWith( ";" ) ) {
+        element = element.substring( 1, element.length() - 1 );
+      }
+      allowed = BUILT_IN.contains( element ) || m_allowed.contains( element );
+    }
+    if ( !allowed ) {
+      throw new InvalidClassException( name, "not on the allowlist for object messages" );
+    }
+    return super.resolveClass( desc );
+  }
+}
@@ -0,0 +1,250 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.phalanxdev.mqtt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ways of packing several message payloads into the payload of a single MQTT message, and of splitting them apart
+ * again on the receiving side.
+ */
+public enum BatchFraming {
+
+  /**
+   * Each record is preceded by its length as a 4 byte big-endian int. Works for any payload.
+   */
+  LENGTH_PREFIXED {
+    @Override public void append( ByteArrayOutputStream out, byte[] record, int offset, int length, int index ) {
+      out.write( ( length >>> 24 ) & 0xFF );
+      out.write( ( length >>> 16 ) & 0xFF );
+      out.write( ( length >>> 8 ) & 0xFF );
+      out.write( length & 0xFF );
+      out.write( record, offset, length );
+    }
+
+    @Override public List<byte[]> split( byte[] batch ) throws IOException {
+      List<byte[]> records = new ArrayList<>();
+      int pos = 0;
+      while ( pos < batch.length ) {
+        if ( batch.length - pos < 4 ) {
+          throw new IOException( "Truncated length prefix at offset " + pos );
+        }
+        int length =
+            ( ( batch[pos] & 0xFF ) << 24 ) | ( ( batch[pos + 1] & 0xFF ) << 16 ) | ( ( batch[pos + 2] & 0xFF ) << 8 )
+                | ( batch[pos + 3] & 0xFF );
+        pos += 4;
+        if ( length < 0 || length > batch.length - pos ) {
+          throw new IOException( "Record length " + length + " at offset " + ( pos - 4 ) + " exceeds the batch" );
+        }
+        byte[] record = new byte[length];
+        System.arraycopy( batch, pos, record, 0, length );
+        records.add( record );
+        pos += length;
+      }
+      return records;
+    }
+  },
+
+  /**
+   * Records are written verbatim as the elements of a JSON array, so each record must itself be a JSON value (e.g. a
+   * JSON object held in a string field). An empty record is not a JSON value, and can't be framed.
+   */
+  JSON_ARRAY {
+    @Override public void append( ByteArrayOutputStream out, byte[] record, int offset, int length, int index ) {
+      checkNotEmpty( length );
+      out.write( index == 0 ? '[' : ',' );
+      out.write( record, offset, length );
+    }
+
+    @Override public void finish( ByteArrayOutputStream out, int count ) {
+      out.write( ']' );
+    }
+
+    @Override public boolean allowsEmptyRecords() {
+      return false;
+    }
+
+    @Override public List<byte[]> split( byte[] batch ) throws IOException {
+      List<byte[]> records = new ArrayList<>();
+      int pos = skipWhitespace( batch, 0 );
+      if ( pos >= batch.length || batch[pos] != '[' ) {
+        throw new IOException( "Batch is not a JSON array" );
+      }
+      pos = skipWhitespace( batch, pos + 1 );
+      if ( pos < batch.length && batch[pos] == ']' ) {
+        return records;
+      }
+
+      int depth = 0;
+      boolean inString = false;
+      int start = pos;
+      for ( ; pos < batch.length; pos++ ) {
+        byte b = batch[pos];
+        if ( inString ) {
+          if ( b == '\\' ) {
+            pos++;
+          } else if ( b == '"' ) {
+            inString = false;
+          }
+          continue;
+        }
+        if ( b == '"' ) {
+          inString = true;
+        } else if ( b == '{' || b == '[' ) {
+          depth++;
+        } else if ( ( b == '}' || b == ']' ) && depth > 0 ) {
+          depth--;
+        } else if ( depth == 0 && ( b == ',' || b == ']' ) ) {
+          records.add( trimmedCopy( batch, start, pos ) );
+          if ( b == ']' ) {
+            return records;
+          }
+          start = pos + 1;
+        }
+      }
+      throw new IOException( "Unterminated JSON array in batch" );
+    }
+  },
+
+  /**
+   * Records are separated by a newline character. Only suitable for text payloads that do not themselves contain
+   * newlines. Empty records can't be framed: a trailing newline (or a CR LF) is accepted when splitting, so a batch
+   * holding only an empty record, or ending with one, would split into one record too few.
+   */
+  NEWLINE_DELIMITED {
+    @Override public void append( ByteArrayOutputStream out, byte[] record, int offset, int length, int index ) {
+      checkNotEmpty( length );
+      if ( index > 0 ) {
+        out.write( '\n' );
+      }
+      out.write( record, offset, length );
+    }
+
+    @Override public List<byte[]> split( byte[] batch ) {
+      List<byte[]> records = new ArrayList<>();
+      int start = 0;
+      for ( int pos = 0; pos <= batch.length; pos++ ) {
+        if ( pos == batch.length || batch[pos] == '\n' ) {
+          int end = pos;
+          if ( end > start && batch[end - 1] == '\r' ) {
+            end--;
+          }
+          if ( end > start || pos < batch.length ) {
+            byte[] record = new byte[end - start];
+            System.arraycopy( batch, start, record, 0, record.length );
+            records.add( record );
+          }
+          start = pos + 1;
+        }
+      }
+      return records;
+    }
+
+    @Override public boolean allowsEmptyRecords() {
+      return false;
+    }
+  };
+
+  /**
+   * Append a record to a batch
+   *
+   * @param out the buffer holding the batch
+   * @param record the array holding the record to append
+   * @param offset the start of the record in the array
+   * @param length the length of the record
+   * @param index the number of records already in the batch
+   * @throws IllegalArgumentException if the record is empty and the framing doesn't allow that
+   */
+  public abstract void append( ByteArrayOutputStream out, byte[] record, int offset, int length, int index );
+
+  /**
+   * Complete a batch before it is sent
+   *
+   * @param out the buffer holding the batch
+   * @param count the number of records in the batch
+   */
+  public void finish( ByteArrayOutputStream out, int count ) {
+  }
+
+  /**
+   * @return false if an empty record can't be framed, because it couldn't be told apart on splitting
+   * @see #append(ByteArrayOutputStream, byte[], int, int, int)
+   */
+  public boolean allowsEmptyRecords() {
+    return true;
+  }
+
+  /**
+   * Split a batch back into its records
+   *
+   * @param batch the batch payload
+   * @return the records in the batch
+   * @throws IOException if the payload is not a valid batch
+   */
+  public abstract List<byte[]> split( byte[] batch ) throws IOException;
+
+  /**
+   * Look up a framing by name, defaulting to {@link #LENGTH_PREFIXED}
+   *
+   * @param name the name of the framing
+   * @return the framing
+   */
+  public static BatchFraming fromName( String name ) {
+    if ( name != null ) {
+      for ( BatchFraming f : values() ) {
+        if ( f.name().equalsIgnoreCase( name.trim() ) ) {
+          return f;
+        }
+      }
+    }
+    return LENGTH_PREFIXED;
+  }
+
+  protected void checkNotEmpty( int length ) {
+    if ( length == 0 ) {
+      throw new IllegalArgumentException( "An empty record can't be framed as " + name() );
+    }
+  }
+
+  protected static int skipWhitespace( byte[] data, int pos ) {
+    while ( pos < data.length && ( data[pos] == ' ' || data[pos] == '\t' || data[pos] == '\r'
+        || data[pos] == '\n' ) ) {
+      pos++;
+    }
+    return pos;
+  }
+
+  protected static byte[] trimmedCopy( byte[] data, int start, int end ) {
+    start = skipWhitespace( data, start );
+    while ( end > start && ( data[end - 1] == ' ' || data[end - 1] == '\t' || data[end - 1] == '\r'
+        || data[end - 1] == '\n' ) ) {
+      end--;
+    }
+    byte[] record = new byte[end - start];
+    System.arraycopy( data, start, record, 0, record.length );
+    return record;
+  }
+}
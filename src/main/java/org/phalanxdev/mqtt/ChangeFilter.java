@@ -0,0 +1,160 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.phalanxdev.mqtt;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * "Report by exception" filter: remembers the last value published to each topic and suppresses values that haven't
+ * changed, or (for numbers) haven't moved outside a deadband. A value is always let through once the heartbeat
+ * interval has passed since the last one published to the topic. The number of topics remembered is bounded; the
+ * least recently used topic is forgotten first (so its next value is always published). Not thread safe.
+ */
+public class ChangeFilter {
+
+  protected static class LastValue {
+    protected long m_publishedAt;
+    protected double m_number;
+    protected byte[] m_payload;
+    protected int m_length;
+  }
+
+  protected final double m_deadband;
+  protected final boolean m_percent;
+  protected final long m_heartbeat;
+
+  protected final Map<String, LastValue> m_last;
+
+  protected volatile long m_suppressed;
+
+  /**
+   * @param maxTopics the maximum number of topics to remember
+   * @param deadband how far a number must move from the last published value to be published again. 0 means any change
+   * @param percent true if the deadband is a percentage of the last published value rather than an absolute amount
+   * @param heartbeatMillis publish regardless of change once this long has passed since the last publish. 0 to
+   * disable
+   */
+  public ChangeFilter( final int maxTopics, double deadband, boolean percent, long heartbeatMillis ) {
+    m_deadband = Math.abs( deadband );
+    m_percent = percent;
+    m_heartbeat = heartbeatMillis;
+    m_last = new LinkedHashMap<String, LastValue>( 16, 0.75f, true ) {
+      @Override protected boolean removeEldestEntry( Map.Entry<String, LastValue> eldest ) {
+        return size() > Math.max( 1, maxTopics );
+      }
+    };
+  }
+
+  /**
+   * Decide whether a numeric value should be published, recording it as the last published value if so
+   *
+   * @param topic the topic
+   * @param value the value
+   * @param now the current time in milliseconds
+   * @return true if the value should be published
+   */
+  public boolean accept( String topic, double value, long now ) {
+    LastValue entry = m_last.get( topic );
+    if ( entry != null && !heartbeatDue( entry, now ) && withinDeadband( entry.m_number, value ) ) {
+      m_suppressed++;
+      return false;
+    }
+    record( topic, entry, now ).m_number = value;
+    return true;
+  }
+
+  /**
+   * Decide whether a non-numeric value should be published (it is published if its encoding differs from the last
+   * value published), recording it as the last published value if so
+   *
+   * @param topic the topic
+   * @param payload the encoded value
+   * @param offset the start of the encoded value
+   * @param length the length of the encoded value
+   * @param now the current time in milliseconds
+   * @return true if the value should be published
+   */
+  public boolean accept( String topic, byte[] payload, int offset, int length, long now ) {
+    LastValue entry = m_last.get( topic );
+    if ( entry != null && !heartbeatDue( entry, now ) && sameBytes( entry, payload, offset, length ) ) {
+      m_suppressed++;
+      return false;
+    }
+    entry = record( topic, entry, now );
+    if ( entry.m_payload == null || entry.m_payload.length < length ) {
+      entry.m_payload = new byte[length];
+    }
+    System.arraycopy( payload, offset, entry.m_payload, 0, length );
+    entry.m_length = length;
+    return true;
+  }
+
+  /**
+   * @return the number of values suppressed so far
+   */
+  public long getSuppressed() {
+    return m_suppressed;
+  }
+
+  /**
+   * @return the number of topics currently remembered
+   */
+  public int size() {
+    return m_last.size();
+  }
+
+  protected boolean heartbeatDue( LastValue entry, long now ) {
+    return m_heartbeat > 0 && now - entry.m_publishedAt >= m_heartbeat;
+  }
+
+  protected boolean withinDeadband( double last, double value ) {
+    if ( Double.isNaN( last ) || Double.isNaN( value ) ) {
+      return Double.isNaN( last ) && Double.isNaN( value );
+    }
+    double allowed = m_percent ? Math.abs( last ) * m_deadband / 100.0 : m_deadband;
+    return Math.abs( value - last ) <= allowed;
+  }
+
+  protected static boolean sameBytes( LastValue entry, byte[] payload, int offset, int length ) {
+    if ( entry.m_length != length ) {
+      return false;
+    }
+    byte[] last = entry.m_payload;
+    for ( int i = 0; i < length; i++ ) {
+      if ( last[i] != payload[offset + i] ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  protected LastValue record( String topic, LastValue entry, long now ) {
+    if ( entry == null ) {
+      entry = new LastValue();
+      m_last.put( topic, entry );
+    }
+    entry.m_publishedAt = now;
+    return entry;
+  }
+}
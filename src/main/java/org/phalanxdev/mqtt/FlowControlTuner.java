@@ -0,0 +1,189 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.phalanxdev.mqtt;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Additive-increase/multiplicative-decrease controller for the publisher's in-flight window and batch size.
+ * <p>
+ * Ack latencies and broker back-off (failed deliveries, "too many in-flight messages") are recorded as they happen,
+ * from any thread. Once per interval {@link #adjust(long)} looks at what was recorded: if the broker pushed back, or
+ * the average ack latency was above the target, both the window and the batch size are halved. Otherwise the batch
+ * size grows back towards its maximum, and the window grows by a step if the publisher was held up waiting for a slot
+ * (there is no point growing a window that isn't full).
+ */
+public class FlowControlTuner {
+
+  protected final int m_maxWindow;
+  protected final int m_maxBatchSize;
+  protected final long m_targetLatencyNanos;
+  protected final long m_interval;
+  protected final int m_windowStep;
+  protected final int m_batchStep;
+
+  protected volatile int m_window;
+  protected volatile int m_batchSize;
+
+  protected final AtomicLong m_acks = new AtomicLong();
+  protected final AtomicLong m_latencySum = new AtomicLong();
+  protected final AtomicInteger m_backoffs = new AtomicInteger();
+  protected final AtomicBoolean m_saturated = new AtomicBoolean();
+
+  protected long m_nextAdjust;
+  protected volatile long m_lastAverageLatencyNanos;
+  protected volatile int m_increases;
+  protected volatile int m_decreases;
+
+  /**
+   * @param initialWindow the starting in-flight window
+   * @param maxWindow the largest the window may grow to
+   * @param maxBatchSize the largest batch size (the starting size); 0 if batching is not in use
+   * @param targetLatencyMillis the average ack latency above which the broker is considered to be struggling
+   * @param intervalMillis how often to make a decision
+   */
+  public FlowControlTuner( int initialWindow, int maxWindow, int maxBatchSize, long targetLatencyMillis,
+      long intervalMillis ) {
+    m_maxWindow = Math.max( 1, maxWindow );
+    m_window = Math.max( 1, Math.min( initialWindow, m_maxWindow ) );
+    m_maxBatchSize = Math.max( 0, maxBatchSize );
+    m_batchSize = m_maxBatchSize;
+    m_targetLatencyNanos = targetLatencyMillis * 1000000L;
+    m_interval = intervalMillis;
+    m_windowStep = Math.max( 1, m_window / 10 );
+    m_batchStep = Math.max( 1, m_maxBatchSize / 10 );
+  }
+
+  /**
+   * Record a successful ack
+   *
+   * @param latencyNanos time between handing the message to the client and it being acknowledged
+   */
+  public void recordAck( long latencyNanos ) {
+    m_acks.incrementAndGet();
+    m_latencySum.addAndGet( latencyNanos );
+  }
+
+  /**
+   * Record the broker (or client) pushing back - a failed delivery or a refused publish
+   */
+  public void recordBackoff() {
+    m_backoffs.incrementAndGet();
+  }
+
+  /**
+   * Record that the publisher had to wait for a free slot in the window
+   */
+  public void recordSaturated() {
+    m_saturated.set( true );
+  }
+
+  /**
+   * Make a decision if the current interval has elapsed
+   *
+   * @param now the current time in milliseconds
+   * @return true if the window or batch size changed
+   */
+  public synchronized boolean adjust( long now ) {
+    if ( now < m_nextAdjust ) {
+      return false;
+    }
+    m_nextAdjust = now + m_interval;
+
+    long acks = m_acks.getAndSet( 0 );
+    long latencySum = m_latencySum.getAndSet( 0 );
+    int backoffs = m_backoffs.getAndSet( 0 );
+    boolean saturated = m_saturated.getAndSet( false );
+    if ( acks > 0 ) {
+      m_lastAverageLatencyNanos = latencySum / acks;
+    }
+
+    int window = m_window;
+    int batchSize = m_batchSize;
+    if ( backoffs > 0 || ( acks > 0 && m_lastAverageLatencyNanos > m_targetLatencyNanos ) ) {
+      window = Math.max( 1, window / 2 );
+      batchSize = Math.max( Math.min( 1, m_maxBatchSize ), batchSize / 2 );
+    } else if ( acks > 0 ) {
+      if ( saturated ) {
+        window = Math.min( m_maxWindow, window + m_windowStep );
+      }
+      batchSize = Math.min( m_maxBatchSize, batchSize + m_batchStep );
+    }
+
+    if ( window == m_window && batchSize == m_batchSize ) {
+      return false;
+    }
+    if ( window < m_window || batchSize < m_batchSize ) {
+      m_decreases++;
+    } else {
+      m_increases++;
+    }
+    m_window = window;
+    m_batchSize = batchSize;
+    return true;
+  }
+
+  /**
+   * @return the current in-flight window
+   */
+  public int getWindow() {
+    return m_window;
+  }
+
+  /**
+   * @return the largest the window may grow to
+   */
+  public int getMaxWindow() {
+    return m_maxWindow;
+  }
+
+  /**
+   * @return the current batch size (0 if batching is not in use)
+   */
+  public int getBatchSize() {
+    return m_batchSize;
+  }
+
+  /**
+   * @return the average ack latency over the most recent interval that saw any acks, in microseconds
+   */
+  public long getAverageLatencyMicros() {
+    return m_lastAverageLatencyNanos / 1000L;
+  }
+
+  /**
+   * @return the number of times the window or batch size has been grown
+   */
+  public int getIncreases() {
+    return m_increases;
+  }
+
+  /**
+   * @return the number of times the window and batch size have been cut back
+   */
+  public int getDecreases() {
+    return m_decreases;
+  }
+}
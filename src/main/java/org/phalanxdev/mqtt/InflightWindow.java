@@ -0,0 +1,135 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.phalanxdev.mqtt;
+
+/**
+ * Bounds the number of published messages that have been handed to the client but not yet acknowledged by the
+ * broker. A slot is acquired before each publish and released from the delivery callback. The limit may be changed
+ * while messages are in flight; shrinking it simply stops new slots being handed out until enough acks arrive.
+ */
+public class InflightWindow {
+
+  protected final Object m_lock = new Object();
+
+  protected int m_limit;
+  protected int m_inflight;
+
+  /**
+   * @param limit the maximum number of unacknowledged messages
+   */
+  public InflightWindow( int limit ) {
+    setLimit( limit );
+  }
+
+  /**
+   * Acquire a slot in the window, waiting if the window is currently full
+   *
+   * @param timeoutMillis maximum time to wait for a slot
+   * @return true if a slot was acquired; false if the timeout expired first
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean acquire( long timeoutMillis ) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    synchronized ( m_lock ) {
+      while ( m_inflight >= m_limit ) {
+        long remaining = deadline - System.currentTimeMillis();
+        if ( remaining <= 0 ) {
+          return false;
+        }
+        m_lock.wait( remaining );
+      }
+      m_inflight++;
+      return true;
+    }
+  }
+
+  /**
+   * Release a previously acquired slot
+   */
+  public void release() {
+    synchronized ( m_lock ) {
+      if ( m_inflight > 0 ) {
+        m_inflight--;
+      }
+      m_lock.notifyAll();
+    }
+  }
+
+  /**
+   * Wait until all acquired slots have been released
+   *
+   * @param timeoutMillis maximum time to wait
+   * @return true if the window drained; false if the timeout expired with messages still in flight
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean awaitEmpty( long timeoutMillis ) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    synchronized ( m_lock ) {
+      while ( m_inflight > 0 ) {
+        long remaining = deadline - System.currentTimeMillis();
+        if ( remaining <= 0 ) {
+          return false;
+        }
+        m_lock.wait( remaining );
+      }
+      return true;
+    }
+  }
+
+  /**
+   * @return the number of messages currently in flight
+   */
+  public int getInflight() {
+    synchronized ( m_lock ) {
+      return m_inflight;
+    }
+  }
+
+  /**
+   * @return true if acquiring a slot would currently have to wait
+   */
+  public boolean isFull() {
+    synchronized ( m_lock ) {
+      return m_inflight >= m_limit;
+    }
+  }
+
+  /**
+   * @return the maximum number of unacknowledged messages
+   */
+  public int getLimit() {
+    synchronized ( m_lock ) {
+      return m_limit;
+    }
+  }
+
+  /**
+   * @param limit the maximum number of unacknowledged messages (at least 1)
+   */
+  public void setLimit( int limit ) {
+    synchronized ( m_lock ) {
+      m_limit = Math.max( 1, limit );
+      m_lock.notifyAll();
+    }
+  }
+}
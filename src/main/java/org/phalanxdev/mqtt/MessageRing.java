@@ -0,0 +1,369 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.phalanxdev.mqtt;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded ring of preallocated message slots for handing messages from exactly one producer thread (the MQTT
+ * client's callback thread) to exactly one consumer thread (the step), without locks. The producer claims a slot,
+ * fills it in and publishes it; the consumer polls a slot, reads it and releases it. Slots are reused, so nothing is
+ * allocated per message.
+ * <p>
+ * When the producer finds the ring full, or the consumer finds it empty, it waits using the chosen
+ * {@link WaitStrategy}. Closing the ring wakes both sides up and makes further claims fail, so a producer blocked on a
+ * full ring can't hold up shutting the client down.
+ */
+public class MessageRing {
+
+  /**
+   * How a thread waits for the other side of the ring
+   */
+  public enum WaitStrategy {
+    /** Park the thread until woken up. Uses no CPU while waiting, at the cost of a few microseconds to wake */
+    BLOCKING,
+    /** Spin briefly, then yield the CPU between checks. Lower latency, but keeps a core partly busy */
+    YIELDING,
+    /** Spin continuously. Lowest latency, but uses a whole core while waiting */
+    BUSY_SPIN;
+
+    public static WaitStrategy fromName( String name ) {
+      for ( WaitStrategy strategy : values() ) {
+        if ( strategy.name().equalsIgnoreCase( name ) ) {
+          return strategy;
+        }
+      }
+      return BLOCKING;
+    }
+  }
+
+  /**
+   * A reusable message slot. The producer fills in whichever of the details the consumer needs
+   */
+  public static class Slot {
+    public String m_topic;
+    public byte[] m_payload;
+    public int m_qos;
+    public boolean m_retained;
+    public boolean m_duplicate;
+    public int m_messageId;
+    /** System.nanoTime() when the message arrived */
+    public long m_arrived;
+
+    /**
+     * Copy the details of another slot, e.g. to keep them after the slot is released
+     *
+     * @param other the slot to copy
+     */
+    public void copyFrom( Slot other ) {
+      m_topic = other.m_topic;
+      m_payload = other.m_payload;
+      m_qos = other.m_qos;
+      m_retained = other.m_retained;
+      m_duplicate = other.m_duplicate;
+      m_messageId = other.m_messageId;
+      m_arrived = other.m_arrived;
+    }
+  }
+
+  /** Spins before a yielding wait starts yielding */
+  protected static final int SPIN_TRIES = 100;
+
+  protected final Slot[] m_slots;
+  protected final int m_mask;
+  protected final WaitStrategy m_strategy;
+
+  /** Next slot the producer will write; only written by the producer */
+  protected final AtomicLong m_tail = new AtomicLong();
+  /** Next slot the consumer will read; only written by the consumer */
+  protected final AtomicLong m_head = new AtomicLong();
+
+  /** Each side's last read of the other's position, to avoid reading the shared counter on every call */
+  protected long m_producerHeadCache;
+  protected long m_consumerTailCache;
+
+  protected volatile Thread m_waitingProducer;
+  protected volatile Thread m_waitingConsumer;
+  protected volatile boolean m_closed;
+
+  /** How many messages must be waiting before a parked consumer is woken up */
+  protected volatile int m_wakeDepth = 1;
+
+  protected volatile long m_producerWaitNanos;
+  protected volatile long m_maxDepth;
+
+  /**
+   * @param capacity the minimum number of slots. Rounded up to a power of two
+   * @param strategy how to wait when the ring is full or empty
+   */
+  public MessageRing( int capacity, WaitStrategy strategy ) {
+    int size = 1;
+    while ( size < Math.max( 2, capacity ) ) {
+      size <<= 1;
+    }
+    m_slots = new Slot[size];
+    for ( int i = 0; i < size; i++ ) {
+      m_slots[i] = new Slot();
+    }
+    m_mask = size - 1;
+    m_strategy = strategy;
+  }
+
+  /**
+   * Get the next slot to fill in, waiting for the consumer to free one if the ring is full. Producer only.
+   *
+   * @return the slot, or null if the ring has been closed
+   */
+  public Slot claim() {
+    long tail = m_tail.get();
+    if ( tail - m_producerHeadCache > m_mask ) {
+      m_producerHeadCache = m_head.get();
+      if ( tail - m_producerHeadCache > m_mask ) {
+        long start = System.nanoTime();
+        int tries = 0;
+        while ( tail - ( m_producerHeadCache = m_head.get() ) > m_mask ) {
+          if ( m_closed ) {
+            return null;
+          }
+          tries = idle( tries, true, Long.MAX_VALUE );
+        }
+        m_producerWaitNanos += System.nanoTime() - start;
+      }
+    }
+    return m_closed ? null : m_slots[(int) tail & m_mask];
+  }
+
+  /**
+   * Make the slot returned by the last {@link #claim()} visible to the consumer. Producer only.
+   */
+  public void publish() {
+    long tail = m_tail.get() + 1;
+    advance( m_tail, tail );
+    long depth = tail - m_head.get();
+    if ( depth > m_maxDepth ) {
+      m_maxDepth = depth;
+    }
+    Thread waiting = m_waitingConsumer;
+    if ( waiting != null && depth >= m_wakeDepth ) {
+      LockSupport.unpark( waiting );
+    }
+  }
+
+  /**
+   * Get the next filled in slot, if there is one. Consumer only.
+   *
+   * @return the slot, or null if the ring is empty
+   */
+  public Slot poll() {
+    long head = m_head.get();
+    if ( head >= m_consumerTailCache ) {
+      m_consumerTailCache = m_tail.get();
+      if ( head >= m_consumerTailCache ) {
+        return null;
+      }
+    }
+    return m_slots[(int) head & m_mask];
+  }
+
+  /**
+   * Get the next filled in slot, waiting for one if the ring is empty. Consumer only.
+   *
+   * @param timeout how long to wait
+   * @param unit the unit of the timeout
+   * @return the slot, or null if the timeout passed or the ring was closed first
+   */
+  public Slot take( long timeout, TimeUnit unit ) {
+    Slot slot = poll();
+    if ( slot != null ) {
+      return slot;
+    }
+    long deadline = System.nanoTime() + unit.toNanos( timeout );
+    int tries = 0;
+    while ( ( slot = poll() ) == null ) {
+      if ( m_closed || System.nanoTime() - deadline >= 0 ) {
+        return null;
+      }
+      tries = idle( tries, false, deadline );
+    }
+    return slot;
+  }
+
+  /**
+   * Wait until at least a number of messages are waiting. A blocked consumer is only woken up once that many have
+   * been published, rather than for every message. Consumer only.
+   *
+   * @param count the number of messages to wait for. Capped at the capacity, so that a full ring always ends the wait
+   * @param timeout how long to wait
+   * @param unit the unit of the timeout
+   * @return true if that many messages are waiting, false if the timeout passed or the ring was closed first
+   */
+  public boolean await( int count, long timeout, TimeUnit unit ) {
+    int wanted = Math.max( 1, Math.min( count, m_slots.length ) );
+    if ( m_tail.get() - m_head.get() >= wanted ) {
+      return true;
+    }
+    long deadline = System.nanoTime() + unit.toNanos( timeout );
+    m_wakeDepth = wanted;
+    try {
+      int tries = 0;
+      while ( m_tail.get() - m_head.get() < wanted ) {
+        if ( m_closed || System.nanoTime() - deadline >= 0 ) {
+          return false;
+        }
+        tries = idle( tries, false, deadline );
+      }
+      return true;
+    } finally {
+      m_wakeDepth = 1;
+    }
+  }
+
+  /**
+   * Hand the slot returned by the last {@link #poll()} or {@link #take(long, TimeUnit)} back to the producer.
+   * Consumer only.
+   */
+  public void release() {
+    long head = m_head.get();
+    Slot slot = m_slots[(int) head & m_mask];
+    slot.m_topic = null;
+    slot.m_payload = null;
+    advance( m_head, head + 1 );
+    Thread waiting = m_waitingProducer;
+    if ( waiting != null ) {
+      LockSupport.unpark( waiting );
+    }
+  }
+
+  /**
+   * Stop accepting messages and wake up any waiting threads. Messages already published can still be polled.
+   */
+  public void close() {
+    m_closed = true;
+    Thread waiting = m_waitingProducer;
+    if ( waiting != null ) {
+      LockSupport.unpark( waiting );
+    }
+    waiting = m_waitingConsumer;
+    if ( waiting != null ) {
+      LockSupport.unpark( waiting );
+    }
+  }
+
+  /**
+   * @return true if the ring has been closed
+   */
+  public boolean isClosed() {
+    return m_closed;
+  }
+
+  /**
+   * @return the number of messages waiting to be consumed
+   */
+  public int size() {
+    return (int) Math.max( 0, m_tail.get() - m_head.get() );
+  }
+
+  /**
+   * @return the number of slots
+   */
+  public int capacity() {
+    return m_slots.length;
+  }
+
+  /**
+   * @return the most messages that have been waiting at once
+   */
+  public long getMaxDepth() {
+    return m_maxDepth;
+  }
+
+  /**
+   * @return the total time the producer has spent waiting for the ring to have room, in nanoseconds
+   */
+  public long getProducerWaitNanos() {
+    return m_producerWaitNanos;
+  }
+
+  protected void advance( AtomicLong position, long value ) {
+    if ( m_strategy == WaitStrategy.BLOCKING ) {
+      // a full fence, so that the other side either sees the new position or is seen waiting and gets unparked
+      position.set( value );
+    } else {
+      // nobody parks with the spinning strategies, so ordered (cheaper) writes are enough
+      position.lazySet( value );
+    }
+  }
+
+  /**
+   * Wait a little, according to the strategy
+   *
+   * @param tries how many times this wait has been called for the current condition
+   * @param producer true if called by the producer, false if by the consumer
+   * @param deadline System.nanoTime() after which a blocking wait should not park, or Long.MAX_VALUE for none
+   * @return the new number of tries
+   */
+  protected int idle( int tries, boolean producer, long deadline ) {
+    switch ( m_strategy ) {
+      case BUSY_SPIN:
+        return tries + 1;
+      case YIELDING:
+        if ( tries >= SPIN_TRIES ) {
+          Thread.yield();
+        }
+        return tries + 1;
+      default:
+        if ( tries < SPIN_TRIES ) {
+          return tries + 1;
+        }
+        // register as waiting and only then re-check the other side's position. The other side moves its position
+        // before looking for a waiting thread, and both are volatile, so at least one of us sees the other: either
+        // we see the move and don't park, or it sees us and unparks us. So there's no need to wake up periodically
+        Thread current = Thread.currentThread();
+        if ( producer ) {
+          m_waitingProducer = current;
+        } else {
+          m_waitingConsumer = current;
+        }
+        long depth = m_tail.get() - m_head.get();
+        if ( ( producer ? depth > m_mask : depth < m_wakeDepth ) && !m_closed ) {
+          if ( deadline == Long.MAX_VALUE ) {
+            LockSupport.park( this );
+          } else {
+            long park = deadline - System.nanoTime();
+            if ( park > 0 ) {
+              LockSupport.parkNanos( this, park );
+            }
+          }
+        }
+        if ( producer ) {
+          m_waitingProducer = null;
+        } else {
+          m_waitingConsumer = null;
+        }
+        return tries + 1;
+    }
+  }
+}
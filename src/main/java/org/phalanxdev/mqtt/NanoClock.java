@@ -0,0 +1,81 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.phalanxdev.mqtt;
+
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns System.nanoTime() readings into wall clock timestamps with nanosecond resolution. System.currentTimeMillis()
+ * only has millisecond resolution and can be slow to read on some platforms, so readings are taken with nanoTime()
+ * where they happen, and converted later against an anchor pairing the two clocks. The anchor is renewed
+ * periodically so that drift between the clocks (e.g. NTP adjustments) stays bounded. Not thread safe.
+ */
+public class NanoClock {
+
+  /** How often the anchor is renewed */
+  protected static final long REANCHOR_NANOS = TimeUnit.MINUTES.toNanos( 1 );
+
+  protected long m_anchorNanos;
+  protected long m_anchorEpochNanos;
+
+  public NanoClock() {
+    anchor();
+  }
+
+  /**
+   * @param nanoTime a System.nanoTime() reading
+   * @return the reading as nanoseconds since the epoch
+   */
+  public long toEpochNanos( long nanoTime ) {
+    if ( nanoTime - m_anchorNanos > REANCHOR_NANOS ) {
+      anchor();
+    }
+    return m_anchorEpochNanos + ( nanoTime - m_anchorNanos );
+  }
+
+  /**
+   * @param nanoTime a System.nanoTime() reading
+   * @return the reading as a timestamp
+   */
+  public Timestamp toTimestamp( long nanoTime ) {
+    long epochNanos = toEpochNanos( nanoTime );
+    Timestamp t = new Timestamp( Math.floorDiv( epochNanos, 1000000L ) );
+    t.setNanos( (int) Math.floorMod( epochNanos, 1000000000L ) );
+    return t;
+  }
+
+  protected void anchor() {
+    // read the millisecond clock just after it ticks over, so that the anchor is accurate to well under a millisecond
+    long millis = System.currentTimeMillis();
+    long next;
+    long nanos;
+    do {
+      nanos = System.nanoTime();
+      next = System.currentTimeMillis();
+    } while ( next == millis );
+    m_anchorNanos = nanos;
+    m_anchorEpochNanos = next * 1000000L;
+  }
+}
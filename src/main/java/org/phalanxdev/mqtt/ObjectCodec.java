@@ -0,0 +1,624 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.phalanxdev.mqtt;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary encoding for object message values, as an alternative to Java serialization. Strings, numbers,
+ * booleans, dates, timestamps, byte arrays, big numbers, lists, sets and maps are built in; any other class must be on
+ * the allowlist, which is the only set of classes that decoding will ever instantiate (using their no-argument
+ * constructor, then setting their non-static, non-transient fields).
+ * <p>
+ * Both ends register the same allowlist, so class descriptors don't have to travel with the data: each class is
+ * identified by a 32 bit fingerprint of its name and field layout, written the first time the class appears in a
+ * payload and referred to by a one byte index after that. A class whose layout differs between publisher and
+ * subscriber therefore fails to decode rather than being decoded wrongly.
+ * <p>
+ * Payloads start with a two byte header that can't begin a Java serialization stream. Encoders and decoders keep
+ * their working state between messages, so are not thread safe.
+ */
+public class ObjectCodec {
+
+  /**
+   * How object message values are written
+   */
+  public enum Format {
+    /** Java serialization, as in earlier versions */
+    JAVA,
+    /** This codec */
+    COMPACT;
+
+    public static Format fromName( String name ) {
+      for ( Format format : values() ) {
+        if ( format.name().equalsIgnoreCase( name ) ) {
+          return format;
+        }
+      }
+      return JAVA;
+    }
+  }
+
+  protected static final int MAGIC = 0xC0;
+  protected static final int VERSION = 1;
+
+  /** Limit on nesting, so that a hostile payload can't exhaust the stack */
+  protected static final int MAX_DEPTH = 64;
+
+  protected static final int NULL = 0;
+  protected static final int FALSE = 1;
+  protected static final int TRUE = 2;
+  protected static final int BYTE = 3;
+  protected static final int SHORT = 4;
+  protected static final int CHAR = 5;
+  protected static final int INT = 6;
+  protected static final int LONG = 7;
+  protected static final int FLOAT = 8;
+  protected static final int DOUBLE = 9;
+  protected static final int STRING = 10;
+  protected static final int BYTES = 11;
+  protected static final int DATE = 12;
+  protected static final int TIMESTAMP = 13;
+  protected static final int BIG_DECIMAL = 14;
+  protected static final int BIG_INTEGER = 15;
+  protected static final int LIST = 16;
+  protected static final int SET = 17;
+  protected static final int MAP = 18;
+  protected static final int OBJECT = 19;
+  protected static final int ENUM = 20;
+
+  /**
+   * The layout of an allowlisted class
+   */
+  protected static class ClassInfo {
+    protected Class<?> m_type;
+    protected int m_fingerprint;
+    protected Field[] m_fields;
+    protected Constructor<?> m_constructor;
+    protected Object[] m_constants;
+
+    /** Position in the current payload's class table, or -1 if not written yet */
+    protected int m_written = -1;
+  }
+
+  protected final Map<Class<?>, ClassInfo> m_byClass = new HashMap<>();
+  protected final Map<Integer, ClassInfo> m_byFingerprint = new HashMap<>();
+
+  /** Classes written to the current payload, so their indexes can be cleared afterwards */
+  protected final List<ClassInfo> m_writtenClasses = new ArrayList<>();
+
+  /** Classes read from the current payload, by index */
+  protected final List<ClassInfo> m_readClasses = new ArrayList<>();
+
+  protected byte[] m_in;
+  protected int m_pos;
+  protected int m_limit;
+
+  /**
+   * @param allowlist the classes that may be encoded and decoded besides the built in ones
+   * @throws IllegalArgumentException if a class can't be handled (no no-argument constructor, an array field other than
+   * byte[], or a collection field of a type that decoding can't produce), or two classes have the same fingerprint
+   */
+  public ObjectCodec( Collection<Class<?>> allowlist ) {
+    for ( Class<?> type : allowlist ) {
+      ClassInfo info = describe( type );
+      ClassInfo clash = m_byFingerprint.put( info.m_fingerprint, info );
+      if ( clash != null && clash.m_type != type ) {
+        throw new IllegalArgumentException(
+            "Classes " + clash.m_type.getName() + " and " + type.getName() + " have the same fingerprint" );
+      }
+      m_byClass.put( type, info );
+    }
+  }
+
+  /**
+   * Create a codec from a list of class names
+   *
+   * @param classNames comma or whitespace separated fully qualified class names. May be empty
+   * @param loader the class loader to load the classes with
+   * @return the codec
+   * @throws ClassNotFoundException if a class can't be found
+   * @throws IllegalArgumentException if a class can't be handled
+   */
+  public static ObjectCodec forClassNames( String classNames, ClassLoader loader ) throws ClassNotFoundException {
+    List<Class<?>> classes = new ArrayList<>();
+    if ( classNames != null ) {
+      for ( String name : classNames.trim().split( "[,\\s]+" ) ) {
+        if ( name.length() > 0 ) {
+          classes.add( Class.forName( name, false, loader ) );
+        }
+      }
+    }
+    return new ObjectCodec( classes );
+  }
+
+  /**
+   * @param payload a message payload
+   * @return true if the payload has this codec's header
+   */
+  public static boolean isCompact( byte[] payload ) {
+    return payload != null && payload.length >= 2 && ( payload[0] & 0xFF ) == MAGIC && payload[1] == VERSION;
+  }
+
+  /**
+   * Encode a value, appending it to the buffer
+   *
+   * @param value the value
+   * @param out the buffer to append to
+   * @throws IOException if the value contains an instance of a class that is neither built in nor on the allowlist
+   */
+  public void encode( Object value, PayloadBuffer out ) throws IOException {
+    out.write( MAGIC );
+    out.write( VERSION );
+    try {
+      writeValue( value, out, 0 );
+    } finally {
+      for ( ClassInfo info : m_writtenClasses ) {
+        info.m_written = -1;
+      }
+      m_writtenClasses.clear();
+    }
+  }
+
+  /**
+   * Decode a value
+   *
+   * @param payload the encoded value
+   * @param offset where the encoded value starts
+   * @param length the length of the encoded value
+   * @return the value
+   * @throws IOException if the payload is malformed, or refers to a class that is not on the allowlist
+   */
+  public Object decode( byte[] payload, int offset, int length ) throws IOException {
+    if ( length < 2 || ( payload[offset] & 0xFF ) != MAGIC || payload[offset + 1] != VERSION ) {
+      throw new IOException( "Not a compact object payload" );
+    }
+    m_in = payload;
+    m_pos = offset + 2;
+    m_limit = offset + length;
+    try {
+      Object value = readValue( 0 );
+      if ( m_pos != m_limit ) {
+        throw new IOException( ( m_limit - m_pos ) + " unexpected trailing bytes" );
+      }
+      return value;
+    } finally {
+      m_in = null;
+      m_readClasses.clear();
+    }
+  }
+
+  protected void writeValue( Object value, PayloadBuffer out, int depth ) throws IOException {
+    if ( depth > MAX_DEPTH ) {
+      throw new IOException( "Object graph is nested more than " + MAX_DEPTH + " deep (or is cyclic)" );
+    }
+    if ( value == null ) {
+      out.write( NULL );
+    } else if ( value instanceof String ) {
+      out.write( STRING );
+      writeString( (String) value, out );
+    } else if ( value instanceof Long ) {
+      out.write( LONG );
+      writeVarLong( zigZag( (Long) value ), out );
+    } else if ( value instanceof Integer ) {
+      out.write( INT );
+      writeVarLong( zigZag( (Integer) value ), out );
+    } else if ( value instanceof Double ) {
+      out.write( DOUBLE );
+      out.writeDouble( (Double) value );
+    } else if ( value instanceof Boolean ) {
+      out.write( (Boolean) value ? TRUE : FALSE );
+    } else if ( value instanceof Timestamp ) {
+      out.write( TIMESTAMP );
+      writeVarLong( zigZag( ( (Timestamp) value ).getTime() ), out );
+      writeVarLong( ( (Timestamp) value ).getNanos(), out );
+    } else if ( value instanceof Date ) {
+      out.write( DATE );
+      writeVarLong( zigZag( ( (Date) value ).getTime() ), out );
+    } else if ( value instanceof byte[] ) {
+      out.write( BYTES );
+      writeVarLong( ( (byte[]) value ).length, out );
+      out.write( (byte[]) value, 0, ( (byte[]) value ).length );
+    } else if ( value instanceof BigDecimal ) {
+      out.write( BIG_DECIMAL );
+      writeVarLong( zigZag( ( (BigDecimal) value ).scale() ), out );
+      writeBytes( ( (BigDecimal) value ).unscaledValue().toByteArray(), out );
+    } else if ( value instanceof BigInteger ) {
+      out.write( BIG_INTEGER );
+      writeBytes( ( (BigInteger) value ).toByteArray(), out );
+    } else if ( value instanceof Float ) {
+      out.write( FLOAT );
+      out.writeInt( Float.floatToRawIntBits( (Float) value ) );
+    } else if ( value instanceof Short ) {
+      out.write( SHORT );
+      writeVarLong( zigZag( (Short) value ), out );
+    } else if ( value instanceof Byte ) {
+      out.write( BYTE );
+      out.write( (Byte) value );
+    } else if ( value instanceof Character ) {
+      out.write( CHAR );
+      writeVarLong( (Character) value, out );
+    } else if ( value instanceof Map ) {
+      out.write( MAP );
+      Map<?, ?> map = (Map<?, ?>) value;
+      writeVarLong( map.size(), out );
+      for ( Map.Entry<?, ?> entry : map.entrySet() ) {
+        writeValue( entry.getKey(), out, depth + 1 );
+        writeValue( entry.getValue(), out, depth + 1 );
+      }
+    } else if ( value instanceof Collection ) {
+      out.write( value instanceof Set ? SET : LIST );
+      Collection<?> collection = (Collection<?>) value;
+      writeVarLong( collection.size(), out );
+      for ( Object element : collection ) {
+        writeValue( element, out, depth + 1 );
+      }
+    } else {
+      ClassInfo info = m_byClass.get( value.getClass() );
+      if ( info == null ) {
+        throw new IOException( "Class " + value.getClass().getName() + " is not on the object codec allowlist" );
+      }
+      if ( info.m_constants != null ) {
+        out.write( ENUM );
+        writeClass( info, out );
+        writeVarLong( ( (Enum<?>) value ).ordinal(), out );
+        return;
+      }
+      out.write( OBJECT );
+      writeClass( info, out );
+      try {
+        for ( Field field : info.m_fields ) {
+          writeValue( field.get( value ), out, depth + 1 );
+        }
+      } catch ( IllegalAccessException e ) {
+        throw new IOException( e );
+      }
+    }
+  }
+
+  protected void writeClass( ClassInfo info, PayloadBuffer out ) {
+    if ( info.m_written >= 0 ) {
+      writeVarLong( info.m_written + 1, out );
+      return;
+    }
+    out.write( 0 );
+    out.writeInt( info.m_fingerprint );
+    info.m_written = m_writtenClasses.size();
+    m_writtenClasses.add( info );
+  }
+
+  protected static void writeString( String s, PayloadBuffer out ) {
+    writeVarLong( utf8Length( s ), out );
+    out.writeUtf8( s );
+  }
+
+  protected static void writeBytes( byte[] bytes, PayloadBuffer out ) {
+    writeVarLong( bytes.length, out );
+    out.write( bytes, 0, bytes.length );
+  }
+
+  protected static void writeVarLong( long v, PayloadBuffer out ) {
+    while ( ( v & ~0x7FL ) != 0 ) {
+      out.write( (int) ( ( v & 0x7F ) | 0x80 ) );
+      v >>>= 7;
+    }
+    out.write( (int) v );
+  }
+
+  protected static long zigZag( long v ) {
+    return ( v << 1 ) ^ ( v >> 63 );
+  }
+
+  /**
+   * @return the number of bytes {@link PayloadBuffer#writeUtf8(CharSequence)} writes for a string
+   */
+  protected static int utf8Length( String s ) {
+    int len = s.length();
+    int bytes = len;
+    for ( int i = 0; i < len; i++ ) {
+      char c = s.charAt( i );
+      if ( c < 0x80 ) {
+        continue;
+      }
+      if ( c < 0x800 ) {
+        bytes += 1;
+      } else if ( Character.isHighSurrogate( c ) && i + 1 < len && Character.isLowSurrogate( s.charAt( i + 1 ) ) ) {
+        bytes += 2; // four bytes for the two chars
+        i++;
+      } else if ( !Character.isSurrogate( c ) ) {
+        bytes += 2;
+      }
+    }
+    return bytes;
+  }
+
+  protected Object readValue( int depth ) throws IOException {
+    if ( depth > MAX_DEPTH ) {
+      throw new IOException( "Object graph is nested more than " + MAX_DEPTH + " deep" );
+    }
+    int tag = readByte();
+    switch ( tag ) {
+      case NULL:
+        return null;
+      case FALSE:
+        return Boolean.FALSE;
+      case TRUE:
+        return Boolean.TRUE;
+      case BYTE:
+        return (byte) readByte();
+      case SHORT:
+        return (short) unZigZag( readVarLong() );
+      case CHAR:
+        return (char) readVarLong();
+      case INT:
+        return (int) unZigZag( readVarLong() );
+      case LONG:
+        return unZigZag( readVarLong() );
+      case FLOAT:
+        return Float.intBitsToFloat( (int) readFixed( 4 ) );
+      case DOUBLE:
+        return Double.longBitsToDouble( readFixed( 8 ) );
+      case STRING: {
+        int length = readLength();
+        String s = new String( m_in, m_pos, length, StandardCharsets.UTF_8 );
+        m_pos += length;
+        return s;
+      }
+      case BYTES:
+        return readBytes();
+      case DATE:
+        return new Date( unZigZag( readVarLong() ) );
+      case TIMESTAMP: {
+        Timestamp t = new Timestamp( unZigZag( readVarLong() ) );
+        long nanos = readVarLong();
+        if ( nanos < 0 || nanos > 999999999L ) {
+          throw new IOException( "Bad timestamp nanos " + nanos );
+        }
+        t.setNanos( (int) nanos );
+        return t;
+      }
+      case BIG_DECIMAL: {
+        int scale = (int) unZigZag( readVarLong() );
+        return new BigDecimal( readBigInteger(), scale );
+      }
+      case BIG_INTEGER:
+        return readBigInteger();
+      case LIST:
+      case SET: {
+        // every element takes at least a byte, which bounds what a hostile count can make us allocate
+        int size = readLength();
+        Collection<Object> collection = tag == LIST ? new ArrayList<>( size ) : new LinkedHashSet<>( size * 2 );
+        for ( int i = 0; i < size; i++ ) {
+          collection.add( readValue( depth + 1 ) );
+        }
+        return collection;
+      }
+      case MAP: {
+        int size = readLength();
+        Map<Object, Object> map = new LinkedHashMap<>( size * 2 );
+        for ( int i = 0; i < size; i++ ) {
+          map.put( readValue( depth + 1 ), readValue( depth + 1 ) );
+        }
+        return map;
+      }
+      case ENUM: {
+        ClassInfo info = readClass();
+        long ordinal = readVarLong();
+        if ( info.m_constants == null || ordinal < 0 || ordinal >= info.m_constants.length ) {
+          throw new IOException( "Bad enum constant " + ordinal + " of " + info.m_type.getName() );
+        }
+        return info.m_constants[(int) ordinal];
+      }
+      case OBJECT: {
+        ClassInfo info = readClass();
+        if ( info.m_constants != null ) {
+          throw new IOException( info.m_type.getName() + " is an enum" );
+        }
+        try {
+          Object object = info.m_constructor.newInstance();
+          for ( Field field : info.m_fields ) {
+            Object value = readValue( depth + 1 );
+            if ( value != null || !field.getType().isPrimitive() ) {
+              field.set( object, value );
+            }
+          }
+          return object;
+        } catch ( ReflectiveOperationException | IllegalArgumentException e ) {
+          throw new IOException( "Can't decode " + info.m_type.getName() + ": " + e.getMessage(), e );
+        }
+      }
+      default:
+        throw new IOException( "Unknown value tag " + tag + " at offset " + ( m_pos - 1 ) );
+    }
+  }
+
+  protected ClassInfo readClass() throws IOException {
+    long index = readVarLong();
+    if ( index != 0 ) {
+      if ( index < 0 || index > m_readClasses.size() ) {
+        throw new IOException( "Reference to undefined class " + index );
+      }
+      return m_readClasses.get( (int) index - 1 );
+    }
+    int fingerprint = (int) readFixed( 4 );
+    ClassInfo info = m_byFingerprint.get( fingerprint );
+    if ( info == null ) {
+      throw new IOException( "Class with fingerprint " + Integer.toHexString( fingerprint )
+          + " is not on the object codec allowlist, or its fields differ from the publisher's version" );
+    }
+    m_readClasses.add( info );
+    return info;
+  }
+
+  protected int readByte() throws IOException {
+    if ( m_pos >= m_limit ) {
+      throw new IOException( "Truncated payload" );
+    }
+    return m_in[m_pos++] & 0xFF;
+  }
+
+  protected long readFixed( int bytes ) throws IOException {
+    long v = 0;
+    for ( int i = 0; i < bytes; i++ ) {
+      v = ( v << 8 ) | readByte();
+    }
+    return v;
+  }
+
+  protected long readVarLong() throws IOException {
+    long v = 0;
+    for ( int shift = 0; shift < 64; shift += 7 ) {
+      int b = readByte();
+      v |= (long) ( b & 0x7F ) << shift;
+      if ( ( b & 0x80 ) == 0 ) {
+        return v;
+      }
+    }
+    throw new IOException( "Malformed variable length number" );
+  }
+
+  /**
+   * Read a length or element count, checking that it is no more than the number of bytes left
+   */
+  protected int readLength() throws IOException {
+    long length = readVarLong();
+    if ( length < 0 || length > m_limit - m_pos ) {
+      throw new IOException( "Length " + length + " at offset " + m_pos + " exceeds the payload" );
+    }
+    return (int) length;
+  }
+
+  protected byte[] readBytes() throws IOException {
+    int length = readLength();
+    byte[] bytes = Arrays.copyOfRange( m_in, m_pos, m_pos + length );
+    m_pos += length;
+    return bytes;
+  }
+
+  protected BigInteger readBigInteger() throws IOException {
+    byte[] magnitude = readBytes();
+    if ( magnitude.length == 0 ) {
+      throw new IOException( "Empty big number at offset " + m_pos );
+    }
+    return new BigInteger( magnitude );
+  }
+
+  protected static long unZigZag( long v ) {
+    return ( v >>> 1 ) ^ -( v & 1 );
+  }
+
+  protected static ClassInfo describe( Class<?> type ) {
+    ClassInfo info = new ClassInfo();
+    info.m_type = type;
+    CRC32 crc = new CRC32();
+    crc.update( type.getName().getBytes( StandardCharsets.UTF_8 ) );
+
+    if ( type.isEnum() ) {
+      info.m_constants = type.getEnumConstants();
+      for ( Object constant : info.m_constants ) {
+        crc.update( ( ";" + ( (Enum<?>) constant ).name() ).getBytes( StandardCharsets.UTF_8 ) );
+      }
+      info.m_fingerprint = (int) crc.getValue();
+      return info;
+    }
+    if ( type.isInterface() || Modifier.isAbstract( type.getModifiers() ) || type.isArray() ) {
+      throw new IllegalArgumentException( type.getName() + " is not a concrete class" );
+    }
+
+    // superclass fields first, then each class's own fields by name, so the order is the same in every JVM
+    List<Class<?>> hierarchy = new ArrayList<>();
+    for ( Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass() ) {
+      hierarchy.add( 0, c );
+    }
+    List<Field> fields = new ArrayList<>();
+    for ( Class<?> c : hierarchy ) {
+      Field[] declared = c.getDeclaredFields();
+      Arrays.sort( declared, new Comparator<Field>() {
+        @Override public int compare( Field a, Field b ) {
+          return a.getName().compareTo( b.getName() );
+        }
+      } );
+      for ( Field field : declared ) {
+        int modifiers = field.getModifiers();
+        if ( Modifier.isStatic( modifiers ) || Modifier.isTransient( modifiers ) || field.isSynthetic() ) {
+          continue;
+        }
+        checkFieldType( type, field );
+        field.setAccessible( true );
+        fields.add( field );
+        crc.update( ( ";" + field.getName() + ":" + field.getType().getName() ).getBytes( StandardCharsets.UTF_8 ) );
+      }
+    }
+    info.m_fields = fields.toArray( new Field[0] );
+    info.m_fingerprint = (int) crc.getValue();
+
+    try {
+      info.m_constructor = type.getDeclaredConstructor();
+      info.m_constructor.setAccessible( true );
+    } catch ( NoSuchMethodException e ) {
+      throw new IllegalArgumentException( type.getName() + " has no no-argument constructor" );
+    }
+    return info;
+  }
+
+  protected static void checkFieldType( Class<?> owner, Field field ) {
+    Class<?> type = field.getType();
+    String problem = null;
+    if ( type.isArray() && type != byte[].class ) {
+      problem = "arrays other than byte[] are not supported";
+    } else if ( Map.class.isAssignableFrom( type ) && !type.isAssignableFrom( LinkedHashMap.class ) ) {
+      problem = "maps are decoded as LinkedHashMap";
+    } else if ( Set.class.isAssignableFrom( type ) && !type.isAssignableFrom( LinkedHashSet.class ) ) {
+      problem = "sets are decoded as LinkedHashSet";
+    } else if ( Collection.class.isAssignableFrom( type ) && !Set.class.isAssignableFrom( type ) && !type
+        .isAssignableFrom( ArrayList.class ) ) {
+      problem = "lists are decoded as ArrayList";
+    } else if ( Date.class.isAssignableFrom( type ) && type != Date.class && type != Timestamp.class ) {
+      problem = "only java.util.Date and java.sql.Timestamp dates are supported";
+    }
+    if ( problem != null ) {
+      throw new IllegalArgumentException(
+          "Field " + field.getName() + " of " + owner.getName() + " can't be handled: " + problem );
+    }
+  }
+}
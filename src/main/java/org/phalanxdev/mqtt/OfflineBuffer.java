@@ -0,0 +1,300 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.phalanxdev.mqtt;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded FIFO of messages waiting for a lost connection to come back. Topics and payloads are held in a ring buffer
+ * allocated outside the Java heap, so that a long outage doesn't put pressure on the garbage collector; only a small
+ * context object per message (e.g. the rows it was built from) stays on the heap. All methods are synchronized.
+ */
+public class OfflineBuffer {
+
+  /**
+   * What to do with a message that doesn't fit
+   */
+  public enum OverflowPolicy {
+    /** Wait until there is room */
+    BLOCK,
+    /** Discard the oldest messages to make room */
+    DROP_OLDEST,
+    /** Discard the new message */
+    DROP_NEWEST;
+
+    public static OverflowPolicy fromName( String name ) {
+      for ( OverflowPolicy policy : values() ) {
+        if ( policy.name().equalsIgnoreCase( name ) ) {
+          return policy;
+        }
+      }
+      return BLOCK;
+    }
+  }
+
+  /**
+   * A message taken out of the buffer
+   */
+  public static class Message {
+    public final String m_topic;
+    public final byte[] m_payload;
+    public final int m_qos;
+    public final boolean m_retained;
+    public final Object m_context;
+
+    protected Message( String topic, byte[] payload, int qos, boolean retained, Object context ) {
+      m_topic = topic;
+      m_payload = payload;
+      m_qos = qos;
+      m_retained = retained;
+      m_context = context;
+    }
+  }
+
+  /** topic length, flags, payload length */
+  protected static final int HEADER_SIZE = 4 + 1 + 4;
+
+  protected final ByteBuffer m_ring;
+  protected final int m_capacity;
+  protected int m_head; // start of the oldest record
+  protected int m_used;
+
+  protected final ArrayDeque<Object> m_contexts = new ArrayDeque<>();
+  protected long m_dropped;
+
+  /**
+   * @param capacityBytes the size of the ring buffer. Each message takes its topic (as UTF-8) and payload plus 9 bytes
+   */
+  public OfflineBuffer( int capacityBytes ) {
+    m_capacity = Math.max( HEADER_SIZE, capacityBytes );
+    m_ring = ByteBuffer.allocateDirect( m_capacity );
+  }
+
+  /**
+   * @param topic the topic
+   * @param payloadLength the payload length
+   * @return true if a message of this size could ever fit, even in an empty buffer
+   */
+  public boolean fits( String topic, int payloadLength ) {
+    return recordSize( topic, payloadLength ) <= m_capacity;
+  }
+
+  /**
+   * Add a message if there is room for it
+   *
+   * @param topic the topic
+   * @param payload the payload. It is copied
+   * @param qos the QoS
+   * @param retained the retained flag
+   * @param context an object to hand back with the message
+   * @return true if the message was added; false if there is not enough room
+   */
+  public synchronized boolean offer( String topic, byte[] payload, int qos, boolean retained, Object context ) {
+    byte[] topicBytes = topic.getBytes( StandardCharsets.UTF_8 );
+    int size = HEADER_SIZE + topicBytes.length + payload.length;
+    if ( size > m_capacity - m_used ) {
+      return false;
+    }
+    int pos = ( m_head + m_used ) % m_capacity;
+    pos = putInt( pos, topicBytes.length );
+    pos = put( pos, new byte[] { (byte) ( ( qos & 0x3 ) | ( retained ? 0x4 : 0 ) ) }, 1 );
+    pos = putInt( pos, payload.length );
+    pos = put( pos, topicBytes, topicBytes.length );
+    put( pos, payload, payload.length );
+    m_used += size;
+    m_contexts.addLast( context );
+    return true;
+  }
+
+  /**
+   * Add a message, waiting for room if there is not enough. A message taken out of the buffer wakes the wait
+   * straight away.
+   *
+   * @param topic the topic
+   * @param payload the payload. It is copied
+   * @param qos the QoS
+   * @param retained the retained flag
+   * @param context an object to hand back with the message
+   * @param timeoutMillis the longest time to wait
+   * @return true if the message was added; false if there was still not enough room when the time was up
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  public synchronized boolean offer( String topic, byte[] payload, int qos, boolean retained, Object context,
+      long timeoutMillis ) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+    while ( !offer( topic, payload, qos, retained, context ) ) {
+      long remaining = deadline - System.nanoTime();
+      if ( remaining <= 0 ) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait( this, remaining );
+    }
+    return true;
+  }
+
+  /**
+   * Take the oldest message out of the buffer
+   *
+   * @return the message, or null if the buffer is empty
+   */
+  public synchronized Message poll() {
+    if ( m_contexts.isEmpty() ) {
+      return null;
+    }
+    int pos = m_head;
+    int topicLength = getInt( pos );
+    pos = ( pos + 4 ) % m_capacity;
+    int flags = m_ring.get( pos );
+    pos = ( pos + 1 ) % m_capacity;
+    int payloadLength = getInt( pos );
+    pos = ( pos + 4 ) % m_capacity;
+    byte[] topic = new byte[topicLength];
+    pos = get( pos, topic );
+    byte[] payload = new byte[payloadLength];
+    get( pos, payload );
+
+    int size = HEADER_SIZE + topicLength + payloadLength;
+    m_head = ( m_head + size ) % m_capacity;
+    m_used -= size;
+    if ( m_used == 0 ) {
+      m_head = 0;
+    }
+    notifyAll();
+    return new Message( new String( topic, StandardCharsets.UTF_8 ), payload, flags & 0x3, ( flags & 0x4 ) != 0,
+        m_contexts.pollFirst() );
+  }
+
+  /**
+   * @return the topic of the oldest message, or null if the buffer is empty
+   */
+  public synchronized String peekTopic() {
+    if ( m_contexts.isEmpty() ) {
+      return null;
+    }
+    byte[] topic = new byte[getInt( m_head )];
+    get( ( m_head + HEADER_SIZE ) % m_capacity, topic );
+    return new String( topic, StandardCharsets.UTF_8 );
+  }
+
+  /**
+   * Discard the oldest message
+   *
+   * @return the context of the discarded message, or null if the buffer is empty
+   */
+  public synchronized Object dropOldest() {
+    if ( m_contexts.isEmpty() ) {
+      return null;
+    }
+    int topicLength = getInt( m_head );
+    int payloadLength = getInt( ( m_head + 5 ) % m_capacity );
+    int size = HEADER_SIZE + topicLength + payloadLength;
+    m_head = ( m_head + size ) % m_capacity;
+    m_used -= size;
+    if ( m_used == 0 ) {
+      m_head = 0;
+    }
+    m_dropped++;
+    notifyAll();
+    return m_contexts.pollFirst();
+  }
+
+  /**
+   * Record that a message was discarded without being added
+   */
+  public synchronized void droppedNewest() {
+    m_dropped++;
+  }
+
+  /**
+   * @return the number of messages in the buffer
+   */
+  public synchronized int size() {
+    return m_contexts.size();
+  }
+
+  /**
+   * @return the number of bytes of the ring buffer in use
+   */
+  public synchronized int getUsedBytes() {
+    return m_used;
+  }
+
+  /**
+   * @return the number of messages discarded because the buffer was full
+   */
+  public synchronized long getDropped() {
+    return m_dropped;
+  }
+
+  protected static int recordSize( String topic, int payloadLength ) {
+    return HEADER_SIZE + topic.getBytes( StandardCharsets.UTF_8 ).length + payloadLength;
+  }
+
+  protected int putInt( int pos, int value ) {
+    return put( pos, new byte[] { (byte) ( value >>> 24 ), (byte) ( value >>> 16 ), (byte) ( value >>> 8 ),
+        (byte) value }, 4 );
+  }
+
+  protected int getInt( int pos ) {
+    int value = 0;
+    for ( int i = 0; i < 4; i++ ) {
+      value = ( value << 8 ) | ( m_ring.get( pos ) & 0xff );
+      pos = ( pos + 1 ) % m_capacity;
+    }
+    return value;
+  }
+
+  /**
+   * Copy bytes into the ring, wrapping around the end if necessary
+   */
+  protected int put( int pos, byte[] bytes, int length ) {
+    int first = Math.min( length, m_capacity - pos );
+    ByteBuffer ring = m_ring.duplicate();
+    ring.position( pos );
+    ring.put( bytes, 0, first );
+    if ( first < length ) {
+      ring.position( 0 );
+      ring.put( bytes, first, length - first );
+    }
+    return ( pos + length ) % m_capacity;
+  }
+
+  /**
+   * Copy bytes out of the ring, wrapping around the end if necessary
+   */
+  protected int get( int pos, byte[] bytes ) {
+    int length = bytes.length;
+    int first = Math.min( length, m_capacity - pos );
+    ByteBuffer ring = m_ring.duplicate();
+    ring.position( pos );
+    ring.get( bytes, 0, first );
+    if ( first < length ) {
+      ring.position( 0 );
+      ring.get( bytes, first, length - first );
+    }
+    return ( pos + length ) % m_capacity;
+  }
+}
@@ -0,0 +1,203 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.phalanxdev.mqtt;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer that is reset and reused for every message, so that encoding a payload does not allocate.
+ * Multi-byte numbers are written big-endian (the same layout as {@link java.nio.ByteBuffer}'s default). Strings are
+ * encoded straight into the buffer as UTF-8 without an intermediate byte array. Not thread safe.
+ */
+public class PayloadBuffer extends OutputStream {
+
+  protected byte[] m_buf;
+  protected int m_length;
+
+  /** Set when the payload is an existing array that was used as-is rather than copied in */
+  protected byte[] m_direct;
+
+  /** Last exact-size array handed out by {@link #toByteArray(boolean)} when reuse was allowed */
+  protected byte[] m_reusable;
+
+  public PayloadBuffer() {
+    this( 256 );
+  }
+
+  /**
+   * @param initialCapacity the initial size of the buffer
+   */
+  public PayloadBuffer( int initialCapacity ) {
+    m_buf = new byte[Math.max( 16, initialCapacity )];
+  }
+
+  /**
+   * Clear the buffer ready for the next payload
+   */
+  public void reset() {
+    m_length = 0;
+    m_direct = null;
+  }
+
+  /**
+   * Use an existing array as the payload instead of copying it into the buffer
+   *
+   * @param bytes the payload
+   */
+  public void setDirect( byte[] bytes ) {
+    m_direct = bytes;
+  }
+
+  /**
+   * @return the array holding the payload. Only the first {@link #length()} bytes are valid
+   */
+  public byte[] array() {
+    return m_direct != null ? m_direct : m_buf;
+  }
+
+  /**
+   * @return the length of the payload
+   */
+  public int length() {
+    return m_direct != null ? m_direct.length : m_length;
+  }
+
+  /**
+   * Get the payload as an exact-size array
+   *
+   * @param reuse true if the caller is finished with the array returned by the previous call (e.g. because the
+   * message using it has been acknowledged), in which case it may be returned again rather than allocating a new one
+   * @return the payload
+   */
+  public byte[] toByteArray( boolean reuse ) {
+    if ( m_direct != null ) {
+      return m_direct;
+    }
+    if ( reuse && m_reusable != null && m_reusable.length == m_length ) {
+      System.arraycopy( m_buf, 0, m_reusable, 0, m_length );
+      return m_reusable;
+    }
+    byte[] result = Arrays.copyOf( m_buf, m_length );
+    if ( reuse ) {
+      m_reusable = result;
+    }
+    return result;
+  }
+
+  /**
+   * Stop reusing the array last returned by {@link #toByteArray(boolean)}, e.g. because the message it was sent in
+   * failed and may still be referenced elsewhere
+   */
+  public void discardReusable() {
+    m_reusable = null;
+  }
+
+  @Override public void write( int b ) {
+    ensureCapacity( 1 );
+    m_buf[m_length++] = (byte) b;
+  }
+
+  @Override public void write( byte[] b, int off, int len ) {
+    ensureCapacity( len );
+    System.arraycopy( b, off, m_buf, m_length, len );
+    m_length += len;
+  }
+
+  public void writeInt( int v ) {
+    ensureCapacity( 4 );
+    m_buf[m_length++] = (byte) ( v >>> 24 );
+    m_buf[m_length++] = (byte) ( v >>> 16 );
+    m_buf[m_length++] = (byte) ( v >>> 8 );
+    m_buf[m_length++] = (byte) v;
+  }
+
+  public void writeLong( long v ) {
+    ensureCapacity( 8 );
+    m_buf[m_length++] = (byte) ( v >>> 56 );
+    m_buf[m_length++] = (byte) ( v >>> 48 );
+    m_buf[m_length++] = (byte) ( v >>> 40 );
+    m_buf[m_length++] = (byte) ( v >>> 32 );
+    m_buf[m_length++] = (byte) ( v >>> 24 );
+    m_buf[m_length++] = (byte) ( v >>> 16 );
+    m_buf[m_length++] = (byte) ( v >>> 8 );
+    m_buf[m_length++] = (byte) v;
+  }
+
+  public void writeDouble( double v ) {
+    writeLong( Double.doubleToRawLongBits( v ) );
+  }
+
+  /**
+   * Encode a string as UTF-8 directly into the buffer. Unpaired surrogates are replaced with '?', as
+   * {@link String#getBytes(java.nio.charset.Charset)} does.
+   *
+   * @param s the string to encode
+   */
+  public void writeUtf8( CharSequence s ) {
+    int len = s.length();
+    ensureCapacity( len * 3 );
+    byte[] buf = m_buf;
+    int pos = m_length;
+    int i = 0;
+
+    // fast path for the (very common) all ASCII prefix
+    for ( ; i < len; i++ ) {
+      char c = s.charAt( i );
+      if ( c >= 0x80 ) {
+        break;
+      }
+      buf[pos++] = (byte) c;
+    }
+
+    for ( ; i < len; i++ ) {
+      char c = s.charAt( i );
+      if ( c < 0x80 ) {
+        buf[pos++] = (byte) c;
+      } else if ( c < 0x800 ) {
+        buf[pos++] = (byte) ( 0xC0 | ( c >> 6 ) );
+        buf[pos++] = (byte) ( 0x80 | ( c & 0x3F ) );
+      } else if ( Character.isHighSurrogate( c ) && i + 1 < len && Character.isLowSurrogate( s.charAt( i + 1 ) ) ) {
+        int cp = Character.toCodePoint( c, s.charAt( ++i ) );
+        buf[pos++] = (byte) ( 0xF0 | ( cp >> 18 ) );
+        buf[pos++] = (byte) ( 0x80 | ( ( cp >> 12 ) & 0x3F ) );
+        buf[pos++] = (byte) ( 0x80 | ( ( cp >> 6 ) & 0x3F ) );
+        buf[pos++] = (byte) ( 0x80 | ( cp & 0x3F ) );
+      } else if ( Character.isSurrogate( c ) ) {
+        buf[pos++] = (byte) '?';
+      } else {
+        buf[pos++] = (byte) ( 0xE0 | ( c >> 12 ) );
+        buf[pos++] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3F ) );
+        buf[pos++] = (byte) ( 0x80 | ( c & 0x3F ) );
+      }
+    }
+    m_length = pos;
+  }
+
+  protected void ensureCapacity( int extra ) {
+    int required = m_length + extra;
+    if ( required > m_buf.length ) {
+      m_buf = Arrays.copyOf( m_buf, Math.max( required, m_buf.length * 2 ) );
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.phalanxdev.mqtt;
+
+/**
+ * Helpers for shared subscriptions. A filter of the form $share/&lt;group&gt;/&lt;filter&gt; asks the broker to deliver
+ * each message matching the filter to only one of the clients subscribed with the same group, so that the clients
+ * share the load. Shared subscriptions are part of MQTT 5, and most MQTT 3.1.1 brokers support them as an extension.
+ */
+public class SharedSubscription {
+
+  public static final String PREFIX = "$share/";
+
+  /**
+   * @param filter a topic filter
+   * @return true if the filter is already a shared subscription
+   */
+  public static boolean isShared( String filter ) {
+    return filter.startsWith( PREFIX );
+  }
+
+  /**
+   * Turn a topic filter into a shared subscription for a group. Filters that are already shared are left alone.
+   *
+   * @param group the share group
+   * @param filter the topic filter
+   * @return the shared subscription filter
+   * @throws IllegalArgumentException if the group is empty or contains a '/', '+' or '#'
+   */
+  public static String share( String group, String filter ) {
+    checkGroup( group );
+    if ( isShared( filter ) ) {
+      return filter;
+    }
+    return PREFIX + group + "/" + filter;
+  }
+
+  /**
+   * @param filter a topic filter
+   * @return the filter without the $share/&lt;group&gt;/ prefix, if it has one
+   */
+  public static String unshare( String filter ) {
+    if ( !isShared( filter ) ) {
+      return filter;
+    }
+    int slash = filter.indexOf( '/', PREFIX.length() );
+    return slash < 0 ? filter : filter.substring( slash + 1 );
+  }
+
+  /**
+   * @param group a share group name
+   * @throws IllegalArgumentException if the group is empty or contains a '/', '+' or '#'
+   */
+  public static void checkGroup( String group ) {
+    if ( group == null || group.length() == 0 ) {
+      throw new IllegalArgumentException( "Share group is empty" );
+    }
+    for ( int i = 0; i < group.length(); i++ ) {
+      char c = group.charAt( i );
+      if ( c == '/' || c == '+' || c == '#' ) {
+        throw new IllegalArgumentException( "Share group '" + group + "' must not contain '/', '+' or '#'" );
+      }
+    }
+  }
+}
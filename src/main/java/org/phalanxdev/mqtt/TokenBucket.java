@@ -0,0 +1,93 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.phalanxdev.mqtt;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket. Rather than counting tokens, the bucket keeps the time at which it will next be empty
+ * (the "theoretical arrival time" of the generic cell rate algorithm), which can be updated with a single compare and
+ * set. Callers reserve tokens and are told how long to wait before using them, so a request is never refused, and
+ * several buckets can be reserved from and the longest wait taken without tokens from one being wasted while waiting
+ * on another.
+ * <p>
+ * Time is always passed in by the caller, in nanoseconds from any fixed origin (e.g. System.nanoTime()), so the
+ * bucket can be driven by a fake clock.
+ */
+public class TokenBucket {
+
+  protected final double m_nanosPerToken;
+  protected final long m_burstNanos;
+
+  /** Time at which all tokens reserved so far will have been replenished, i.e. the bucket will be full again */
+  protected final AtomicLong m_fullAt;
+
+  protected final AtomicLong m_throttled = new AtomicLong();
+
+  /**
+   * @param ratePerSecond tokens added per second
+   * @param burst the maximum number of tokens that can be taken at once after a quiet period. At least one
+   * @param now the current time in nanoseconds
+   */
+  public TokenBucket( double ratePerSecond, long burst, long now ) {
+    if ( ratePerSecond <= 0 ) {
+      throw new IllegalArgumentException( "Rate must be positive" );
+    }
+    m_nanosPerToken = 1000000000.0 / ratePerSecond;
+    m_burstNanos = (long) ( Math.max( 1, burst ) * m_nanosPerToken );
+    // start full
+    m_fullAt = new AtomicLong( now );
+  }
+
+  /**
+   * Reserve tokens
+   *
+   * @param tokens the number of tokens to take
+   * @param now the current time in nanoseconds
+   * @return how long (in nanoseconds) to wait before the tokens may be used. 0 if they may be used straight away
+   */
+  public long reserve( long tokens, long now ) {
+    long cost = (long) ( tokens * m_nanosPerToken );
+    while ( true ) {
+      long fullAt = m_fullAt.get();
+      // a bucket can't hold more than the burst, however long it has been idle
+      long start = Math.max( fullAt, now );
+      long next = start + cost;
+      if ( m_fullAt.compareAndSet( fullAt, next ) ) {
+        long wait = next - m_burstNanos - now;
+        if ( wait > 0 ) {
+          m_throttled.incrementAndGet();
+          return wait;
+        }
+        return 0;
+      }
+    }
+  }
+
+  /**
+   * @return the number of reservations that had to wait
+   */
+  public long getThrottled() {
+    return m_throttled.get();
+  }
+}
@@ -0,0 +1,160 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.phalanxdev.mqtt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps MQTT topic filters (which may contain the + and # wildcards) to values, and finds the value for a concrete
+ * topic by walking the trie one topic level at a time. When several filters match a topic, the one that was added
+ * first wins, so a list of filters behaves like an ordered rule table. Wildcards at the first level do not match
+ * topics starting with '$', as per the MQTT spec.
+ *
+ * @param <T> the type of value held for each filter
+ */
+public class TopicTrie<T> {
+
+  protected static class Node<T> {
+    protected Map<String, Node<T>> m_children;
+    protected Node<T> m_singleLevel;
+
+    /** Value for a filter ending at this node */
+    protected T m_value;
+    protected int m_order = Integer.MAX_VALUE;
+
+    /** Value for a filter ending with # at this node */
+    protected T m_multiLevelValue;
+    protected int m_multiLevelOrder = Integer.MAX_VALUE;
+  }
+
+  protected final Node<T> m_root = new Node<>();
+  protected int m_size;
+
+  /**
+   * Add a filter. If the same filter is added more than once, the first value is kept.
+   *
+   * @param filter the topic filter
+   * @param value the value for the filter
+   * @throws IllegalArgumentException if the filter is not a valid topic filter
+   */
+  public void put( String filter, T value ) {
+    if ( filter == null || filter.length() == 0 ) {
+      throw new IllegalArgumentException( "Topic filter is empty" );
+    }
+    String[] levels = filter.split( "/", -1 );
+    Node<T> node = m_root;
+    int order = m_size++;
+    for ( int i = 0; i < levels.length; i++ ) {
+      String level = levels[i];
+      if ( level.equals( "#" ) ) {
+        if ( i != levels.length - 1 ) {
+          throw new IllegalArgumentException( "# must be the last level of topic filter '" + filter + "'" );
+        }
+        if ( order < node.m_multiLevelOrder ) {
+          node.m_multiLevelValue = value;
+          node.m_multiLevelOrder = order;
+        }
+        return;
+      }
+      if ( level.equals( "+" ) ) {
+        if ( node.m_singleLevel == null ) {
+          node.m_singleLevel = new Node<>();
+        }
+        node = node.m_singleLevel;
+        continue;
+      }
+      if ( level.indexOf( '#' ) >= 0 || level.indexOf( '+' ) >= 0 ) {
+        throw new IllegalArgumentException(
+            "Wildcards must occupy a whole level of topic filter '" + filter + "'" );
+      }
+      if ( node.m_children == null ) {
+        node.m_children = new HashMap<>();
+      }
+      Node<T> child = node.m_children.get( level );
+      if ( child == null ) {
+        child = new Node<>();
+        node.m_children.put( level, child );
+      }
+      node = child;
+    }
+    if ( order < node.m_order ) {
+      node.m_value = value;
+      node.m_order = order;
+    }
+  }
+
+  /**
+   * Find the value of the first-added filter that matches a topic
+   *
+   * @param topic the concrete topic
+   * @return the value, or null if no filter matches
+   */
+  public T match( String topic ) {
+    Node<T> best = new Node<>();
+    match( m_root, topic.split( "/", -1 ), 0, topic.startsWith( "$" ), best );
+    return best.m_value;
+  }
+
+  /**
+   * @return the number of filters added
+   */
+  public int size() {
+    return m_size;
+  }
+
+  /**
+   * @return true if no filters have been added
+   */
+  public boolean isEmpty() {
+    return m_size == 0;
+  }
+
+  protected void match( Node<T> node, String[] levels, int depth, boolean system, Node<T> best ) {
+    boolean wildcardsAllowed = !( system && depth == 0 );
+
+    // # also matches the parent level, so check it before running out of levels
+    if ( wildcardsAllowed && node.m_multiLevelOrder < best.m_order ) {
+      best.m_value = node.m_multiLevelValue;
+      best.m_order = node.m_multiLevelOrder;
+    }
+
+    if ( depth == levels.length ) {
+      if ( node.m_order < best.m_order ) {
+        best.m_value = node.m_value;
+        best.m_order = node.m_order;
+      }
+      return;
+    }
+
+    if ( node.m_children != null ) {
+      Node<T> child = node.m_children.get( levels[depth] );
+      if ( child != null ) {
+        match( child, levels, depth + 1, system, best );
+      }
+    }
+    if ( wildcardsAllowed && node.m_singleLevel != null ) {
+      match( node.m_singleLevel, levels, depth + 1, system, best );
+    }
+  }
+}
@@ -0,0 +1,464 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.phalanxdev.mqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Durable write-ahead log of messages that have been handed to the broker but not yet acknowledged. Messages are
+ * appended sequentially to segment files and given increasing sequence numbers; fsync is batched, so that at most one
+ * sync interval of messages can be lost if the machine (rather than just the process) goes down. Once every message
+ * in a segment has been acknowledged the segment file is deleted.
+ * <p>
+ * Segments are written and read through file channels rather than memory-mapped: a mapping can't be released before
+ * Java 9, and on Windows a file that is still mapped can be neither deleted nor truncated.
+ * <p>
+ * The sequence number below which everything has been acknowledged is kept in a small checkpoint file. On open, any
+ * messages at or above it are recovered so that they can be published again before anything new. Acknowledgements
+ * make the outbox due for a sync just as appends do, so the checkpoint keeps moving while nothing new is appended.
+ * Acknowledgements that arrived after the last checkpoint are not known after a crash, so a recovered message may
+ * already have been delivered (at least once, as for QoS 1).
+ * <p>
+ * Record layout: int body length, int CRC32 of the body, then the body: long sequence, byte flags (qos | retained
+ * &lt;&lt; 2), int topic length, topic (UTF-8), payload. The end of the file, a zero length or a bad CRC marks the end
+ * of a segment. All methods are synchronized.
+ */
+public class WriteAheadOutbox {
+
+  /**
+   * A message recovered from the outbox
+   */
+  public static class Record {
+    public final long m_sequence;
+    public final String m_topic;
+    public final byte[] m_payload;
+    public final int m_qos;
+    public final boolean m_retained;
+
+    protected Record( long sequence, String topic, byte[] payload, int qos, boolean retained ) {
+      m_sequence = sequence;
+      m_topic = topic;
+      m_payload = payload;
+      m_qos = qos;
+      m_retained = retained;
+    }
+  }
+
+  protected static class Segment {
+    protected final File m_file;
+    protected final long m_firstSequence;
+
+    /** Open only while this is the segment being appended to */
+    protected FileChannel m_channel;
+    protected long m_length;
+
+    protected Segment( File file, long firstSequence ) {
+      m_file = file;
+      m_firstSequence = firstSequence;
+    }
+  }
+
+  protected static final String SEGMENT_SUFFIX = ".wal";
+  protected static final String CHECKPOINT_FILE = "checkpoint";
+
+  /** length, crc */
+  protected static final int RECORD_HEADER_SIZE = 4 + 4;
+
+  /** sequence, flags, topic length */
+  protected static final int BODY_HEADER_SIZE = 8 + 1 + 4;
+
+  protected final File m_directory;
+  protected final int m_segmentSize;
+  protected final long m_syncIntervalNanos;
+
+  protected final ArrayDeque<Segment> m_segments = new ArrayDeque<>();
+  protected FileChannel m_checkpoint;
+  protected final ByteBuffer m_checkpointBuffer = ByteBuffer.allocate( 8 );
+  protected final CRC32 m_crc = new CRC32();
+
+  /** Reused to build each record before writing it */
+  protected ByteBuffer m_record = ByteBuffer.allocate( 4096 );
+
+  protected long m_nextSequence;
+
+  /** Bit i is set once sequence m_ackBase + i has been acknowledged */
+  protected BitSet m_acked = new BitSet();
+  protected long m_ackBase;
+
+  protected boolean m_dirty;
+  protected long m_lastSync = System.nanoTime();
+
+  protected List<Record> m_recovered = new ArrayList<>();
+
+  /**
+   * Open (creating if necessary) an outbox, recovering any unacknowledged messages left in it
+   *
+   * @param directory the directory holding the segment files. Only one outbox may use a directory at a time
+   * @param segmentSize the size of each segment file in bytes. A single message can't be bigger than this
+   * @param syncIntervalMillis how often appended messages are forced to disk
+   * @throws IOException if the outbox can't be opened
+   */
+  public WriteAheadOutbox( File directory, int segmentSize, long syncIntervalMillis ) throws IOException {
+    if ( !directory.isDirectory() && !directory.mkdirs() ) {
+      throw new IOException( "Unable to create outbox directory " + directory );
+    }
+    m_directory = directory;
+    m_segmentSize = Math.max( 4096, segmentSize );
+    m_syncIntervalNanos = Math.max( 0L, syncIntervalMillis ) * 1000000L;
+
+    m_checkpoint = FileChannel.open( new File( directory, CHECKPOINT_FILE ).toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE );
+    long checkpoint = 0;
+    try {
+      if ( readFully( m_checkpoint, m_checkpointBuffer, 0 ) ) {
+        checkpoint = m_checkpointBuffer.getLong( 0 );
+      }
+      recover( checkpoint );
+    } catch ( IOException e ) {
+      m_checkpoint.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Take the messages recovered when the outbox was opened. They are still in the outbox and must be acknowledged
+   * (or released) like any other message once they have been published again.
+   *
+   * @return the recovered messages, oldest first. Empty on every call after the first
+   */
+  public synchronized List<Record> takeRecovered() {
+    List<Record> recovered = m_recovered;
+    m_recovered = new ArrayList<>();
+    return recovered;
+  }
+
+  /**
+   * Append a message. It is not necessarily on disk until the next sync.
+   *
+   * @param topic the topic
+   * @param payload the payload
+   * @param qos the QoS
+   * @param retained the retained flag
+   * @return the sequence number to acknowledge the message with
+   * @throws IOException if the message is bigger than a segment, or a new segment can't be created
+   */
+  public synchronized long append( String topic, byte[] payload, int qos, boolean retained ) throws IOException {
+    byte[] topicBytes = topic.getBytes( StandardCharsets.UTF_8 );
+    int bodyLength = BODY_HEADER_SIZE + topicBytes.length + payload.length;
+    int recordLength = RECORD_HEADER_SIZE + bodyLength;
+    if ( recordLength > m_segmentSize ) {
+      throw new IOException(
+          "A message of " + payload.length + " bytes is too big for outbox segments of " + m_segmentSize + " bytes" );
+    }
+
+    Segment segment = m_segments.peekLast();
+    if ( segment == null || segment.m_channel == null || segment.m_length + recordLength > m_segmentSize ) {
+      segment = roll();
+    }
+
+    if ( m_record.capacity() < recordLength ) {
+      m_record = ByteBuffer.allocate( Math.max( recordLength, m_record.capacity() * 2 ) );
+    }
+    ByteBuffer buffer = m_record;
+    buffer.clear();
+    long sequence = m_nextSequence;
+    buffer.position( RECORD_HEADER_SIZE );
+    buffer.putLong( sequence );
+    buffer.put( (byte) ( ( qos & 0x3 ) | ( retained ? 0x4 : 0 ) ) );
+    buffer.putInt( topicBytes.length );
+    buffer.put( topicBytes );
+    buffer.put( payload );
+    buffer.putInt( 0, bodyLength );
+    buffer.putInt( 4, checksum( buffer, RECORD_HEADER_SIZE, bodyLength ) );
+    buffer.flip();
+
+    // a failed write leaves the segment length where it was, so the next record overwrites whatever got written
+    long position = segment.m_length;
+    while ( buffer.hasRemaining() ) {
+      position += segment.m_channel.write( buffer, position );
+    }
+    segment.m_length = position;
+    m_nextSequence++;
+    m_dirty = true;
+    return sequence;
+  }
+
+  /**
+   * Mark a message as acknowledged (or otherwise dealt with), so that it isn't recovered again
+   *
+   * @param sequence the sequence number returned by append, or of a recovered record
+   */
+  public synchronized void acknowledge( long sequence ) {
+    if ( sequence < m_ackBase ) {
+      return;
+    }
+    m_acked.set( (int) ( sequence - m_ackBase ) );
+    m_dirty = true;
+    int shift = m_acked.nextClearBit( 0 );
+    if ( shift >= 65536 ) {
+      m_acked = m_acked.get( shift, Math.max( shift, m_acked.length() ) );
+      m_ackBase += shift;
+    }
+  }
+
+  /**
+   * Force appended messages and the checkpoint to disk if anything has been appended or acknowledged since the last
+   * sync, and the sync interval has passed
+   *
+   * @throws IOException if the checkpoint can't be written
+   */
+  public synchronized void syncIfDue() throws IOException {
+    if ( m_dirty && System.nanoTime() - m_lastSync >= m_syncIntervalNanos ) {
+      sync();
+    }
+  }
+
+  /**
+   * Force appended messages and the checkpoint to disk, and delete segments that have been fully acknowledged
+   *
+   * @throws IOException if a segment can't be deleted
+   */
+  public synchronized void sync() throws IOException {
+    Segment active = m_segments.peekLast();
+    if ( active != null && active.m_channel != null ) {
+      // with metadata, as the file length is what marks the end of the records
+      active.m_channel.force( true );
+    }
+    long lowWater = getLowWater();
+    m_checkpointBuffer.clear();
+    m_checkpointBuffer.putLong( 0, lowWater );
+    while ( m_checkpointBuffer.hasRemaining() ) {
+      m_checkpoint.write( m_checkpointBuffer, m_checkpointBuffer.position() );
+    }
+    m_checkpoint.force( true );
+    m_dirty = false;
+    m_lastSync = System.nanoTime();
+
+    // a segment can go once the segment after it starts at or below the low water mark
+    Iterator<Segment> segments = m_segments.iterator();
+    Segment segment = segments.hasNext() ? segments.next() : null;
+    while ( segment != null && segments.hasNext() ) {
+      Segment next = segments.next();
+      if ( next.m_firstSequence > lowWater ) {
+        break;
+      }
+      delete( segment );
+      m_segments.removeFirst();
+      segment = next;
+    }
+  }
+
+  /**
+   * @return the number of messages appended or recovered but not yet acknowledged
+   */
+  public synchronized long getPending() {
+    return m_nextSequence - m_ackBase - m_acked.cardinality();
+  }
+
+  /**
+   * Sync, delete all the segments if everything has been acknowledged, and close the files
+   *
+   * @throws IOException if a problem occurs
+   */
+  public synchronized void close() throws IOException {
+    try {
+      sync();
+      if ( getLowWater() == m_nextSequence ) {
+        while ( !m_segments.isEmpty() ) {
+          delete( m_segments.removeFirst() );
+        }
+      }
+    } finally {
+      for ( Segment segment : m_segments ) {
+        closeChannel( segment );
+      }
+      m_checkpoint.close();
+    }
+  }
+
+  protected long getLowWater() {
+    return Math.min( m_nextSequence, m_ackBase + m_acked.nextClearBit( 0 ) );
+  }
+
+  protected Segment roll() throws IOException {
+    Segment previous = m_segments.peekLast();
+    if ( previous != null && previous.m_channel != null ) {
+      previous.m_channel.force( true );
+      closeChannel( previous );
+    }
+    if ( previous != null && previous.m_firstSequence == m_nextSequence ) {
+      // a recovered segment with nothing usable in it; the new one takes over its file
+      m_segments.removeLast();
+    }
+    Segment segment = new Segment( segmentFile( m_nextSequence ), m_nextSequence );
+    // any old content of a taken over file must go, as the records end where the file does. No channel has the
+    // file open at this point, so truncating it works on every platform
+    segment.m_channel = FileChannel.open( segment.m_file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+    m_segments.addLast( segment );
+    return segment;
+  }
+
+  protected File segmentFile( long firstSequence ) {
+    return new File( m_directory, String.format( "%020d", firstSequence ) + SEGMENT_SUFFIX );
+  }
+
+  protected void delete( Segment segment ) throws IOException {
+    closeChannel( segment );
+    if ( !segment.m_file.delete() && segment.m_file.exists() ) {
+      throw new IOException( "Unable to delete outbox segment " + segment.m_file );
+    }
+  }
+
+  protected void recover( long checkpoint ) throws IOException {
+    File[] files = m_directory.listFiles();
+    List<File> segmentFiles = new ArrayList<>();
+    if ( files != null ) {
+      for ( File file : files ) {
+        if ( file.getName().endsWith( SEGMENT_SUFFIX ) ) {
+          segmentFiles.add( file );
+        }
+      }
+    }
+    // names are zero padded, so they sort in sequence order
+    File[] sorted = segmentFiles.toArray( new File[0] );
+    Arrays.sort( sorted );
+
+    long expected = checkpoint;
+    m_ackBase = checkpoint;
+    m_nextSequence = checkpoint;
+    for ( File file : sorted ) {
+      String name = file.getName();
+      long firstSequence;
+      try {
+        firstSequence = Long.parseLong( name.substring( 0, name.length() - SEGMENT_SUFFIX.length() ) );
+      } catch ( NumberFormatException e ) {
+        continue;
+      }
+      m_segments.addLast( new Segment( file, firstSequence ) );
+
+      // copied out rather than mapped, so that nothing keeps the file from being deleted once it has been dealt with
+      ByteBuffer buffer;
+      try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+        long length = channel.size();
+        if ( length > Integer.MAX_VALUE ) {
+          throw new IOException( "Outbox segment " + file + " is too big" );
+        }
+        buffer = ByteBuffer.allocate( (int) length );
+        readFully( channel, buffer, 0 );
+        buffer.flip();
+      }
+      Record record;
+      while ( ( record = readRecord( buffer ) ) != null ) {
+        if ( record.m_sequence < checkpoint ) {
+          continue;
+        }
+        // messages that never made it to disk leave gaps; there is nothing to wait for there
+        for ( long missing = expected; missing < record.m_sequence; missing++ ) {
+          m_acked.set( (int) ( missing - m_ackBase ) );
+        }
+        m_recovered.add( record );
+        expected = record.m_sequence + 1;
+      }
+      m_nextSequence = Math.max( m_nextSequence, expected );
+    }
+    // carry on in a fresh segment, rather than after what may be a torn record
+  }
+
+  protected Record readRecord( ByteBuffer buffer ) {
+    if ( buffer.remaining() < RECORD_HEADER_SIZE + BODY_HEADER_SIZE ) {
+      return null;
+    }
+    int start = buffer.position();
+    int bodyLength = buffer.getInt();
+    int crc = buffer.getInt();
+    if ( bodyLength < BODY_HEADER_SIZE || bodyLength > buffer.remaining()
+        || crc != checksum( buffer, start + RECORD_HEADER_SIZE, bodyLength ) ) {
+      buffer.position( start );
+      return null;
+    }
+    long sequence = buffer.getLong();
+    int flags = buffer.get();
+    int topicLength = buffer.getInt();
+    if ( topicLength < 0 || topicLength > bodyLength - BODY_HEADER_SIZE ) {
+      buffer.position( start );
+      return null;
+    }
+    byte[] topic = new byte[topicLength];
+    buffer.get( topic );
+    byte[] payload = new byte[bodyLength - BODY_HEADER_SIZE - topicLength];
+    buffer.get( payload );
+    return new Record( sequence, new String( topic, StandardCharsets.UTF_8 ), payload, flags & 0x3,
+        ( flags & 0x4 ) != 0 );
+  }
+
+  /**
+   * Read from a channel until the buffer is full or the end of the file is reached
+   *
+   * @param channel the channel
+   * @param buffer the buffer to fill
+   * @param position where in the file to start reading
+   * @return true if the buffer was filled
+   * @throws IOException if the channel can't be read
+   */
+  protected static boolean readFully( FileChannel channel, ByteBuffer buffer, long position ) throws IOException {
+    while ( buffer.hasRemaining() ) {
+      int read = channel.read( buffer, position );
+      if ( read < 0 ) {
+        return false;
+      }
+      position += read;
+    }
+    return true;
+  }
+
+  protected static void closeChannel( Segment segment ) throws IOException {
+    FileChannel channel = segment.m_channel;
+    segment.m_channel = null;
+    if ( channel != null ) {
+      channel.close();
+    }
+  }
+
+  protected int checksum( ByteBuffer buffer, int offset, int length ) {
+    ByteBuffer body = buffer.duplicate();
+    body.limit( offset + length );
+    body.position( offset );
+    m_crc.reset();
+    m_crc.update( body );
+    return (int) m_crc.getValue();
+  }
+}
@@ -0,0 +1,167 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.phalanxdev.hop.pipeline.transforms.mqtt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConflatorTest {
+
+  /** Records what it is given */
+  protected static class Recorder implements Conflator.ConflatedPublisher {
+    protected final List<String> m_topics = new ArrayList<>();
+    protected final List<byte[]> m_payloads = new ArrayList<>();
+    protected final List<Object[]> m_rows = new ArrayList<>();
+
+    @Override public void publishConflated( String topic, byte[] payload, Object[] row ) {
+      m_topics.add( topic );
+      m_payloads.add( payload );
+      m_rows.add( row );
+    }
+  }
+
+  protected static byte[] bytes( String value ) {
+    return value.getBytes();
+  }
+
+  protected static Object[] row( Object value ) {
+    return new Object[] { value };
+  }
+
+  @Test public void testOnlyTheLatestMessageIsPassedOn() {
+    Conflator conflator = new Conflator( 100, 10 );
+    Recorder recorder = new Recorder();
+
+    assertFalse( conflator.add( "a", bytes( "xx1" ), 2, 1, row( 1 ), 0, recorder ) );
+    assertTrue( conflator.add( "a", bytes( "2" ), 0, 1, row( 2 ), 10, recorder ) );
+    assertTrue( conflator.add( "a", bytes( "3" ), 0, 1, row( 3 ), 20, recorder ) );
+    assertEquals( 2, conflator.getConflated() );
+    assertTrue( recorder.m_topics.isEmpty() );
+
+    conflator.flushExpired( 99, recorder );
+    assertTrue( recorder.m_topics.isEmpty() );
+
+    // the window opened with the first message, not the latest
+    conflator.flushExpired( 100, recorder );
+    assertEquals( 1, recorder.m_topics.size() );
+    assertEquals( "a", recorder.m_topics.get( 0 ) );
+    assertArrayEquals( bytes( "3" ), recorder.m_payloads.get( 0 ) );
+    assertEquals( 3, recorder.m_rows.get( 0 )[0] );
+
+    conflator.flushAll( recorder );
+    assertEquals( 1, recorder.m_topics.size() );
+  }
+
+  @Test public void testPayloadIsCopiedInAndOut() {
+    Conflator conflator = new Conflator( 100, 10 );
+    Recorder recorder = new Recorder();
+
+    byte[] payload = bytes( "abc" );
+    conflator.add( "a", payload, 0, payload.length, row( 1 ), 0, recorder );
+    payload[0] = 'z';
+    conflator.flushAll( recorder );
+    assertArrayEquals( bytes( "abc" ), recorder.m_payloads.get( 0 ) );
+
+    // the slot's array is reused for the topic's next message, which must not change the one passed on
+    conflator.add( "a", bytes( "def" ), 0, 3, row( 2 ), 0, recorder );
+    assertArrayEquals( bytes( "abc" ), recorder.m_payloads.get( 0 ) );
+  }
+
+  @Test public void testWindowsCloseIndependently() {
+    Conflator conflator = new Conflator( 100, 10 );
+    Recorder recorder = new Recorder();
+
+    conflator.add( "a", bytes( "1" ), 0, 1, row( 1 ), 0, recorder );
+    conflator.add( "b", bytes( "2" ), 0, 1, row( 2 ), 50, recorder );
+
+    conflator.flushExpired( 100, recorder );
+    assertEquals( 1, recorder.m_topics.size() );
+    assertEquals( "a", recorder.m_topics.get( 0 ) );
+
+    // a new message for a flushed topic opens a new window
+    conflator.add( "a", bytes( "3" ), 0, 1, row( 3 ), 120, recorder );
+    conflator.flushExpired( 150, recorder );
+    assertEquals( 2, recorder.m_topics.size() );
+    assertEquals( "b", recorder.m_topics.get( 1 ) );
+
+    conflator.flushExpired( 220, recorder );
+    assertEquals( 3, recorder.m_topics.size() );
+    assertEquals( "a", recorder.m_topics.get( 2 ) );
+  }
+
+  @Test public void testNewTopicIsPublishedStraightAwayWhenEverySlotIsPending() {
+    Conflator conflator = new Conflator( 100, 4 );
+    Recorder recorder = new Recorder();
+    for ( int i = 0; i < 4; i++ ) {
+      conflator.add( "t" + i, bytes( "p" + i ), 0, 2, row( i ), 0, recorder );
+    }
+    String[] topics = conflator.m_topics;
+
+    for ( int i = 0; i < 100; i++ ) {
+      assertFalse( conflator.add( "new" + i, bytes( "n" ), 0, 1, row( i ), 1, recorder ) );
+    }
+    assertEquals( 100, recorder.m_topics.size() );
+    assertEquals( "new0", recorder.m_topics.get( 0 ) );
+    // nothing could be reclaimed, so the table was left alone
+    assertSame( topics, conflator.m_topics );
+
+    // topics already in the table are still conflated
+    assertTrue( conflator.add( "t0", bytes( "q0" ), 0, 2, row( 0 ), 2, recorder ) );
+    assertEquals( 100, recorder.m_topics.size() );
+  }
+
+  @Test public void testFlushedSlotsAreReclaimedForNewTopics() {
+    Conflator conflator = new Conflator( 100, 4 );
+    Recorder recorder = new Recorder();
+    for ( int i = 0; i < 4; i++ ) {
+      conflator.add( "t" + i, bytes( "p" + i ), 0, 2, row( i ), i * 100, recorder );
+    }
+    // only t0's window has closed
+    conflator.flushExpired( 100, recorder );
+    assertEquals( 1, recorder.m_topics.size() );
+    String[] topics = conflator.m_topics;
+
+    // the slot t0 kept is given to the new topic, rather than the message being published straight away
+    assertFalse( conflator.add( "new", bytes( "n" ), 0, 1, row( 9 ), 150, recorder ) );
+    assertEquals( 1, recorder.m_topics.size() );
+    assertNotSame( topics, conflator.m_topics );
+
+    conflator.flushAll( recorder );
+    assertEquals( 5, recorder.m_topics.size() );
+    List<String> flushed = recorder.m_topics.subList( 1, 5 );
+    assertTrue( flushed.contains( "t1" ) );
+    assertTrue( flushed.contains( "t2" ) );
+    assertTrue( flushed.contains( "t3" ) );
+    assertTrue( flushed.contains( "new" ) );
+  }
+}
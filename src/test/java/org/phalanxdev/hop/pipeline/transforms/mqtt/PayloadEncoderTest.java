@@ -0,0 +1,159 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+
+package org.phalanxdev.hop.pipeline.transforms.mqtt;
+
+import org.apache.hop.core.exception.HopException;
+import org.apache.hop.core.row.IValueMeta;
+import org.apache.hop.core.row.value.ValueMetaBigNumber;
+import org.apache.hop.core.row.value.ValueMetaBinary;
+import org.apache.hop.core.row.value.ValueMetaBoolean;
+import org.apache.hop.core.row.value.ValueMetaDate;
+import org.apache.hop.core.row.value.ValueMetaInteger;
+import org.apache.hop.core.row.value.ValueMetaNumber;
+import org.apache.hop.core.row.value.ValueMetaSerializable;
+import org.apache.hop.core.row.value.ValueMetaString;
+import org.apache.hop.core.row.value.ValueMetaTimestamp;
+import org.junit.Test;
+import org.phalanxdev.mqtt.ObjectCodec;
+import org.phalanxdev.mqtt.PayloadBuffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadEncoderTest {
+
+  protected static byte[] encode( IValueMeta valueMeta, Object value ) throws HopException {
+    return encode( valueMeta, null, value );
+  }
+
+  protected static byte[] encode( IValueMeta valueMeta, ObjectCodec codec, Object value ) throws HopException {
+    PayloadBuffer buffer = new PayloadBuffer( 16 );
+    assertTrue( PayloadEncoder.forValueMeta( valueMeta, codec ).encode( value, buffer ) );
+    return Arrays.copyOf( buffer.array(), buffer.length() );
+  }
+
+  protected static Object roundTrip( IValueMeta valueMeta, ObjectCodec codec, Object value ) throws HopException {
+    byte[] payload = encode( valueMeta, codec, value );
+    // decoded from the middle of a bigger buffer, as a batch is
+    byte[] raw = new byte[payload.length + 5];
+    System.arraycopy( payload, 0, raw, 2, payload.length );
+    return PayloadDecoder.forValueMeta( valueMeta, StandardCharsets.UTF_8, PayloadDecoder.Endianness.BIG_ENDIAN,
+        codec, Collections.<String>emptyList() ).decode( raw, 2, payload.length );
+  }
+
+  @Test public void testWireFormatIsUnchanged() throws HopException {
+    // the layouts earlier versions wrote with String.getBytes and ByteBuffer
+    String s = "sensor é € 😀 \ud800";
+    assertArrayEquals( s.getBytes( StandardCharsets.UTF_8 ), encode( new ValueMetaString( "m" ), s ) );
+    assertArrayEquals( ByteBuffer.allocate( 8 ).putLong( -123456789012L ).array(),
+        encode( new ValueMetaInteger( "m" ), -123456789012L ) );
+    assertArrayEquals( ByteBuffer.allocate( 8 ).putDouble( Math.PI ).array(),
+        encode( new ValueMetaNumber( "m" ), Math.PI ) );
+    assertArrayEquals( ByteBuffer.allocate( 8 ).putLong( 1600000000123L ).array(),
+        encode( new ValueMetaDate( "m" ), new Date( 1600000000123L ) ) );
+    Timestamp timestamp = new Timestamp( 1600000000123L );
+    timestamp.setNanos( 123456789 );
+    assertArrayEquals( ByteBuffer.allocate( 12 ).putLong( 1600000000123L ).putInt( 123456789 ).array(),
+        encode( new ValueMetaTimestamp( "m" ), timestamp ) );
+    // a plain date sent as a timestamp gets the nanos of its millis
+    assertArrayEquals( ByteBuffer.allocate( 12 ).putLong( -1L ).putInt( 999000000 ).array(),
+        encode( new ValueMetaTimestamp( "m" ), new Date( -1L ) ) );
+    assertArrayEquals( new byte[] { 1 }, encode( new ValueMetaBoolean( "m" ), true ) );
+    assertArrayEquals( new byte[] { 0 }, encode( new ValueMetaBoolean( "m" ), false ) );
+  }
+
+  @Test public void testValuesRoundTripThroughTheDecoder() throws HopException {
+    assertEquals( "café € 😀", roundTrip( new ValueMetaString( "m" ), null, "café € 😀" ) );
+    assertEquals( Long.MIN_VALUE, roundTrip( new ValueMetaInteger( "m" ), null, Long.MIN_VALUE ) );
+    assertEquals( -0.5d, roundTrip( new ValueMetaNumber( "m" ), null, -0.5d ) );
+    assertEquals( new Date( -86400000L ), roundTrip( new ValueMetaDate( "m" ), null, new Date( -86400000L ) ) );
+    Timestamp timestamp = new Timestamp( 1600000000123L );
+    timestamp.setNanos( 123456789 );
+    assertEquals( timestamp, roundTrip( new ValueMetaTimestamp( "m" ), null, timestamp ) );
+    assertEquals( Boolean.TRUE, roundTrip( new ValueMetaBoolean( "m" ), null, true ) );
+    assertEquals( Boolean.FALSE, roundTrip( new ValueMetaBoolean( "m" ), null, false ) );
+    assertArrayEquals( new byte[] { 0, 1, -1 },
+        (byte[]) roundTrip( new ValueMetaBinary( "m" ), null, new byte[] { 0, 1, -1 } ) );
+  }
+
+  @Test public void testObjectsRoundTripThroughTheDecoder() throws Exception {
+    List<Object> value = new ArrayList<Object>( Arrays.asList( "a", 2L, new BigDecimal( "3.5" ) ) );
+    assertEquals( value, roundTrip( new ValueMetaSerializable( "m" ), null, value ) );
+
+    byte[] serialized = encode( new ValueMetaSerializable( "m" ), value );
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream( expected );
+    out.writeObject( value );
+    out.flush();
+    assertArrayEquals( expected.toByteArray(), serialized );
+
+    ObjectCodec codec = new ObjectCodec( Collections.<Class<?>>emptyList() );
+    assertEquals( value, roundTrip( new ValueMetaSerializable( "m" ), codec, value ) );
+    assertTrue( ObjectCodec.isCompact( encode( new ValueMetaSerializable( "m" ), codec, value ) ) );
+  }
+
+  @Test public void testBinaryPayloadsAreNotCopied() throws HopException {
+    byte[] bytes = { 1, 2, 3 };
+    PayloadBuffer buffer = new PayloadBuffer();
+    assertTrue( PayloadEncoder.forValueMeta( new ValueMetaBinary( "m" ) ).encode( bytes, buffer ) );
+    assertSame( bytes, buffer.toByteArray( true ) );
+  }
+
+  @Test public void testNothingIsSentForMissingValues() throws HopException {
+    PayloadBuffer buffer = new PayloadBuffer();
+    buffer.writeUtf8( "left over" );
+    assertFalse( PayloadEncoder.forValueMeta( new ValueMetaString( "m" ) ).encode( null, buffer ) );
+    assertEquals( 0, buffer.length() );
+    assertFalse( PayloadEncoder.forValueMeta( new ValueMetaString( "m" ) ).encode( "", buffer ) );
+    assertFalse( PayloadEncoder.forValueMeta( new ValueMetaInteger( "m" ) ).encode( null, buffer ) );
+    // big numbers have never been sent
+    assertFalse(
+        PayloadEncoder.forValueMeta( new ValueMetaBigNumber( "m" ) ).encode( BigDecimal.ONE, buffer ) );
+  }
+
+  @Test public void testMalformedPayloadsAreReportedWithoutAnException() throws HopException {
+    byte[] three = { 1, 2, 3 };
+    for ( IValueMeta valueMeta : Arrays.<IValueMeta>asList( new ValueMetaInteger( "m" ), new ValueMetaNumber( "m" ),
+        new ValueMetaDate( "m" ), new ValueMetaTimestamp( "m" ) ) ) {
+      assertSame( PayloadDecoder.MALFORMED, PayloadDecoder.forValueMeta( valueMeta, StandardCharsets.UTF_8,
+          PayloadDecoder.Endianness.BIG_ENDIAN, null, Collections.<String>emptyList() ).decode( three, 0, 3 ) );
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+
+package org.phalanxdev.mqtt;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class AllowlistObjectInputStreamTest {
+
+  public static class Point implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    protected int x;
+    protected int y;
+
+    public Point( int x, int y ) {
+      this.x = x;
+      this.y = y;
+    }
+  }
+
+  public static class Other implements Serializable {
+    private static final long serialVersionUID = 1L;
+  }
+
+  protected static byte[] serialize( Object value ) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try ( ObjectOutputStream out = new ObjectOutputStream( bytes ) ) {
+      out.writeObject( value );
+    }
+    return bytes.toByteArray();
+  }
+
+  protected static Object deserialize( byte[] payload, Collection<String> allowed )
+      throws IOException, ClassNotFoundException {
+    try ( ObjectInputStream in = new AllowlistObjectInputStream( new ByteArrayInputStream( payload ), allowed ) ) {
+      return in.readObject();
+    }
+  }
+
+  protected static void assertRefused( Object value, Collection<String> allowed ) throws Exception {
+    try {
+      deserialize( serialize( value ), allowed );
+      fail( "Deserialized " + value.getClass().getName() );
+    } catch ( InvalidClassException e ) {
+      // expected
+    }
+  }
+
+  @Test public void testBuiltInTypesAreAllowed() throws Exception {
+    Map<String, Object> map = new HashMap<>();
+    map.put( "list", new ArrayList<Object>( Arrays.asList( 1L, 2, "three", 4.0d, true ) ) );
+    map.put( "when", new Date( 1000L ) );
+    map.put( "amount", new BigDecimal( "1.25" ) );
+    assertEquals( map, deserialize( serialize( map ), Collections.<String>emptyList() ) );
+
+    int[] primitives = { 1, 2, 3 };
+    assertArrayEquals( primitives, (int[]) deserialize( serialize( primitives ), Collections.<String>emptyList() ) );
+    String[] strings = { "a", "b" };
+    Object[] nested =
+        (Object[]) deserialize( serialize( new String[][] { strings } ), Collections.<String>emptyList() );
+    assertArrayEquals( strings, (Object[]) nested[0] );
+  }
+
+  @Test public void testAllowlistedClassesAreAllowed() throws Exception {
+    List<String> allowed = Collections.singletonList( Point.class.getName() );
+    Point point = (Point) deserialize( serialize( new Point( 3, 4 ) ), allowed );
+    assertEquals( 3, point.x );
+    assertEquals( 4, point.y );
+
+    Point[] points = (Point[]) deserialize( serialize( new Point[] { new Point( 1, 2 ) } ), allowed );
+    assertEquals( 2, points[0].y );
+  }
+
+  @Test public void testOtherClassesAreRefused() throws Exception {
+    List<String> allowed = Collections.singletonList( Point.class.getName() );
+    assertRefused( new Other(), allowed );
+    assertRefused( new Point( 1, 2 ), Collections.<String>emptyList() );
+    // wherever they appear in the graph
+    assertRefused( new ArrayList<Object>( Arrays.asList( new Point( 1, 2 ), new Other() ) ), allowed );
+    Map<String, Object> map = new HashMap<>();
+    map.put( "k", new Other() );
+    assertRefused( map, allowed );
+    assertRefused( new Other[0], allowed );
+    assertRefused( new Other[0][0], allowed );
+    // a JDK collection that is not on the built in list
+    assertRefused( Collections.unmodifiableList( new ArrayList<>() ), allowed );
+  }
+}
@@ -0,0 +1,200 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+
+package org.phalanxdev.mqtt;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BatchFramingTest {
+
+  protected static byte[] frame( BatchFraming framing, byte[]... records ) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for ( int i = 0; i < records.length; i++ ) {
+      // records are appended from the middle of a bigger array, as the publisher's buffer is
+      byte[] padded = new byte[records[i].length + 4];
+      System.arraycopy( records[i], 0, padded, 2, records[i].length );
+      framing.append( out, padded, 2, records[i].length, i );
+    }
+    framing.finish( out, records.length );
+    return out.toByteArray();
+  }
+
+  protected static byte[] bytes( String s ) {
+    return s.getBytes( StandardCharsets.UTF_8 );
+  }
+
+  protected static List<String> strings( List<byte[]> records ) {
+    List<String> strings = new ArrayList<>();
+    for ( byte[] record : records ) {
+      strings.add( new String( record, StandardCharsets.UTF_8 ) );
+    }
+    return strings;
+  }
+
+  protected static List<String> split( BatchFraming framing, String batch ) throws IOException {
+    return strings( framing.split( bytes( batch ) ) );
+  }
+
+  protected static void assertRoundTrip( BatchFraming framing, String... records ) throws IOException {
+    byte[][] bytes = new byte[records.length][];
+    for ( int i = 0; i < records.length; i++ ) {
+      bytes[i] = bytes( records[i] );
+    }
+    List<String> expected = new ArrayList<>();
+    for ( String record : records ) {
+      expected.add( record );
+    }
+    assertEquals( expected, strings( framing.split( frame( framing, bytes ) ) ) );
+  }
+
+  protected static void assertNotABatch( BatchFraming framing, byte[] batch ) {
+    try {
+      framing.split( batch );
+      fail( "Split a malformed " + framing + " batch" );
+    } catch ( IOException e ) {
+      // expected
+    }
+  }
+
+  @Test public void testLengthPrefixedRoundTrips() throws IOException {
+    BatchFraming framing = BatchFraming.LENGTH_PREFIXED;
+    assertTrue( framing.allowsEmptyRecords() );
+    assertRoundTrip( framing, "one" );
+    assertRoundTrip( framing, "a", "", "b\nc", "" );
+    assertRoundTrip( framing, "" );
+    assertTrue( framing.split( new byte[0] ).isEmpty() );
+
+    byte[] binary = new byte[300];
+    for ( int i = 0; i < binary.length; i++ ) {
+      binary[i] = (byte) i;
+    }
+    List<byte[]> records = framing.split( frame( framing, binary, new byte[0] ) );
+    assertEquals( 2, records.size() );
+    assertEquals( 300, records.get( 0 ).length );
+    assertEquals( (byte) 299, records.get( 0 )[299] );
+    assertEquals( 0, records.get( 1 ).length );
+  }
+
+  @Test public void testMalformedLengthPrefixedBatchesAreRefused() {
+    BatchFraming framing = BatchFraming.LENGTH_PREFIXED;
+    byte[] batch = frame( framing, bytes( "abc" ), bytes( "de" ) );
+    for ( int length = 1; length < batch.length; length++ ) {
+      if ( length == 7 ) {
+        // ends cleanly after the first record
+        continue;
+      }
+      byte[] truncated = new byte[length];
+      System.arraycopy( batch, 0, truncated, 0, length );
+      assertNotABatch( framing, truncated );
+    }
+    assertNotABatch( framing, new byte[] { (byte) 0x80, 0, 0, 0 } );
+  }
+
+  @Test public void testJsonArrayRoundTrips() throws IOException {
+    BatchFraming framing = BatchFraming.JSON_ARRAY;
+    assertRoundTrip( framing, "{\"a\":1}" );
+    assertRoundTrip( framing, "{\"a\":[1,2,{\"b\":[]}]}", "\"plain string\"", "42", "null", "[1,[2,3]]" );
+    // delimiters inside strings, including escaped quotes and backslashes
+    assertRoundTrip( framing, "\"a,b]c\"", "{\"k\":\"}],[{\"}", "\"quote \\\" , ]\"", "\"backslash \\\\\"",
+        "{\"k\":\"\\\\\",\"l\":[\"]\"]}" );
+    assertRoundTrip( framing, "\"é € 😀\"" );
+  }
+
+  @Test public void testJsonArraysFromElsewhereSplit() throws IOException {
+    BatchFraming framing = BatchFraming.JSON_ARRAY;
+    List<String> expected = new ArrayList<>();
+    expected.add( "{\"a\": 1}" );
+    expected.add( "[ 2 ]" );
+    expected.add( "\"x\"" );
+    assertEquals( expected, split( framing, " \n[ {\"a\": 1} ,\t[ 2 ]\r\n, \"x\" ] " ) );
+    assertTrue( split( framing, "[]" ).isEmpty() );
+    assertTrue( split( framing, " [ \n ] " ).isEmpty() );
+  }
+
+  @Test public void testMalformedJsonArraysAreRefused() {
+    BatchFraming framing = BatchFraming.JSON_ARRAY;
+    for ( String batch : new String[] { "", "   ", "{\"a\":1}", "[1,2", "[{\"a\":\"]\"}", "[\"unterminated]",
+        "[\"escaped quote\\\"]" } ) {
+      assertNotABatch( framing, bytes( batch ) );
+    }
+  }
+
+  @Test public void testNewlineDelimitedRoundTrips() throws IOException {
+    BatchFraming framing = BatchFraming.NEWLINE_DELIMITED;
+    assertRoundTrip( framing, "one" );
+    assertRoundTrip( framing, "a", "b b", "{\"c\":3}", "é € 😀" );
+  }
+
+  @Test public void testNewlineDelimitedBatchesFromElsewhereSplit() throws IOException {
+    BatchFraming framing = BatchFraming.NEWLINE_DELIMITED;
+    List<String> expected = new ArrayList<>();
+    expected.add( "a" );
+    expected.add( "" );
+    expected.add( "b" );
+    // CR LF line ends, and a trailing newline
+    assertEquals( expected, split( framing, "a\r\n\r\nb\r\n" ) );
+    assertEquals( expected, split( framing, "a\n\nb" ) );
+    assertTrue( split( framing, "" ).isEmpty() );
+  }
+
+  @Test public void testEmptyRecordsAreRefusedByTheTextFramings() throws IOException {
+    for ( BatchFraming framing : new BatchFraming[] { BatchFraming.NEWLINE_DELIMITED, BatchFraming.JSON_ARRAY } ) {
+      assertFalse( framing.allowsEmptyRecords() );
+      for ( int index = 0; index < 2; index++ ) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if ( index > 0 ) {
+          framing.append( out, bytes( "1" ), 0, 1, 0 );
+        }
+        try {
+          framing.append( out, new byte[0], 0, 0, index );
+          fail( framing + " framed an empty record" );
+        } catch ( IllegalArgumentException e ) {
+          // expected
+        }
+      }
+    }
+    // what they would otherwise turn into
+    assertTrue( split( BatchFraming.NEWLINE_DELIMITED, "" ).isEmpty() );
+    assertEquals( 1, split( BatchFraming.NEWLINE_DELIMITED, "a\n" ).size() );
+    assertTrue( split( BatchFraming.JSON_ARRAY, "[]" ).isEmpty() );
+  }
+
+  @Test public void testFromName() {
+    assertEquals( BatchFraming.JSON_ARRAY, BatchFraming.fromName( " json_array " ) );
+    assertEquals( BatchFraming.NEWLINE_DELIMITED, BatchFraming.fromName( "NEWLINE_DELIMITED" ) );
+    assertEquals( BatchFraming.LENGTH_PREFIXED, BatchFraming.fromName( "unknown" ) );
+    assertEquals( BatchFraming.LENGTH_PREFIXED, BatchFraming.fromName( null ) );
+  }
+}
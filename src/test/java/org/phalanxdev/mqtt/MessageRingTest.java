@@ -0,0 +1,239 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.phalanxdev.mqtt;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageRingTest {
+
+  protected static void send( MessageRing ring, String topic ) {
+    MessageRing.Slot slot = ring.claim();
+    assertNotNull( slot );
+    slot.m_topic = topic;
+    ring.publish();
+  }
+
+  @Test public void testCapacityIsRoundedUpToAPowerOfTwo() {
+    assertEquals( 8, new MessageRing( 5, MessageRing.WaitStrategy.BLOCKING ).capacity() );
+    assertEquals( 8, new MessageRing( 8, MessageRing.WaitStrategy.BLOCKING ).capacity() );
+    assertEquals( 2, new MessageRing( 0, MessageRing.WaitStrategy.BLOCKING ).capacity() );
+  }
+
+  @Test public void testWraparound() {
+    MessageRing ring = new MessageRing( 4, MessageRing.WaitStrategy.BLOCKING );
+    int received = 0;
+    for ( int sent = 0; sent < 100; sent++ ) {
+      send( ring, "m" + sent );
+      // keep three waiting, so that the positions go round the ring many times with it nearly full
+      if ( ring.size() == 4 ) {
+        for ( int i = 0; i < 3; i++ ) {
+          MessageRing.Slot slot = ring.poll();
+          assertEquals( "m" + received++, slot.m_topic );
+          ring.release();
+          assertNull( slot.m_topic );
+        }
+      }
+    }
+    MessageRing.Slot slot;
+    while ( ( slot = ring.poll() ) != null ) {
+      assertEquals( "m" + received++, slot.m_topic );
+      ring.release();
+    }
+    assertEquals( 100, received );
+    assertEquals( 0, ring.size() );
+    assertEquals( 4, ring.getMaxDepth() );
+  }
+
+  @Test public void testPublishedMessagesOutliveClose() {
+    MessageRing ring = new MessageRing( 4, MessageRing.WaitStrategy.BLOCKING );
+    send( ring, "a" );
+    send( ring, "b" );
+    ring.close();
+    assertTrue( ring.isClosed() );
+    assertNull( ring.claim() );
+
+    assertEquals( "a", ring.take( 1, TimeUnit.SECONDS ).m_topic );
+    ring.release();
+    assertEquals( "b", ring.poll().m_topic );
+    ring.release();
+    // closed and empty, so there is no waiting
+    long start = System.nanoTime();
+    assertNull( ring.take( 10, TimeUnit.SECONDS ) );
+    assertTrue( System.nanoTime() - start < TimeUnit.SECONDS.toNanos( 5 ) );
+  }
+
+  @Test public void testTakeTimesOut() {
+    MessageRing ring = new MessageRing( 4, MessageRing.WaitStrategy.BLOCKING );
+    long start = System.nanoTime();
+    assertNull( ring.take( 50, TimeUnit.MILLISECONDS ) );
+    assertTrue( System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos( 50 ) );
+  }
+
+  @Test( timeout = 60000 ) public void testHandoffBlocking() throws Exception {
+    handoff( MessageRing.WaitStrategy.BLOCKING );
+  }
+
+  @Test( timeout = 60000 ) public void testHandoffYielding() throws Exception {
+    handoff( MessageRing.WaitStrategy.YIELDING );
+  }
+
+  @Test( timeout = 60000 ) public void testHandoffBusySpin() throws Exception {
+    handoff( MessageRing.WaitStrategy.BUSY_SPIN );
+  }
+
+  /**
+   * A producer thread sends more messages than the ring holds and then closes it; the consumer gets every message in
+   * order, and then sees the close
+   */
+  protected void handoff( MessageRing.WaitStrategy strategy ) throws Exception {
+    final int count = 20000;
+    final MessageRing ring = new MessageRing( 64, strategy );
+    Thread producer = new Thread( new Runnable() {
+      @Override public void run() {
+        for ( int i = 0; i < count; i++ ) {
+          MessageRing.Slot slot = ring.claim();
+          slot.m_messageId = i;
+          slot.m_payload = new byte[0];
+          ring.publish();
+        }
+        ring.close();
+      }
+    } );
+    producer.start();
+
+    int received = 0;
+    MessageRing.Slot slot;
+    while ( ( slot = ring.take( 10, TimeUnit.SECONDS ) ) != null ) {
+      assertEquals( received++, slot.m_messageId );
+      assertNotNull( slot.m_payload );
+      ring.release();
+    }
+    producer.join();
+    assertEquals( count, received );
+    assertTrue( ring.isClosed() );
+  }
+
+  @Test( timeout = 10000 ) public void testCloseReleasesABlockedProducer() throws Exception {
+    final MessageRing ring = new MessageRing( 2, MessageRing.WaitStrategy.BLOCKING );
+    send( ring, "a" );
+    send( ring, "b" );
+
+    final AtomicReference<MessageRing.Slot> claimed = new AtomicReference<>( new MessageRing.Slot() );
+    Thread producer = new Thread( new Runnable() {
+      @Override public void run() {
+        claimed.set( ring.claim() );
+      }
+    } );
+    producer.start();
+    producer.join( 100 );
+    assertTrue( producer.isAlive() );
+
+    // what the step does on stopping: the client's callback thread must not stay stuck in claim()
+    ring.close();
+    producer.join( 5000 );
+    assertFalse( producer.isAlive() );
+    assertNull( claimed.get() );
+    assertTrue( ring.getProducerWaitNanos() >= 0 );
+    assertEquals( 2, ring.size() );
+  }
+
+  @Test( timeout = 10000 ) public void testFreedSlotReleasesABlockedProducer() throws Exception {
+    final MessageRing ring = new MessageRing( 2, MessageRing.WaitStrategy.BLOCKING );
+    send( ring, "a" );
+    send( ring, "b" );
+
+    Thread producer = new Thread( new Runnable() {
+      @Override public void run() {
+        send( ring, "c" );
+      }
+    } );
+    producer.start();
+    producer.join( 100 );
+    assertTrue( producer.isAlive() );
+
+    assertEquals( "a", ring.poll().m_topic );
+    ring.release();
+    producer.join( 5000 );
+    assertFalse( producer.isAlive() );
+    assertTrue( ring.getProducerWaitNanos() > 0 );
+    assertEquals( "b", ring.poll().m_topic );
+    ring.release();
+    assertEquals( "c", ring.poll().m_topic );
+    ring.release();
+  }
+
+  @Test( timeout = 10000 ) public void testCloseReleasesABlockedConsumer() throws Exception {
+    final MessageRing ring = new MessageRing( 4, MessageRing.WaitStrategy.BLOCKING );
+    final AtomicReference<MessageRing.Slot> taken = new AtomicReference<>( new MessageRing.Slot() );
+    Thread consumer = new Thread( new Runnable() {
+      @Override public void run() {
+        taken.set( ring.take( 1, TimeUnit.HOURS ) );
+      }
+    } );
+    consumer.start();
+    consumer.join( 100 );
+    assertTrue( consumer.isAlive() );
+
+    ring.close();
+    consumer.join( 5000 );
+    assertFalse( consumer.isAlive() );
+    assertNull( taken.get() );
+  }
+
+  @Test( timeout = 10000 ) public void testAwait() throws Exception {
+    final MessageRing ring = new MessageRing( 4, MessageRing.WaitStrategy.BLOCKING );
+    send( ring, "a" );
+    assertTrue( ring.await( 1, 0, TimeUnit.MILLISECONDS ) );
+    assertFalse( ring.await( 2, 20, TimeUnit.MILLISECONDS ) );
+
+    Thread producer = new Thread( new Runnable() {
+      @Override public void run() {
+        send( ring, "b" );
+        send( ring, "c" );
+      }
+    } );
+    producer.start();
+    assertTrue( ring.await( 3, 5, TimeUnit.SECONDS ) );
+    producer.join();
+
+    // more than the ring holds is capped, so a full ring ends the wait
+    send( ring, "d" );
+    assertTrue( ring.await( 100, 0, TimeUnit.MILLISECONDS ) );
+
+    // and closing ends it too
+    ring.poll();
+    ring.release();
+    ring.close();
+    assertFalse( ring.await( 4, 1, TimeUnit.HOURS ) );
+  }
+}
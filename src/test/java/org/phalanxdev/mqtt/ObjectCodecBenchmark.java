@@ -0,0 +1,125 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+
+package org.phalanxdev.mqtt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and decodes a typical object message value with the compact codec and with Java serialization (through the
+ * allowlist stream, as the subscriber reads it). Run with {@code mvn -Pbenchmark test -Dbenchmark=ObjectCodec}; the
+ * profile reports allocation per operation as well.
+ */
+@State( Scope.Thread ) @BenchmarkMode( Mode.AverageTime ) @OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Fork( 1 ) @Warmup( iterations = 3, time = 2 ) @Measurement( iterations = 5, time = 2 )
+public class ObjectCodecBenchmark {
+
+  public static class Reading implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    protected String sensor;
+    protected double value;
+    protected long sequence;
+    protected Date taken;
+    protected List<Object> tags;
+    protected Map<String, Object> attributes;
+  }
+
+  protected ObjectCodec m_encoder;
+  protected ObjectCodec m_decoder;
+  protected List<String> m_allowed;
+  protected Reading m_reading;
+  protected PayloadBuffer m_buffer;
+  protected byte[] m_compact;
+  protected byte[] m_serialized;
+
+  @Setup public void setUp() throws IOException {
+    List<Class<?>> classes = Collections.<Class<?>>singletonList( Reading.class );
+    m_encoder = new ObjectCodec( classes );
+    m_decoder = new ObjectCodec( classes );
+    m_allowed = Collections.singletonList( Reading.class.getName() );
+
+    m_reading = new Reading();
+    m_reading.sensor = "plant/line-4/sensor/17";
+    m_reading.value = 21.375;
+    m_reading.sequence = 1234567L;
+    m_reading.taken = new Date( 1600000000123L );
+    m_reading.tags = new ArrayList<Object>( Arrays.asList( "calibrated", "zone-b" ) );
+    m_reading.attributes = new LinkedHashMap<>();
+    m_reading.attributes.put( "unit", "C" );
+    m_reading.attributes.put( "quality", 3 );
+
+    m_buffer = new PayloadBuffer();
+    m_compact = compactEncode();
+    m_serialized = javaEncode();
+  }
+
+  @Benchmark public byte[] compactEncode() throws IOException {
+    m_buffer.reset();
+    m_encoder.encode( m_reading, m_buffer );
+    return m_buffer.toByteArray( false );
+  }
+
+  @Benchmark public Object compactDecode() throws IOException {
+    return m_decoder.decode( m_compact, 0, m_compact.length );
+  }
+
+  @Benchmark public byte[] javaEncode() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try ( ObjectOutputStream out = new ObjectOutputStream( bytes ) ) {
+      out.writeObject( m_reading );
+    }
+    return bytes.toByteArray();
+  }
+
+  @Benchmark public Object javaDecode() throws IOException, ClassNotFoundException {
+    try ( AllowlistObjectInputStream in = new AllowlistObjectInputStream( new ByteArrayInputStream( m_serialized ),
+        m_allowed ) ) {
+      return in.readObject();
+    }
+  }
+}
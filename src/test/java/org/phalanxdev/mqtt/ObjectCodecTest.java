@@ -0,0 +1,372 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+
+package org.phalanxdev.mqtt;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ObjectCodecTest {
+
+  public static class Point {
+    protected int x;
+    protected int y;
+  }
+
+  public static class Reading extends Point {
+    protected String sensor;
+    protected double value;
+    protected Date taken;
+    protected byte[] raw;
+    protected List<Object> tags;
+    protected Map<String, Object> attributes;
+    protected Unit unit;
+    protected Point origin;
+    protected transient String cached;
+  }
+
+  public enum Unit {
+    CELSIUS, KELVIN
+  }
+
+  public static class NoDefaultConstructor {
+    protected int x;
+
+    public NoDefaultConstructor( int x ) {
+      this.x = x;
+    }
+  }
+
+  public static class IntArrayField {
+    protected int[] values;
+  }
+
+  public static class TreeMapField {
+    protected TreeMap<String, String> values;
+  }
+
+  protected static ObjectCodec codec() {
+    return new ObjectCodec( Arrays.<Class<?>>asList( Point.class, Reading.class, Unit.class ) );
+  }
+
+  protected static byte[] encode( ObjectCodec codec, Object value ) throws IOException {
+    PayloadBuffer out = new PayloadBuffer();
+    codec.encode( value, out );
+    return Arrays.copyOf( out.array(), out.length() );
+  }
+
+  protected static Object roundTrip( Object value ) throws IOException {
+    byte[] payload = encode( codec(), value );
+    assertTrue( ObjectCodec.isCompact( payload ) );
+    return codec().decode( payload, 0, payload.length );
+  }
+
+  protected static void assertRejected( ObjectCodec codec, byte[] payload, String message ) {
+    try {
+      codec.decode( payload, 0, payload.length );
+      fail( "Decoded " + message );
+    } catch ( IOException e ) {
+      // expected
+    }
+  }
+
+  /**
+   * @return a payload made of the codec header followed by the given bytes
+   */
+  protected static byte[] payload( int... bytes ) {
+    byte[] payload = new byte[bytes.length + 2];
+    payload[0] = (byte) ObjectCodec.MAGIC;
+    payload[1] = ObjectCodec.VERSION;
+    for ( int i = 0; i < bytes.length; i++ ) {
+      payload[i + 2] = (byte) bytes[i];
+    }
+    return payload;
+  }
+
+  protected static Reading reading() {
+    Reading reading = new Reading();
+    reading.x = 3;
+    reading.y = -7;
+    reading.sensor = "temp é€😀";
+    reading.value = 21.5;
+    reading.taken = new Date( 1600000000123L );
+    reading.raw = new byte[] { 0, -1, 127 };
+    reading.tags = new ArrayList<Object>( Arrays.asList( "a", 1L, null ) );
+    reading.attributes = new LinkedHashMap<>();
+    reading.attributes.put( "k", Boolean.TRUE );
+    reading.unit = Unit.KELVIN;
+    reading.origin = new Point();
+    reading.origin.x = 1;
+    reading.cached = "not sent";
+    return reading;
+  }
+
+  @Test public void testBuiltInValuesRoundTrip() throws IOException {
+    Timestamp timestamp = new Timestamp( 1600000000123L );
+    timestamp.setNanos( 123456789 );
+    Object[] values =
+        { null, Boolean.TRUE, Boolean.FALSE, (byte) -5, (short) -300, 'x', '€', 0, Integer.MIN_VALUE,
+            Integer.MAX_VALUE, 0L, Long.MIN_VALUE, Long.MAX_VALUE, 1.5f, -0.0d, Double.NaN,
+            Double.NEGATIVE_INFINITY, "", "plain", "café € 😀", new Date( -1000L ), timestamp,
+            new BigDecimal( "-12345678901234567890.000123" ), BigDecimal.ZERO,
+            new BigInteger( "123456789012345678901234567890" ), BigInteger.ZERO };
+    for ( Object value : values ) {
+      Object decoded = roundTrip( value );
+      assertEquals( value, decoded );
+      if ( value != null ) {
+        assertEquals( value.getClass(), decoded.getClass() );
+      }
+    }
+    assertArrayEquals( new byte[] { 1, 2, 3 }, (byte[]) roundTrip( new byte[] { 1, 2, 3 } ) );
+    assertArrayEquals( new byte[0], (byte[]) roundTrip( new byte[0] ) );
+  }
+
+  @Test public void testCollectionsRoundTrip() throws IOException {
+    List<Object> list = new ArrayList<>( Arrays.<Object>asList( 1, "two", null, 3.0d ) );
+    Set<Object> set = new LinkedHashSet<>( Arrays.<Object>asList( "b", "a", 7L ) );
+    Map<Object, Object> map = new LinkedHashMap<>();
+    map.put( "list", list );
+    map.put( 5, set );
+    map.put( null, Collections.emptyMap() );
+
+    @SuppressWarnings( "unchecked" ) Map<Object, Object> decoded = (Map<Object, Object>) roundTrip( map );
+    assertEquals( map, decoded );
+    // iteration order is kept
+    assertEquals( new ArrayList<>( map.keySet() ), new ArrayList<>( decoded.keySet() ) );
+    assertEquals( new ArrayList<>( set ), new ArrayList<>( (Set<?>) decoded.get( 5 ) ) );
+  }
+
+  @Test public void testAllowlistedObjectsRoundTrip() throws IOException {
+    Reading decoded = (Reading) roundTrip( reading() );
+    assertEquals( 3, decoded.x );
+    assertEquals( -7, decoded.y );
+    assertEquals( "temp é€😀", decoded.sensor );
+    assertEquals( 21.5, decoded.value, 0 );
+    assertEquals( new Date( 1600000000123L ), decoded.taken );
+    assertArrayEquals( new byte[] { 0, -1, 127 }, decoded.raw );
+    assertEquals( Arrays.asList( "a", 1L, null ), decoded.tags );
+    assertEquals( Boolean.TRUE, decoded.attributes.get( "k" ) );
+    assertEquals( Unit.KELVIN, decoded.unit );
+    assertEquals( 1, decoded.origin.x );
+    assertEquals( 0, decoded.origin.y );
+    assertNull( decoded.cached );
+  }
+
+  @Test public void testClassesAreDescribedOncePerPayload() throws IOException {
+    ObjectCodec codec = codec();
+    List<Point> one = Collections.singletonList( new Point() );
+    List<Point> three = Arrays.asList( new Point(), new Point(), new Point() );
+    // after the first, each point is its tag, a one byte reference to the class and two two byte fields
+    assertEquals( encode( codec, one ).length + 2 * ( 1 + 1 + 2 * 2 ), encode( codec, three ).length );
+
+    // and the class table starts afresh with every payload, at both ends
+    byte[] first = encode( codec, three );
+    byte[] second = encode( codec, three );
+    assertArrayEquals( first, second );
+    ObjectCodec decoder = codec();
+    assertEquals( 3, ( (List<?>) decoder.decode( first, 0, first.length ) ).size() );
+    assertEquals( 3, ( (List<?>) decoder.decode( second, 0, second.length ) ).size() );
+  }
+
+  @Test public void testDecodeHonoursOffsetAndLength() throws IOException {
+    byte[] payload = encode( codec(), "abc" );
+    byte[] padded = new byte[payload.length + 6];
+    System.arraycopy( payload, 0, padded, 3, payload.length );
+    assertEquals( "abc", codec().decode( padded, 3, payload.length ) );
+  }
+
+  @Test public void testClassesNotOnTheAllowlistAreRefused() throws IOException {
+    try {
+      encode( codec(), new StringBuilder( "x" ) );
+      fail( "Encoded a class that is not on the allowlist" );
+    } catch ( IOException e ) {
+      assertTrue( e.getMessage().contains( "allowlist" ) );
+    }
+
+    // a subscriber that doesn't allow the class won't instantiate it
+    byte[] payload = encode( codec(), new Point() );
+    assertRejected( new ObjectCodec( Collections.<Class<?>>singletonList( Unit.class ) ), payload, "Point" );
+    assertRejected( new ObjectCodec( Collections.<Class<?>>emptyList() ), encode( codec(), Unit.CELSIUS ),
+        "an enum" );
+  }
+
+  @Test public void testAClassWithDifferentFieldsIsRefused() throws IOException {
+    // what a publisher with an extra field in Point writes
+    CRC32 crc = new CRC32();
+    crc.update( ( Point.class.getName() + ";x:int;y:int;z:int" ).getBytes( StandardCharsets.UTF_8 ) );
+    int fingerprint = (int) crc.getValue();
+    byte[] payload =
+        payload( ObjectCodec.OBJECT, 0, fingerprint >>> 24, fingerprint >>> 16, fingerprint >>> 8, fingerprint,
+            ObjectCodec.INT, 0, ObjectCodec.INT, 0, ObjectCodec.INT, 0 );
+    assertRejected( codec(), payload, "a Point with a z field" );
+
+    // whereas the same layout decodes
+    crc.reset();
+    crc.update( ( Point.class.getName() + ";x:int;y:int" ).getBytes( StandardCharsets.UTF_8 ) );
+    fingerprint = (int) crc.getValue();
+    payload =
+        payload( ObjectCodec.OBJECT, 0, fingerprint >>> 24, fingerprint >>> 16, fingerprint >>> 8, fingerprint,
+            ObjectCodec.INT, 2, ObjectCodec.INT, 4 );
+    Point point = (Point) codec().decode( payload, 0, payload.length );
+    assertEquals( 1, point.x );
+    assertEquals( 2, point.y );
+  }
+
+  @Test public void testTruncatedPayloadsAreRefused() throws IOException {
+    Map<String, Object> value = new LinkedHashMap<>();
+    value.put( "reading", reading() );
+    value.put( "when", new Timestamp( 1L ) );
+    value.put( "big", new BigDecimal( "1.25" ) );
+    value.put( "many", Arrays.asList( reading(), reading() ) );
+    byte[] payload = encode( codec(), value );
+    ObjectCodec codec = codec();
+    for ( int length = 0; length < payload.length; length++ ) {
+      try {
+        codec.decode( payload, 0, length );
+        fail( "Decoded the first " + length + " of " + payload.length + " bytes" );
+      } catch ( IOException e ) {
+        // expected
+      }
+    }
+    // the codec is still usable afterwards
+    assertEquals( 4, ( (Map<?, ?>) codec.decode( payload, 0, payload.length ) ).size() );
+
+    // trailing garbage is refused as well
+    byte[] longer = Arrays.copyOf( payload, payload.length + 1 );
+    assertRejected( codec, longer, "a payload with a trailing byte" );
+  }
+
+  @Test public void testNestingIsLimited() throws IOException {
+    List<Object> nested = new ArrayList<>();
+    List<Object> innermost = nested;
+    for ( int i = 0; i < ObjectCodec.MAX_DEPTH; i++ ) {
+      List<Object> inner = new ArrayList<>();
+      innermost.add( inner );
+      innermost = inner;
+    }
+    assertEquals( nested, roundTrip( nested ) );
+
+    innermost.add( new ArrayList<>() );
+    try {
+      encode( codec(), nested );
+      fail( "Encoded a list nested more than " + ObjectCodec.MAX_DEPTH + " deep" );
+    } catch ( IOException e ) {
+      // expected
+    }
+
+    List<Object> cyclic = new ArrayList<>();
+    cyclic.add( cyclic );
+    try {
+      encode( codec(), cyclic );
+      fail( "Encoded a cyclic list" );
+    } catch ( IOException e ) {
+      // expected
+    }
+
+    // a hostile payload of one element lists, nested far deeper than the limit
+    int[] deep = new int[2 * 10000 + 1];
+    for ( int i = 0; i < 10000; i++ ) {
+      deep[2 * i] = ObjectCodec.LIST;
+      deep[2 * i + 1] = 1;
+    }
+    deep[deep.length - 1] = ObjectCodec.NULL;
+    assertRejected( codec(), payload( deep ), "a payload nested 10000 deep" );
+  }
+
+  @Test public void testOversizedLengthsAreRefused() {
+    // Integer.MAX_VALUE and Long.MAX_VALUE as variable length numbers
+    int[] maxInt = { 0xFF, 0xFF, 0xFF, 0xFF, 0x07 };
+    int[] maxLong = { 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x7F };
+    for ( int tag : new int[] { ObjectCodec.LIST, ObjectCodec.SET, ObjectCodec.MAP, ObjectCodec.STRING,
+        ObjectCodec.BYTES, ObjectCodec.BIG_INTEGER } ) {
+      for ( int[] count : new int[][] { maxInt, maxLong } ) {
+        int[] bytes = new int[count.length + 2];
+        bytes[0] = tag;
+        System.arraycopy( count, 0, bytes, 1, count.length );
+        bytes[bytes.length - 1] = ObjectCodec.NULL;
+        assertRejected( codec(), payload( bytes ), "a count of " + count.length + " bytes for tag " + tag );
+      }
+      // one more element than there are bytes left
+      assertRejected( codec(), payload( tag, 2, ObjectCodec.NULL ), "an overlong count for tag " + tag );
+    }
+
+    // a number with too many continuation bytes
+    assertRejected( codec(), payload( ObjectCodec.LONG, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80,
+        0x01 ), "an eleven byte number" );
+  }
+
+  @Test public void testOutOfRangeValuesAreRefused() throws IOException {
+    // timestamp nanos of a billion
+    assertRejected( codec(), payload( ObjectCodec.TIMESTAMP, 0, 0x80, 0x94, 0xEB, 0xDC, 0x03 ), "nanos of 1e9" );
+    assertRejected( codec(), payload( ObjectCodec.BIG_INTEGER, 0 ), "an empty big integer" );
+    assertRejected( codec(), payload( 0x7F ), "an unknown tag" );
+    assertRejected( codec(), new byte[] { 1, 2, 3 }, "a payload without the header" );
+    assertFalse( ObjectCodec.isCompact( new byte[] { (byte) 0xAC, (byte) 0xED, 0, 5 } ) );
+
+    byte[] unit = encode( codec(), Unit.KELVIN );
+    unit[unit.length - 1] = 2;
+    assertRejected( codec(), unit, "an enum ordinal out of range" );
+    // a class reference before any class has been described
+    assertRejected( codec(), payload( ObjectCodec.OBJECT, 1 ), "a reference to an undefined class" );
+  }
+
+  @Test public void testUnsupportedClassesAreRefusedUpFront() throws ClassNotFoundException {
+    for ( Class<?> type : Arrays.<Class<?>>asList( NoDefaultConstructor.class, IntArrayField.class,
+        TreeMapField.class, Runnable.class, Number.class ) ) {
+      try {
+        new ObjectCodec( Collections.<Class<?>>singletonList( type ) );
+        fail( "Allowed " + type.getName() );
+      } catch ( IllegalArgumentException e ) {
+        // expected
+      }
+    }
+    ObjectCodec codec = ObjectCodec.forClassNames( " " + Point.class.getName() + ",\n" + Unit.class.getName() + " ",
+        getClass().getClassLoader() );
+    assertEquals( 2, codec.m_byClass.size() );
+    assertTrue( ObjectCodec.forClassNames( "", getClass().getClassLoader() ).m_byClass.isEmpty() );
+  }
+}
@@ -0,0 +1,236 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.phalanxdev.mqtt;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OfflineBufferTest {
+
+  /** Room for three messages with a one byte topic and a ten byte payload */
+  protected static final int CAPACITY = 3 * ( OfflineBuffer.HEADER_SIZE + 1 + 10 );
+
+  protected static byte[] payload( int length, int seed ) {
+    byte[] payload = new byte[length];
+    for ( int i = 0; i < length; i++ ) {
+      payload[i] = (byte) ( seed + i );
+    }
+    return payload;
+  }
+
+  @Test public void testMessagesComeOutAsTheyWentIn() {
+    OfflineBuffer buffer = new OfflineBuffer( 1024 );
+    assertNull( buffer.poll() );
+    assertNull( buffer.peekTopic() );
+
+    assertTrue( buffer.offer( "a/b", payload( 5, 1 ), 1, false, "first" ) );
+    assertTrue( buffer.offer( "café", payload( 0, 0 ), 2, true, "second" ) );
+    assertEquals( 2, buffer.size() );
+    assertEquals( "a/b", buffer.peekTopic() );
+
+    OfflineBuffer.Message message = buffer.poll();
+    assertEquals( "a/b", message.m_topic );
+    assertArrayEquals( payload( 5, 1 ), message.m_payload );
+    assertEquals( 1, message.m_qos );
+    assertFalse( message.m_retained );
+    assertEquals( "first", message.m_context );
+
+    message = buffer.poll();
+    assertEquals( "café", message.m_topic );
+    assertEquals( 0, message.m_payload.length );
+    assertEquals( 2, message.m_qos );
+    assertTrue( message.m_retained );
+    assertEquals( "second", message.m_context );
+
+    assertEquals( 0, buffer.size() );
+    assertEquals( 0, buffer.getUsedBytes() );
+  }
+
+  @Test public void testPayloadIsCopied() {
+    OfflineBuffer buffer = new OfflineBuffer( 1024 );
+    byte[] payload = payload( 4, 7 );
+    buffer.offer( "t", payload, 0, false, "context" );
+    payload[0] = 0;
+    assertArrayEquals( payload( 4, 7 ), buffer.poll().m_payload );
+  }
+
+  @Test public void testWraparound() {
+    // message sizes that don't divide the capacity, so records (and their headers) end up split across the end
+    OfflineBuffer buffer = new OfflineBuffer( 97 );
+    ArrayDeque<OfflineBuffer.Message> expected = new ArrayDeque<>();
+    Random random = new Random( 42 );
+    for ( int i = 0; i < 2000; i++ ) {
+      if ( random.nextBoolean() ) {
+        String topic = "t" + random.nextInt( 1000 );
+        byte[] payload = payload( random.nextInt( 30 ), i );
+        boolean room = buffer.getUsedBytes() + OfflineBuffer.recordSize( topic, payload.length ) <= 97;
+        assertEquals( room, buffer.offer( topic, payload, i % 3, i % 2 == 0, i ) );
+        if ( room ) {
+          expected.addLast( new OfflineBuffer.Message( topic, payload, i % 3, i % 2 == 0, i ) );
+        }
+      } else {
+        OfflineBuffer.Message wanted = expected.pollFirst();
+        if ( wanted == null ) {
+          assertNull( buffer.poll() );
+          continue;
+        }
+        assertEquals( wanted.m_topic, buffer.peekTopic() );
+        OfflineBuffer.Message message = buffer.poll();
+        assertEquals( wanted.m_topic, message.m_topic );
+        assertArrayEquals( wanted.m_payload, message.m_payload );
+        assertEquals( wanted.m_qos, message.m_qos );
+        assertEquals( wanted.m_retained, message.m_retained );
+        assertEquals( wanted.m_context, message.m_context );
+      }
+      assertEquals( expected.size(), buffer.size() );
+    }
+  }
+
+  @Test public void testFits() {
+    OfflineBuffer buffer = new OfflineBuffer( CAPACITY );
+    assertTrue( buffer.fits( "t", CAPACITY - OfflineBuffer.HEADER_SIZE - 1 ) );
+    assertFalse( buffer.fits( "t", CAPACITY - OfflineBuffer.HEADER_SIZE ) );
+  }
+
+  @Test public void testDropNewestLeavesTheBufferAlone() {
+    OfflineBuffer buffer = new OfflineBuffer( CAPACITY );
+    for ( int i = 0; i < 3; i++ ) {
+      assertTrue( buffer.offer( "t", payload( 10, i ), 1, false, i ) );
+    }
+    int used = buffer.getUsedBytes();
+
+    // what the DROP_NEWEST policy does with a message that doesn't fit
+    assertFalse( buffer.offer( "t", payload( 10, 3 ), 1, false, 3 ) );
+    buffer.droppedNewest();
+
+    assertEquals( 3, buffer.size() );
+    assertEquals( used, buffer.getUsedBytes() );
+    assertEquals( 1, buffer.getDropped() );
+    for ( int i = 0; i < 3; i++ ) {
+      assertEquals( i, buffer.poll().m_context );
+    }
+  }
+
+  @Test public void testDropOldestMakesRoom() {
+    OfflineBuffer buffer = new OfflineBuffer( CAPACITY );
+    for ( int i = 0; i < 3; i++ ) {
+      assertTrue( buffer.offer( "t", payload( 10, i ), 1, false, i ) );
+    }
+
+    // what the DROP_OLDEST policy does: a message twice the size needs two to go
+    ArrayDeque<Object> dropped = new ArrayDeque<>();
+    while ( !buffer.offer( "t", payload( 20 + OfflineBuffer.HEADER_SIZE + 1, 3 ), 1, false, 3 ) ) {
+      dropped.addLast( buffer.dropOldest() );
+    }
+    assertEquals( 2, dropped.size() );
+    assertEquals( 0, dropped.pollFirst() );
+    assertEquals( 1, dropped.pollFirst() );
+    assertEquals( 2, buffer.getDropped() );
+
+    assertEquals( 2, buffer.poll().m_context );
+    OfflineBuffer.Message message = buffer.poll();
+    assertEquals( 3, message.m_context );
+    assertArrayEquals( payload( 20 + OfflineBuffer.HEADER_SIZE + 1, 3 ), message.m_payload );
+    assertNull( buffer.dropOldest() );
+  }
+
+  @Test( timeout = 10000 ) public void testBlockWaitsForTheConsumer() throws Exception {
+    final OfflineBuffer buffer = new OfflineBuffer( CAPACITY );
+    for ( int i = 0; i < 3; i++ ) {
+      assertTrue( buffer.offer( "t", payload( 10, i ), 1, false, i ) );
+    }
+
+    // what the BLOCK policy does: wait until the reconnect thread has drained something. The wait is far longer than
+    // the test's timeout, so only the poll can end it
+    final CountDownLatch added = new CountDownLatch( 1 );
+    Thread producer = new Thread( new Runnable() {
+      @Override public void run() {
+        try {
+          if ( buffer.offer( "t", payload( 10, 3 ), 1, false, 3, 60000 ) ) {
+            added.countDown();
+          }
+        } catch ( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    } );
+    producer.start();
+    assertFalse( added.await( 100, TimeUnit.MILLISECONDS ) );
+    assertEquals( 3, buffer.size() );
+
+    assertEquals( 0, buffer.poll().m_context );
+    assertTrue( added.await( 5, TimeUnit.SECONDS ) );
+    producer.join();
+    for ( int i = 1; i < 4; i++ ) {
+      assertEquals( i, buffer.poll().m_context );
+    }
+    assertEquals( 0, buffer.getDropped() );
+  }
+
+  @Test( timeout = 10000 ) public void testDropOldestWakesAWaitingProducer() throws Exception {
+    final OfflineBuffer buffer = new OfflineBuffer( CAPACITY );
+    for ( int i = 0; i < 3; i++ ) {
+      assertTrue( buffer.offer( "t", payload( 10, i ), 1, false, i ) );
+    }
+    final CountDownLatch added = new CountDownLatch( 1 );
+    Thread producer = new Thread( new Runnable() {
+      @Override public void run() {
+        try {
+          if ( buffer.offer( "t", payload( 10, 3 ), 1, false, 3, 60000 ) ) {
+            added.countDown();
+          }
+        } catch ( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    } );
+    producer.start();
+    assertFalse( added.await( 100, TimeUnit.MILLISECONDS ) );
+    assertEquals( 0, buffer.dropOldest() );
+    assertTrue( added.await( 5, TimeUnit.SECONDS ) );
+    producer.join();
+    assertEquals( 3, buffer.size() );
+  }
+
+  @Test public void testWaitingForRoomTimesOut() throws InterruptedException {
+    OfflineBuffer buffer = new OfflineBuffer( CAPACITY );
+    for ( int i = 0; i < 3; i++ ) {
+      assertTrue( buffer.offer( "t", payload( 10, i ), 1, false, i, 0 ) );
+    }
+    long start = System.nanoTime();
+    assertFalse( buffer.offer( "t", payload( 10, 3 ), 1, false, 3, 50 ) );
+    assertTrue( System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos( 50 ) );
+    assertEquals( 3, buffer.size() );
+  }
+}
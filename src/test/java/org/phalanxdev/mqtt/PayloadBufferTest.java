@@ -0,0 +1,163 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+
+package org.phalanxdev.mqtt;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class PayloadBufferTest {
+
+  protected static byte[] utf8( String s ) {
+    PayloadBuffer buffer = new PayloadBuffer( 16 );
+    buffer.writeUtf8( s );
+    return Arrays.copyOf( buffer.array(), buffer.length() );
+  }
+
+  protected static void assertSameAsGetBytes( String s ) {
+    byte[] expected = s.getBytes( StandardCharsets.UTF_8 );
+    assertArrayEquals( "Encoding of " + codePoints( s ), expected, utf8( s ) );
+    assertEquals( "Length of " + codePoints( s ), expected.length, ObjectCodec.utf8Length( s ) );
+  }
+
+  protected static String codePoints( String s ) {
+    StringBuilder description = new StringBuilder();
+    for ( int i = 0; i < s.length(); i++ ) {
+      description.append( String.format( "\\u%04x", (int) s.charAt( i ) ) );
+    }
+    return description.toString();
+  }
+
+  @Test public void testUtf8MatchesGetBytes() {
+    String[] strings =
+        { "", "a", "plain ascii topic/with/levels", "café", "\u007f\u0080߿ࠀ￿", "日本語のテキスト",
+            "emoji 😀 and 🌍", "􏿿", "ascii prefix then ü", "ü then ascii suffix" };
+    for ( String s : strings ) {
+      assertSameAsGetBytes( s );
+    }
+  }
+
+  @Test public void testUnpairedSurrogatesMatchGetBytes() {
+    String[] strings =
+        { "\ud800", "\udc00", "a\ud800", "\ud800a", "a\udc00b", "\udc00\ud800", "\ud800𐀀",
+            "😀\ude00", "x\ud83d" };
+    for ( String s : strings ) {
+      assertSameAsGetBytes( s );
+    }
+  }
+
+  @Test public void testRandomStringsMatchGetBytes() {
+    Random random = new Random( 42 );
+    for ( int n = 0; n < 2000; n++ ) {
+      char[] chars = new char[random.nextInt( 40 )];
+      for ( int i = 0; i < chars.length; i++ ) {
+        switch ( random.nextInt( 4 ) ) {
+          case 0:
+            chars[i] = (char) random.nextInt( 0x80 );
+            break;
+          case 1:
+            chars[i] = (char) ( 0x80 + random.nextInt( 0x800 - 0x80 ) );
+            break;
+          case 2:
+            // surrogates included, paired or not
+            chars[i] = (char) ( 0xd700 + random.nextInt( 0xe100 - 0xd700 ) );
+            break;
+          default:
+            chars[i] = (char) random.nextInt( 0x10000 );
+        }
+      }
+      assertSameAsGetBytes( new String( chars ) );
+    }
+  }
+
+  @Test public void testWritesAppendAndGrow() {
+    PayloadBuffer buffer = new PayloadBuffer( 16 );
+    buffer.write( 7 );
+    buffer.writeInt( 0x01020304 );
+    buffer.writeLong( -2L );
+    buffer.writeDouble( 1.5 );
+    StringBuilder longString = new StringBuilder();
+    for ( int i = 0; i < 100; i++ ) {
+      longString.append( "€" );
+    }
+    buffer.writeUtf8( longString );
+    buffer.write( new byte[] { 9, 8, 7 }, 1, 2 );
+
+    ByteBuffer expected = ByteBuffer.allocate( 1 + 4 + 8 + 8 + 300 + 2 );
+    expected.put( (byte) 7 ).putInt( 0x01020304 ).putLong( -2L ).putDouble( 1.5 );
+    expected.put( longString.toString().getBytes( StandardCharsets.UTF_8 ) ).put( (byte) 8 ).put( (byte) 7 );
+    assertEquals( expected.capacity(), buffer.length() );
+    assertArrayEquals( expected.array(), buffer.toByteArray( false ) );
+
+    buffer.reset();
+    assertEquals( 0, buffer.length() );
+    buffer.writeUtf8( "ab" );
+    assertArrayEquals( new byte[] { 'a', 'b' }, buffer.toByteArray( false ) );
+  }
+
+  @Test public void testByteArraysAreOnlyReusedWhenAllowed() {
+    PayloadBuffer buffer = new PayloadBuffer();
+    buffer.writeUtf8( "abc" );
+    byte[] first = buffer.toByteArray( true );
+    assertNotSame( first, buffer.toByteArray( false ) );
+
+    buffer.reset();
+    buffer.writeUtf8( "xyz" );
+    assertSame( first, buffer.toByteArray( true ) );
+    assertArrayEquals( new byte[] { 'x', 'y', 'z' }, first );
+
+    // a different length needs a new array
+    buffer.reset();
+    buffer.writeUtf8( "wxyz" );
+    byte[] second = buffer.toByteArray( true );
+    assertNotSame( first, second );
+
+    buffer.discardReusable();
+    buffer.reset();
+    buffer.writeUtf8( "abcd" );
+    assertNotSame( second, buffer.toByteArray( true ) );
+    assertArrayEquals( new byte[] { 'w', 'x', 'y', 'z' }, second );
+  }
+
+  @Test public void testDirectPayloadsAreNotCopied() {
+    PayloadBuffer buffer = new PayloadBuffer();
+    byte[] bytes = { 1, 2, 3 };
+    buffer.setDirect( bytes );
+    assertSame( bytes, buffer.array() );
+    assertSame( bytes, buffer.toByteArray( true ) );
+
+    buffer.reset();
+    buffer.write( 5 );
+    assertArrayEquals( new byte[] { 5 }, buffer.toByteArray( false ) );
+  }
+}
@@ -0,0 +1,85 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.phalanxdev.mqtt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Drives a TokenBucket with a fake clock: all times are nanoseconds from an arbitrary origin
+ */
+public class TokenBucketTest {
+
+  protected static final long START = 5000000000L;
+  protected static final long MS = 1000000L;
+
+  @Test public void testBurstIsAvailableStraightAway() {
+    TokenBucket bucket = new TokenBucket( 10, 5, START );
+    for ( int i = 0; i < 5; i++ ) {
+      assertEquals( 0, bucket.reserve( 1, START ) );
+    }
+    // the sixth token is one token's time (100ms at 10/s) away
+    assertEquals( 100 * MS, bucket.reserve( 1, START ) );
+    assertEquals( 1, bucket.getThrottled() );
+  }
+
+  @Test public void testSteadyRate() {
+    TokenBucket bucket = new TokenBucket( 10, 1, START );
+    long now = START;
+    for ( int i = 0; i < 20; i++ ) {
+      assertEquals( 0, bucket.reserve( 1, now ) );
+      now += 100 * MS;
+    }
+    assertEquals( 0, bucket.getThrottled() );
+
+    // faster than the rate, each reservation waits one token longer than the one before
+    assertEquals( 0, bucket.reserve( 1, now ) );
+    assertEquals( 100 * MS, bucket.reserve( 1, now ) );
+    assertEquals( 200 * MS, bucket.reserve( 1, now ) );
+    assertEquals( 150 * MS, bucket.reserve( 1, now + 150 * MS ) );
+  }
+
+  @Test public void testIdleBucketHoldsNoMoreThanTheBurst() {
+    TokenBucket bucket = new TokenBucket( 10, 5, START );
+    long later = START + 60000 * MS;
+    assertEquals( 0, bucket.reserve( 5, later ) );
+    assertEquals( 100 * MS, bucket.reserve( 1, later ) );
+  }
+
+  @Test public void testMoreThanTheBurst() {
+    TokenBucket bucket = new TokenBucket( 1000, 100, START );
+    // a full bucket holds only the burst, so a reservation for more waits for the tokens beyond it
+    assertEquals( 50 * MS, bucket.reserve( 150, START ) );
+    assertEquals( 1, bucket.getThrottled() );
+
+    // and the bucket is then in debt until those tokens have been replenished
+    assertEquals( 150 * MS, bucket.reserve( 100, START ) );
+    assertEquals( 0, bucket.reserve( 1, START + 150 * MS + MS ) );
+  }
+
+  @Test( expected = IllegalArgumentException.class ) public void testRateMustBePositive() {
+    new TokenBucket( 0, 1, START );
+  }
+}
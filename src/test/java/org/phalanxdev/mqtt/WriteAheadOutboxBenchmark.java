@@ -0,0 +1,231 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+
+package org.phalanxdev.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the outbox with Paho's own MqttDefaultFilePersistence, which keeps each in-flight QoS 1/2 message in a
+ * file of its own and syncs it as it is written. Run with {@code mvn -Pbenchmark test -Dbenchmark=WriteAheadOutbox}.
+ */
+@Fork( 1 ) @Warmup( iterations = 3, time = 2 ) @Measurement( iterations = 5, time = 2 )
+public class WriteAheadOutboxBenchmark {
+
+  /** The number of messages left in the store for the recovery benchmarks */
+  protected static final int RECOVERED_MESSAGES = 10000;
+
+  protected static final String TOPIC = "plant/line-4/sensor/17";
+
+  /**
+   * Roughly what Paho persists for an outgoing publish: a fixed header and the topic, then the payload
+   */
+  protected static class Persistable implements MqttPersistable {
+    protected final byte[] m_header;
+    protected final byte[] m_payload;
+
+    protected Persistable( byte[] header, byte[] payload ) {
+      m_header = header;
+      m_payload = payload;
+    }
+
+    @Override public byte[] getHeaderBytes() {
+      return m_header;
+    }
+
+    @Override public int getHeaderLength() {
+      return m_header.length;
+    }
+
+    @Override public int getHeaderOffset() {
+      return 0;
+    }
+
+    @Override public byte[] getPayloadBytes() {
+      return m_payload;
+    }
+
+    @Override public int getPayloadLength() {
+      return m_payload.length;
+    }
+
+    @Override public int getPayloadOffset() {
+      return 0;
+    }
+  }
+
+  protected static byte[] header() {
+    byte[] topic = TOPIC.getBytes( StandardCharsets.UTF_8 );
+    byte[] header = new byte[4 + topic.length + 2];
+    header[0] = 0x32;
+    header[2] = (byte) ( topic.length >> 8 );
+    header[3] = (byte) topic.length;
+    System.arraycopy( topic, 0, header, 4, topic.length );
+    return header;
+  }
+
+  protected static File createDirectory() throws IOException {
+    return Files.createTempDirectory( "outbox-benchmark" ).toFile();
+  }
+
+  protected static void deleteDirectory( File directory ) {
+    File[] files = directory.listFiles();
+    if ( files != null ) {
+      for ( File file : files ) {
+        if ( file.isDirectory() ) {
+          deleteDirectory( file );
+        } else {
+          file.delete();
+        }
+      }
+    }
+    directory.delete();
+  }
+
+  /**
+   * A message is stored as it is sent and removed again when the broker acknowledges it
+   */
+  @State( Scope.Thread )
+  public static class Publishing {
+    @Param( { "64", "1024" } )
+    public int m_payloadSize;
+
+    protected File m_directory;
+    protected WriteAheadOutbox m_outbox;
+    protected MqttDefaultFilePersistence m_persistence;
+    protected byte[] m_payload;
+    protected Persistable m_persistable;
+    protected int m_messageId;
+
+    @Setup( Level.Trial ) public void setUp() throws Exception {
+      m_directory = createDirectory();
+      m_outbox = new WriteAheadOutbox( new File( m_directory, "outbox" ), 64 * 1024 * 1024, 10 );
+      m_persistence = new MqttDefaultFilePersistence( new File( m_directory, "paho" ).getPath() );
+      m_persistence.open( "benchmark", "tcp://localhost:1883" );
+      m_payload = new byte[m_payloadSize];
+      m_persistable = new Persistable( header(), m_payload );
+    }
+
+    @TearDown( Level.Trial ) public void tearDown() throws Exception {
+      m_outbox.close();
+      m_persistence.close();
+      deleteDirectory( m_directory );
+    }
+  }
+
+  @Benchmark @BenchmarkMode( Mode.Throughput ) @OutputTimeUnit( TimeUnit.SECONDS )
+  public long outboxAppendAndAcknowledge( Publishing state ) throws IOException {
+    WriteAheadOutbox outbox = state.m_outbox;
+    long sequence = outbox.append( TOPIC, state.m_payload, 1, false );
+    outbox.acknowledge( sequence );
+    outbox.syncIfDue();
+    return sequence;
+  }
+
+  @Benchmark @BenchmarkMode( Mode.Throughput ) @OutputTimeUnit( TimeUnit.SECONDS )
+  public int filePersistencePutAndRemove( Publishing state ) throws Exception {
+    // message ids run from 1 to 65535, as Paho's do
+    int messageId = state.m_messageId % 65535 + 1;
+    state.m_messageId = messageId;
+    String key = "s-" + messageId;
+    state.m_persistence.put( key, state.m_persistable );
+    state.m_persistence.remove( key );
+    return messageId;
+  }
+
+  /**
+   * A store left holding RECOVERED_MESSAGES unacknowledged messages by a previous run
+   */
+  @State( Scope.Thread )
+  public static class Recovering {
+    protected File m_directory;
+
+    @Setup( Level.Invocation ) public void setUp() throws Exception {
+      m_directory = createDirectory();
+      byte[] payload = new byte[256];
+      WriteAheadOutbox outbox = new WriteAheadOutbox( new File( m_directory, "outbox" ), 64 * 1024 * 1024, 10 );
+      for ( int i = 0; i < RECOVERED_MESSAGES; i++ ) {
+        outbox.append( TOPIC, payload, 1, false );
+      }
+      outbox.close();
+
+      MqttDefaultFilePersistence persistence =
+          new MqttDefaultFilePersistence( new File( m_directory, "paho" ).getPath() );
+      persistence.open( "benchmark", "tcp://localhost:1883" );
+      Persistable persistable = new Persistable( header(), payload );
+      for ( int i = 1; i <= RECOVERED_MESSAGES; i++ ) {
+        persistence.put( "s-" + i, persistable );
+      }
+      persistence.close();
+    }
+
+    @TearDown( Level.Invocation ) public void tearDown() {
+      deleteDirectory( m_directory );
+    }
+  }
+
+  @Benchmark @BenchmarkMode( Mode.SingleShotTime ) @OutputTimeUnit( TimeUnit.MILLISECONDS )
+  @Warmup( iterations = 5, batchSize = 1 ) @Measurement( iterations = 20, batchSize = 1 )
+  public int outboxRecover( Recovering state ) throws IOException {
+    WriteAheadOutbox outbox = new WriteAheadOutbox( new File( state.m_directory, "outbox" ), 64 * 1024 * 1024, 10 );
+    int recovered = outbox.takeRecovered().size();
+    outbox.close();
+    return recovered;
+  }
+
+  @Benchmark @BenchmarkMode( Mode.SingleShotTime ) @OutputTimeUnit( TimeUnit.MILLISECONDS )
+  @Warmup( iterations = 5, batchSize = 1 ) @Measurement( iterations = 20, batchSize = 1 )
+  public void filePersistenceRecover( Recovering state, Blackhole blackhole ) throws Exception {
+    MqttDefaultFilePersistence persistence =
+        new MqttDefaultFilePersistence( new File( state.m_directory, "paho" ).getPath() );
+    persistence.open( "benchmark", "tcp://localhost:1883" );
+    Enumeration<?> keys = persistence.keys();
+    while ( keys.hasMoreElements() ) {
+      blackhole.consume( persistence.get( (String) keys.nextElement() ) );
+    }
+    persistence.close();
+  }
+}
@@ -0,0 +1,302 @@
+/*! ******************************************************************************
+ *
+ * MQTT for the Hop orchestration platform
+ *
+ * http://www.project-hop.org
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+
+package org.phalanxdev.mqtt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteAheadOutboxTest {
+
+  /** The smallest segment the outbox will use */
+  protected static final int SEGMENT_SIZE = 4096;
+
+  protected File m_directory;
+
+  protected static byte[] payload( int length, int seed ) {
+    byte[] payload = new byte[length];
+    for ( int i = 0; i < length; i++ ) {
+      payload[i] = (byte) ( seed + i );
+    }
+    return payload;
+  }
+
+  /**
+   * Abandon an outbox the way a process that dies would: nothing more is synced or deleted, the files are just closed
+   */
+  protected static void crash( WriteAheadOutbox outbox ) throws IOException {
+    for ( WriteAheadOutbox.Segment segment : outbox.m_segments ) {
+      WriteAheadOutbox.closeChannel( segment );
+    }
+    outbox.m_checkpoint.close();
+  }
+
+  protected File[] segmentFiles() {
+    File[] files = m_directory.listFiles();
+    List<File> segments = new ArrayList<>();
+    for ( File file : files ) {
+      if ( file.getName().endsWith( WriteAheadOutbox.SEGMENT_SUFFIX ) ) {
+        segments.add( file );
+      }
+    }
+    File[] sorted = segments.toArray( new File[0] );
+    Arrays.sort( sorted );
+    return sorted;
+  }
+
+  protected static void assertRecord( WriteAheadOutbox.Record record, long sequence, String topic, byte[] payload,
+      int qos, boolean retained ) {
+    assertEquals( sequence, record.m_sequence );
+    assertEquals( topic, record.m_topic );
+    assertArrayEquals( payload, record.m_payload );
+    assertEquals( qos, record.m_qos );
+    assertEquals( retained, record.m_retained );
+  }
+
+  @Before public void setUp() throws IOException {
+    m_directory = Files.createTempDirectory( "outbox" ).toFile();
+  }
+
+  @After public void tearDown() {
+    File[] files = m_directory.listFiles();
+    if ( files != null ) {
+      for ( File file : files ) {
+        file.delete();
+      }
+    }
+    m_directory.delete();
+  }
+
+  @Test public void testUnacknowledgedMessagesAreRecoveredAfterACrash() throws IOException {
+    WriteAheadOutbox outbox = new WriteAheadOutbox( m_directory, SEGMENT_SIZE, 1000 );
+    assertTrue( outbox.takeRecovered().isEmpty() );
+    assertEquals( 0, outbox.append( "a/b", payload( 10, 1 ), 1, false ) );
+    assertEquals( 1, outbox.append( "café", payload( 0, 0 ), 2, true ) );
+    assertEquals( 2, outbox.append( "c", payload( 3, 7 ), 0, false ) );
+    outbox.acknowledge( 0 );
+    outbox.sync();
+    crash( outbox );
+
+    outbox = new WriteAheadOutbox( m_directory, SEGMENT_SIZE, 1000 );
+    List<WriteAheadOutbox.Record> recovered = outbox.takeRecovered();
+    assertEquals( 2, recovered.size() );
+    assertRecord( recovered.get( 0 ), 1, "café", payload( 0, 0 ), 2, true );
+    assertRecord( recovered.get( 1 ), 2, "c", payload( 3, 7 ), 0, false );
+    assertTrue( outbox.takeRecovered().isEmpty() );
+    assertEquals( 2, outbox.getPending() );
+
+    // new messages carry on from the recovered ones
+    assertEquals( 3, outbox.append( "d", payload( 1, 0 ), 1, false ) );
+    assertEquals( 3, outbox.getPending() );
+    outbox.close();
+  }
+
+  @Test public void testCloseKeepsUnacknowledgedMessages() throws IOException {
+    WriteAheadOutbox outbox = new WriteAheadOutbox( m_directory, SEGMENT_SIZE, 1000 );
+    outbox.append( "a", payload( 5, 0 ), 1, false );
+    outbox.append( "b", payload( 5, 1 ), 1, false );
+    outbox.acknowledge( 1 );
+    outbox.close();
+
+    outbox = new WriteAheadOutbox( m_directory, SEGMENT_SIZE, 1000 );
+    List<WriteAheadOutbox.Record> recovered = outbox.takeRecovered();
+    // 1 was acknowledged, but the checkpoint can't move past 0 until that is too
+    assertEquals( 2, recovered.size() );
+    assertEquals( 0, recovered.get( 0 ).m_sequence );
+    assertEquals( 1, recovered.get( 1 ).m_sequence );
+
+    // once the recovered messages are acknowledged they are gone for good
+    outbox.acknowledge( 0 );
+    outbox.acknowledge( 1 );
+    assertEquals( 0, outbox.getPending() );
+    outbox.close();
+    assertEquals( 0, segmentFiles().length );
+
+    outbox = new WriteAheadOutbox( m_directory, SEGMENT_SIZE, 1000 );
+    assertTrue( outbox.takeRecovered().isEmpty() );
+    assertEquals( 0, outbox.getPending() );
+    outbox.close();
+  }
+
+  @Test public void testAcknowledgementsAfterTheLastSyncAreNotKnownAfterACrash() throws IOException {
+    WriteAheadOutbox outbox = new WriteAheadOutbox( m_directory, SEGMENT_SIZE, 60000 );
+    outbox.append( "a", payload( 5, 0 ), 1, false );
+    outbox.append( "b", payload( 5, 1 ), 1, false );
+    outbox.sync();
+    outbox.acknowledge( 0 );
+    outbox.acknowledge( 1 );
+    // not due yet, so the checkpoint stays where it was
+    outbox.syncIfDue();
+    crash( outbox );
+
+    outbox = new WriteAheadOutbox( m_directory, SEGMENT_SIZE, 60000 );
+    assertEquals( 2, outbox.takeRecovered().size() );
+    outbox.close();
+  }
+
+  @Test public void testAcknowledgementsAloneAdvanceTheCheckpoint() throws IOException {
+    WriteAheadOutbox outbox = new WriteAheadOutbox( m_directory, SEGMENT_SIZE, 0 );
+    for ( int i = 0; i < 3; i++ ) {
+      outbox.append( "a", payload( 5, i ), 1, false );
+    }
+    outbox.syncIfDue();
+    outbox.acknowledge( 0 );
+    outbox.acknowledge( 2 );
+    outbox.syncIfDue();
+    assertEquals( 1, outbox.getLowWater() );
+    outbox.acknowledge( 1 );
+    outbox.syncIfDue();
+    assertEquals( 3, outbox.getLowWater() );
+    crash( outbox );
+
+    outbox = new WriteAheadOutbox( m_directory, SEGMENT_SIZE, 0 );
+    assertTrue( outbox.takeRecovered().isEmpty() );
+    assertEquals( 0, outbox.getPending() );
+    assertEquals( 3, outbox.append( "b", payload( 1, 0 ), 1, false ) );
+    outbox.close();
+  }
+
+  @Test public void testATornRecordEndsTheSegment() throws IOException {
+    WriteAheadOutbox outbox = new WriteAheadOutbox( m_directory, SEGMENT_SIZE, 1000 );
+    for ( int i = 0; i < 3; i++ ) {
+      outbox.append( "a", payload( 20, i ), 1, false );
+    }
+    outbox.sync();
+    crash( outbox );
+
+    // the last write only got part way to disk
+    File segment = segmentFiles()[0];
+    try ( RandomAccessFile file = new RandomAccessFile( segment, "rw" ) ) {
+      file.setLength( file.length() - 7 );
+    }
+
+    outbox = new WriteAheadOutbox( m_directory, SEGMENT_SIZE, 1000 );
+    List<WriteAheadOutbox.Record> recovered = outbox.takeRecovered();
+    assertEquals( 2, recovered.size() );
+    assertRecord( recovered.get( 1 ), 1, "a", payload( 20, 1 ), 1, false );
+
+    // the lost message's sequence number is used again, in a new segment rather than after the torn record
+    assertEquals( 2, outbox.append( "b", payload( 4, 9 ), 2, false ) );
+    outbox.close();
+    assertEquals( 2, segmentFiles().length );
+
+    outbox = new WriteAheadOutbox( m_directory, SEGMENT_SIZE, 1000 );
+    recovered = outbox.takeRecovered();
+    assertEquals( 3, recovered.size() );
+    assertRecord( recovered.get( 2 ), 2, "b", payload( 4, 9 ), 2, false );
+    outbox.close();
+  }
+
+  @Test public void testACorruptRecordEndsTheSegment() throws IOException {
+    WriteAheadOutbox outbox = new WriteAheadOutbox( m_directory, SEGMENT_SIZE, 1000 );
+    for ( int i = 0; i < 3; i++ ) {
+      outbox.append( "a", payload( 20, i ), 1, false );
+    }
+    outbox.sync();
+    crash( outbox );
+
+    // flip a payload byte of the second record
+    int recordLength = WriteAheadOutbox.RECORD_HEADER_SIZE + WriteAheadOutbox.BODY_HEADER_SIZE + 1 + 20;
+    try ( RandomAccessFile file = new RandomAccessFile( segmentFiles()[0], "rw" ) ) {
+      long position = recordLength + recordLength - 5;
+      file.seek( position );
+      int value = file.read();
+      file.seek( position );
+      file.write( value ^ 0xff );
+    }
+
+    outbox = new WriteAheadOutbox( m_directory, SEGMENT_SIZE, 1000 );
+    List<WriteAheadOutbox.Record> recovered = outbox.takeRecovered();
+    assertEquals( 1, recovered.size() );
+    assertRecord( recovered.get( 0 ), 0, "a", payload( 20, 0 ), 1, false );
+    assertEquals( 1, outbox.getPending() );
+    outbox.close();
+  }
+
+  @Test public void testSegmentsRollAndGoOnceAcknowledged() throws IOException {
+    WriteAheadOutbox outbox = new WriteAheadOutbox( m_directory, SEGMENT_SIZE, 1000 );
+    // three records to a segment
+    byte[] payload = payload( 1200, 3 );
+    for ( int i = 0; i < 10; i++ ) {
+      assertEquals( i, outbox.append( "t", payload, 1, false ) );
+    }
+    File[] segments = segmentFiles();
+    assertEquals( 4, segments.length );
+    assertEquals( String.format( "%020d", 3 ) + WriteAheadOutbox.SEGMENT_SUFFIX, segments[1].getName() );
+    for ( File segment : segments ) {
+      assertTrue( segment.length() <= SEGMENT_SIZE );
+    }
+
+    for ( int i = 0; i < 7; i++ ) {
+      outbox.acknowledge( i );
+    }
+    outbox.sync();
+    // the segment holding 6 still has an unacknowledged message in it
+    segments = segmentFiles();
+    assertEquals( 2, segments.length );
+    assertEquals( String.format( "%020d", 6 ) + WriteAheadOutbox.SEGMENT_SUFFIX, segments[0].getName() );
+    crash( outbox );
+
+    outbox = new WriteAheadOutbox( m_directory, SEGMENT_SIZE, 1000 );
+    List<WriteAheadOutbox.Record> recovered = outbox.takeRecovered();
+    assertEquals( 3, recovered.size() );
+    for ( int i = 0; i < 3; i++ ) {
+      assertRecord( recovered.get( i ), 7 + i, "t", payload, 1, false );
+    }
+    outbox.close();
+  }
+
+  @Test public void testCloseDeletesEverythingOnceAcknowledged() throws IOException {
+    WriteAheadOutbox outbox = new WriteAheadOutbox( m_directory, SEGMENT_SIZE, 1000 );
+    for ( int i = 0; i < 10; i++ ) {
+      outbox.acknowledge( outbox.append( "t", payload( 1200, i ), 1, false ) );
+    }
+    assertFalse( segmentFiles().length == 0 );
+    outbox.close();
+    assertEquals( 0, segmentFiles().length );
+  }
+
+  @Test( expected = IOException.class ) public void testAMessageBiggerThanASegmentIsRefused() throws IOException {
+    WriteAheadOutbox outbox = new WriteAheadOutbox( m_directory, SEGMENT_SIZE, 1000 );
+    try {
+      outbox.append( "t", payload( SEGMENT_SIZE, 0 ), 1, false );
+    } finally {
+      outbox.close();
+    }
+  }
+}